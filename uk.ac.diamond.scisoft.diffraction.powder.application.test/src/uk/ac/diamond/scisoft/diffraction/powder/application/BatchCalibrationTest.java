@@ -0,0 +1,163 @@
+package uk.ac.diamond.scisoft.diffraction.powder.application;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationOutput;
+import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibrationConfig;
+
+/**
+ * The batch loop with the file access and calibration of each config replaced, so the per file error handling
+ * can be checked without images. In the host package so the stages of the execution can be replaced.
+ */
+public class BatchCalibrationTest {
+
+	@Test
+	public void ResultsInConfigOrderWithFailuresRecorded() {
+
+		List<Path> configs = new ArrayList<>();
+		for (String name : new String[] {"a", "bad-config", "b", "load-fail", "calibrate-fail", "not-run", "save-fail", "c"}) {
+			configs.add(Paths.get(name + ".json"));
+		}
+
+		FakeBatch batch = new FakeBatch(configs, 3);
+		List<BatchCalibration.BatchResult> results = batch.run();
+
+		Assert.assertEquals(configs.size(), results.size());
+		for (int i = 0; i < configs.size(); i++) {
+			Assert.assertEquals(configs.get(i).toString(), results.get(i).getConfig());
+		}
+
+		for (int i : new int[] {0, 2, 7}) {
+			BatchCalibration.BatchResult r = results.get(i);
+			Assert.assertTrue(r.isSuccess());
+			Assert.assertNull(r.getError());
+			Assert.assertEquals(i, r.getResidual(), 0);
+			Assert.assertEquals(300 + i, r.getDistance(), 0);
+			Assert.assertEquals(configs.get(i) + ".nxs", r.getInput());
+			Assert.assertFalse(Double.isNaN(r.getLoadMs()) || Double.isNaN(r.getCalibrateMs()) || Double.isNaN(r.getSaveMs()));
+		}
+
+		assertFailed(results.get(1), "Could not read config");
+		Assert.assertTrue(Double.isNaN(results.get(1).getLoadMs()));
+
+		assertFailed(results.get(3), "load failed");
+		Assert.assertTrue(Double.isNaN(results.get(3).getCalibrateMs()));
+
+		assertFailed(results.get(4), "calibrate failed");
+		Assert.assertTrue(Double.isNaN(results.get(4).getSaveMs()));
+
+		assertFailed(results.get(5), "Calibration did not run");
+
+		assertFailed(results.get(6), "save failed");
+		Assert.assertEquals(6, results.get(6).getResidual(), 0);
+
+		//failed files are not saved, and each file is only run once
+		List<String> saved = batch.getSaved();
+		Collections.sort(saved);
+		Assert.assertEquals(Arrays.asList("a.json", "b.json", "c.json", "save-fail.json"), saved);
+		Assert.assertEquals(configs.size() - 1, batch.loads.get());
+
+		BatchCalibration.BatchSummary summary = new BatchCalibration.BatchSummary(results, 10);
+		Assert.assertEquals(8, summary.getTotal());
+		Assert.assertEquals(3, summary.getSucceeded());
+		Assert.assertEquals(5, summary.getFailed());
+		Assert.assertSame(results, summary.getResults());
+	}
+
+	@Test
+	public void AllFailingStillFinishes() {
+		List<Path> configs = new ArrayList<>();
+		for (int i = 0; i < 20; i++) configs.add(Paths.get("load-fail" + i + ".json"));
+
+		List<BatchCalibration.BatchResult> results = new FakeBatch(configs, 2).run();
+
+		Assert.assertEquals(20, results.size());
+		for (BatchCalibration.BatchResult r : results) assertFailed(r, "load failed");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void NeedsAThread() {
+		new BatchCalibration(new ArrayList<Path>(), 0);
+	}
+
+	private static void assertFailed(BatchCalibration.BatchResult r, String message) {
+		Assert.assertFalse(r.isSuccess());
+		Assert.assertNotNull(r.getError());
+		Assert.assertTrue(r.getError(), r.getError().startsWith(message));
+	}
+
+	private static class FakeBatch extends BatchCalibration {
+
+		private final List<Path> configs;
+		private final AtomicInteger loads = new AtomicInteger();
+		private final List<String> saved = new ArrayList<>();
+
+		public FakeBatch(List<Path> configs, int nThreads) {
+			super(configs, nThreads);
+			this.configs = configs;
+		}
+
+		@Override
+		CalibrationExecution createExecution(Path path) {
+			String name = path.toString();
+			if (name.startsWith("bad-config")) throw new IllegalArgumentException("Could not read config " + path);
+
+			PowderCalibrationConfig config = new PowderCalibrationConfig();
+			config.setStandard("CeO2");
+			config.setInputPath(name + ".nxs");
+			config.setOutputPath(name + ".out.nxs");
+			return new FakeExecution(config, name);
+		}
+
+		private synchronized void save(String name) {
+			saved.add(name);
+		}
+
+		private synchronized List<String> getSaved() {
+			return new ArrayList<>(saved);
+		}
+
+		private class FakeExecution extends CalibrationExecution {
+
+			private final String name;
+
+			public FakeExecution(PowderCalibrationConfig config, String name) {
+				super(config);
+				this.name = name;
+			}
+
+			@Override
+			LoadedImages load() throws Exception {
+				loads.incrementAndGet();
+				if (name.startsWith("load-fail")) throw new Exception("load failed");
+				return new LoadedImages();
+			}
+
+			@Override
+			CalibratedImages calibrate(LoadedImages loaded) throws Exception {
+				if (name.startsWith("calibrate-fail")) throw new IllegalStateException("calibrate failed");
+				if (name.startsWith("not-run")) return null;
+
+				int index = configs.indexOf(Paths.get(name));
+				CalibratedImages result = new CalibratedImages();
+				result.output = new CalibrationOutput(1, 999, 1001, 0, 0, 300 + index, index, null);
+				return result;
+			}
+
+			@Override
+			void save(CalibratedImages result) throws Exception {
+				FakeBatch.this.save(name);
+				if (name.startsWith("save-fail")) throw new Exception("save failed");
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package uk.ac.diamond.scisoft.diffraction.powder.application;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.diamond.scisoft.diffraction.powder.FrameAccumulator;
+import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibrationConfig;
+import uk.ac.diamond.scisoft.diffraction.powder.SimpleCalibrationParameterModel;
+
+/**
+ * Settling and naming of watched files, with the calibration of settled files replaced by recording them
+ */
+public class CalibrationWatcherTest {
+
+	private static final long SETTLE_MS = 2000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void SettledFileSubmittedOnce() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		Path file = write(dir.resolve("frame_0001.tif"), 100);
+
+		RecordingWatcher watcher = new RecordingWatcher(dir.resolve("out"));
+		Map<Path, long[]> pending = pending(file);
+
+		watcher.submitSettled(pending, 0);
+		watcher.submitSettled(pending, SETTLE_MS - 1);
+		Assert.assertTrue(watcher.submitted.isEmpty());
+
+		watcher.submitSettled(pending, SETTLE_MS);
+		Assert.assertEquals(1, watcher.submitted.size());
+		Assert.assertEquals(file, watcher.submitted.get(0)[0]);
+		Assert.assertEquals(dir.resolve("out").resolve("frame_0001_calibration.nxs"), watcher.submitted.get(0)[1]);
+		Assert.assertTrue(pending.isEmpty());
+
+		watcher.submitSettled(pending, 2*SETTLE_MS);
+		Assert.assertEquals(1, watcher.submitted.size());
+	}
+
+	@Test
+	public void GrowingFileRestartsSettle() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		Path file = write(dir.resolve("frame.cbf"), 100);
+
+		RecordingWatcher watcher = new RecordingWatcher(dir);
+		Map<Path, long[]> pending = pending(file);
+
+		watcher.submitSettled(pending, 0);
+		Files.write(file, new byte[50], StandardOpenOption.APPEND);
+
+		watcher.submitSettled(pending, SETTLE_MS);
+		watcher.submitSettled(pending, 2*SETTLE_MS - 1);
+		Assert.assertTrue(watcher.submitted.isEmpty());
+
+		watcher.submitSettled(pending, 2*SETTLE_MS);
+		Assert.assertEquals(1, watcher.submitted.size());
+	}
+
+	@Test
+	public void EmptyAndDeletedFilesNotSubmitted() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		Path empty = write(dir.resolve("empty.tif"), 0);
+		Path deleted = write(dir.resolve("deleted.tif"), 100);
+
+		RecordingWatcher watcher = new RecordingWatcher(dir);
+		Map<Path, long[]> pending = pending(empty, deleted);
+
+		watcher.submitSettled(pending, 0);
+		Files.delete(deleted);
+		watcher.submitSettled(pending, SETTLE_MS);
+		watcher.submitSettled(pending, 10*SETTLE_MS);
+
+		Assert.assertTrue(watcher.submitted.isEmpty());
+		Assert.assertEquals(1, pending.size());
+		Assert.assertTrue(pending.containsKey(empty));
+	}
+
+	@Test
+	public void OutputNaming() {
+		Path out = Paths.get("results");
+		Assert.assertEquals(out.resolve("image_calibration.nxs"), CalibrationWatcher.getOutputPath(out, "image.tif", -1));
+		Assert.assertEquals(out.resolve("image.1_calibration.nxs"), CalibrationWatcher.getOutputPath(out, "image.1.cbf", -1));
+		Assert.assertEquals(out.resolve("noextension_calibration.nxs"), CalibrationWatcher.getOutputPath(out, "noextension", -1));
+		Assert.assertEquals(out.resolve(".hidden_calibration.nxs"), CalibrationWatcher.getOutputPath(out, ".hidden", -1));
+		Assert.assertEquals(out.resolve("scan_0_calibration.nxs"), CalibrationWatcher.getOutputPath(out, "scan.nxs", 0));
+		Assert.assertEquals(out.resolve("scan_12_calibration.nxs"), CalibrationWatcher.getOutputPath(out, "scan.nxs", 12));
+	}
+
+	@Test
+	public void ConfigCopiedPerFrame() {
+		PowderCalibrationConfig template = createTemplate();
+		template.setDatasetPath("/entry/data");
+		template.setDistancePath("/entry/distance");
+		template.setInitialCalibration("initial.nxs");
+		template.setFrameAccumulation(FrameAccumulator.Mode.SUM);
+		template.setAccumulationChunkSize(7);
+		template.setMedianOfChunks(true);
+		template.getModel().setNumberOfRings(8);
+		template.getModel().setIsPointCalibration(true);
+		template.getModel().setFloatTilt(false);
+
+		CalibrationWatcher watcher = new CalibrationWatcher(template, folder.getRoot().toPath(), 1);
+		PowderCalibrationConfig a = watcher.createConfig("a.tif", "a_calibration.nxs");
+		PowderCalibrationConfig b = watcher.createConfig("b.tif", "b_calibration.nxs");
+
+		for (PowderCalibrationConfig c : new PowderCalibrationConfig[] {a, b}) {
+			Assert.assertEquals("/entry/data", c.getDatasetPath());
+			Assert.assertEquals("/entry/distance", c.getDistancePath());
+			Assert.assertEquals("initial.nxs", c.getInitialCalibration());
+			Assert.assertEquals("CeO2", c.getStandard());
+			Assert.assertEquals(FrameAccumulator.Mode.SUM, c.getFrameAccumulation());
+			Assert.assertEquals(7, c.getAccumulationChunkSize());
+			Assert.assertTrue(c.isMedianOfChunks());
+			Assert.assertEquals(template.getModel(), c.getModel());
+			Assert.assertNotSame(template.getModel(), c.getModel());
+		}
+		Assert.assertFalse(a.getModel().isFloatTilt());
+		Assert.assertEquals("a.tif", a.getInputPath());
+		Assert.assertEquals("b_calibration.nxs", b.getOutputPath());
+
+		//one frame's calibration changing its model does not reach the others
+		a.getModel().setFloatEnergy(false);
+		Assert.assertTrue(b.getModel().isFloatEnergy());
+		Assert.assertTrue(template.getModel().isFloatEnergy());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void UnknownStandardFailsAtStart() {
+		PowderCalibrationConfig template = createTemplate();
+		template.setStandard("not a calibrant");
+		new CalibrationWatcher(template, folder.getRoot().toPath(), 1);
+	}
+
+	private static PowderCalibrationConfig createTemplate() {
+		PowderCalibrationConfig template = new PowderCalibrationConfig();
+		template.setStandard("CeO2");
+		template.setModel(new SimpleCalibrationParameterModel());
+		return template;
+	}
+
+	private static Map<Path, long[]> pending(Path... files) {
+		Map<Path, long[]> pending = new HashMap<>();
+		for (Path f : files) pending.put(f, new long[] {-1, 0});
+		return pending;
+	}
+
+	private static Path write(Path file, int size) throws IOException {
+		return Files.write(file, new byte[size]);
+	}
+
+	private static class RecordingWatcher extends CalibrationWatcher {
+
+		private final List<Path[]> submitted = new ArrayList<>();
+
+		public RecordingWatcher(Path outputDir) {
+			super(createTemplate(), outputDir, 1);
+		}
+
+		@Override
+		void submit(Path file, Path out) {
+			submitted.add(new Path[] {file, out});
+		}
+	}
+}
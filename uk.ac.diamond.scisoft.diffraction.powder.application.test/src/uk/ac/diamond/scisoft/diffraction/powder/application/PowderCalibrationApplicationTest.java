@@ -0,0 +1,34 @@
+package uk.ac.diamond.scisoft.diffraction.powder.application;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PowderCalibrationApplicationTest {
+
+	@Test
+	public void ArgumentsMatchedExactly() {
+		Map<String, String> conf = PowderCalibrationApplication.parseArguments(new String[] {
+				"-path", "config.json", "-pathology", "ignored", "-threads", "4", "-tailored", "-output", "out"});
+
+		Assert.assertEquals(3, conf.size());
+		Assert.assertEquals("config.json", conf.get("path"));
+		Assert.assertEquals("4", conf.get("threads"));
+		Assert.assertEquals("out", conf.get("output"));
+		Assert.assertFalse(conf.containsKey("tail"));
+	}
+
+	@Test
+	public void ValueMayLookLikeAnOption() {
+		Map<String, String> conf = PowderCalibrationApplication.parseArguments(new String[] {"-fixedDistance", "-1", "-path", "-config.json"});
+
+		Assert.assertEquals("-1", conf.get("fixedDistance"));
+		Assert.assertEquals("-config.json", conf.get("path"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void MissingValue() {
+		PowderCalibrationApplication.parseArguments(new String[] {"-path", "config.json", "-threads"});
+	}
+}
@@ -0,0 +1,396 @@
+package uk.ac.diamond.scisoft.diffraction.powder.application;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationOutput;
+import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibrationConfig;
+
+/**
+ * Runs the calibration for many config files
+ * <p>
+ * Each file is loaded, calibrated and saved as a pipeline: loading and NeXus writing each run on their own
+ * thread while up to nThreads calibrations run on a worker pool, so file access overlaps the computation.
+ * The loader reads the first frame of each file, the workers read the rest (and accumulate them) in parallel.
+ * A failure in one file is recorded in its result and does not stop the others.
+ */
+public class BatchCalibration {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchCalibration.class);
+
+	private static final String CONFIG_EXTENSION = ".json";
+
+	private final List<Path> configs;
+	private final int nThreads;
+
+	private Double fixedWavelength = null;
+	private Double fixedDistance = null;
+
+	/**
+	 * @param configs paths of the config files
+	 * @param nThreads maximum number of concurrent calibrations
+	 */
+	public BatchCalibration(List<Path> configs, int nThreads) {
+		if (nThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		this.configs = configs;
+		this.nThreads = nThreads;
+	}
+
+	public void setFixedWavelength(double wavelength) {
+		fixedWavelength = wavelength;
+	}
+
+	public void setFixedDistance(double distance) {
+		fixedDistance = distance;
+	}
+
+	/**
+	 * Find config files from a directory (all .json files in it), a glob (e.g. /data/cal/*.json)
+	 * or a manifest file listing one config path per line
+	 * <p>
+	 * Relative paths in a manifest are resolved against the manifest directory, blank lines and lines
+	 * starting with # are ignored.
+	 *
+	 * @param location
+	 * @return config paths, sorted for directories and globs, in order for manifests
+	 * @throws IOException
+	 */
+	public static List<Path> findConfigs(String location) throws IOException {
+
+		List<Path> out = new ArrayList<>();
+
+		if (isGlob(location)) {
+			Path pattern = Paths.get(location);
+			Path dir = pattern.getParent() == null ? Paths.get(".") : pattern.getParent();
+			if (isGlob(dir.toString())) throw new IllegalArgumentException("Glob only supported in file name: " + location);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, pattern.getFileName().toString())) {
+				for (Path p : stream) if (Files.isRegularFile(p)) out.add(p);
+			}
+			out.sort(null);
+			return out;
+		}
+
+		Path path = Paths.get(location);
+
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*" + CONFIG_EXTENSION)) {
+				for (Path p : stream) if (Files.isRegularFile(p)) out.add(p);
+			}
+			out.sort(null);
+			return out;
+		}
+
+		if (!Files.isRegularFile(path)) throw new IllegalArgumentException("No such file or directory: " + location);
+
+		if (path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(CONFIG_EXTENSION)) {
+			out.add(path);
+			return out;
+		}
+
+		Path dir = path.toAbsolutePath().getParent();
+		for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			out.add(dir.resolve(line));
+		}
+
+		return out;
+	}
+
+	private static boolean isGlob(String location) {
+		return location.indexOf('*') >= 0 || location.indexOf('?') >= 0 || location.indexOf('[') >= 0 || location.indexOf('{') >= 0;
+	}
+
+	/**
+	 * Run all the calibrations, blocking until they have finished
+	 *
+	 * @return result for each config, in the same order as the configs
+	 */
+	public List<BatchResult> run() {
+
+		ExecutorService loader = Executors.newSingleThreadExecutor();
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+
+		//limits how many loaded images are held, the workers plus one loaded ahead for each
+		final Semaphore inFlight = new Semaphore(2*nThreads);
+
+		List<BatchResult> results = new ArrayList<>(configs.size());
+		List<CompletableFuture<Void>> futures = new ArrayList<>(configs.size());
+
+		try {
+			for (Path path : configs) {
+				final BatchResult result = new BatchResult(path.toString());
+				results.add(result);
+
+				inFlight.acquireUninterruptibly();
+
+				final Job job = new Job();
+
+				CompletableFuture<Void> f = CompletableFuture.runAsync(() -> {
+					long start = System.nanoTime();
+					job.execution = createExecution(path);
+					result.input = job.execution.getConfig().getInputPath();
+					result.output = job.execution.getConfig().getOutputPath();
+					job.loaded = callStage(job.execution::load);
+					result.loadMs = elapsedMs(start);
+				}, loader).thenRunAsync(() -> {
+					long start = System.nanoTime();
+					job.calibrated = callStage(() -> job.execution.calibrate(job.loaded));
+					//release the images as soon as possible
+					job.loaded = null;
+					result.calibrateMs = elapsedMs(start);
+					if (job.calibrated == null) throw new IllegalStateException("Calibration did not run");
+					result.setOutput(job.calibrated.output);
+				}, workers).thenRunAsync(() -> {
+					long start = System.nanoTime();
+					callStage(() -> {
+						job.execution.save(job.calibrated);
+						return null;
+					});
+					result.saveMs = elapsedMs(start);
+					logger.info("Calibrated {} (residual {})", path, result.residual);
+					result.success = true;
+				}, writer).whenComplete((v, t) -> {
+					inFlight.release();
+					if (t != null) {
+						Throwable cause = t.getCause() != null ? t.getCause() : t;
+						result.error = cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+						logger.error("Calibration of " + path + " failed", cause);
+					}
+				});
+
+				futures.add(f);
+			}
+
+			for (CompletableFuture<Void> f : futures) {
+				try {
+					f.join();
+				} catch (RuntimeException e) {
+					//recorded in the result
+				}
+			}
+
+		} finally {
+			loader.shutdownNow();
+			writer.shutdownNow();
+			workers.shutdownNow();
+		}
+
+		return results;
+	}
+
+	/**
+	 * Read the config and set up its calibration, called on the loading thread
+	 */
+	CalibrationExecution createExecution(Path path) {
+		PowderCalibrationConfig config;
+		try {
+			config = PowderCalibrationApplication.loadCalibrationConfig(path.toString());
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Could not read config " + path + ": " + e.getMessage(), e);
+		}
+
+		CalibrationExecution execution = new CalibrationExecution(config);
+
+		if (fixedWavelength != null) {
+			config.getModel().setFloatEnergy(false);
+			execution.setFixedValue(fixedWavelength);
+		}
+
+		if (fixedDistance != null) {
+			config.getModel().setFloatDistance(false);
+			execution.setFixedValue(fixedDistance);
+		}
+
+		return execution;
+	}
+
+	/**
+	 * State handed between the stages of one file, each stage runs after the last has completed
+	 */
+	private static class Job {
+		CalibrationExecution execution;
+		CalibrationExecution.LoadedImages loaded;
+		CalibrationExecution.CalibratedImages calibrated;
+	}
+
+	private interface Stage<T> {
+		T call() throws Exception;
+	}
+
+	private static <T> T callStage(Stage<T> stage) {
+		try {
+			return stage.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	private static double elapsedMs(long start) {
+		return (System.nanoTime() - start)/1e6;
+	}
+
+	/**
+	 * Write the results as JSON
+	 *
+	 * @param results
+	 * @param totalMs wall time of the whole batch
+	 * @param file
+	 * @throws Exception
+	 */
+	public static void writeSummary(List<BatchResult> results, double totalMs, File file) throws Exception {
+		Files.write(file.toPath(), toJson(results, totalMs).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param results
+	 * @param totalMs wall time of the whole batch
+	 * @return JSON summary of the results, from the marshaller service
+	 * @throws Exception
+	 */
+	public static String toJson(List<BatchResult> results, double totalMs) throws Exception {
+		return PowderCalibrationApplication.getMarshallerService().marshal(new BatchSummary(results, totalMs));
+	}
+
+	/**
+	 * Counts and results of a whole batch, as written to the summary
+	 */
+	public static class BatchSummary {
+
+		private final int total;
+		private final int succeeded;
+		private final double wallMs;
+		private final List<BatchResult> results;
+
+		public BatchSummary(List<BatchResult> results, double wallMs) {
+			int count = 0;
+			for (BatchResult r : results) if (r.isSuccess()) count++;
+			this.total = results.size();
+			this.succeeded = count;
+			this.wallMs = wallMs;
+			this.results = results;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public int getSucceeded() {
+			return succeeded;
+		}
+
+		public int getFailed() {
+			return total - succeeded;
+		}
+
+		public double getWallMs() {
+			return wallMs;
+		}
+
+		public List<BatchResult> getResults() {
+			return results;
+		}
+	}
+
+	/**
+	 * Outcome and timings of the calibration from one config file, values not reached are NaN
+	 */
+	public static class BatchResult {
+
+		private final String config;
+		private volatile String input;
+		private volatile String output;
+		private volatile boolean success = false;
+		private volatile String error;
+		private volatile double loadMs = Double.NaN;
+		private volatile double calibrateMs = Double.NaN;
+		private volatile double saveMs = Double.NaN;
+		private volatile double residual = Double.NaN;
+		private volatile double wavelength = Double.NaN;
+		private volatile double distance = Double.NaN;
+		private volatile double beamCentreX = Double.NaN;
+		private volatile double beamCentreY = Double.NaN;
+
+		BatchResult(String config) {
+			this.config = config;
+		}
+
+		private void setOutput(CalibrationOutput out) {
+			residual = out.getResidual();
+			wavelength = out.getWavelength();
+			distance = out.getDistance().getDouble(0);
+			beamCentreX = out.getBeamCentreX().getDouble(0);
+			beamCentreY = out.getBeamCentreY().getDouble(0);
+		}
+
+		public String getConfig() {
+			return config;
+		}
+
+		public String getInput() {
+			return input;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public double getResidual() {
+			return residual;
+		}
+
+		public double getLoadMs() {
+			return loadMs;
+		}
+
+		public double getCalibrateMs() {
+			return calibrateMs;
+		}
+
+		public double getSaveMs() {
+			return saveMs;
+		}
+
+		public double getWavelength() {
+			return wavelength;
+		}
+
+		public double getDistance() {
+			return distance;
+		}
+
+		public double getBeamCentreX() {
+			return beamCentreX;
+		}
+
+		public double getBeamCentreY() {
+			return beamCentreY;
+		}
+	}
+}
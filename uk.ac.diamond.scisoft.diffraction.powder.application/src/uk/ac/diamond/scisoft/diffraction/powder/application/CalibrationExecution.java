@@ -1,6 +1,8 @@
 package uk.ac.diamond.scisoft.diffraction.powder.application;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.dawnsci.plotting.tools.preference.detector.DiffractionDetector;
 import org.dawnsci.plotting.tools.preference.detector.DiffractionDetectorHelper;
@@ -9,7 +11,6 @@ import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironmen
 import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
 import org.eclipse.dawnsci.analysis.api.io.ILoaderService;
 import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
-import org.eclipse.dawnsci.analysis.dataset.slicer.SliceViewIterator;
 import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.DatasetUtils;
 import org.eclipse.january.dataset.IDataset;
@@ -26,6 +27,9 @@ import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
 import uk.ac.diamond.scisoft.analysis.io.NexusDiffractionCalibrationReader;
 import uk.ac.diamond.scisoft.diffraction.powder.CalibrationOutput;
 import uk.ac.diamond.scisoft.diffraction.powder.DiffractionImageData;
+import uk.ac.diamond.scisoft.diffraction.powder.FrameAccumulator;
+import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationImageSource;
+import uk.ac.diamond.scisoft.diffraction.powder.LazyCalibrationImageSource;
 import uk.ac.diamond.scisoft.diffraction.powder.NexusCalibrationExportUtils;
 import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibration;
 import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibrationConfig;
@@ -36,18 +40,82 @@ public class CalibrationExecution {
 	private static final Logger logger = LoggerFactory.getLogger(CalibrationExecution.class);
 	
 	private PowderCalibrationConfig config;
+	private final CalibrantSpacing calibrant;
+	private final DetectorMatch detector;
 	private double fixedValue = 0;
+	private IDiffractionMetadata seed = null;
 
 	public CalibrationExecution(PowderCalibrationConfig config) {
+		this(config, getCalibrant(config.getStandard()), new DetectorMatch());
+	}
+	
+	private CalibrationExecution(PowderCalibrationConfig config, CalibrantSpacing calibrant, DetectorMatch detector) {
 		this.config = config;
+		this.calibrant = calibrant;
+		this.detector = detector;
+	}
+	
+	/**
+	 * Execution of another config with the same calibrant, sharing the calibrant and detector lookups
+	 * and the fixed value of this one, for calibrating many frames with one set of settings
+	 */
+	CalibrationExecution withConfig(PowderCalibrationConfig config) {
+		CalibrationExecution execution = new CalibrationExecution(config, calibrant, detector);
+		execution.setFixedValue(fixedValue);
+		return execution;
 	}
 	
 	public void setFixedValue(double fixed) {
 		fixedValue = fixed;
 	}
 	
+	public double getFixedValue() {
+		return fixedValue;
+	}
+	
+	/**
+	 * @param seed geometry from an earlier calibration of the same setup, a single image is then calibrated
+	 * by fitting points near the rings it predicts rather than searching for them. Null to always search.
+	 */
+	void setSeed(IDiffractionMetadata seed) {
+		this.seed = seed;
+	}
+	
 	public void run() throws Exception {
 		
+		CalibratedImages result = calibrate(load());
+		
+	    if (result == null) {
+	    	return;
+	    }
+		
+	    System.out.println("");
+	    System.out.println("************************");
+	    System.out.println("*********OUTPUT*********");
+		System.out.println(result.output.getCalibrationOutputDescription());
+		System.out.println("************************");
+		System.out.println("************************");
+		System.out.println("");
+		System.out.println("************************");
+		System.out.println("*******CALIBRATION******");
+		System.out.println("Detector " + result.metadata.getDetector2DProperties());
+		System.out.println("Wavelength /A: " +result.metadata.getDiffractionCrystalEnvironment().getWavelength());
+		System.out.println("Energy /Kev: " +result.metadata.getDiffractionCrystalEnvironment().getEnergy());
+	    System.out.println("************************");
+	    System.out.println("************************");
+		
+		save(result);
+		
+	}
+	
+	/**
+	 * Load the images (and distances) named in the config
+	 * <p>
+	 * Only the first image is read here, the others are read by the calibration (or frame accumulation)
+	 * as it needs them
+	 */
+	LoadedImages load() throws Exception {
+		
 		BundleContext bundleContext =
                 FrameworkUtil.
                 getBundle(this.getClass()).
@@ -55,29 +123,56 @@ public class CalibrationExecution {
 		
 		ILoaderService loaderService = bundleContext.getService(bundleContext.getServiceReference(ILoaderService.class));
 		
-		IDataset[] images = getImages(config.getInputPath(), config.getDatasetPath(), loaderService);
+		if (isAccumulating() && config.getDistancePath() != null) {
+			throw new IllegalArgumentException("Cannot accumulate frames taken at different distances");
+		}
+		
+		LoadedImages loaded = new LoadedImages();
 		
-		Dataset ddistance = null;
+		ICalibrationImageSource images = getImages(config.getInputPath(), config.getDatasetPath(), loaderService);
+		loaded.images = ICalibrationImageSource.withFirstImage(images.getImage(0), images);
 		
 		if (config.getDistancePath() != null) {
 			IDataHolder dh = loaderService.getData(config.getInputPath(), null);
 		    ILazyDataset lz = dh.getLazyDataset(config.getDistancePath());
 		    
-		    ddistance = DatasetUtils.sliceAndConvertLazyDataset(lz).squeeze();
+		    loaded.distance = DatasetUtils.sliceAndConvertLazyDataset(lz).squeeze();
 		    
-		    if (ddistance.getSize() != images.length) {
+		    if (loaded.distance.getSize() != loaded.images.size()) {
 		    	throw new IllegalArgumentException("Distance dataset size must match number of images");
 		    }
 		}
 		
+		return loaded;
+	}
+	
+	/**
+	 * Calibrate the loaded images, accumulating their frames if the config asks for it. No file access apart
+	 * from reading the rest of the images and any initial calibration
+	 * 
+	 * @return calibration, or null if the calibration did not run
+	 */
+	CalibratedImages calibrate(LoadedImages loaded) throws Exception {
+		
+		ICalibrationImageSource images = loaded.images;
+		
+		if (isAccumulating()) {
+			FrameAccumulator.Mode accumulation = config.getFrameAccumulation();
+			logger.info("Accumulating ({}) {} frames", accumulation, images.size());
+			FrameAccumulator accumulator = new FrameAccumulator(accumulation, config.getAccumulationChunkSize(), config.isMedianOfChunks());
+			images = ICalibrationImageSource.fromImages(accumulator.accumulate(images));
+		}
+		
+		//only the first image is held here, the calibration fetches the others as it needs them
+		IDataset first = images.getImage(0);
+		images = ICalibrationImageSource.withFirstImage(first, images);
+		
 		SimpleCalibrationParameterModel params = config.getModel();
 		
-		DiffractionDetector dd = DiffractionDetectorHelper.getMatchingDefaultDetector(images[0].getShape());
+		DiffractionDetector dd = detector.get(first.getShape());
 		
 		int[] options = new int[]{params.getnIgnoreCentre(),params.getMinimumSpacing(),params.getnPointsPerRing()};
 		
-		CalibrantSpacing cs = CalibrationFactory.getCalibrationStandards().getCalibrationPeakMap(config.getStandard());
-		
 		CalibrationOutput output = null;
 		
 		if (config.getInitialCalibration() != null && !config.getModel().isAutomaticCalibration()) {
@@ -85,28 +180,28 @@ public class CalibrationExecution {
 			IDiffractionMetadata md = NexusDiffractionCalibrationReader.getDiffractionMetadataFromNexus(config.getInitialCalibration(), null);
 			
 			DiffractionImageData imdata = new DiffractionImageData();
-			imdata.setImage(images[0]);
+			imdata.setImage(first);
 			imdata.setMetaData(md);
-			output = PowderCalibration.calibrateSingleImageManualPoint(DatasetUtils.convertToDataset(images[0]), cs.getHKLs(), md,config.getModel());
+			output = PowderCalibration.calibrateSingleImageManualPoint(DatasetUtils.convertToDataset(first), calibrant.getHKLs(), md,config.getModel());
 		} else {
-			output = PowderCalibration.calibrateMultipleImages(images,
-					ddistance, dd.getXPixelMM(), cs.getHKLs(), fixedValue, options, params, null, null, null);
+			if (seed != null && images.size() == 1 && loaded.distance == null) {
+				output = calibrateFromSeed(first, params);
+			}
+			
+			if (output == null) {
+				output = PowderCalibration.calibrateMultipleImages(images,
+						loaded.distance, dd.getXPixelMM(), calibrant.getHKLs(), fixedValue, options, params, null, null, null);
+			}
 		}
 		
 	    if (output == null) {
-	    	return;
+	    	return null;
 	    }
 		
-	    System.out.println("");
-	    System.out.println("************************");
-	    System.out.println("*********OUTPUT*********");
-		System.out.println(output.getCalibrationOutputDescription());
-		System.out.println("************************");
-		System.out.println("************************");
-		IDiffractionMetadata md = images[0].getFirstMetadata(IDiffractionMetadata.class);
+		IDiffractionMetadata md = first.getFirstMetadata(IDiffractionMetadata.class);
 		IDiffractionMetadata mdnew;
 		if (md == null) {
-			DetectorProperties dp = DetectorProperties.getDefaultDetectorProperties(images[0].getShape());
+			DetectorProperties dp = DetectorProperties.getDefaultDetectorProperties(first.getShape());
 			dp.setHPxSize(dd.getYPixelMM());
 			dp.setVPxSize(dd.getXPixelMM());
 			DiffractionCrystalEnvironment dce = DiffractionCrystalEnvironment.getDefaultDiffractionCrystalEnvironment();
@@ -118,20 +213,62 @@ public class CalibrationExecution {
 		}
 		
 		PowderCalibration.updateMetadataFromOutput(mdnew,output,0,null);
-		System.out.println("");
-		System.out.println("************************");
-		System.out.println("*******CALIBRATION******");
-		System.out.println("Detector " + mdnew.getDetector2DProperties());
-		System.out.println("Wavelength /A: " +mdnew.getDiffractionCrystalEnvironment().getWavelength());
-		System.out.println("Energy /Kev: " +mdnew.getDiffractionCrystalEnvironment().getEnergy());
-	    System.out.println("************************");
-	    System.out.println("************************");
 		
-		NexusCalibrationExportUtils.saveToNexusFile(images[0], mdnew, output.getCalibrationInfo()[0], config.getOutputPath());
+		CalibratedImages result = new CalibratedImages();
+		result.image = first;
+		result.output = output;
+		result.metadata = mdnew;
 		
+		return result;
 	}
 	
-	private IDataset[] getImages(String path, String datasetPath, ILoaderService service) throws Exception {
+	/**
+	 * Write the calibration to the output NeXus file
+	 */
+	void save(CalibratedImages result) throws Exception {
+		NexusCalibrationExportUtils.saveToNexusFile(result.image, result.metadata, result.output.getCalibrationInfo()[0], config.getOutputPath());
+	}
+	
+	/**
+	 * Point calibration of one image starting from the seed, floating what the config floats
+	 * 
+	 * @return calibration, or null if the seed does not fit the image or the rings are not where it puts them
+	 */
+	private CalibrationOutput calibrateFromSeed(IDataset image, SimpleCalibrationParameterModel params) {
+		
+		DetectorProperties dp = seed.getDetector2DProperties();
+		int[] shape = image.getShape();
+		if (dp.getPy() != shape[0] || dp.getPx() != shape[1]) return null;
+		
+		boolean floatEnergy = params.isFloatEnergy();
+		boolean floatDistance = params.isFloatDistance();
+		SimpleCalibrationParameterModel model = new SimpleCalibrationParameterModel(params);
+		model.setAutomaticCalibration(false);
+		model.setIsPointCalibration(true);
+		model.setFloatEnergy(floatEnergy);
+		model.setFloatDistance(floatDistance);
+		
+		try {
+			return PowderCalibration.calibrateSingleImageManualPoint(DatasetUtils.convertToDataset(image), calibrant.getHKLs(), seed.clone(), model);
+		} catch (RuntimeException e) {
+			logger.debug("Calibration from seed failed, searching for rings: {}", e.getMessage());
+			return null;
+		}
+	}
+	
+	private boolean isAccumulating() {
+		FrameAccumulator.Mode accumulation = config.getFrameAccumulation();
+		return accumulation != null && accumulation != FrameAccumulator.Mode.NONE;
+	}
+	
+	PowderCalibrationConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * Images in the file, frames of a stack are only read when the calibration needs them
+	 */
+	private ICalibrationImageSource getImages(String path, String datasetPath, ILoaderService service) throws Exception {
 		
 		IDataHolder dh = service.getData(path, null);
 		
@@ -142,22 +279,8 @@ public class CalibrationExecution {
 			
 			int[] ss = ShapeUtils.squeezeShape(shape, false);
 			
-			if (ss.length == 2) {
-				return new IDataset[] {lz.getSlice().squeeze()};
-			} else if (ss.length == 3) {
-				
-				int rank = lz.getRank();
-				
-				SliceViewIterator it = new SliceViewIterator(lz, null, new int[] {rank-2,rank-1});
-				
-				IDataset[] out = new IDataset[it.getTotal()];
-				
-				int count = 0;
-				while(it.hasNext()) {
-					out[count++] = it.next().getSlice().squeeze();
-				}
-				return out;
-				
+			if (ss.length == 2 || ss.length == 3) {
+				return new LazyCalibrationImageSource(lz);
 			} else {
 				throw new IllegalArgumentException("Dataset " + datasetPath + " has illegal shape " + Arrays.toString(shape));
 			}
@@ -165,9 +288,38 @@ public class CalibrationExecution {
 		
 		
 		if (dh.size() == 1 && dh.getDataset(0).getRank() == 2) {
-			return new IDataset[] {dh.getDataset(0).getSlice()};
+			return ICalibrationImageSource.fromImages(dh.getDataset(0).getSlice());
 		} else {
 			throw new IllegalArgumentException("Dataset name not specified and too many datasets in file!");
 		}
 	}
+	
+	private static CalibrantSpacing getCalibrant(String standard) {
+		CalibrantSpacing cs = CalibrationFactory.getCalibrationStandards().getCalibrationPeakMap(standard);
+		if (cs == null) throw new IllegalArgumentException("Unknown calibration standard " + standard);
+		return cs;
+	}
+	
+	/**
+	 * Default detector matching each image shape, looked up once per shape
+	 */
+	private static class DetectorMatch {
+		
+		private final Map<String, DiffractionDetector> detectors = new HashMap<>();
+		
+		public synchronized DiffractionDetector get(int[] shape) {
+			return detectors.computeIfAbsent(Arrays.toString(shape), k -> DiffractionDetectorHelper.getMatchingDefaultDetector(shape));
+		}
+	}
+	
+	static class LoadedImages {
+		ICalibrationImageSource images;
+		Dataset distance;
+	}
+	
+	static class CalibratedImages {
+		IDataset image;
+		CalibrationOutput output;
+		IDiffractionMetadata metadata;
+	}
 }
@@ -0,0 +1,290 @@
+package uk.ac.diamond.scisoft.diffraction.powder.application;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
+import org.eclipse.dawnsci.analysis.api.io.ILoaderService;
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.IDynamicDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationImageSource;
+import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibrationConfig;
+
+/**
+ * Long running calibration of frames as they are written, either new files appearing in a directory
+ * or new frames appended to a growing dataset
+ * <p>
+ * Each frame is calibrated with the settings of a template config, in the same JVM, so only the calibration
+ * itself is paid per frame. Files are only picked up once their size has stopped changing, and
+ * results are written as NeXus files to the output directory.
+ * <p>
+ * Once a frame has calibrated, later single image frames are warm started from its geometry: points are fitted
+ * near the rings it predicts instead of searching the image for them, falling back to the search if that fails.
+ */
+public class CalibrationWatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(CalibrationWatcher.class);
+
+	private static final long POLL_MS = 500;
+	//time a file size must be unchanged before it is read
+	private static final long SETTLE_MS = 2000;
+	private static final String OUTPUT_SUFFIX = "_calibration.nxs";
+
+	private final PowderCalibrationConfig template;
+	private final CalibrationExecution execution;
+	private final Path outputDir;
+	private final ExecutorService workers;
+
+	private volatile boolean running = true;
+	//geometry of the last successful calibration, seeds the next
+	private volatile IDiffractionMetadata lastCalibration = null;
+
+	/**
+	 * @param template config supplying the calibrant, dataset path and model, input and output paths are ignored
+	 * @param outputDir directory for the NeXus results
+	 * @param nThreads number of frames calibrated at once
+	 */
+	public CalibrationWatcher(PowderCalibrationConfig template, Path outputDir, int nThreads) {
+		if (nThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		this.template = template;
+		this.execution = new CalibrationExecution(template);
+		this.outputDir = outputDir;
+		//when the queue is full frames are calibrated on the watching thread, which holds back reading more
+		this.workers = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(2*nThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	public void setFixedValue(double fixed) {
+		execution.setFixedValue(fixed);
+	}
+
+	/**
+	 * Stop watching, frames already queued are finished
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Calibrate files matching the glob as they are created in the directory, blocks until stopped
+	 *
+	 * @param dir directory to watch (not recursive)
+	 * @param glob file name pattern, e.g. *.{tif,cbf}
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void watchDirectory(Path dir, String glob) throws IOException, InterruptedException {
+
+		Files.createDirectories(outputDir);
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+		//file -> {size, time size last changed}
+		Map<Path, long[]> pending = new HashMap<>();
+
+		try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			logger.info("Watching {} for {}", dir, glob);
+
+			while (running) {
+				WatchKey key = watcher.poll(POLL_MS, TimeUnit.MILLISECONDS);
+
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							logger.warn("Watch events lost, files written meanwhile may be missed");
+							continue;
+						}
+						Path name = (Path)event.context();
+						if (!matcher.matches(name)) continue;
+						pending.put(dir.resolve(name), new long[] {-1, System.currentTimeMillis()});
+					}
+					if (!key.reset()) {
+						logger.error("{} is no longer accessible, stopping", dir);
+						break;
+					}
+				}
+
+				submitSettled(pending, System.currentTimeMillis());
+			}
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Submit the pending files whose size has not changed for the settle time, dropping any that have gone
+	 *
+	 * @param pending file -> {size, time size last changed}, size -1 if not yet read
+	 * @param now current time in ms
+	 */
+	void submitSettled(Map<Path, long[]> pending, long now) {
+		Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Path, long[]> e = it.next();
+			Path file = e.getKey();
+			long[] state = e.getValue();
+
+			long size;
+			try {
+				size = Files.size(file);
+			} catch (IOException ex) {
+				//deleted or renamed before it was read
+				it.remove();
+				continue;
+			}
+
+			if (size != state[0]) {
+				state[0] = size;
+				state[1] = now;
+			} else if (size > 0 && now - state[1] >= SETTLE_MS) {
+				it.remove();
+				submit(file, getOutputPath(outputDir, file.getFileName().toString(), -1));
+			}
+		}
+	}
+
+	/**
+	 * Queue calibration of a settled file
+	 */
+	void submit(Path file, Path out) {
+		workers.submit(() -> calibrate(createConfig(file.toString(), out.toString()), null));
+	}
+
+	/**
+	 * Calibrate frames as they are appended to the first dimension of a three dimensional dataset, blocks
+	 * until stopped
+	 * <p>
+	 * The dataset must be loadable as a growing (dynamic) lazy dataset, e.g. SWMR HDF5. Frames already in the
+	 * dataset when tailing starts are calibrated too.
+	 *
+	 * @param file
+	 * @param datasetPath
+	 * @throws Exception
+	 */
+	public void tailDataset(String file, String datasetPath) throws Exception {
+
+		Files.createDirectories(outputDir);
+
+		BundleContext bundleContext = FrameworkUtil.getBundle(CalibrationWatcher.class).getBundleContext();
+		ILoaderService loaderService = bundleContext.getService(bundleContext.getServiceReference(ILoaderService.class));
+
+		IDataHolder dh = loaderService.getData(file, null);
+		ILazyDataset lz = dh.getLazyDataset(datasetPath);
+		if (lz == null) throw new IllegalArgumentException("No dataset " + datasetPath + " in " + file);
+		if (lz.getRank() != 3) throw new IllegalArgumentException("Dataset " + datasetPath + " has illegal shape " + Arrays.toString(lz.getShape()));
+
+		String name = Paths.get(file).getFileName().toString();
+
+		logger.info("Tailing {} in {}", datasetPath, file);
+
+		int done = 0;
+
+		try {
+			while (running) {
+				if (lz instanceof IDynamicDataset) ((IDynamicDataset)lz).refreshShape();
+
+				int[] shape = lz.getShape();
+				for (; done < shape[0]; done++) {
+					IDataset frame = lz.getSlice(new int[] {done, 0, 0}, new int[] {done + 1, shape[1], shape[2]}, null).squeeze();
+					String out = getOutputPath(outputDir, name, done).toString();
+					workers.submit(() -> calibrate(createConfig(file, out), frame));
+				}
+
+				if (!(lz instanceof IDynamicDataset)) {
+					logger.info("{} is not a growing dataset, stopping after {} frames", datasetPath, done);
+					break;
+				}
+
+				Thread.sleep(POLL_MS);
+			}
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Result file for a watched file, or for one frame of a tailed file
+	 *
+	 * @param outputDir
+	 * @param fileName name of the input file
+	 * @param frame index of the frame, or negative for the whole file
+	 * @return output directory / input name without extension [_frame] _calibration.nxs
+	 */
+	static Path getOutputPath(Path outputDir, String fileName, int frame) {
+		int dot = fileName.lastIndexOf('.');
+		String stem = dot > 0 ? fileName.substring(0, dot) : fileName;
+		if (frame >= 0) stem += "_" + frame;
+		return outputDir.resolve(stem + OUTPUT_SUFFIX);
+	}
+
+	/**
+	 * Copy of the template for one frame, so each calibration has its own model
+	 */
+	PowderCalibrationConfig createConfig(String input, String output) {
+		PowderCalibrationConfig config = new PowderCalibrationConfig(template);
+		config.setInputPath(input);
+		config.setOutputPath(output);
+		return config;
+	}
+
+	/**
+	 * @param frame already loaded image, or null to load the input file
+	 */
+	private void calibrate(PowderCalibrationConfig config, IDataset frame) {
+		long start = System.nanoTime();
+		try {
+			CalibrationExecution execution = this.execution.withConfig(config);
+			execution.setSeed(lastCalibration);
+
+			CalibrationExecution.LoadedImages loaded;
+			if (frame == null) {
+				loaded = execution.load();
+			} else {
+				loaded = new CalibrationExecution.LoadedImages();
+				loaded.images = ICalibrationImageSource.fromImages(frame);
+			}
+
+			CalibrationExecution.CalibratedImages result = execution.calibrate(loaded);
+			if (result == null) {
+				logger.warn("Calibration of {} did not run", config.getInputPath());
+				return;
+			}
+
+			lastCalibration = result.metadata;
+			execution.save(result);
+			logger.info("Calibrated {} in {} ms, residual {}, written to {}", config.getInputPath(),
+					(System.nanoTime() - start)/1000000, result.output.getResidual(), config.getOutputPath());
+		} catch (Exception e) {
+			//carry on with the next frame
+			logger.error("Calibration of " + config.getInputPath() + " failed", e);
+		}
+	}
+
+	private void shutdown() throws InterruptedException {
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+}
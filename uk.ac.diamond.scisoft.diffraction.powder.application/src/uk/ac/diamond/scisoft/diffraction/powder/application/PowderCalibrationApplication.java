@@ -2,9 +2,14 @@ package uk.ac.diamond.scisoft.diffraction.powder.application;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.dawnsci.analysis.api.persistence.IMarshallerService;
 import org.eclipse.equinox.app.IApplication;
@@ -22,6 +27,17 @@ public class PowderCalibrationApplication implements IApplication {
 	private static final String PATH = "path";
 	private static final String FIXED_W = "fixedWavelength";
 	private static final String FIXED_D = "fixedDistance";
+	private static final String BATCH = "batch";
+	private static final String THREADS = "threads";
+	private static final String SUMMARY = "summary";
+	private static final String WATCH = "watch";
+	private static final String TAIL = "tail";
+	private static final String PATTERN = "pattern";
+	private static final String OUTPUT = "output";
+	private static final Set<String> KEYS = new HashSet<>(Arrays.asList(PATH, FIXED_W, FIXED_D, BATCH, THREADS, SUMMARY, WATCH, TAIL, PATTERN, OUTPUT));
+	private static final String DEFAULT_PATTERN = "*.{nxs,h5,hdf5,hdf,cbf,tif,tiff,edf,img}";
+	
+	private volatile CalibrationWatcher watcher;
 	
 
 	@Override
@@ -32,23 +48,11 @@ public class PowderCalibrationApplication implements IApplication {
 		
 		logger.info("Running calibration with configuration: {}", Arrays.toString(configuration));
 
-		Map<String, String> conf = new HashMap<String, String>(7);
-		for (int i = 0; i < configuration.length; i++) {
-			final String pkey = configuration[i];
-			if (pkey.startsWith("-" + PATH)) {
-				conf.put(pkey.substring(1), configuration[i+1]);
-				i++;
-			} else if (pkey.startsWith("-" + FIXED_D)) {
-				conf.put(pkey.substring(1), configuration[i+1]);
-				i++;
-			} else if (pkey.startsWith("-" + FIXED_W)) {
-				conf.put(pkey.substring(1), configuration[i+1]);
-				i++;
-			}
-		}
-		
-		if (!conf.containsKey(PATH)) {
-			System.out.println("No path to config file");
+		Map<String, String> conf;
+		try {
+			conf = parseArguments(configuration);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
 			return IApplication.EXIT_OK;
 		}
 		
@@ -57,6 +61,15 @@ public class PowderCalibrationApplication implements IApplication {
 			return IApplication.EXIT_OK;
 		}
 		
+		if (conf.containsKey(BATCH)) {
+			return runBatch(conf);
+		}
+		
+		if (!conf.containsKey(PATH)) {
+			System.out.println("No path to config file");
+			return IApplication.EXIT_OK;
+		}
+		
 	    String path = conf.get(PATH);
 		
 		logger.info("Loading configuration from {}", path);
@@ -79,31 +92,133 @@ public class PowderCalibrationApplication implements IApplication {
 			runner.setFixedValue(distance);
 		}
 		
+		if (conf.containsKey(WATCH) || conf.containsKey(TAIL)) {
+			return runWatcher(conf, config, runner);
+		}
+		
 		runner.run();
 		
 		return IApplication.EXIT_OK;
 	}
+	
+	/**
+	 * Calibrate new files in the watch directory, or new frames in the tailed file, using the config at
+	 * the path as a template. Runs until the application is stopped.
+	 */
+	private Object runWatcher(Map<String, String> conf, PowderCalibrationConfig config, CalibrationExecution runner) throws Exception {
+		
+		int nThreads = conf.containsKey(THREADS) ? Integer.parseInt(conf.get(THREADS)) : 1;
+		
+		Path outputDir;
+		if (conf.containsKey(OUTPUT)) {
+			outputDir = Paths.get(conf.get(OUTPUT));
+		} else if (conf.containsKey(WATCH)) {
+			//not watched, so results are not picked up as new files
+			outputDir = Paths.get(conf.get(WATCH), "calibration");
+		} else {
+			outputDir = Paths.get(conf.get(TAIL)).toAbsolutePath().getParent();
+		}
+		
+		watcher = new CalibrationWatcher(config, outputDir, nThreads);
+		watcher.setFixedValue(runner.getFixedValue());
+		
+		if (conf.containsKey(WATCH)) {
+			String pattern = conf.containsKey(PATTERN) ? conf.get(PATTERN) : DEFAULT_PATTERN;
+			watcher.watchDirectory(Paths.get(conf.get(WATCH)), pattern);
+		} else {
+			if (config.getDatasetPath() == null) {
+				System.out.println("Config must give the dataset path to tail");
+				return IApplication.EXIT_OK;
+			}
+			watcher.tailDataset(conf.get(TAIL), config.getDatasetPath());
+		}
+		
+		return IApplication.EXIT_OK;
+	}
 
-	private PowderCalibrationConfig loadCalibrationConfig(String path) throws Exception {
+	/**
+	 * Calibrate every config found from the batch directory, glob or manifest, writing a JSON summary
+	 * of the timings and residuals to the summary path (or the console)
+	 */
+	private Object runBatch(Map<String, String> conf) throws Exception {
 		
-		String json = new String(Files.readAllBytes(new File(path).toPath()));
+		List<Path> configs = BatchCalibration.findConfigs(conf.get(BATCH));
 		
-		BundleContext bundleContext =
-                FrameworkUtil.
-                getBundle(this.getClass()).
-                getBundleContext();
+		int nThreads = conf.containsKey(THREADS) ? Integer.parseInt(conf.get(THREADS)) : Runtime.getRuntime().availableProcessors();
+		
+		logger.info("Running batch calibration of {} configs on {} threads", configs.size(), nThreads);
+		
+		BatchCalibration batch = new BatchCalibration(configs, nThreads);
+		
+		if (conf.containsKey(FIXED_W)) {
+			batch.setFixedWavelength(Double.parseDouble(conf.get(FIXED_W)));
+		}
+		
+		if (conf.containsKey(FIXED_D)) {
+			batch.setFixedDistance(Double.parseDouble(conf.get(FIXED_D)));
+		}
+		
+		long start = System.nanoTime();
+		List<BatchCalibration.BatchResult> results = batch.run();
+		double totalMs = (System.nanoTime() - start)/1e6;
+		
+		if (conf.containsKey(SUMMARY)) {
+			BatchCalibration.writeSummary(results, totalMs, new File(conf.get(SUMMARY)));
+			logger.info("Batch summary written to {}", conf.get(SUMMARY));
+		} else {
+			System.out.println(BatchCalibration.toJson(results, totalMs));
+		}
 		
-		IMarshallerService m = bundleContext.getService(bundleContext.getServiceReference(IMarshallerService.class));
+		return IApplication.EXIT_OK;
+	}
+
+	/**
+	 * Options given as -key value pairs, keys must match one of the known options exactly
+	 * 
+	 * @return key (without the -) to value
+	 * @throws IllegalArgumentException if a known option has no value
+	 */
+	static Map<String, String> parseArguments(String[] configuration) {
+		Map<String, String> conf = new HashMap<String, String>(7);
+		for (int i = 0; i < configuration.length; i++) {
+			final String pkey = configuration[i];
+			String key = pkey.startsWith("-") ? pkey.substring(1) : null;
+			if (key != null && KEYS.contains(key)) {
+				if (i + 1 >= configuration.length) {
+					throw new IllegalArgumentException("No value given for " + pkey);
+				}
+				conf.put(key, configuration[i+1]);
+				i++;
+			} else {
+				logger.warn("Ignoring unknown argument {}", pkey);
+			}
+		}
+		return conf;
+	}
+	
+	static PowderCalibrationConfig loadCalibrationConfig(String path) throws Exception {
 		
+		String json = new String(Files.readAllBytes(new File(path).toPath()));
 		
-		PowderCalibrationConfig config = m.unmarshal(json, PowderCalibrationConfig.class);
+		PowderCalibrationConfig config = getMarshallerService().unmarshal(json, PowderCalibrationConfig.class);
 		
 		return config;
 	}
 	
+	static IMarshallerService getMarshallerService() {
+		
+		BundleContext bundleContext =
+                FrameworkUtil.
+                getBundle(PowderCalibrationApplication.class).
+                getBundleContext();
+		
+		return bundleContext.getService(bundleContext.getServiceReference(IMarshallerService.class));
+	}
+	
 	@Override
 	public void stop() {
-		//do nothing
+		CalibrationWatcher w = watcher;
+		if (w != null) w.stop();
 	}
 
 }
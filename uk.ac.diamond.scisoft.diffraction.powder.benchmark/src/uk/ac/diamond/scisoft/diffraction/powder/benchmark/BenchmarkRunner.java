@@ -0,0 +1,73 @@
+package uk.ac.diamond.scisoft.diffraction.powder.benchmark;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the calibration benchmarks with the GC profiler, so allocation rates are reported with the throughput
+ * <p>
+ * The benchmark profile builds the bundle and runs this in a new JVM with the bundle's classpath, in the verify
+ * phase (the rcp bundle is not needed):
+ * <pre>
+ * mvn -Pbenchmark -pl uk.ac.diamond.scisoft.diffraction.powder,uk.ac.diamond.scisoft.diffraction.powder.benchmark verify
+ * </pre>
+ * with -Dbenchmark.include=CalibrationBenchmark.centreGuess and -Dbenchmark.forks=2 to choose the benchmarks and
+ * forks, the results are written to target/jmh-result.json. The main method can also be run with the bundle's
+ * classpath, e.g. as a Java application from the IDE, giving the benchmarks to run:
+ * <pre>
+ * BenchmarkRunner CalibrationBenchmark.centreGuess [forks]
+ * </pre>
+ * Each benchmark runs in its own forked JVM, which inherits this JVM's classpath. The system properties are:
+ * <ul>
+ * <li>benchmark.include - regular expression of the benchmarks to run, if not given as the first argument</li>
+ * <li>benchmark.result - JSON results file, jmh-result.json by default</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+
+	public static final String INCLUDE = "benchmark.include";
+	public static final String RESULT = "benchmark.result";
+
+	//written by the JMH annotation processor when the benchmarks are compiled
+	private static final String BENCHMARK_LIST = "META-INF/BenchmarkList";
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : System.getProperty(INCLUDE);
+		if (include == null) {
+			System.out.println("Usage: BenchmarkRunner <benchmark regular expression> [forks], e.g. CalibrationBenchmark.centreGuess");
+			return;
+		}
+
+		int forks = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		run(include, forks);
+	}
+
+	/**
+	 * @param include regular expression of the benchmarks to run
+	 * @param forks number of forked JVMs per benchmark, at least one
+	 * @return results
+	 */
+	public static Collection<RunResult> run(String include, int forks) throws RunnerException {
+		if (include == null || include.isEmpty()) throw new IllegalArgumentException("Benchmarks to run must be given");
+		if (forks < 1) throw new IllegalArgumentException("Benchmarks must run in forked JVMs");
+		if (BenchmarkRunner.class.getClassLoader().getResource(BENCHMARK_LIST) == null) {
+			throw new IllegalStateException(BENCHMARK_LIST + " not found, the JMH annotation processor did not run when the benchmarks were compiled");
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(include)
+				.addProfiler(GCProfiler.class)
+				.forks(forks)
+				.resultFormat(ResultFormatType.JSON)
+				.result(System.getProperty(RESULT, "jmh-result.json"));
+
+		return new Runner(options.build()).run();
+	}
+}
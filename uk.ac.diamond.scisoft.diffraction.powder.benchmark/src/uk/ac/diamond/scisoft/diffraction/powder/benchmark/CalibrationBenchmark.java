@@ -0,0 +1,187 @@
+package uk.ac.diamond.scisoft.diffraction.powder.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+import org.eclipse.dawnsci.analysis.api.roi.IPolylineROI;
+import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
+import org.eclipse.dawnsci.analysis.dataset.roi.SectorROI;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.IntegerDataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.diamond.scisoft.analysis.crystallography.HKL;
+import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
+import uk.ac.diamond.scisoft.analysis.roi.XAxis;
+import uk.ac.diamond.scisoft.diffraction.powder.BruteStandardMatcher;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrateEllipses;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibratePoints;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationOutput;
+import uk.ac.diamond.scisoft.diffraction.powder.CentreGuess;
+import uk.ac.diamond.scisoft.diffraction.powder.LambdaFitter;
+import uk.ac.diamond.scisoft.diffraction.powder.MultiplePeakFittingEllipseFinder;
+import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibration;
+import uk.ac.diamond.scisoft.diffraction.powder.SimpleCalibrationParameterModel;
+
+/**
+ * Stages of the powder calibration on simulated CeO2 images
+ * <p>
+ * Each stage is given exact inputs (beam centre, ring ellipses, points on the rings) so it can be timed on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalibrationBenchmark {
+
+	private static final double[] DELTA_DISTANCES = {0, 50, 100};
+	private static final int CENTRE_MASK_RADIUS = 50;
+	private static final int POINTS_PER_RING = 64;
+	private static final double SEARCH_WIDTH = 10;
+	//least tilt (degrees) for the distance over sin(tilt) given to LambdaFitter, which is infinite untilted
+	private static final double MIN_LAMBDA_TILT = 0.5;
+
+	@Param({"1024", "2048"})
+	public int size;
+
+	@Param({"200", "400"})
+	public double distance;
+
+	@Param({"0", "3"})
+	public double tilt;
+
+	private Dataset image;
+	private double[] dSpace;
+
+	private Dataset radius;
+	private Dataset integrated;
+
+	private EllipticalROI seed;
+
+	private List<List<EllipticalROI>> allEllipses;
+	private List<double[]> allDSpacings;
+	private Dataset deltaDistance;
+
+	private List<IPolylineROI> points;
+	private IDiffractionMetadata pointStart;
+	private SimpleCalibrationParameterModel pointModel;
+
+	private Dataset majors;
+	private Dataset normDistances;
+	private Dataset ringDSpacings;
+	private Dataset sinTilts;
+
+	@State(Scope.Benchmark)
+	public static class PointsOfInterest {
+		@Param({"FIT", "CENTROID"})
+		public MultiplePeakFittingEllipseFinder.POIMethod method;
+	}
+
+	@Setup
+	public void setup() {
+		List<HKL> spacings = SyntheticData.getCeO2();
+		dSpace = SyntheticData.getDSpacings(spacings);
+
+		IDiffractionMetadata md = SyntheticData.createMetadata(size, distance, tilt);
+		image = SyntheticData.createPowderImage(md, spacings);
+
+		double[] centre = md.getDetector2DProperties().getBeamCentreCoords();
+		double maxDistance = Math.hypot(Math.max(centre[0], size - centre[0]), Math.max(centre[1], size - centre[1]));
+		SectorROI sector = new SectorROI(centre[0], centre[1], 0, maxDistance, 0, 2*Math.PI);
+		integrated = ROIProfile.sector(image, null, sector, true, false, false, null, XAxis.PIXEL, false)[0];
+		for (int i = 0; i < CENTRE_MASK_RADIUS; i++) integrated.set(0, i);
+		radius = DatasetFactory.createRange(IntegerDataset.class, integrated.getSize());
+
+		List<EllipticalROI> rings = SyntheticData.createRings(md, spacings);
+
+		//a few pixels out, as from the ring search
+		seed = rings.get(1).copy();
+		seed.setSemiAxis(0, seed.getSemiAxis(0) + 3);
+		seed.setSemiAxis(1, seed.getSemiAxis(1) + 3);
+
+		allEllipses = new ArrayList<>();
+		allDSpacings = new ArrayList<>();
+		for (double delta : DELTA_DISTANCES) {
+			IDiffractionMetadata m = SyntheticData.createMetadata(size, distance + delta, tilt);
+			allEllipses.add(SyntheticData.createRings(m, spacings));
+			allDSpacings.add(dSpace.clone());
+		}
+		deltaDistance = DatasetFactory.createFromObject(DELTA_DISTANCES.clone());
+
+		points = new ArrayList<>(rings.size());
+		for (EllipticalROI ring : rings) points.add(SyntheticData.samplePoints(ring, POINTS_PER_RING));
+		pointStart = md.clone();
+		pointStart.getDetector2DProperties().setBeamCentreDistance(distance*1.005);
+		pointModel = new SimpleCalibrationParameterModel();
+		pointModel.setIsPointCalibration(true);
+		pointModel.setFloatEnergy(false);
+
+		//major axes of the rings at each distance, the way CalibrateEllipses passes them to LambdaFitter,
+		//with the distance over sin(tilt) of each image in place of the fitted beamC[0]*pixel
+		int n = DELTA_DISTANCES.length*dSpace.length;
+		double last = DELTA_DISTANCES[DELTA_DISTANCES.length - 1];
+		double sinTilt = Math.sin(Math.toRadians(Math.max(tilt, MIN_LAMBDA_TILT)));
+		double[] norm = new double[n];
+		double[] d = new double[n];
+		double[] sint = new double[n];
+		for (int i = 0; i < n; i++) {
+			double delta = DELTA_DISTANCES[i/dSpace.length];
+			norm[i] = last - delta;
+			d[i] = dSpace[i % dSpace.length];
+			sint[i] = (distance + delta)/sinTilt;
+		}
+		normDistances = DatasetFactory.createFromObject(norm);
+		ringDSpacings = DatasetFactory.createFromObject(d);
+		sinTilts = DatasetFactory.createFromObject(sint);
+		majors = LambdaFitter.calculateMajorAxesfinal(normDistances, ringDSpacings, sinTilts, distance + last, SyntheticData.WAVELENGTH);
+		for (int i = 0; i < n; i++) {
+			if (!Double.isFinite(majors.getDouble(i))) throw new IllegalStateException("Major axis " + i + " is not finite");
+		}
+	}
+
+	@Benchmark
+	public double[] centreGuess() {
+		return CentreGuess.guessCentre(image);
+	}
+
+	@Benchmark
+	public Map<Double, Double> matchStandards() {
+		return BruteStandardMatcher.bruteForceMatchStandards(radius, integrated, dSpace, SyntheticData.PIXEL);
+	}
+
+	@Benchmark
+	public EllipticalROI ellipsePeakFit(PointsOfInterest poi) {
+		return PowderCalibration.ellipsePeakFit(image, null, seed, SEARCH_WIDTH, SEARCH_WIDTH, 256, poi.method, null);
+	}
+
+	@Benchmark
+	public CalibrationOutput calibrateEllipses() {
+		return CalibrateEllipses.run(allEllipses, allDSpacings, deltaDistance, SyntheticData.PIXEL);
+	}
+
+	@Benchmark
+	public CalibrationOutput calibratePoints() {
+		return CalibratePoints.run(points, dSpace, pointStart, pointModel);
+	}
+
+	@Benchmark
+	public double[] lambdaFitter() {
+		return LambdaFitter.fit(majors, normDistances, ringDSpacings, sinTilts, DELTA_DISTANCES[DELTA_DISTANCES.length - 1], 0.14);
+	}
+}
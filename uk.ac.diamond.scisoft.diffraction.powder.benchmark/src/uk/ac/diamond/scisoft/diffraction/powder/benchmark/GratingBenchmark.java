@@ -0,0 +1,50 @@
+package uk.ac.diamond.scisoft.diffraction.powder.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.january.dataset.Dataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.diamond.scisoft.diffraction.powder.GratingCalibration;
+
+/**
+ * Grating fit on simulated lines of diffraction orders
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GratingBenchmark {
+
+	private static final double FRINGE_SPACING = 24.5;
+
+	@Param({"1024", "2048"})
+	public int size;
+
+	@Param({"0", "37"})
+	public double angle;
+
+	private Dataset image;
+
+	@Setup
+	public void setup() {
+		image = SyntheticData.createGratingImage(size, angle, FRINGE_SPACING);
+	}
+
+	@Benchmark
+	public Object fitGrating() {
+		return GratingCalibration.fitGrating(image);
+	}
+}
@@ -0,0 +1,149 @@
+package uk.ac.diamond.scisoft.diffraction.powder.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+import org.eclipse.dawnsci.analysis.api.roi.IROI;
+import org.eclipse.dawnsci.analysis.dataset.roi.CircularROI;
+import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
+import org.eclipse.dawnsci.analysis.dataset.roi.PolylineROI;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+
+import uk.ac.diamond.scisoft.analysis.crystallography.CalibrationFactory;
+import uk.ac.diamond.scisoft.analysis.crystallography.HKL;
+import uk.ac.diamond.scisoft.analysis.diffraction.DSpacing;
+import uk.ac.diamond.scisoft.analysis.diffraction.powder.PixelIntegrationUtils;
+import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
+
+/**
+ * Simulated calibrant and grating images for the benchmarks
+ * <p>
+ * Powder images are generated as in SimulatedDataTest, from a 1D pattern with PixelIntegrationUtils.generate2Dfrom1D,
+ * but the pattern is built from the calibrant d-spacings rather than read from a file.
+ */
+final class SyntheticData {
+
+	static final double PIXEL = 0.2;
+	static final double WAVELENGTH = 1;
+	static final int MAX_RINGS = 8;
+
+	private static final int PATTERN_POINTS = 8192;
+	//ring width in q (1/Angstrom), about a pixel at 200mm
+	private static final double RING_SIGMA = 0.005;
+
+	private SyntheticData() {
+	}
+
+	static IDiffractionMetadata createMetadata(int size, double distance, double tilt) {
+		DetectorProperties dp = new DetectorProperties(100, 0, 0, size, size, PIXEL, PIXEL);
+		DiffractionCrystalEnvironment ce = new DiffractionCrystalEnvironment(WAVELENGTH);
+
+		//off the pixel grid and the image centre
+		dp.setBeamCentreCoords(new double[] {size/2.0 - 23.3, size/2.0 + 17.6});
+		dp.setBeamCentreDistance(distance);
+		dp.setNormalAnglesInDegrees(tilt, 0, 45);
+
+		return new DiffractionMetadata("benchmark", dp, ce);
+	}
+
+	static List<HKL> getCeO2() {
+		return CalibrationFactory.getCalibrationStandards().getCalibrationPeakMap("CeO2").getHKLs();
+	}
+
+	static double[] getDSpacings(List<HKL> spacings) {
+		int n = Math.min(MAX_RINGS, spacings.size());
+		double[] dSpace = new double[n];
+		for (int i = 0; i < n; i++) dSpace[i] = spacings.get(i).getDNano()*10;
+		return dSpace;
+	}
+
+	static Dataset createPowderImage(IDiffractionMetadata md, List<HKL> spacings) {
+		DetectorProperties dp = md.getDetector2DProperties();
+		Dataset q2D = PixelIntegrationUtils.generateQArray(new int[] {dp.getPy(), dp.getPx()}, md);
+		return PixelIntegrationUtils.generate2Dfrom1D(createPattern(spacings, q2D.max().doubleValue()*1.01), q2D);
+	}
+
+	private static Dataset[] createPattern(List<HKL> spacings, double qMax) {
+		double[] q = new double[PATTERN_POINTS];
+		double[] intensity = new double[PATTERN_POINTS];
+
+		for (int i = 0; i < PATTERN_POINTS; i++) {
+			q[i] = i*qMax/(PATTERN_POINTS - 1);
+			intensity[i] = 100;
+		}
+
+		for (HKL hkl : spacings) {
+			double centre = 2*Math.PI/(hkl.getDNano()*10);
+			if (centre > qMax) continue;
+			for (int i = 0; i < PATTERN_POINTS; i++) {
+				double d = (q[i] - centre)/RING_SIGMA;
+				if (Math.abs(d) < 8) intensity[i] += 1000*Math.exp(-0.5*d*d);
+			}
+		}
+
+		return new Dataset[] {DatasetFactory.createFromObject(q), DatasetFactory.createFromObject(intensity)};
+	}
+
+	/**
+	 * @return exact ellipses of the first MAX_RINGS rings
+	 */
+	static List<EllipticalROI> createRings(IDiffractionMetadata md, List<HKL> spacings) {
+		List<IROI> rois = DSpacing.getResolutionRings(md, spacings.subList(0, Math.min(MAX_RINGS, spacings.size())));
+		List<EllipticalROI> rings = new ArrayList<>(rois.size());
+		for (IROI roi : rois) {
+			if (roi instanceof EllipticalROI) {
+				rings.add((EllipticalROI) roi);
+			} else if (roi instanceof CircularROI) {
+				rings.add(new EllipticalROI((CircularROI) roi));
+			} else {
+				throw new IllegalArgumentException("Ring is not elliptical: " + roi);
+			}
+		}
+		return rings;
+	}
+
+	static PolylineROI samplePoints(EllipticalROI ring, int nPoints) {
+		PolylineROI points = new PolylineROI();
+		for (int i = 0; i < nPoints; i++) {
+			points.insertPoint(ring.getPoint(2*Math.PI*i/nPoints));
+		}
+		return points;
+	}
+
+	/**
+	 * Line of diffraction orders through an off centre beam, as from a grating
+	 *
+	 * @param size
+	 * @param angle of the line of orders, in degrees
+	 * @param spacing of the orders, in pixels
+	 */
+	static Dataset createGratingImage(int size, double angle, double spacing) {
+		double xc = size*0.45;
+		double yc = size*0.55;
+		double ca = Math.cos(Math.toRadians(angle));
+		double sa = Math.sin(Math.toRadians(angle));
+
+		double[] data = new double[size*size];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				double u = (x - xc)*ca + (y - yc)*sa;
+				double v = -(x - xc)*sa + (y - yc)*ca;
+				double value = 10;
+				if (Math.abs(v) < 20) {
+					double across = Math.exp(-v*v/18);
+					for (int k = -8; k <= 8; k++) {
+						double d = u - k*spacing;
+						if (Math.abs(d) < 10) value += 1e4*across*Math.exp(-d*d/4.5 - 0.3*Math.abs(k));
+					}
+				}
+				data[y*size + x] = value;
+			}
+		}
+		return DatasetFactory.createFromObject(DoubleDataset.class, data, size, size);
+	}
+}
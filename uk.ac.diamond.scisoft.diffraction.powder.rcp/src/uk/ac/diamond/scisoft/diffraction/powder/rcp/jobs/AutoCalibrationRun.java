@@ -15,6 +15,7 @@ import uk.ac.diamond.scisoft.analysis.crystallography.CalibrationFactory;
 import uk.ac.diamond.scisoft.analysis.crystallography.HKL;
 import uk.ac.diamond.scisoft.diffraction.powder.CalibrationOutput;
 import uk.ac.diamond.scisoft.diffraction.powder.DiffractionImageData;
+import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationImageSource;
 import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationUIProgressUpdate;
 import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibration;
 import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibrationInfoImpl;
@@ -74,7 +75,8 @@ public class AutoCalibrationRun extends AbstractCalibrationRun {
 			info[count++] = createPowderCalibrationInfo(data, true);
 		}
 		
-		CalibrationOutput output = PowderCalibration.calibrateMultipleImages(images, ddist, pxSize, spacings, fixed, new int[]{centreMaskRadius,minSpacing,nPoints}, params, mon, uiUpdater, info);
+		CalibrationOutput output = PowderCalibration.calibrateMultipleImages(ICalibrationImageSource.fromImages(images), ddist, pxSize, spacings, fixed,
+				new int[]{centreMaskRadius,minSpacing,nPoints}, params, mon, uiUpdater, info, manager.getSearchCache());
 		
 		updateOnFinish(output);
 
@@ -50,6 +50,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.diamond.osgi.services.ServiceProvider;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationSearchCache;
 import uk.ac.diamond.scisoft.diffraction.powder.DiffractionImageData;
 import uk.ac.diamond.scisoft.diffraction.powder.rcp.Activator;
 
@@ -58,6 +59,8 @@ public class DiffractionDataManager {
 	private List<DiffractionImageData> model;
 	private DiffractionImageData currentData;
 	private ILoaderService service;
+	// ring searches of the loaded images, so recalibrating with other refinement options is quick
+	private final CalibrationSearchCache searchCache = new CalibrationSearchCache();
 	
 	// Logger
 	private final static Logger logger = LoggerFactory.getLogger(DiffractionDataManager.class);
@@ -97,6 +100,7 @@ public class DiffractionDataManager {
 	
 	public void clear(){
 		model.clear();
+		searchCache.clear();
 	}
 	
 	public boolean isEmpty() {
@@ -111,6 +115,10 @@ public class DiffractionDataManager {
 		return currentData;
 	}
 	
+	public CalibrationSearchCache getSearchCache() {
+		return searchCache;
+	}
+	
 	public void setWavelength(double wavelength) {
 		for (DiffractionImageData data : model) {
 			data.getMetaData().getDiffractionCrystalEnvironment().setWavelength(wavelength);
@@ -434,6 +442,7 @@ public class DiffractionDataManager {
 
 	public void dispose() {
 		if (model!=null) model.clear(); // Helps garbage collector.
+		searchCache.clear();
 	}
 
 	public Dataset getDistances() {
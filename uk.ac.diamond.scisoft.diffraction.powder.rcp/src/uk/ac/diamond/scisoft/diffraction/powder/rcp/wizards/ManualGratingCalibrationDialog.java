@@ -296,7 +296,12 @@ public class ManualGratingCalibrationDialog extends Dialog {
 				// And add this to the plot
 				selectionRegion.setROI(roi);
 
-				
+				if (Double.isNaN(distance)) {
+					logger.warn("No grating fringes found in the sector, the detector distance is unchanged");
+					spacingText.setText(Double.toString(gc.getFringeSpacing()));
+					return;
+				}
+
 				// Set the data that is stored in the diffraction metadata
 				manager.getCurrentData().getMetaData().getDetector2DProperties().setBeamCentreDistance(distance);
 				manager.getCurrentData().getMetaData().getDetector2DProperties().setBeamCentreCoords(gc.getBeamCentre());
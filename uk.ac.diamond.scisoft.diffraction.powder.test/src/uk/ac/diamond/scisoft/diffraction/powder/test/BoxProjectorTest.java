@@ -0,0 +1,162 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.roi.RectangularROI;
+import org.eclipse.january.dataset.BooleanDataset;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
+import uk.ac.diamond.scisoft.diffraction.powder.BoxProjector;
+
+public class BoxProjectorTest {
+
+	@Test
+	public void UniformImageSumsToBoxArea() {
+		DoubleDataset image = DatasetFactory.ones(DoubleDataset.class, 300, 400);
+
+		BoxProjector projector = new BoxProjector(new double[] {180.4, 160.7}, 200, 40, new double[] {400, 300}, new double[] {0, 37.3, 90});
+		double[][] profiles = projector.project(image, null);
+
+		for (int a = 0; a < profiles.length; a++) {
+			Assert.assertEquals(200, profiles[a].length);
+			double sum = 0;
+			for (double v : profiles[a]) sum += v;
+			Assert.assertEquals(200*40, sum, 200*40*0.02);
+		}
+
+		//aligned with the pixels, every bin sums the full breadth
+		for (double v : profiles[0]) Assert.assertEquals(40, v, 0);
+	}
+
+	@Test
+	public void BoxesFittedInsideImage() {
+		BoxProjector projector = new BoxProjector(new double[] {20, 150}, 200, 40, new double[] {400, 300}, new double[] {0, 90});
+
+		//moved along its length to fit
+		Assert.assertEquals(200, projector.getLength(0), 1e-9);
+		Assert.assertEquals(0, projector.getOrigin(0)[0], 1e-9);
+		//already inside
+		Assert.assertEquals(200, projector.getLength(1), 1e-9);
+		Assert.assertEquals(40, projector.getOrigin(1)[0], 1e-9);
+		Assert.assertEquals(50, projector.getOrigin(1)[1], 1e-9);
+
+		//shortened to fit the height
+		projector = new BoxProjector(new double[] {200, 150}, 400, 40, new double[] {400, 300}, new double[] {90});
+		Assert.assertEquals(300, projector.getLength(0), 1e-9);
+	}
+
+	@Test
+	public void AllAnglesMatchSingleAngles() {
+		Random r = new Random(5);
+		DoubleDataset image = DatasetFactory.zeros(DoubleDataset.class, 256, 256);
+		BooleanDataset mask = DatasetFactory.ones(BooleanDataset.class, 256, 256);
+		for (int y = 0; y < 256; y++) {
+			for (int x = 0; x < 256; x++) {
+				image.set(r.nextDouble(), y, x);
+				if (r.nextInt(20) == 0) mask.set(false, y, x);
+			}
+		}
+
+		double[] centre = {120.3, 135.8};
+		double[] bounds = {256, 256};
+		double[] angles = new double[180];
+		for (int i = 0; i < angles.length; i++) angles[i] = i;
+
+		double[][] all = new BoxProjector(centre, 128, 30, bounds, angles).project(image, mask);
+
+		for (int i = 0; i < angles.length; i += 17) {
+			double[] single = new BoxProjector(centre, 128, 30, bounds, new double[] {angles[i]}).project(image, mask)[0];
+			Assert.assertArrayEquals(single, all[i], 0);
+		}
+
+		//masked pixels are left out
+		double[] unmasked = new BoxProjector(centre, 128, 30, bounds, new double[] {0}).project(image, null)[0];
+		double masked = 0;
+		double total = 0;
+		for (int j = 0; j < unmasked.length; j++) {
+			masked += all[0][j];
+			total += unmasked[j];
+		}
+		Assert.assertTrue(masked < total);
+	}
+
+	@Test
+	public void RotatedBoxesMatchROIProfile() {
+
+		//fringes of period 15 pixels running across 30 degrees
+		double fringeAngle = Math.toRadians(30);
+		double fc = Math.cos(fringeAngle);
+		double fs = Math.sin(fringeAngle);
+		DoubleDataset image = DatasetFactory.zeros(DoubleDataset.class, 300, 400);
+		for (int y = 0; y < 300; y++) {
+			for (int x = 0; x < 400; x++) {
+				double c = Math.cos(Math.PI*(x*fc + y*fs)/15);
+				image.set(100 + 50*c*c, y, x);
+			}
+		}
+
+		double[] centre = {190.6, 148.2};
+		double[] bounds = {400, 300};
+		double[] angles = {30, 75, 120};
+		BoxProjector projector = new BoxProjector(centre, 240, 40, bounds, angles);
+		double[][] profiles = projector.project(image, null);
+
+		for (int a = 0; a < angles.length; a++) {
+			double[] origin = projector.getOrigin(a);
+			RectangularROI roi = new RectangularROI(origin[0], origin[1], projector.getLength(a), 40, Math.toRadians(angles[a]));
+			Dataset expected = ROIProfile.box(image, null, roi)[0];
+			double[] profile = profiles[a];
+
+			Assert.assertEquals(expected.getSize(), profile.length, 1);
+			int n = Math.min(expected.getSize(), profile.length);
+
+			double[] boxProfile = new double[n];
+			double sum = 0;
+			double expectedSum = 0;
+			double moment = 0;
+			double expectedMoment = 0;
+			for (int i = 0; i < n; i++) {
+				boxProfile[i] = expected.getDouble(i);
+				sum += profile[i];
+				expectedSum += boxProfile[i];
+				moment += i*profile[i];
+				expectedMoment += i*boxProfile[i];
+			}
+			Assert.assertEquals(expectedSum, sum, expectedSum*0.02);
+			Assert.assertEquals(expectedMoment/expectedSum, moment/sum, 1);
+
+			if (a == 0) {
+				//across the fringes, the maxima are in the same bins
+				List<Integer> maxima = localMaxima(profile, n);
+				List<Integer> expectedMaxima = localMaxima(boxProfile, n);
+				Assert.assertEquals(240/15 - 1, maxima.size(), 1);
+				Assert.assertEquals(expectedMaxima.size(), maxima.size());
+				for (int i = 0; i < maxima.size(); i++) {
+					Assert.assertEquals(expectedMaxima.get(i), maxima.get(i), 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bins higher than the four either side, away from the ends
+	 */
+	private static List<Integer> localMaxima(double[] profile, int n) {
+		List<Integer> maxima = new ArrayList<>();
+		for (int i = 4; i < n - 4; i++) {
+			boolean max = true;
+			for (int j = i - 4; j <= i + 4; j++) {
+				if (j != i && profile[j] >= profile[i]) max = false;
+			}
+			if (max) maxima.add(i);
+		}
+		return maxima;
+	}
+}
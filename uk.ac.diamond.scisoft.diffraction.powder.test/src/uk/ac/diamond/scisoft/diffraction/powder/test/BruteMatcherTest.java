@@ -2,17 +2,38 @@ package uk.ac.diamond.scisoft.diffraction.powder.test;
 
 import java.io.File;
 import java.util.Map;
+import java.util.Random;
 
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
 import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
 import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.Maths;
 import org.junit.Assert;
 import org.junit.Test;
 
+import uk.ac.diamond.scisoft.analysis.diffraction.DSpacing;
 import uk.ac.diamond.scisoft.analysis.io.LoaderFactory;
 import uk.ac.diamond.scisoft.diffraction.powder.BruteStandardMatcher;
 
 public class BruteMatcherTest {
 
+	private static final double[] ENERGIES = new double[] {10,11,12,13,14,15,17,20,25,30,40,50,70,90,120,150,170};
+	
+	private static final double[] D_SPACE = new double[] {3.124417584000000e+00,
+			2.705825000000000e+00,
+			1.913307206000000e+00,
+			1.631673868000000e+00,
+			1.562,
+			1.353,
+			1.241,
+			1.21,
+			1.105,
+			1.104648431000000e+00,
+			1.041472528000000e+00,
+			0.957};
+	
 	@Test
 	public void BruteMatcherTestRun(){
 		
@@ -45,6 +66,132 @@ public class BruteMatcherTest {
 		
 	}
 	
+	@Test
+	public void MatchesExhaustiveSearchOnTrace() throws Exception {
+		Dataset x = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(getTestFilePath("TestTrace.dat"),"x",null));
+		Dataset trace = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(getTestFilePath("TestTrace.dat"),"dataset_0",null));
+		
+		assertMatchesExhaustiveSearch(x, trace, 0.148);
+	}
+	
+	@Test
+	public void MatchesExhaustiveSearchAtLongDistances() {
+		Random r = new Random(12);
+		
+		for (double distance : new double[] {1650, 1873, 1996}) {
+			int n = 2048;
+			double pixelSize = 0.075;
+			double wavelength = 12.398419843320026/15.3;
+			double[] y = new double[n];
+			for (int i = 0; i < n; i++) y[i] = 100*Math.exp(-i/600.0) + r.nextGaussian();
+			for (double d : D_SPACE) {
+				double radius = distance*Math.tan(2*Math.asin(wavelength/(2*d)))/pixelSize;
+				for (int i = 0; i < n; i++) y[i] += 20*Math.exp(-0.5*Math.pow((i - radius)/1.5, 2));
+			}
+			
+			assertMatchesExhaustiveSearch(DatasetFactory.createRange(n), DatasetFactory.createFromObject(y), pixelSize);
+		}
+	}
+	
+	@Test
+	public void BaselineMatchesSlicedRollingBall() throws Exception {
+		Dataset x = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(getTestFilePath("TestTrace.dat"),"x",null));
+		Dataset trace = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(getTestFilePath("TestTrace.dat"),"dataset_0",null));
+		
+		Random r = new Random(3);
+		double[] y = new double[1000];
+		for (int i = 0; i < y.length; i++) {
+			y[i] = 500*Math.exp(-i/300.0) + 50*Math.exp(-0.5*Math.pow((i - 400)/2.0, 2)) + 5*r.nextGaussian();
+		}
+		Dataset synthetic = DatasetFactory.createFromObject(y);
+		
+		for (int width : new int[] {1, 3, BruteStandardMatcher.DEFAULT_BASELINE_WIDTH, 40}) {
+			assertBaselineMatches(x, trace, width);
+			assertBaselineMatches(DatasetFactory.createRange(y.length), synthetic, width);
+		}
+	}
+	
+	private static void assertBaselineMatches(Dataset x, Dataset trace, int width) {
+		Dataset expected = slicedRollingBall(trace, width);
+		Dataset clean = BruteStandardMatcher.cleanUpData(x, trace, width);
+		
+		Assert.assertEquals(expected.getSize(), clean.getSize());
+		double scale = trace.max().doubleValue() - trace.min().doubleValue();
+		for (int i = 0; i < expected.getSize(); i++) {
+			Assert.assertEquals("Bin " + i + " of width " + width, expected.getElementDoubleAbs(i), clean.getElementDoubleAbs(i), 1e-12*scale);
+		}
+	}
+	
+	/**
+	 * The rolling ball baseline as it was, from min, max and mean of a slice at each bin
+	 */
+	private static Dataset slicedRollingBall(Dataset y, int width) {
+		
+		Dataset t1 = DatasetFactory.zeros(y);
+		Dataset t2 = DatasetFactory.zeros(y);
+		
+		for (int i = 0 ; i < y.getSize()-1; i++) {
+			int start = (i-width) < 0 ? 0 : (i - width);
+			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
+			double val = y.getSlice(new int[]{start}, new int[]{end}, null).min().doubleValue();
+			t1.set(val, i);
+		}
+		
+		for (int i = 0 ; i < y.getSize()-1; i++) {
+			int start = (i-width) < 0 ? 0 : (i - width);
+			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
+			double val = t1.getSlice(new int[]{start}, new int[]{end}, null).max().doubleValue();
+			t2.set(val, i);
+		}
+		
+		for (int i = 0 ; i < y.getSize()-1; i++) {
+			int start = (i-width) < 0 ? 0 : (i - width);
+			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
+			double val = (double)t2.getSlice(new int[]{start}, new int[]{end}, null).mean();
+			t1.set(val, i);
+		}
+		
+		return Maths.subtract(y, t1);
+	}
+	
+	/**
+	 * Scores every energy and distance the way the matcher did before the coarse search, and checks
+	 * the matcher finds the same radii
+	 */
+	private void assertMatchesExhaustiveSearch(Dataset x, Dataset trace, double pixelSize) {
+		Dataset clean = BruteStandardMatcher.cleanUpData(x, trace);
+		
+		double bestssq = Double.NEGATIVE_INFINITY;
+		double[] bestValues = new double[2];
+		for (double en : ENERGIES) {
+			for (double dist = 100; dist <= 2000; dist += 2) {
+				DetectorProperties dp = new DetectorProperties(dist, 0, 0, x.getSize(), x.getSize(), pixelSize, pixelSize);
+				DiffractionCrystalEnvironment ce = new DiffractionCrystalEnvironment();
+				ce.setWavelengthFromEnergykeV(en);
+				double w = ce.getWavelength();
+				double[] radii = new double[D_SPACE.length];
+				for (int i = 0; i < radii.length; i++) {
+					if (w < 2*D_SPACE[i]) radii[i] = DSpacing.radiusFromDSpacing(dp, ce, D_SPACE[i]);
+				}
+				double ssq = ((Number) Maths.multiply(BruteStandardMatcher.getFilterDataset(x, radii), clean).sum()).doubleValue();
+				if (ssq > bestssq) {
+					bestssq = ssq;
+					bestValues[0] = en;
+					bestValues[1] = dist;
+				}
+			}
+		}
+		
+		DetectorProperties dp = new DetectorProperties(bestValues[1], 0, 0, x.getSize(), x.getSize(), pixelSize, pixelSize);
+		DiffractionCrystalEnvironment ce = new DiffractionCrystalEnvironment();
+		ce.setWavelengthFromEnergykeV(bestValues[0]);
+		
+		Map<Double,Double> out = BruteStandardMatcher.bruteForceMatchStandards(x, trace, D_SPACE, pixelSize);
+		for (double d : D_SPACE) {
+			Assert.assertEquals(DSpacing.radiusFromDSpacing(dp, ce, d), out.get(d), 1e-6);
+		}
+	}
+	
 	private String getTestFilePath(String fileName) {
 		final File test = new File("testfiles/"+fileName);
 		return test.getAbsolutePath();
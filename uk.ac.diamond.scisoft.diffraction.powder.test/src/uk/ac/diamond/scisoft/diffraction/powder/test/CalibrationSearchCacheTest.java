@@ -0,0 +1,176 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.Maths;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.crystallography.CalibrationFactory;
+import uk.ac.diamond.scisoft.analysis.crystallography.HKL;
+import uk.ac.diamond.scisoft.analysis.diffraction.ResolutionEllipseROI;
+import uk.ac.diamond.scisoft.analysis.diffraction.powder.PixelIntegrationUtils;
+import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
+import uk.ac.diamond.scisoft.analysis.io.LoaderFactory;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationOutput;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationSearchCache;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationSearchCache.SearchKey;
+import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationImageSource;
+import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibration;
+import uk.ac.diamond.scisoft.diffraction.powder.SimpleCalibrationParameterModel;
+
+public class CalibrationSearchCacheTest {
+
+	@Test
+	public void KeyIgnoresRefinementOptions() {
+
+		DoubleDataset image = createImage(0);
+		List<HKL> spacings = CalibrationFactory.getCalibrationStandards().getCalibrationPeakMap("CeO2").getHKLs();
+
+		SimpleCalibrationParameterModel params = new SimpleCalibrationParameterModel();
+		SearchKey key = CalibrationSearchCache.createKey(image, 0.1, spacings, 50, params);
+
+		params.setFloatDistance(!params.isFloatDistance());
+		params.setFloatTilt(!params.isFloatTilt());
+		params.setIsPointCalibration(!params.isPointCalibration());
+		Assert.assertEquals(key, CalibrationSearchCache.createKey(image, 0.1, spacings, 50, params));
+
+		params.setNumberOfRings(params.getNumberOfRings() + 1);
+		Assert.assertNotEquals(key, CalibrationSearchCache.createKey(image, 0.1, spacings, 50, params));
+		params.setNumberOfRings(params.getNumberOfRings() - 1);
+
+		image.set(image.getDouble(10, 10) + 1, 10, 10);
+		Assert.assertNotEquals(key, CalibrationSearchCache.createKey(image, 0.1, spacings, 50, params));
+
+		Assert.assertNotEquals(key, CalibrationSearchCache.createKey(createImage(0), 0.1, spacings.subList(0, 5), 50, params));
+	}
+
+	@Test
+	public void LeastRecentlyUsedEvicted() {
+
+		List<HKL> spacings = CalibrationFactory.getCalibrationStandards().getCalibrationPeakMap("CeO2").getHKLs();
+		SimpleCalibrationParameterModel params = new SimpleCalibrationParameterModel();
+		CalibrationSearchCache cache = new CalibrationSearchCache(2);
+
+		SearchKey[] keys = new SearchKey[3];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = CalibrationSearchCache.createKey(createImage(i), 0.1, spacings, 50, params);
+		}
+
+		cache.put(keys[0], createEntry());
+		cache.put(keys[1], createEntry());
+		Assert.assertNotNull(cache.get(keys[0]));
+		cache.put(keys[2], createEntry());
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNotNull(cache.get(keys[0]));
+		Assert.assertNull(cache.get(keys[1]));
+
+		cache.invalidate(createImage(0));
+		Assert.assertNull(cache.get(keys[0]));
+		Assert.assertNotNull(cache.get(keys[2]));
+	}
+
+	@Test
+	public void FittedEllipsesAreCopied() {
+
+		CalibrationSearchCache.Entry entry = createEntry();
+		ResolutionEllipseROI roi = new ResolutionEllipseROI(new EllipticalROI(100, 50, 60), 3.1);
+		entry.setFitted(10, 256, 1, SimpleCalibrationParameterModel.POI_METHOD, Arrays.asList(roi));
+
+		roi.setSemiAxis(0, 200);
+		ResolutionEllipseROI cached = entry.getFitted(10, 256, 1, SimpleCalibrationParameterModel.POI_METHOD).get(0);
+		Assert.assertEquals(100, cached.getSemiAxis(0), 1e-12);
+		Assert.assertEquals(3.1, cached.getResolution(), 1e-12);
+
+		cached.setSemiAxis(0, 300);
+		Assert.assertEquals(100, entry.getFitted(10, 256, 4, SimpleCalibrationParameterModel.POI_METHOD).get(0).getSemiAxis(0), 1e-12);
+		Assert.assertNull(entry.getFitted(10, 128, 1, SimpleCalibrationParameterModel.POI_METHOD));
+	}
+
+	@Test
+	public void HitMatchesFreshSearch() {
+
+		Dataset image = createSimulatedImage();
+		List<HKL> spacings = CalibrationFactory.getCalibrationStandards().getCalibrationPeakMap("CeO2").getHKLs();
+		SimpleCalibrationParameterModel params = new SimpleCalibrationParameterModel();
+		params.setNumberOfRings(10);
+		params.setIsPointCalibration(true);
+
+		CalibrationSearchCache cache = new CalibrationSearchCache(2);
+		CalibrationOutput fresh = calibrate(image, spacings, params, null);
+		calibrate(image, spacings, params, cache);
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(1, cache.size());
+
+		CalibrationOutput cached = calibrate(image, spacings, params, cache);
+		Assert.assertEquals(1, cache.getHits());
+		assertSameCalibration(fresh, cached);
+
+		//a refinement flag does not change the search
+		params.setIsPointCalibration(false);
+		params.setFloatTilt(!params.isFloatTilt());
+		fresh = calibrate(image, spacings, params, null);
+		cached = calibrate(image, spacings, params, cache);
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		assertSameCalibration(fresh, cached);
+	}
+
+	private static CalibrationOutput calibrate(Dataset image, List<HKL> spacings, SimpleCalibrationParameterModel params, CalibrationSearchCache cache) {
+		return PowderCalibration.calibrateMultipleImages(ICalibrationImageSource.fromImages(image), DatasetFactory.zeros(DoubleDataset.class, 1),
+				0.2, spacings, 0, new int[] {50, 10, 256}, params, null, null, null, cache);
+	}
+
+	private static void assertSameCalibration(CalibrationOutput expected, CalibrationOutput actual) {
+		Assert.assertEquals(expected.getDistance().getDouble(0), actual.getDistance().getDouble(0), 1e-9);
+		Assert.assertEquals(expected.getBeamCentreX().getDouble(0), actual.getBeamCentreX().getDouble(0), 1e-9);
+		Assert.assertEquals(expected.getBeamCentreY().getDouble(0), actual.getBeamCentreY().getDouble(0), 1e-9);
+		Assert.assertEquals(expected.getWavelength(), actual.getWavelength(), 1e-12);
+	}
+
+	/**
+	 * CeO2 rings on a tilted 2048 x 2048 detector, as in SimulatedDataTest
+	 */
+	private static Dataset createSimulatedImage() {
+		DetectorProperties dp = new DetectorProperties(100, 0, 0, 2048, 2048, 0.2, 0.2);
+		dp.setBeamCentreCoords(new double[] {999, 1001});
+		dp.setBeamCentreDistance(300);
+		dp.setNormalAnglesInDegrees(3, 0, 45);
+		DiffractionMetadata meta = new DiffractionMetadata("test", dp, new DiffractionCrystalEnvironment(1));
+
+		File file = new File("testfiles/Sim_CeO2_SRM674b.dat");
+		Dataset[] profile;
+		try {
+			Dataset x = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(file.getAbsolutePath(), "Column_1", null));
+			Dataset y = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(file.getAbsolutePath(), "Column_2", null));
+			profile = new Dataset[] {x, Maths.add(y, 100)};
+		} catch (Exception e) {
+			throw new AssertionError("Could not load simulated profile", e);
+		}
+
+		Dataset q = PixelIntegrationUtils.generateQArray(new int[] {dp.getPy(), dp.getPx()}, meta);
+		return PixelIntegrationUtils.generate2Dfrom1D(profile, q);
+	}
+
+	private static DoubleDataset createImage(int offset) {
+		double[] data = new double[64*64];
+		for (int i = 0; i < data.length; i++) data[i] = (i*7 + offset) % 101;
+		return DatasetFactory.createFromObject(DoubleDataset.class, data, 64, 64);
+	}
+
+	private static CalibrationSearchCache.Entry createEntry() {
+		double[] empty = new double[0];
+		return new CalibrationSearchCache.Entry(new double[2], null, null, Collections.<Double, Double>emptyMap(), empty, empty, empty, empty);
+	}
+}
@@ -0,0 +1,61 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Signal;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.CentreGuess;
+
+public class CentreGuessTest {
+
+	@Test
+	public void SelfConvolveMatchesSignalConvolve() {
+		Random r = new Random(7);
+
+		for (int[] shape : new int[][] {{1, 1}, {1, 6}, {5, 1}, {7, 9}, {8, 8}, {13, 6}, {6, 13}, {64, 63}, {129, 130}}) {
+			double[] data = new double[shape[0]*shape[1]];
+			for (int i = 0; i < data.length; i++) data[i] = r.nextDouble();
+			DoubleDataset image = DatasetFactory.createFromObject(DoubleDataset.class, data, shape);
+
+			DoubleDataset conv = CentreGuess.selfConvolve(image);
+			Dataset expected = Signal.convolve(image, image, new int[] {0, 1});
+
+			Assert.assertArrayEquals(new int[] {2*shape[0] - 1, 2*shape[1] - 1}, conv.getShape());
+			Assert.assertArrayEquals(expected.getShape(), conv.getShape());
+
+			double tolerance = 1e-12*data.length*expected.max().doubleValue();
+			for (int i = 0; i < conv.getShape()[0]; i++) {
+				for (int j = 0; j < conv.getShape()[1]; j++) {
+					Assert.assertEquals(expected.getDouble(i, j), conv.getDouble(i, j), tolerance);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void CentreOfRing() {
+		// downsampled by 5
+		assertCentre(500, 510, 251.3, 238.6);
+		// wide enough to be downsampled by an even factor, 6
+		assertCentre(600, 2598, 1301.3, 277.8);
+	}
+
+	private static void assertCentre(int height, int width, double cx, double cy) {
+		DoubleDataset image = DatasetFactory.zeros(DoubleDataset.class, height, width);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double r = Math.hypot(x - cx, y - cy) - 120;
+				image.set(10 + 1000*Math.exp(-r*r/18), y, x);
+			}
+		}
+
+		double[] centre = CentreGuess.guessCentre(image);
+		Assert.assertEquals(cx, centre[0], 0.5);
+		Assert.assertEquals(cy, centre[1], 0.5);
+	}
+}
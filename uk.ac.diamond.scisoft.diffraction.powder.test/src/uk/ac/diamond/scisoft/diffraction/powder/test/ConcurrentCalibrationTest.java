@@ -0,0 +1,167 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.io.File;
+import java.util.List;
+
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.Maths;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.crystallography.CalibrationFactory;
+import uk.ac.diamond.scisoft.analysis.crystallography.HKL;
+import uk.ac.diamond.scisoft.analysis.diffraction.ResolutionEllipseROI;
+import uk.ac.diamond.scisoft.analysis.diffraction.powder.PixelIntegrationUtils;
+import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
+import uk.ac.diamond.scisoft.analysis.io.LoaderFactory;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationOutput;
+import uk.ac.diamond.scisoft.diffraction.powder.CalibrationSearchCache;
+import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationImageSource;
+import uk.ac.diamond.scisoft.diffraction.powder.MovingBeamCalibrationParameterModel;
+import uk.ac.diamond.scisoft.diffraction.powder.PowderCalibration;
+import uk.ac.diamond.scisoft.diffraction.powder.SimpleCalibrationParameterModel;
+
+/**
+ * The concurrent stages of the automatic calibration against the sequential ones, on simulated CeO2 images
+ */
+public class ConcurrentCalibrationTest {
+
+	private static final double PIXEL = 0.2;
+	private static final int[] OPTIONS = new int[] {50, 10, 256};
+
+	@Test
+	public void ConcurrentRingFitMatchesSequential() {
+
+		Dataset image = createSimulatedImage(300);
+		List<HKL> spacings = getSpacings();
+		SimpleCalibrationParameterModel params = createParameters();
+
+		//the cache keeps the ellipses fitted each way from the same ring search
+		CalibrationSearchCache cache = new CalibrationSearchCache();
+		CalibrationOutput sequential = calibrate(image, spacings, params, cache);
+		params.setRingFittingThreads(4);
+		CalibrationOutput concurrent = calibrate(image, spacings, params, cache);
+
+		CalibrationSearchCache.Entry entry = cache.get(CalibrationSearchCache.createKey(image, PIXEL, spacings, OPTIONS[0], params));
+		List<ResolutionEllipseROI> sequentialRings = entry.getFitted(OPTIONS[1], OPTIONS[2], 1, params.getPoiMethod());
+		List<ResolutionEllipseROI> concurrentRings = entry.getFitted(OPTIONS[1], OPTIONS[2], 4, params.getPoiMethod());
+
+		Assert.assertEquals(sequentialRings.size(), concurrentRings.size());
+		for (int i = 0; i < sequentialRings.size(); i++) {
+			ResolutionEllipseROI s = sequentialRings.get(i);
+			ResolutionEllipseROI c = concurrentRings.get(i);
+			Assert.assertEquals(s.getResolution(), c.getResolution(), 1e-12);
+			Assert.assertEquals(s.getSemiAxis(0), c.getSemiAxis(0), 0.1);
+			Assert.assertEquals(s.getSemiAxis(1), c.getSemiAxis(1), 0.1);
+			Assert.assertEquals(s.getPointX(), c.getPointX(), 0.1);
+			Assert.assertEquals(s.getPointY(), c.getPointY(), 0.1);
+		}
+
+		Assert.assertEquals(sequential.getDistance().getDouble(0), concurrent.getDistance().getDouble(0), 0.05);
+		Assert.assertEquals(sequential.getBeamCentreX().getDouble(0), concurrent.getBeamCentreX().getDouble(0), 0.05);
+		Assert.assertEquals(sequential.getBeamCentreY().getDouble(0), concurrent.getBeamCentreY().getDouble(0), 0.05);
+		Assert.assertEquals(300, concurrent.getDistance().getDouble(0), 0.1);
+	}
+
+	@Test
+	public void ConcurrentImagesMatchSequential() {
+
+		Dataset[] images = new Dataset[] {createSimulatedImage(300), createSimulatedImage(310)};
+		Dataset deltaDistance = DatasetFactory.createFromObject(new double[] {0, 10});
+		List<HKL> spacings = getSpacings();
+		SimpleCalibrationParameterModel params = createParameters();
+
+		//no cache, so both runs search and fit every image
+		CalibrationOutput sequential = PowderCalibration.calibrateMultipleImages(ICalibrationImageSource.fromImages(images), deltaDistance,
+				PIXEL, spacings, 0, OPTIONS, params, null, null, null, null);
+		params.setMaxConcurrentImages(2);
+		CalibrationOutput concurrent = PowderCalibration.calibrateMultipleImages(ICalibrationImageSource.fromImages(images), deltaDistance,
+				PIXEL, spacings, 0, OPTIONS, params, null, null, null, null);
+
+		Assert.assertEquals(sequential.getWavelength(), concurrent.getWavelength(), 1e-9);
+		Assert.assertEquals(sequential.getResidual(), concurrent.getResidual(), 1e-9);
+		for (int i = 0; i < images.length; i++) {
+			Assert.assertEquals(sequential.getDistance().getDouble(i), concurrent.getDistance().getDouble(i), 1e-9);
+			Assert.assertEquals(sequential.getBeamCentreX().getDouble(i), concurrent.getBeamCentreX().getDouble(i), 1e-9);
+			Assert.assertEquals(sequential.getBeamCentreY().getDouble(i), concurrent.getBeamCentreY().getDouble(i), 1e-9);
+			Assert.assertEquals(sequential.getTilt().getDouble(i), concurrent.getTilt().getDouble(i), 1e-9);
+			Assert.assertEquals(sequential.getTiltAngle().getDouble(i), concurrent.getTiltAngle().getDouble(i), 1e-9);
+		}
+		Assert.assertEquals(300, concurrent.getDistance().getDouble(0), 0.1);
+		Assert.assertEquals(310, concurrent.getDistance().getDouble(1), 0.1);
+	}
+
+	@Test
+	public void ExecutionSettingsNotPartOfModelEquality() {
+		SimpleCalibrationParameterModel a = createParameters();
+		SimpleCalibrationParameterModel b = createParameters();
+		b.setRingFittingThreads(8);
+		b.setMaxConcurrentImages(4);
+
+		Assert.assertEquals(a, b);
+		Assert.assertEquals(a.hashCode(), b.hashCode());
+	}
+
+	@Test
+	public void MovingBeamModelEqualityAndHash() {
+		MovingBeamCalibrationParameterModel a = new MovingBeamCalibrationParameterModel();
+		MovingBeamCalibrationParameterModel b = new MovingBeamCalibrationParameterModel();
+		b.setRingFittingThreads(8);
+
+		Assert.assertEquals(a, b);
+		Assert.assertEquals(a.hashCode(), b.hashCode());
+
+		b.setFloatDistance(false);
+		Assert.assertNotEquals(a, b);
+		a.setFloatDistance(false);
+		Assert.assertEquals(a, b);
+		Assert.assertEquals(a.hashCode(), b.hashCode());
+
+		b.setOffsetCalibration(true);
+		Assert.assertNotEquals(a, b);
+	}
+
+	private static CalibrationOutput calibrate(Dataset image, List<HKL> spacings, SimpleCalibrationParameterModel params, CalibrationSearchCache cache) {
+		return PowderCalibration.calibrateMultipleImages(ICalibrationImageSource.fromImages(image), DatasetFactory.zeros(DoubleDataset.class, 1),
+				PIXEL, spacings, 0, OPTIONS, params, null, null, null, cache);
+	}
+
+	private static List<HKL> getSpacings() {
+		return CalibrationFactory.getCalibrationStandards().getCalibrationPeakMap("CeO2").getHKLs();
+	}
+
+	private static SimpleCalibrationParameterModel createParameters() {
+		SimpleCalibrationParameterModel params = new SimpleCalibrationParameterModel();
+		params.setNumberOfRings(10);
+		return params;
+	}
+
+	/**
+	 * CeO2 rings on a tilted 2048 x 2048 detector, as in SimulatedDataTest
+	 */
+	private static Dataset createSimulatedImage(double distance) {
+		DetectorProperties dp = new DetectorProperties(100, 0, 0, 2048, 2048, PIXEL, PIXEL);
+		dp.setBeamCentreCoords(new double[] {999, 1001});
+		dp.setBeamCentreDistance(distance);
+		dp.setNormalAnglesInDegrees(3, 0, 45);
+		DiffractionMetadata meta = new DiffractionMetadata("test", dp, new DiffractionCrystalEnvironment(1));
+
+		File file = new File("testfiles/Sim_CeO2_SRM674b.dat");
+		Dataset[] profile;
+		try {
+			Dataset x = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(file.getAbsolutePath(), "Column_1", null));
+			Dataset y = DatasetUtils.convertToDataset(LoaderFactory.getDataSet(file.getAbsolutePath(), "Column_2", null));
+			profile = new Dataset[] {x, Maths.add(y, 100)};
+		} catch (Exception e) {
+			throw new AssertionError("Could not load simulated profile", e);
+		}
+
+		Dataset q = PixelIntegrationUtils.generateQArray(new int[] {dp.getPy(), dp.getPx()}, meta);
+		return PixelIntegrationUtils.generate2Dfrom1D(profile, q);
+	}
+}
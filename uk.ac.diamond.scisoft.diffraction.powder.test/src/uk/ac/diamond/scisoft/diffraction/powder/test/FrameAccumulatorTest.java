@@ -0,0 +1,105 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.FrameAccumulator;
+import uk.ac.diamond.scisoft.diffraction.powder.LazyCalibrationImageSource;
+
+public class FrameAccumulatorTest {
+
+	@Test
+	public void SumMeanAndMedianOfChunks() {
+
+		int nFrames = 7;
+		DoubleDataset stack = DatasetFactory.zeros(DoubleDataset.class, nFrames, 8, 8);
+		for (int f = 0; f < nFrames; f++) {
+			for (int i = 0; i < 8; i++) {
+				for (int j = 0; j < 8; j++) {
+					stack.set(i + j + f % 2, f, i, j);
+				}
+			}
+		}
+		//a zinger in one frame
+		stack.set(1e6, 3, 4, 4);
+
+		LazyCalibrationImageSource source = new LazyCalibrationImageSource(stack);
+
+		DoubleDataset sum = new FrameAccumulator(FrameAccumulator.Mode.SUM, 2, false).accumulate(source);
+		Assert.assertArrayEquals(new int[] {8, 8}, sum.getShape());
+		Assert.assertEquals(7*3 + 3, sum.getDouble(1, 2), 1e-9);
+		Assert.assertEquals(1e6 + 50, sum.getDouble(4, 4), 1e-6);
+
+		DoubleDataset mean = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 2, false).accumulate(source);
+		Assert.assertEquals(3 + 3.0/7, mean.getDouble(1, 2), 1e-9);
+
+		//three chunks, of 2, 2 and 3 frames, have means i+j+0.5, i+j+0.5 and i+j+1/3
+		DoubleDataset median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 2, true).accumulate(source);
+		Assert.assertEquals(3.5, median.getDouble(1, 2), 1e-6);
+		Assert.assertEquals(8.5, median.getDouble(4, 4), 1e-6);
+
+		DoubleDataset medianSum = new FrameAccumulator(FrameAccumulator.Mode.SUM, 2, true).accumulate(source);
+		Assert.assertEquals(3.5*7, medianSum.getDouble(1, 2), 1e-5);
+	}
+
+	@Test
+	public void AtLeastThreeChunks() {
+
+		//two chunks of two would make the median a mean, chunks of 1, 2 and 2 frames have means 0, 5 and 55
+		DoubleDataset median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 2, true).accumulate(createStack(0, 0, 10, 10, 100));
+		Assert.assertEquals(5, median.getDouble(0, 0), 1e-6);
+
+		//a zinger in a stack shorter than a chunk is still rejected
+		median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 10, true).accumulate(createStack(5, 5, 5, 1e6));
+		Assert.assertEquals(5, median.getDouble(0, 0), 1e-6);
+
+		//fewer frames than chunks, one frame in each
+		median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 10, true).accumulate(createStack(1, 2, 6));
+		Assert.assertEquals(2, median.getDouble(0, 0), 1e-6);
+		median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 10, true).accumulate(createStack(1, 3));
+		Assert.assertEquals(2, median.getDouble(0, 0), 1e-6);
+
+		//without the median the chunks do not matter
+		DoubleDataset mean = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 10, false).accumulate(createStack(5, 5, 5, 1e6));
+		Assert.assertEquals((15 + 1e6)/4, mean.getDouble(0, 0), 1e-6);
+	}
+
+	@Test
+	public void ChunksBoundedForLongStacks() {
+
+		int nFrames = 100;
+		double[] values = new double[nFrames];
+		for (int f = 0; f < nFrames; f++) values[f] = f;
+
+		//MAX_CHUNKS chunks of 11 frames, the last of 12, have means 5, 16 ... 82, 93.5
+		DoubleDataset median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 1, true).accumulate(createStack(values));
+		Assert.assertEquals(9, FrameAccumulator.MAX_CHUNKS);
+		Assert.assertEquals(49, median.getDouble(1, 1), 1e-6);
+
+		//chunks of the chunk size when there are few enough of them, means 9.5, 29.5 ... 89.5
+		median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 20, true).accumulate(createStack(values));
+		Assert.assertEquals(49.5, median.getDouble(1, 1), 1e-6);
+
+		//zingers in a minority of chunks are still rejected
+		for (int f = 0; f < nFrames; f++) values[f] = f % 3 == 0 && f < 36 ? 1e6 : 5;
+		median = new FrameAccumulator(FrameAccumulator.Mode.MEAN, 1, true).accumulate(createStack(values));
+		Assert.assertEquals(5, median.getDouble(1, 1), 1e-6);
+	}
+
+	/**
+	 * Stack of 2 x 2 frames, every pixel of a frame having its value
+	 */
+	private static LazyCalibrationImageSource createStack(double... frameValues) {
+		DoubleDataset stack = DatasetFactory.zeros(DoubleDataset.class, frameValues.length, 2, 2);
+		for (int f = 0; f < frameValues.length; f++) {
+			for (int i = 0; i < 2; i++) {
+				for (int j = 0; j < 2; j++) {
+					stack.set(frameValues[f], f, i, j);
+				}
+			}
+		}
+		return new LazyCalibrationImageSource(stack);
+	}
+}
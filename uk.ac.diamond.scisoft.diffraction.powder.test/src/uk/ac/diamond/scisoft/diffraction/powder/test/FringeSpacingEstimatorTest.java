@@ -0,0 +1,41 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.FringeSpacingEstimator;
+
+public class FringeSpacingEstimatorTest {
+
+	@Test
+	public void SpacingOfLogFringeProfile() {
+		Random r = new Random(3);
+		int n = 1024;
+
+		for (double spacing : new double[] {6.3, 24.5, 41.2}) {
+			double[] profile = new double[n];
+			for (int i = 0; i < n; i++) {
+				double u = i - 512.4;
+				double c = Math.cos(Math.PI*u/spacing);
+				double v = 10 + 1000*Math.exp(-Math.abs(u)/300)*c*c + r.nextGaussian();
+				profile[i] = Math.log10(Math.max(v, 1));
+			}
+
+			double[] estimate = FringeSpacingEstimator.estimate(profile, n, 3, n/6.0);
+			Assert.assertEquals(spacing, estimate[0], 0.01*spacing);
+			Assert.assertTrue(estimate[1] > 0 && estimate[1] < 0.05*spacing);
+		}
+	}
+
+	@Test
+	public void NoSpacingInNoise() {
+		Random r = new Random(1);
+		double[] profile = new double[1024];
+		for (int i = 0; i < profile.length; i++) profile[i] = r.nextGaussian();
+
+		double[] estimate = FringeSpacingEstimator.estimate(profile, profile.length, 3, profile.length/6.0);
+		Assert.assertTrue(Double.isNaN(estimate[0]));
+	}
+}
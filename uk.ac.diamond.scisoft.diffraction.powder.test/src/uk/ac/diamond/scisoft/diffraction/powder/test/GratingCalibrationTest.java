@@ -0,0 +1,100 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.roi.SectorROI;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.GratingCalibration;
+import uk.ac.diamond.scisoft.diffraction.powder.ManualGratingCalibration;
+
+/**
+ * Detector distances from synthetic grating patterns, a line of fringes through the beam centre running down the
+ * image, whose spacing is that of a known distance
+ */
+public class GratingCalibrationTest {
+
+	private static final double HC = 1.2398419738620932; // keV nm
+	static final double PIXEL_PITCH = 0.172; // mm
+	static final double GRATING_SPACING = 100; // nm
+	static final double ENERGY = 12.4; // keV
+	static final double DISTANCE = 3000;
+
+	static final double[] CENTRE = new double[] {255.6, 248.3};
+
+	@Test
+	public void DistanceOfSyntheticGrating() {
+		GratingCalibration gc = new GratingCalibration();
+		gc.setBeamCentre(CENTRE.clone());
+		gc.setPixelPitch(PIXEL_PITCH);
+		gc.setGratingspacing(GRATING_SPACING);
+		gc.setEnergy(ENERGY);
+
+		double distance = gc.getDetectorDistance(createGrating(spacing(DISTANCE), 1000, 5), null);
+
+		//a spacing from the span of N fringes divided by N would be (N-1)/N too short, 7% for the fringes in the box
+		Assert.assertEquals(DISTANCE, distance, 0.01*DISTANCE);
+		Assert.assertEquals(90, Math.abs(gc.getPatternAngle()) % 180, 1);
+		Assert.assertTrue(gc.getDetectorDistanceUncertainty() < 0.01*DISTANCE);
+	}
+
+	@Test
+	public void ManualDistanceOfSyntheticGrating() {
+		ManualGratingCalibration gc = createManual();
+
+		double distance = gc.getDetectorDistance(createGrating(spacing(DISTANCE), 1000, 5), null, createSector(), false);
+
+		Assert.assertEquals(DISTANCE, distance, 0.01*DISTANCE);
+		Assert.assertEquals(spacing(DISTANCE), gc.getFringeSpacing(), 0.01*spacing(DISTANCE));
+	}
+
+	@Test
+	public void ManualDistanceNaNWithoutFringes() {
+		ManualGratingCalibration gc = createManual();
+
+		double distance = gc.getDetectorDistance(createGrating(spacing(DISTANCE), 0, 5), null, createSector(), false);
+
+		Assert.assertTrue(Double.isNaN(distance));
+		Assert.assertTrue(Double.isNaN(gc.getFringeSpacing()));
+		Assert.assertTrue(Double.isNaN(gc.getDetectorDistanceUncertainty()));
+	}
+
+	private static ManualGratingCalibration createManual() {
+		ManualGratingCalibration gc = new ManualGratingCalibration();
+		gc.setBeamCentre(CENTRE.clone());
+		gc.setPixelPitch(PIXEL_PITCH);
+		gc.setGratingspacing(GRATING_SPACING);
+		gc.setEnergy(ENERGY);
+		return gc;
+	}
+
+	// sector down the image, along the fringes
+	private static SectorROI createSector() {
+		return new SectorROI(CENTRE[0], CENTRE[1], 0, 200, Math.PI/2 - 0.1, Math.PI/2 + 0.1);
+	}
+
+	// fringe spacing in pixels of the given detector distance
+	static double spacing(double distance) {
+		return distance*HC/(PIXEL_PITCH*GRATING_SPACING*ENERGY);
+	}
+
+	static DoubleDataset createGrating(double spacing, double amplitude, long seed) {
+		Random r = new Random(seed);
+		int height = 512;
+		int width = 512;
+		DoubleDataset image = DatasetFactory.zeros(DoubleDataset.class, height, width);
+		for (int y = 0; y < height; y++) {
+			double u = y - CENTRE[1];
+			double c = Math.cos(Math.PI*u/spacing);
+			for (int x = 0; x < width; x++) {
+				double v = x - CENTRE[0];
+				double fringe = amplitude*Math.exp(-Math.abs(u)/100)*c*c*Math.exp(-v*v/50);
+				image.set(Math.max(1, 10 + fringe + r.nextGaussian()), y, x);
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,103 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.HotPixelClipper;
+
+public class HotPixelClipperTest {
+
+	@Test
+	public void PercentilesMatchSortedValues() {
+
+		Random r = new Random(1);
+		double[] data = new double[200000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = Math.floor(Math.exp(r.nextGaussian()*2)*10);
+			if (i % 5000 == 0) data[i] = 1e9;
+		}
+
+		double[] sorted = data.clone();
+		Arrays.sort(sorted);
+
+		HotPixelClipper clipper = new HotPixelClipper(0.1, 99.9);
+		double[] values = clipper.getPercentileValues(data);
+
+		Assert.assertEquals(sorted[(int)Math.floor(0.001*(data.length-1))], values[0], 0);
+		Assert.assertEquals(sorted[(int)Math.ceil(0.999*(data.length-1))], values[1], 0);
+	}
+
+	@Test
+	public void CloseAndRepeatedValuesSelected() {
+
+		Random r = new Random(2);
+		double[] data = new double[100000];
+		for (int i = 0; i < data.length; i++) {
+			//mostly zeros, then values only a few ulps apart, then a few hot pixels
+			int k = r.nextInt(100);
+			data[i] = k < 60 ? 0 : (k < 99 ? 1 + r.nextInt(4)*Math.ulp(1.0) : 1e9);
+		}
+
+		double[] sorted = data.clone();
+		Arrays.sort(sorted);
+
+		for (double[] p : new double[][] {{0.1, 99.9}, {50, 70}, {65, 98}}) {
+			HotPixelClipper clipper = new HotPixelClipper(p[0], p[1]);
+			double[] values = clipper.getPercentileValues(data);
+			Assert.assertEquals(sorted[(int)Math.floor(p[0]/100*(data.length-1))], values[0], 0);
+			Assert.assertEquals(sorted[(int)Math.ceil(p[1]/100*(data.length-1))], values[1], 0);
+		}
+	}
+
+	@Test
+	public void NonFiniteValuesIgnored() {
+
+		double[] data = new double[10000];
+		for (int i = 0; i < data.length; i++) data[i] = i % 1000;
+
+		HotPixelClipper clipper = new HotPixelClipper(1, 99);
+		double[] expected = clipper.getPercentileValues(data.clone());
+
+		for (int i = 0; i < 300; i += 3) {
+			data[i] = Double.NaN;
+			data[i + 1] = Double.POSITIVE_INFINITY;
+			data[i + 2] = Double.NEGATIVE_INFINITY;
+		}
+		double[] finite = new double[data.length - 300];
+		System.arraycopy(data, 300, finite, 0, finite.length);
+
+		Assert.assertArrayEquals(clipper.getPercentileValues(finite), clipper.getPercentileValues(data), 0);
+		Assert.assertFalse(Double.isInfinite(clipper.getPercentileValues(data)[0]));
+		Assert.assertEquals(expected[1], clipper.getPercentileValues(data)[1], 1);
+
+		DoubleDataset image = DatasetFactory.createFromObject(DoubleDataset.class, data, 100, 100);
+		DoubleDataset clipped = clipper.clip(image);
+		Assert.assertTrue(Double.isNaN(clipped.getAbs(0)));
+		Assert.assertEquals(clipper.getPercentileValues(finite)[1], clipped.getAbs(1), 0);
+		Assert.assertEquals(clipper.getPercentileValues(finite)[0], clipped.getAbs(2), 0);
+	}
+
+	@Test
+	public void ClipReusesBuffer() {
+
+		double[] data = new double[100*100];
+		for (int i = 0; i < data.length; i++) data[i] = i % 100;
+		data[5050] = 1e6;
+
+		DoubleDataset image = DatasetFactory.createFromObject(DoubleDataset.class, data, 100, 100);
+
+		HotPixelClipper clipper = new HotPixelClipper(0.1, 99.9);
+		DoubleDataset clipped = clipper.clip(image);
+
+		Assert.assertArrayEquals(new int[] {100,100}, clipped.getShape());
+		Assert.assertEquals(99, clipped.getDouble(50, 50), 0);
+		Assert.assertEquals(1e6, image.getDouble(50, 50), 0);
+
+		Assert.assertSame(clipped, clipper.clip(image));
+	}
+}
@@ -0,0 +1,57 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.ImageFitter;
+
+/**
+ * Beam centres from ellipse major axes and centres made for a known scale and beam centre
+ */
+public class ImageFitterTest {
+
+	private static final double SCALE = 5.6e5;
+	private static final double[] LINE = new double[] {1.3, -354};
+	private static final double[] MAJOR = new double[] {198, 229, 327, 386, 589, 630};
+
+	@Test
+	public void FitRecoversScaleAndCentre() {
+		assertFitRecovers(1051.57, -1);
+	}
+
+	@Test
+	public void FitRecoversCentreWithCentresMovingUp() {
+		assertFitRecovers(1051.57, 1);
+	}
+
+	private static void assertFitRecovers(double centre, double direction) {
+		Dataset[] data = createEllipses(centre, direction);
+
+		double[] out = ImageFitter.fit(data[0], data[1], data[2], LINE, 0.2);
+
+		Assert.assertEquals(SCALE, out[0], 1e-6*SCALE);
+		Assert.assertEquals(centre, out[1], 1e-6);
+	}
+
+	/**
+	 * Ellipses with major axes sqrt(r^2 + a*r), their centres moving along the line away from the beam centre
+	 *
+	 * @return major axes, x and y centres
+	 */
+	private static Dataset[] createEllipses(double centre, double direction) {
+		int n = MAJOR.length;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double cos = 1/Math.sqrt(1 + LINE[0]*LINE[0]);
+		for (int i = 0; i < n; i++) {
+			double r = (Math.sqrt(SCALE*SCALE + 4*MAJOR[i]*MAJOR[i]) - SCALE)/2;
+			x[i] = centre + direction*r*cos;
+			y[i] = LINE[0]*x[i] + LINE[1];
+		}
+
+		return new Dataset[] {DatasetFactory.createFromObject(MAJOR), DatasetFactory.createFromObject(x),
+				DatasetFactory.createFromObject(y)};
+	}
+}
@@ -0,0 +1,76 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.LambdaFitter;
+
+/**
+ * Distances and wavelengths from the major axes of CeO2 rings on a tilted detector, calculated for known values
+ */
+public class LambdaFitterTest {
+
+	private static final double DISTANCE = 350; // mm
+	private static final double WAVELENGTH = 0.15; // angstroms
+	private static final double TILT = Math.toRadians(2);
+	private static final double[] D_SPACINGS = new double[] {3.124, 2.706, 1.913, 1.632, 1.562, 1.353};
+	// detector moved towards the sample
+	private static final double[] MOVES = new double[] {0, 40, 80, 120};
+
+	@Test
+	public void FitRecoversDistanceAndWavelength() {
+		Dataset[] data = createMajorAxes(MOVES);
+
+		double[] out = LambdaFitter.fit(data[0], data[1], data[2], data[3], 330, 0.14);
+
+		Assert.assertEquals(DISTANCE, out[0], 1e-6*DISTANCE);
+		Assert.assertEquals(WAVELENGTH, out[1], 1e-6*WAVELENGTH);
+	}
+
+	@Test
+	public void FitKnownWavelengthRecoversDistance() {
+		Dataset[] data = createMajorAxes(new double[] {0});
+
+		double[] out = LambdaFitter.fitKnownWavelength(data[0], data[2], data[3], 330, WAVELENGTH);
+
+		Assert.assertEquals(1, out.length);
+		Assert.assertEquals(DISTANCE, out[0], 1e-6*DISTANCE);
+	}
+
+	@Test
+	public void FitKnownDistanceRecoversWavelength() {
+		Dataset[] data = createMajorAxes(new double[] {0});
+
+		double[] out = LambdaFitter.fitKnownDistance(data[0], data[2], data[3], 0.14, DISTANCE);
+
+		Assert.assertEquals(1, out.length);
+		Assert.assertEquals(WAVELENGTH, out[0], 1e-6*WAVELENGTH);
+	}
+
+	/**
+	 * @return major axes, detector moves, d spacings and distance over sine of the tilt, for every ring at every move
+	 */
+	private static Dataset[] createMajorAxes(double[] moves) {
+		int n = moves.length*D_SPACINGS.length;
+		double[] move = new double[n];
+		double[] dspace = new double[n];
+		double[] sint = new double[n];
+		for (int i = 0; i < moves.length; i++) {
+			for (int j = 0; j < D_SPACINGS.length; j++) {
+				int k = i*D_SPACINGS.length + j;
+				move[k] = moves[i];
+				dspace[k] = D_SPACINGS[j];
+				sint[k] = (DISTANCE - moves[i])/Math.sin(TILT);
+			}
+		}
+
+		Dataset moveData = DatasetFactory.createFromObject(move);
+		Dataset dspaceData = DatasetFactory.createFromObject(dspace);
+		Dataset sintData = DatasetFactory.createFromObject(sint);
+		Dataset major = LambdaFitter.calculateMajorAxesfinal(moveData, dspaceData, sintData, DISTANCE, WAVELENGTH);
+
+		return new Dataset[] {major, moveData, dspaceData, sintData};
+	}
+}
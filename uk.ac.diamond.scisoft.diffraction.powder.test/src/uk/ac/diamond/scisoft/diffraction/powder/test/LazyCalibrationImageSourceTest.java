@@ -0,0 +1,74 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.IDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationImageSource;
+import uk.ac.diamond.scisoft.diffraction.powder.LazyCalibrationImageSource;
+
+public class LazyCalibrationImageSourceTest {
+
+	@Test
+	public void ImagesInLeadingDimensionOrder() {
+
+		DoubleDataset stack = DatasetFactory.createRange(DoubleDataset.class, 2*3*4*5).reshape(2, 3, 4, 5);
+
+		LazyCalibrationImageSource source = new LazyCalibrationImageSource(stack);
+
+		Assert.assertEquals(6, source.size());
+		Assert.assertArrayEquals(new int[] {4, 5}, source.getShape());
+
+		for (int i = 0; i < source.size(); i++) {
+			IDataset image = source.getImage(i);
+			Assert.assertArrayEquals(new int[] {4, 5}, image.getShape());
+			Assert.assertEquals(i*20 + 7, image.getDouble(1, 2), 0);
+		}
+	}
+
+	@Test
+	public void FirstImageNotReadAgain() {
+
+		DoubleDataset stack = DatasetFactory.createRange(DoubleDataset.class, 3*4*5).reshape(3, 4, 5);
+		LazyCalibrationImageSource lazy = new LazyCalibrationImageSource(stack);
+		final List<Integer> reads = new ArrayList<>();
+
+		ICalibrationImageSource counted = new ICalibrationImageSource() {
+
+			@Override
+			public int size() {
+				return lazy.size();
+			}
+
+			@Override
+			public int[] getShape() {
+				return lazy.getShape();
+			}
+
+			@Override
+			public IDataset getImage(int i) {
+				reads.add(i);
+				return lazy.getImage(i);
+			}
+		};
+
+		IDataset first = counted.getImage(0);
+		ICalibrationImageSource source = ICalibrationImageSource.withFirstImage(first, counted);
+
+		Assert.assertEquals(3, source.size());
+		Assert.assertArrayEquals(new int[] {4, 5}, source.getShape());
+		for (int i = 0; i < source.size(); i++) {
+			Assert.assertEquals(i*20 + 7, source.getImage(i).getDouble(1, 2), 0);
+		}
+		Assert.assertSame(first, source.getImage(0));
+		Assert.assertEquals(0, (int)reads.get(0));
+		Assert.assertEquals(1, (int)reads.get(1));
+		Assert.assertEquals(2, (int)reads.get(2));
+		Assert.assertEquals(3, reads.size());
+	}
+}
@@ -0,0 +1,90 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import static uk.ac.diamond.scisoft.diffraction.powder.test.GratingCalibrationTest.CENTRE;
+import static uk.ac.diamond.scisoft.diffraction.powder.test.GratingCalibrationTest.DISTANCE;
+import static uk.ac.diamond.scisoft.diffraction.powder.test.GratingCalibrationTest.ENERGY;
+import static uk.ac.diamond.scisoft.diffraction.powder.test.GratingCalibrationTest.GRATING_SPACING;
+import static uk.ac.diamond.scisoft.diffraction.powder.test.GratingCalibrationTest.PIXEL_PITCH;
+import static uk.ac.diamond.scisoft.diffraction.powder.test.GratingCalibrationTest.createGrating;
+import static uk.ac.diamond.scisoft.diffraction.powder.test.GratingCalibrationTest.spacing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.january.dataset.IDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.ICalibrationImageSource;
+import uk.ac.diamond.scisoft.diffraction.powder.LiveGratingCalibration;
+import uk.ac.diamond.scisoft.diffraction.powder.LiveGratingCalibration.Estimate;
+
+/**
+ * Streams of the synthetic grating frames of {@link GratingCalibrationTest}, each with its own noise
+ */
+public class LiveGratingCalibrationTest {
+
+	@Test
+	public void SteadyFramesTracked() {
+		List<Estimate> estimates = run(new double[] {1, 1, 1, 1, 1}, new double[] {1000, 1000, 1000, 1000, 1000});
+
+		Assert.assertEquals(5, estimates.size());
+		Assert.assertTrue(estimates.get(0).isFullSearch());
+		for (int i = 0; i < estimates.size(); i++) {
+			Estimate e = estimates.get(i);
+			Assert.assertEquals(i, e.getFrame());
+			Assert.assertEquals(DISTANCE, e.getDistance(), 0.01*DISTANCE);
+			Assert.assertArrayEquals(CENTRE, e.getBeamCentre(), 1e-9);
+			if (i > 0) {
+				Assert.assertFalse(e.isFullSearch());
+				Assert.assertTrue(e.getDrift() < 0.01);
+				Assert.assertEquals(estimates.get(0).getFringeSpacing(), e.getFringeSpacing(), 0.002*e.getFringeSpacing());
+			}
+		}
+	}
+
+	@Test
+	public void PeriodDriftRunsFullSearch() {
+		double[] scale = new double[] {1, 1, 1.03, 1.2, 1.2};
+		List<Estimate> estimates = run(scale, new double[] {1000, 1000, 1000, 1000, 1000});
+
+		boolean[] fullSearch = new boolean[] {true, false, false, true, false};
+		for (int i = 0; i < estimates.size(); i++) {
+			Estimate e = estimates.get(i);
+			Assert.assertEquals("Frame " + i, fullSearch[i], e.isFullSearch());
+			// the tracked spacing is refined, not just scaled from the spectral peak
+			Assert.assertEquals("Frame " + i, scale[i]*DISTANCE, e.getDistance(), 0.01*DISTANCE);
+		}
+		Assert.assertEquals(0.03, estimates.get(2).getDrift(), 0.015);
+	}
+
+	@Test
+	public void ContrastLossRunsFullSearch() {
+		List<Estimate> estimates = run(new double[] {1, 1, 1, 1}, new double[] {1000, 1000, 300, 300});
+
+		boolean[] fullSearch = new boolean[] {true, false, true, false};
+		for (int i = 0; i < estimates.size(); i++) {
+			Estimate e = estimates.get(i);
+			Assert.assertEquals("Frame " + i, fullSearch[i], e.isFullSearch());
+			Assert.assertEquals("Frame " + i, DISTANCE, e.getDistance(), 0.01*DISTANCE);
+		}
+		Assert.assertTrue(estimates.get(3).getDrift() < 0.01);
+	}
+
+	// frames with the fringe spacing of the known distance times the scale, and the given fringe amplitude
+	private static List<Estimate> run(double[] scale, double[] amplitude) {
+		IDataset[] frames = new IDataset[scale.length];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = createGrating(scale[i]*spacing(DISTANCE), amplitude[i], i);
+
+		LiveGratingCalibration live = new LiveGratingCalibration();
+		live.setBeamCentre(CENTRE.clone());
+		live.setPixelPitch(PIXEL_PITCH);
+		live.setGratingspacing(GRATING_SPACING);
+		live.setEnergy(ENERGY);
+
+		List<Estimate> estimates = new ArrayList<>();
+		live.process(ICalibrationImageSource.fromImages(frames), null, estimates::add);
+		return estimates;
+	}
+}
@@ -0,0 +1,118 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
+import org.eclipse.dawnsci.analysis.dataset.roi.PolylineROI;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.MultiplePeakFittingEllipseFinder;
+
+public class MultiplePeakFittingEllipseFinderTest {
+
+	@Test
+	public void CentroidPOIsOnRing() {
+
+		double xc = 200.3;
+		double yc = 199.6;
+		double major = 120;
+		double minor = 110;
+		double angle = 0.3;
+		double ca = Math.cos(angle);
+		double sa = Math.sin(angle);
+
+		Random r = new Random(1);
+		DoubleDataset image = DatasetFactory.zeros(DoubleDataset.class, 400, 400);
+		for (int y = 0; y < 400; y++) {
+			for (int x = 0; x < 400; x++) {
+				double d = distance(x, y, xc, yc, major, minor, ca, sa);
+				image.set(20 + 40*Math.exp(-d*d/8) + 2*r.nextGaussian(), y, x);
+			}
+		}
+
+		//seed a few pixels off the ring
+		EllipticalROI seed = new EllipticalROI(123, 112, angle, xc, yc);
+
+		PolylineROI points = MultiplePeakFittingEllipseFinder.findPOIsNearEllipse(image, null, seed, 10, 10, 256,
+				MultiplePeakFittingEllipseFinder.POIMethod.CENTROID);
+
+		Assert.assertTrue(points.getNumberOfPoints() > 250);
+
+		for (int i = 0; i < points.getNumberOfPoints(); i++) {
+			double x = points.getPoint(i).getPointX();
+			double y = points.getPoint(i).getPointY();
+			Assert.assertEquals(0, distance(x, y, xc, yc, major, minor, ca, sa), 0.5);
+		}
+	}
+
+	@Test
+	public void ParallelEllipseSearchIndependentOfThreads() throws Exception {
+
+		double xc = 201.2;
+		double yc = 198.7;
+		double[][] rings = new double[][] {{60, 55}, {130, 120}};
+		double angle = 0.4;
+		double ca = Math.cos(angle);
+		double sa = Math.sin(angle);
+
+		Random r = new Random(2);
+		final DoubleDataset image = DatasetFactory.zeros(DoubleDataset.class, 400, 400);
+		for (int y = 0; y < 400; y++) {
+			for (int x = 0; x < 400; x++) {
+				double v = 20 + 2*r.nextGaussian();
+				for (double[] ring : rings) {
+					double d = distance(x, y, xc, yc, ring[0], ring[1], ca, sa);
+					v += 40*Math.exp(-d*d/8);
+				}
+				image.set(v, y, x);
+			}
+		}
+
+		final double[] centre = new double[] {203, 197};
+
+		//the profile search runs on the pool of the calling task
+		List<EllipticalROI> single = new ForkJoinPool(1).submit(() -> MultiplePeakFittingEllipseFinder.findEllipses(image, centre)).get();
+		List<EllipticalROI> parallel = new ForkJoinPool(4).submit(() -> MultiplePeakFittingEllipseFinder.findEllipses(image, centre)).get();
+
+		Assert.assertEquals(single.size(), parallel.size());
+		for (int i = 0; i < single.size(); i++) {
+			Assert.assertEquals(single.get(i).getSemiAxis(0), parallel.get(i).getSemiAxis(0), 1e-9);
+			Assert.assertEquals(single.get(i).getSemiAxis(1), parallel.get(i).getSemiAxis(1), 1e-9);
+			Assert.assertEquals(single.get(i).getPointX(), parallel.get(i).getPointX(), 1e-9);
+			Assert.assertEquals(single.get(i).getPointY(), parallel.get(i).getPointY(), 1e-9);
+		}
+
+		Assert.assertTrue(parallel.size() >= rings.length);
+		for (int i = 0; i < rings.length; i++) {
+			EllipticalROI e = parallel.get(i);
+			Assert.assertEquals(rings[i][0], e.getSemiAxis(0), 1);
+			Assert.assertEquals(rings[i][1], e.getSemiAxis(1), 1);
+			Assert.assertEquals(xc, e.getPointX(), 1);
+			Assert.assertEquals(yc, e.getPointY(), 1);
+		}
+	}
+
+	@Test
+	public void NoRingsFoundInBlankImage() {
+		DoubleDataset image = DatasetFactory.zeros(DoubleDataset.class, 200, 200);
+		image.fill(20);
+
+		List<EllipticalROI> ellipses = MultiplePeakFittingEllipseFinder.findEllipses(image, new double[] {100, 100});
+
+		Assert.assertTrue(ellipses.isEmpty());
+	}
+
+	//approximate distance from the ellipse, along the major axis scale
+	private static double distance(double x, double y, double xc, double yc, double major, double minor, double ca, double sa) {
+		double dx = x - xc;
+		double dy = y - yc;
+		double u = dx*ca + dy*sa;
+		double v = -dx*sa + dy*ca;
+		return (Math.hypot(u/major, v/minor) - 1)*major;
+	}
+}
@@ -0,0 +1,142 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
+import uk.ac.diamond.scisoft.diffraction.powder.PixelQEvaluator;
+import uk.ac.diamond.scisoft.diffraction.powder.SimpleCalibrationParameterModel;
+
+public class PixelQEvaluatorTest {
+
+	@Test
+	public void JacobianMatchesNumericalDerivatives() {
+		for (boolean point : new boolean[] {true, false}) {
+			assertJacobianMatchesNumerical(createModel(point));
+		}
+	}
+
+	@Test
+	public void JacobianOfFloatedSubsetsMatchesNumericalDerivatives() {
+		// energy, distance, beam centre, tilt
+		boolean[][] floated = new boolean[][] {{false, true, true, true}, {true, false, false, true},
+			{false, false, true, false}, {false, false, false, true}, {true, true, false, false}};
+
+		for (boolean[] f : floated) {
+			SimpleCalibrationParameterModel model = createModel(true);
+			model.setFloatEnergy(f[0]);
+			model.setFloatDistance(f[1]);
+			model.setFloatBeamCentre(f[2]);
+			model.setFloatTilt(f[3]);
+			assertJacobianMatchesNumerical(model);
+		}
+	}
+
+	private static void assertJacobianMatchesNumerical(SimpleCalibrationParameterModel model) {
+		IDiffractionMetadata md = createMetadata();
+		double[][] xy = createPoints();
+		PixelQEvaluator evaluator = new PixelQEvaluator(model, md, xy[0], xy[1]);
+
+		double[] params = model.getInitialParams(md);
+		int n = evaluator.getNumberOfPoints();
+		int m = evaluator.getNumberOfParameters();
+		Assert.assertEquals(params.length, m);
+
+		double[][] jacobian = new double[n][m];
+		evaluator.jacobian(params, jacobian);
+
+		double[] plus = new double[n];
+		double[] minus = new double[n];
+		double[] derivative = new double[n];
+		for (int j = 0; j < m; j++) {
+			double original = params[j];
+			double h = 1e-4*Math.max(1, Math.abs(original));
+			params[j] = original + h;
+			evaluator.values(params, plus);
+			params[j] = original - h;
+			evaluator.values(params, minus);
+			params[j] = original;
+
+			double scale = 0;
+			for (int i = 0; i < n; i++) scale = Math.max(scale, Math.abs(plus[i] - minus[i])/(2*h));
+			Assert.assertTrue(scale > 0);
+
+			evaluator.derivative(params, j, derivative);
+			for (int i = 0; i < n; i++) {
+				double numerical = (plus[i] - minus[i])/(2*h);
+				Assert.assertEquals(numerical, jacobian[i][j], 1e-5*scale);
+				Assert.assertEquals(jacobian[i][j], derivative[i], 1e-12*scale);
+			}
+		}
+	}
+
+	@Test
+	public void InPlaceUpdateMatchesNewMetadata() {
+		for (boolean point : new boolean[] {true, false}) {
+			SimpleCalibrationParameterModel model = createModel(point);
+			IDiffractionMetadata md = createMetadata();
+			double[][] xy = createPoints();
+
+			double[] start = model.getInitialParams(md);
+			double[] moved = start.clone();
+			for (int i = 0; i < moved.length; i++) moved[i] += 0.01*(i + 1)*Math.max(1, Math.abs(moved[i]));
+
+			IDiffractionMetadata updated = model.getMetadata(start, md);
+			Assert.assertTrue(model.updateMetadata(moved, updated));
+			IDiffractionMetadata built = model.getMetadata(moved, md);
+
+			DetectorProperties u = updated.getDetector2DProperties();
+			DetectorProperties b = built.getDetector2DProperties();
+			Assert.assertArrayEquals(b.getBeamCentreCoords(), u.getBeamCentreCoords(), 1e-9);
+			Assert.assertArrayEquals(b.getNormalAnglesInDegrees(), u.getNormalAnglesInDegrees(), 1e-9);
+			Assert.assertEquals(b.getBeamCentreDistance(), u.getBeamCentreDistance(), 1e-9);
+			Assert.assertEquals(built.getDiffractionCrystalEnvironment().getWavelength(), updated.getDiffractionCrystalEnvironment().getWavelength(), 1e-15);
+
+			//a reused evaluator must give the same values as a new one
+			PixelQEvaluator reused = new PixelQEvaluator(model, md, xy[0], xy[1]);
+			double[] first = new double[xy[0].length];
+			double[] second = new double[xy[0].length];
+			reused.values(start, first);
+			reused.values(moved, first);
+			new PixelQEvaluator(model, md, xy[0], xy[1]).values(moved, second);
+			Assert.assertArrayEquals(second, first, 1e-12);
+		}
+	}
+
+	private static SimpleCalibrationParameterModel createModel(boolean point) {
+		SimpleCalibrationParameterModel model = new SimpleCalibrationParameterModel();
+		model.setAutomaticCalibration(!point);
+		model.setIsPointCalibration(point);
+		if (point) {
+			model.setFloatEnergy(true);
+			model.setFloatDistance(true);
+			model.setFloatBeamCentre(true);
+			model.setFloatTilt(true);
+		}
+		return model;
+	}
+
+	private static IDiffractionMetadata createMetadata() {
+		DetectorProperties dp = new DetectorProperties(100, 0, 0, 2048, 2048, 0.2, 0.2);
+		dp.setBeamCentreCoords(new double[] {999, 1001});
+		dp.setBeamCentreDistance(300);
+		dp.setNormalAnglesInDegrees(3, 0, 45);
+		return new DiffractionMetadata("test", dp, new DiffractionCrystalEnvironment(1));
+	}
+
+	private static double[][] createPoints() {
+		int n = 50;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			double a = 2*Math.PI*i/n;
+			double r = 200 + 15*i;
+			x[i] = 999 + r*Math.cos(a);
+			y[i] = 1001 + r*Math.sin(a);
+		}
+		return new double[][] {x, y};
+	}
+}
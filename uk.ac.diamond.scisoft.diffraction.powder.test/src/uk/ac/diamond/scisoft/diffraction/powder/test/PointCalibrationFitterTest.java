@@ -0,0 +1,184 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.Random;
+
+import javax.vecmath.Vector3d;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.IDataset;
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.diffraction.QSpace;
+import uk.ac.diamond.scisoft.analysis.fitting.functions.AFunction;
+import uk.ac.diamond.scisoft.analysis.fitting.functions.CoordinatesIterator;
+import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
+import uk.ac.diamond.scisoft.analysis.optimize.ApacheOptimizer;
+import uk.ac.diamond.scisoft.analysis.optimize.ApacheOptimizer.Optimizer;
+import uk.ac.diamond.scisoft.diffraction.powder.PixelQEvaluator;
+import uk.ac.diamond.scisoft.diffraction.powder.PointCalibrationFitter;
+import uk.ac.diamond.scisoft.diffraction.powder.SimpleCalibrationParameterModel;
+
+/**
+ * The point calibration fit against the fit it replaced (Levenberg-Marquardt through ApacheOptimizer on |q|
+ * from QSpace), on points from a synthetic tilted detector with noisy |q|
+ */
+public class PointCalibrationFitterTest {
+
+	private static final int N_POINTS = 400;
+	private static final double NOISE = 1e-4;
+
+	@Test
+	public void MatchesOldFitOnSyntheticDetector() throws Exception {
+
+		SimpleCalibrationParameterModel model = createModel();
+		IDiffractionMetadata truth = createMetadata(999, 1001, 300, 3, 45);
+		IDiffractionMetadata start = createMetadata(1004, 996, 306, 2.5, 43);
+
+		Random r = new Random(9);
+		double[] x = new double[N_POINTS];
+		double[] y = new double[N_POINTS];
+		double[] q = new double[N_POINTS];
+		QSpace qSpace = new QSpace(truth.getDetector2DProperties(), truth.getDiffractionCrystalEnvironment());
+		for (int i = 0; i < N_POINTS; i++) {
+			double a = 2*Math.PI*r.nextDouble();
+			double radius = 100 + 800*r.nextDouble();
+			x[i] = 999 + radius*Math.cos(a);
+			y[i] = 1001 + radius*Math.sin(a);
+			q[i] = qSpace.qFromPixelPosition(x[i], y[i]).length()*(1 + NOISE*r.nextGaussian());
+		}
+
+		double[] initial = model.getInitialParams(start);
+
+		PointCalibrationFitter fitter = new PointCalibrationFitter(new PixelQEvaluator(model, start, x, y), q);
+		double[] fitted = fitter.fit(initial);
+		double[] errors = fitter.getErrors();
+		double[][] covariance = fitter.getCovariance();
+		Assert.assertNotNull(covariance);
+
+		QSpaceFunction old = new QSpaceFunction(model, start, x, y, initial);
+		new ApacheOptimizer(Optimizer.LEVENBERG_MARQUARDT).optimize(new IDataset[] {DatasetFactory.createRange(N_POINTS)},
+				DatasetFactory.createFromObject(q), old);
+		double[] oldFitted = old.getParameterValues();
+		double[][] oldCovariance = old.getCovariance(q);
+
+		double[] expected = model.getInitialParams(truth);
+		for (int i = 0; i < fitted.length; i++) {
+			Assert.assertEquals(oldFitted[i], fitted[i], 0.05*errors[i]);
+			Assert.assertEquals(expected[i], fitted[i], 5*errors[i]);
+		}
+
+		for (int i = 0; i < fitted.length; i++) {
+			Assert.assertEquals(oldCovariance[i][i], covariance[i][i], 0.02*oldCovariance[i][i]);
+			for (int j = 0; j < i; j++) {
+				double scale = Math.sqrt(oldCovariance[i][i]*oldCovariance[j][j]);
+				Assert.assertEquals(oldCovariance[i][j]/scale, covariance[i][j]/scale, 0.02);
+				Assert.assertEquals(covariance[i][j], covariance[j][i], 1e-12*scale);
+			}
+		}
+	}
+
+	private static SimpleCalibrationParameterModel createModel() {
+		SimpleCalibrationParameterModel model = new SimpleCalibrationParameterModel();
+		model.setAutomaticCalibration(false);
+		model.setIsPointCalibration(true);
+		model.setFloatEnergy(false);
+		model.setFloatDistance(true);
+		model.setFloatBeamCentre(true);
+		model.setFloatTilt(true);
+		return model;
+	}
+
+	private static IDiffractionMetadata createMetadata(double bx, double by, double distance, double yaw, double roll) {
+		DetectorProperties dp = new DetectorProperties(100, 0, 0, 2048, 2048, 0.2, 0.2);
+		dp.setBeamCentreCoords(new double[] {bx, by});
+		dp.setBeamCentreDistance(distance);
+		dp.setNormalAnglesInDegrees(yaw, 0, roll);
+		return new DiffractionMetadata("test", dp, new DiffractionCrystalEnvironment(1));
+	}
+
+	/**
+	 * |q| of each point from QSpace, as the point calibration used to evaluate it
+	 */
+	private static class QSpaceFunction extends AFunction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final SimpleCalibrationParameterModel model;
+		private final IDiffractionMetadata md;
+		private final double[] x;
+		private final double[] y;
+
+		public QSpaceFunction(SimpleCalibrationParameterModel model, IDiffractionMetadata md, double[] x, double[] y, double[] initial) {
+			super(initial.length);
+			this.model = model;
+			this.md = md;
+			this.x = x;
+			this.y = y;
+			setParameterValues(initial);
+		}
+
+		@Override
+		protected void setNames() {
+		}
+
+		@Override
+		public double val(double... values) {
+			return values(getParameterValues())[(int)values[0]];
+		}
+
+		@Override
+		public void fillWithValues(DoubleDataset data, CoordinatesIterator it) {
+			double[] q = values(getParameterValues());
+			for (int i = 0; i < q.length; i++) data.set(q[i], i);
+			it.reset();
+		}
+
+		private double[] values(double[] params) {
+			IDiffractionMetadata argMd = model.getMetadata(params, md);
+			QSpace qSpace = new QSpace(argMd.getDetector2DProperties(), argMd.getDiffractionCrystalEnvironment());
+			double[] q = new double[x.length];
+			for (int i = 0; i < x.length; i++) {
+				Vector3d v = qSpace.qFromPixelPosition(x[i], y[i]);
+				q[i] = v.length();
+			}
+			return q;
+		}
+
+		/**
+		 * (J^T J)^-1 scaled by the residual variance, with J from central differences of QSpace
+		 */
+		public double[][] getCovariance(double[] target) {
+			double[] params = getParameterValues();
+			int n = x.length;
+			int np = params.length;
+
+			double[] q = values(params);
+			double sum = 0;
+			for (int i = 0; i < n; i++) sum += (target[i] - q[i])*(target[i] - q[i]);
+
+			double[][] jacobian = new double[n][np];
+			for (int j = 0; j < np; j++) {
+				double original = params[j];
+				double h = 1e-5*Math.max(1, Math.abs(original));
+				params[j] = original + h;
+				double[] plus = values(params);
+				params[j] = original - h;
+				double[] minus = values(params);
+				params[j] = original;
+				for (int i = 0; i < n; i++) jacobian[i][j] = (plus[i] - minus[i])/(2*h);
+			}
+
+			RealMatrix j = new Array2DRowRealMatrix(jacobian, false);
+			RealMatrix inverse = new LUDecomposition(j.transpose().multiply(j)).getSolver().getInverse();
+			return inverse.scalarMultiply(sum/(n - np)).getData();
+		}
+	}
+}
@@ -7,6 +7,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
@@ -53,6 +54,35 @@ public class PowderCalibrationTest {
 		
 		assertArrayEquals(expected, out, 0.1);
 	}
+
+	@Test
+	public void CentreFitterRobustTestRun(){
+
+		double[] x = new double[10];
+		double[] y = new double[10];
+
+		for (int i = 0; i < x.length; i++) {
+			x[i] = 1000 + i*3;
+			y[i] = 0.5*x[i] + 20 + ((i*7)%3-1)*0.01;
+		}
+
+		//one badly fitted ring
+		y[6] += 5;
+
+		double[] expected = new double[]{0.5, 20};
+
+		double[] ls = CentreFitter.fitLine(x, y, null, CentreFitter.Loss.LEAST_SQUARES);
+		assertEquals(-10, ls[1], 1);
+
+		double[] out = CentreFitter.fitLine(x, y, null, CentreFitter.Loss.TUKEY);
+		assertArrayEquals(expected, out, 0.2);
+
+		double[] weights = new double[10];
+		Arrays.fill(weights, 1);
+		weights[6] = 0;
+		out = CentreFitter.fitLine(x, y, weights, CentreFitter.Loss.LEAST_SQUARES);
+		assertArrayEquals(expected, out, 0.2);
+	}
 	
 	@Test
 	public void ImageFitterTestRun(){
@@ -0,0 +1,121 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.ProfileGapFiller;
+import uk.ac.diamond.scisoft.diffraction.powder.ProfileGapFiller.Method;
+
+public class ProfileGapFillerTest {
+
+	@Test
+	public void LinearFillsGapsAndEnds() {
+		double nan = Double.NaN;
+		double[] y = {nan, nan, 2, nan, nan, 5, Double.NEGATIVE_INFINITY, 7, nan};
+
+		Assert.assertEquals(6, ProfileGapFiller.fill(y, y.length, Method.LINEAR));
+		Assert.assertArrayEquals(new double[] {2, 2, 2, 3, 4, 5, 6, 7, 7}, y, 1e-12);
+	}
+
+	@Test
+	public void LinearUsesAbscissae() {
+		double[] x = {0, 1, 4, 5};
+		double[] y = {0, Double.NaN, Double.NaN, 5};
+
+		ProfileGapFiller.fill(y, x, 0, y.length, Method.LINEAR);
+		Assert.assertArrayEquals(new double[] {0, 1, 4, 5}, y, 1e-12);
+	}
+
+	@Test
+	public void MonotoneCubicFollowsSmoothProfile() {
+		int n = 200;
+		double[] y = new double[n];
+		double[] expected = new double[n];
+		for (int i = 0; i < n; i++) {
+			expected[i] = Math.sqrt(i + 1);
+			y[i] = (i % 7 == 3 && i < n - 1) || (i > 50 && i < 55) ? Double.NaN : expected[i];
+		}
+
+		ProfileGapFiller.fill(y, n, Method.MONOTONE_CUBIC);
+		for (int i = 0; i < n; i++) {
+			Assert.assertEquals(expected[i], y[i], 1e-2);
+			if (i > 0) Assert.assertTrue(y[i] > y[i - 1]);
+		}
+	}
+
+	@Test
+	public void MonotoneCubicDoesNotOvershootPeak() {
+		double nan = Double.NaN;
+		double[] y = {0, 1, 2, 3, 4, 5, nan, nan, 5, 4};
+
+		ProfileGapFiller.fill(y, y.length, Method.MONOTONE_CUBIC);
+		for (double v : y)
+			Assert.assertTrue(v <= 5);
+	}
+
+	@Test
+	public void AdjacentGapsFilledFromTheirOwnEnds() {
+		double nan = Double.NaN;
+		double[] y = {0, nan, 10, nan, 0, nan, nan, 30};
+
+		Assert.assertEquals(4, ProfileGapFiller.fill(y, y.length, Method.LINEAR));
+		Assert.assertArrayEquals(new double[] {0, 5, 10, 5, 0, 10, 20, 30}, y, 1e-12);
+	}
+
+	@Test
+	public void MonotoneCubicSlopesFromNeighboursOnly() {
+		double nan = Double.NaN;
+		// a single value between two gaps, values across the first gap must not set the slope of the second
+		double[] rising = {0, 1, nan, 9, nan, 25, 36};
+		double[] falling = {100, 50, nan, 9, nan, 25, 36};
+
+		ProfileGapFiller.fill(rising, rising.length, Method.MONOTONE_CUBIC);
+		ProfileGapFiller.fill(falling, falling.length, Method.MONOTONE_CUBIC);
+		Assert.assertEquals(rising[4], falling[4], 1e-12);
+		Assert.assertTrue(rising[4] > 9 && rising[4] < 25);
+		Assert.assertTrue(rising[2] > 1 && rising[2] < 9);
+		Assert.assertTrue(falling[2] < 50 && falling[2] > 9);
+	}
+
+	@Test
+	public void AllMissingLeftAlone() {
+		double[] y = {Double.NaN, Double.NaN};
+
+		Assert.assertEquals(0, ProfileGapFiller.fill(y, y.length, Method.LINEAR));
+		Assert.assertTrue(Double.isNaN(y[0]) && Double.isNaN(y[1]));
+	}
+
+	@Test
+	public void RowsFilledIndependently() {
+		double nan = Double.NaN;
+		double[] data = {1, nan, 3, nan, 10, nan};
+
+		Assert.assertEquals(3, ProfileGapFiller.fillRows(data, 2, 3, Method.LINEAR));
+		Assert.assertArrayEquals(new double[] {1, 2, 3, 10, 10, 10}, data, 1e-12);
+	}
+
+	@Test
+	public void RowsMatchSingleProfiles() {
+		int rows = 40;
+		int n = 50;
+		double[] data = new double[rows*n];
+		double[] expected = new double[rows*n];
+		for (int i = 0; i < data.length; i++) {
+			int r = i/n;
+			int c = i % n;
+			data[i] = (c + r) % 6 == 0 || (c > 20 && c < 20 + r % 5) ? Double.NaN : Math.sqrt(c + 1) + r;
+		}
+		System.arraycopy(data, 0, expected, 0, data.length);
+
+		int filled = 0;
+		for (int r = 0; r < rows; r++) {
+			double[] row = new double[n];
+			System.arraycopy(expected, r*n, row, 0, n);
+			filled += ProfileGapFiller.fill(row, n, Method.MONOTONE_CUBIC);
+			System.arraycopy(row, 0, expected, r*n, n);
+		}
+
+		Assert.assertEquals(filled, ProfileGapFiller.fillRows(data, rows, n, Method.MONOTONE_CUBIC));
+		Assert.assertArrayEquals(expected, data, 0);
+	}
+}
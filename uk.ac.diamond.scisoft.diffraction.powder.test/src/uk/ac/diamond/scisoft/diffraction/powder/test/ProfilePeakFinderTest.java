@@ -0,0 +1,49 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.ProfilePeakFinder;
+
+public class ProfilePeakFinderTest {
+
+	@Test
+	public void PeaksFoundOnDecayingBackground() {
+
+		Random r = new Random(2);
+		int n = 1500;
+		double[] pos = {200.3, 420.7, 433.1, 800.25};
+		double[] amp = {50, 30, 25, 10};
+
+		double[] profile = new double[n];
+		for (int i = 0; i < n; i++) {
+			double v = 100*Math.exp(-i/400.0) + 5;
+			for (int k = 0; k < pos.length; k++) {
+				double d = (i - pos[k])/2.5;
+				v += amp[k]*Math.exp(-0.5*d*d);
+			}
+			profile[i] = v + r.nextGaussian();
+		}
+
+		double[][] scratch = {new double[n], new double[n]};
+		double[] out = new double[10*ProfilePeakFinder.PEAK_SIZE];
+
+		int found = ProfilePeakFinder.findPeaks(profile, n, 20, 5, 10, scratch, out);
+
+		Assert.assertEquals(pos.length, found);
+		//most prominent first
+		for (int k = 0; k < found; k++) {
+			Assert.assertEquals(pos[k], out[k*ProfilePeakFinder.PEAK_SIZE], 0.5);
+		}
+	}
+
+	@Test
+	public void ParabolicPeakExactForParabola() {
+		double[] profile = new double[9];
+		for (int i = 0; i < profile.length; i++) profile[i] = 10 - (i - 4.3)*(i - 4.3);
+
+		Assert.assertEquals(4.3, ProfilePeakFinder.parabolicPeak(profile, profile.length, 4), 1e-12);
+	}
+}
@@ -0,0 +1,66 @@
+package uk.ac.diamond.scisoft.diffraction.powder.test;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.diffraction.powder.RealFFT;
+
+public class RealFFTTest {
+
+	@Test
+	public void MagnitudesMatchDirectTransform() {
+		Random r = new Random(4);
+		int rows = 5;
+
+		for (int n : new int[] {1, 7, 64, 100, 737}) {
+			assertMagnitudesMatchDirect(r, n, rows);
+		}
+
+		//more rows than parallel tasks
+		assertMagnitudesMatchDirect(r, 12, 501);
+	}
+
+	private static void assertMagnitudesMatchDirect(Random r, int n, int rows) {
+		double[] data = new double[rows*n];
+		for (int i = 0; i < data.length; i++) data[i] = r.nextGaussian() + 0.01*(i % n);
+
+		RealFFT fft = RealFFT.getPlan(n);
+		int s = fft.getSpectrumLength();
+		Assert.assertEquals(n/2 + 1, s);
+		double[] out = new double[rows*s];
+		fft.magnitudes(data, rows, out);
+
+		for (int row = 0; row < rows; row++) {
+			for (int k = 0; k < s; k++) {
+				double re = 0;
+				double im = 0;
+				for (int j = 0; j < n; j++) {
+					double a = -2*Math.PI*(((long) j*k) % n)/n;
+					re += data[row*n + j]*Math.cos(a);
+					im += data[row*n + j]*Math.sin(a);
+				}
+				Assert.assertEquals(Math.hypot(re, im), out[row*s + k], 1e-9*n);
+			}
+		}
+	}
+
+	@Test
+	public void PlansSharedByLength() {
+		Assert.assertSame(RealFFT.getPlan(300), RealFFT.getPlan(300));
+	}
+
+	@Test
+	public void LeastRecentlyUsedPlansDropped() {
+		RealFFT used = RealFFT.getPlan(301);
+		RealFFT unused = RealFFT.getPlan(302);
+		for (int i = 0; i < RealFFT.MAX_PLANS - 1; i++) {
+			Assert.assertSame(used, RealFFT.getPlan(301));
+			RealFFT.getPlan(400 + i);
+		}
+
+		Assert.assertSame(used, RealFFT.getPlan(301));
+		Assert.assertNotSame(unused, RealFFT.getPlan(302));
+	}
+}
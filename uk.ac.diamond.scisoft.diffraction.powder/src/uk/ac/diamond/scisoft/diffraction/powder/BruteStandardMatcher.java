@@ -1,13 +1,17 @@
 package uk.ac.diamond.scisoft.diffraction.powder;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
 import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
 import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.DatasetFactory;
-import org.eclipse.january.dataset.Maths;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.IndexIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,12 +31,26 @@ public class BruteStandardMatcher {
 	private static final double maxDistance = 2000;
 	private static final double distanceStep = 2;
 	
+	//half width of the window around each ring, the windows must fit the 64 bit overlap mask of scoreRadii
 	private static final double defaultWidth = 5;
 	
+	public static final int DEFAULT_BASELINE_WIDTH = 10;
+	
+	//coarse search uses every coarseFactor-th distance step, keeping the best few for each energy
+	private static final int coarseFactor = 4;
+	private static final int candidatesPerEnergy = 3;
+	private static final int leafSize = 64;
+	
 	private static final double[] energies = new double[] {10,11,12,13,14,15,17,20,25,30,40,50,70,90,120,150,170};
 	
 	/**
 	 * Match a radial profile to a set of d-space values, returns a map contain the d-space values as keys and the radius as values
+	 * <p>
+	 * The energy/distance space is searched on a coarse distance grid first, and the best candidates for each energy
+	 * are refined on the full distance step. Every other block of distances between two coarse candidates is then
+	 * scored in full unless an upper bound on its scores is below the best score found, so the result is the same as
+	 * scoring every candidate. Candidates are scored in parallel.
+	 * 
 	 * @param radius
 	 * @param integrated
 	 * @param dSpace
@@ -40,42 +58,104 @@ public class BruteStandardMatcher {
 	 * @return dSpaceRadiusMap
 	 */
 	public static Map<Double,Double> bruteForceMatchStandards(Dataset radius, Dataset integrated, double[] dSpace, double pixelSize) {
+		return bruteForceMatchStandards(radius, integrated, dSpace, pixelSize, DEFAULT_BASELINE_WIDTH);
+	}
+	
+	/**
+	 * Match a radial profile to a set of d-space values, returns a map contain the d-space values as keys and the radius as values
+	 * 
+	 * @param radius
+	 * @param integrated
+	 * @param dSpace
+	 * @param pixelSize
+	 * @param baselineWidth half width of the rolling ball used to remove the background
+	 * @return dSpaceRadiusMap
+	 */
+	public static Map<Double,Double> bruteForceMatchStandards(Dataset radius, Dataset integrated, double[] dSpace, double pixelSize, int baselineWidth) {
 		
-		double bestssq = Double.NEGATIVE_INFINITY;
-		double[] bestValues = new double[] {energies[0],minDistance};
+		Dataset clean = cleanUpData(radius, integrated, baselineWidth);
 		
-		DetectorProperties dp = new DetectorProperties(minDistance, 0, 0, radius.getSize(), radius.getSize(), pixelSize, pixelSize);
-		DiffractionCrystalEnvironment ce = new DiffractionCrystalEnvironment();
-		ce.setWavelengthFromEnergykeV(10);
+		int nDistances = (int)Math.floor((maxDistance - minDistance)/distanceStep) + 1;
 		
-		Dataset clean = cleanUpData(radius, integrated);
-				
-		for (double en : energies) {
-			for (double dist = minDistance; dist <= maxDistance ; dist += distanceStep) {
-				dp.setDetectorDistance(dist);
-				ce.setWavelengthFromEnergykeV(en);
-				double w = ce.getWavelength();
-				double[] radii = new double[dSpace.length];
-				for (int i = 0; i< radii.length; i++) {
-					if (w < 2*dSpace[i]) radii[i] = DSpacing.radiusFromDSpacing(dp, ce, dSpace[i]);
-				}
- 				
-				Dataset filter = getFilterDataset(radius,radii);
-				Dataset out = Maths.multiply(filter, clean);
-				double ssq = ((Number) out.sum()).doubleValue();
-				
-				if (ssq > bestssq) {
-					bestssq = ssq;
-					bestValues[0] = en;
-					bestValues[1] = dist;
+		double[] prefix = getPrefixSum(clean, false);
+		RadiusTable table = new RadiusTable(dSpace, pixelSize, nDistances);
+		
+		//scores of all candidates, in energy then distance order, NaN until scored
+		double[] scores = new double[energies.length*nDistances];
+		Arrays.fill(scores, Double.NaN);
+		
+		//coarse pass, every coarseFactor-th distance (plus the last) for each energy
+		int[] coarseSteps = getCoarseSteps(nDistances);
+		int nCoarse = coarseSteps.length;
+		
+		int[] coarse = new int[energies.length*nCoarse];
+		for (int e = 0; e < energies.length; e++) {
+			for (int k = 0; k < nCoarse; k++) {
+				coarse[e*nCoarse + k] = e*nDistances + coarseSteps[k];
+			}
+		}
+		
+		scoreCandidates(coarse, scores, prefix, table);
+		
+		//refine around the best coarse candidates of each energy, to find a good score early
+		boolean[] selected = new boolean[scores.length];
+		double[] coarseScores = new double[coarse.length];
+		for (int i = 0; i < coarse.length; i++) coarseScores[i] = scores[coarse[i]];
+		
+		for (int e = 0; e < energies.length; e++) {
+			for (int best : findBestIndices(coarseScores, e*nCoarse, nCoarse, candidatesPerEnergy)) {
+				int k = coarse[best] % nDistances;
+				int start = Math.max(0, k - coarseFactor + 1);
+				int end = Math.min(nDistances - 1, k + coarseFactor - 1);
+				for (int i = start; i <= end; i++) selected[e*nDistances + i] = true;
+			}
+		}
+		
+		scoreCandidates(getUnscored(selected, scores), scores, prefix, table);
+		
+		//score in full every block that could hold a better (or equal, for ties) candidate
+		double bestssq = Double.NEGATIVE_INFINITY;
+		for (double s : scores) if (s > bestssq) bestssq = s;
+		
+		double[] positive = getPrefixSum(clean, true);
+		double[] lowRadii = new double[dSpace.length];
+		double[] highRadii = new double[dSpace.length];
+		int blocks = 0;
+		for (int e = 0; e < energies.length; e++) {
+			for (int k = 0; k < nCoarse - 1; k++) {
+				int low = e*nDistances + coarseSteps[k];
+				int high = e*nDistances + coarseSteps[k+1];
+				table.getRadii(low, lowRadii);
+				table.getRadii(high, highRadii);
+				if (blockBound(positive, lowRadii, highRadii) >= bestssq) {
+					for (int i = low + 1; i < high; i++) selected[i] = true;
+					blocks++;
 				}
 			}
 		}
 		
+		logger.debug("Scoring {} of {} distance blocks in full", blocks, energies.length*(nCoarse - 1));
+		
+		scoreCandidates(getUnscored(selected, scores), scores, prefix, table);
+		
+		//candidates are in energy then distance order, so strict > keeps the first of any tie
+		bestssq = Double.NEGATIVE_INFINITY;
+		int bestCandidate = 0;
+		for (int i = 0; i < scores.length; i++) {
+			if (scores[i] > bestssq) {
+				bestssq = scores[i];
+				bestCandidate = i;
+			}
+		}
+		
+		double[] bestValues = new double[] {energies[bestCandidate / nDistances], 
+				minDistance + (bestCandidate % nDistances)*distanceStep};
+		
 		logger.debug("Guess distance: {}", bestValues[1]);
 		logger.debug("Guess energy: {}", bestValues[0]);
 		
-		dp.setDetectorDistance(bestValues[1]);
+		DetectorProperties dp = new DetectorProperties(bestValues[1], 0, 0, radius.getSize(), radius.getSize(), pixelSize, pixelSize);
+		DiffractionCrystalEnvironment ce = new DiffractionCrystalEnvironment();
 		ce.setWavelengthFromEnergykeV(bestValues[0]);
 		
 		Map<Double,Double> dSpaceRadiusMap = new HashMap<Double,Double>();
@@ -89,6 +169,247 @@ public class BruteStandardMatcher {
 		
 	}
 	
+	/**
+	 * Distance steps of the coarse pass, every coarseFactor-th step and the last
+	 */
+	private static int[] getCoarseSteps(int nDistances) {
+		int n = (nDistances + coarseFactor - 1)/coarseFactor;
+		boolean last = (nDistances - 1) % coarseFactor != 0;
+		int[] steps = new int[last ? n + 1 : n];
+		for (int k = 0; k < n; k++) steps[k] = k*coarseFactor;
+		if (last) steps[n] = nDistances - 1;
+		return steps;
+	}
+	
+	private static int[] getUnscored(boolean[] selected, double[] scores) {
+		int count = 0;
+		for (int i = 0; i < selected.length; i++) if (selected[i] && Double.isNaN(scores[i])) count++;
+		int[] candidates = new int[count];
+		count = 0;
+		for (int i = 0; i < selected.length; i++) if (selected[i] && Double.isNaN(scores[i])) candidates[count++] = i;
+		return candidates;
+	}
+	
+	private static void scoreCandidates(int[] candidates, double[] scores, double[] prefix, RadiusTable table) {
+		ForkJoinPool.commonPool().invoke(new ScoreTask(candidates, scores, 0, candidates.length, prefix, table));
+	}
+	
+	private static int[] findBestIndices(double[] scores, int offset, int length, int n) {
+		n = Math.min(n, length);
+		int[] best = new int[n];
+		boolean[] used = new boolean[length];
+		for (int j = 0; j < n; j++) {
+			int b = -1;
+			for (int i = 0; i < length; i++) {
+				if (used[i]) continue;
+				if (b < 0 || scores[offset + i] > scores[offset + b]) b = i;
+			}
+			used[b] = true;
+			best[j] = offset + b;
+		}
+		return best;
+	}
+	
+	/**
+	 * Scores a block of (energy, distance) candidates into the score array, splitting the block across the fork-join pool.
+	 */
+	private static class ScoreTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int[] candidates;
+		private final double[] scores;
+		private final int start;
+		private final int end;
+		private final double[] prefix;
+		private final RadiusTable table;
+		
+		public ScoreTask(int[] candidates, double[] scores, int start, int end, double[] prefix, RadiusTable table) {
+			this.candidates = candidates;
+			this.scores = scores;
+			this.start = start;
+			this.end = end;
+			this.prefix = prefix;
+			this.table = table;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > leafSize) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new ScoreTask(candidates, scores, start, mid, prefix, table),
+						new ScoreTask(candidates, scores, mid, end, prefix, table));
+				return;
+			}
+			
+			//scratch for the whole leaf, so scoring a candidate allocates nothing
+			double[] radii = new double[table.size()];
+			int[] starts = new int[table.size()];
+			int[] ends = new int[table.size()];
+			
+			for (int i = start; i < end; i++) {
+				table.getRadii(candidates[i], radii);
+				scores[candidates[i]] = scoreRadii(prefix, radii, starts, ends);
+			}
+		}
+	}
+	
+	/**
+	 * Cumulative sum of the cleaned profile (or of its positive part), prefix[i] is the sum of the first i values
+	 */
+	private static double[] getPrefixSum(Dataset clean, boolean positive) {
+		int n = clean.getSize();
+		double[] prefix = new double[n+1];
+		for (int i = 0; i < n; i++) {
+			double v = clean.getElementDoubleAbs(i);
+			prefix[i+1] = prefix[i] + (positive && v < 0 ? 0 : v);
+		}
+		return prefix;
+	}
+	
+	/**
+	 * Upper bound on the scores of the candidates between two candidates of the same energy.
+	 * <p>
+	 * Ring radii grow with distance, so each window of the candidates between lies within the union of the
+	 * windows of the two ends. A score is a sum of parts of the windows with positive weights, so it cannot be more
+	 * than the weighted sums of the positive part of the profile over those unions.
+	 * 
+	 * @param positive cumulative sum of the positive part of the cleaned profile
+	 * @param low radii of the candidate at the shorter distance
+	 * @param high radii of the candidate at the longer distance
+	 * @return bound
+	 */
+	static double blockBound(double[] positive, double[] low, double[] high) {
+		
+		int width = (int)defaultWidth;
+		int max = positive.length - 2;
+		
+		double bound = 0;
+		double val = 1;
+		
+		for (int j = 0; j < low.length; j++) {
+			int rmin = (int)Math.round(Math.min(low[j], high[j])) - width;
+			int rmax = (int)Math.round(Math.max(low[j], high[j])) + width;
+			rmin = rmin < 0 ? 0 : rmin;
+			rmax = rmax > max ? max : rmax;
+			if (rmax > rmin) bound += val*(positive[rmax] - positive[rmin]);
+			val *= 0.9;
+		}
+		
+		return bound;
+	}
+	
+	/**
+	 * Equivalent to summing getFilterDataset(radii) multiplied by the cleaned profile, without building the filter.
+	 * <p>
+	 * Windows are the same as getFilterDataset, where windows overlap the later ring wins, so only the
+	 * uncovered part of each window is summed from the prefix array.
+	 * 
+	 * @param prefix cumulative sum of the cleaned profile
+	 * @param radii predicted ring radii in pixels
+	 * @param starts scratch array, at least radii.length
+	 * @param ends scratch array, at least radii.length
+	 * @return score
+	 */
+	static double scoreRadii(double[] prefix, double[] radii, int[] starts, int[] ends) {
+		
+		int width = (int)defaultWidth;
+		if (2*width > Long.SIZE) throw new IllegalStateException("Window of " + 2*width + " bins does not fit the overlap mask");
+		int max = prefix.length - 2;
+		
+		for (int j = 0; j < radii.length; j++) {
+			int r = (int)Math.round(radii[j]);
+			starts[j] = r - width < 0 ? 0 : r - width;
+			ends[j] = r + width > max ? max : r + width;
+		}
+		
+		double score = 0;
+		double val = 1;
+		
+		for (int j = 0; j < radii.length; j++) {
+			int rmin = starts[j];
+			int rmax = ends[j];
+			
+			if (rmax > rmin) {
+				//bit i set if rmin + i is overwritten by a later ring, windows are 2*width long so fit in the mask
+				long covered = 0;
+				for (int k = j + 1; k < radii.length; k++) {
+					int os = starts[k] > rmin ? starts[k] : rmin;
+					int oe = ends[k] < rmax ? ends[k] : rmax;
+					for (int i = os; i < oe; i++) covered |= 1L << (i - rmin);
+				}
+				
+				if (covered == 0) {
+					score += val*(prefix[rmax] - prefix[rmin]);
+				} else {
+					double sum = 0;
+					int runStart = -1;
+					for (int i = rmin; i <= rmax; i++) {
+						boolean free = i < rmax && (covered & (1L << (i - rmin))) == 0;
+						if (free && runStart < 0) {
+							runStart = i;
+						} else if (!free && runStart >= 0) {
+							sum += prefix[i] - prefix[runStart];
+							runStart = -1;
+						}
+					}
+					score += val*sum;
+				}
+			}
+			val *= 0.9;
+		}
+		
+		return score;
+	}
+	
+	/**
+	 * Predicted ring radii for each (energy, distance) candidate of one match.
+	 * <p>
+	 * The detector is normal to the beam, so a radius is the distance times tan(2&theta;) of the ring over the pixel
+	 * size. The tangents are found once for each energy, and the radii of a candidate are written into a buffer owned
+	 * by the caller.
+	 */
+	private static class RadiusTable {
+		
+		private final double pixelSize;
+		private final int nDistances;
+		private final int nRings;
+		//tan(2θ) of each ring in energy then ring order, zero for rings beyond the back scattering limit
+		private final double[] tanTwoTheta;
+		
+		public RadiusTable(double[] dSpace, double pixelSize, int nDistances) {
+			this.pixelSize = pixelSize;
+			this.nDistances = nDistances;
+			this.nRings = dSpace.length;
+			this.tanTwoTheta = new double[energies.length*nRings];
+			
+			DiffractionCrystalEnvironment ce = new DiffractionCrystalEnvironment();
+			for (int e = 0; e < energies.length; e++) {
+				ce.setWavelengthFromEnergykeV(energies[e]);
+				double w = ce.getWavelength();
+				for (int i = 0; i < nRings; i++) {
+					if (w < 2*dSpace[i]) tanTwoTheta[e*nRings + i] = Math.tan(2*Math.asin(w/(2*dSpace[i])));
+				}
+			}
+		}
+		
+		public int size() {
+			return nRings;
+		}
+		
+		/**
+		 * @param candidate index in energy then distance order
+		 * @param radii filled with the radius of each ring in pixels, at least size() long
+		 */
+		public void getRadii(int candidate, double[] radii) {
+			double scale = (minDistance + (candidate % nDistances)*distanceStep)/pixelSize;
+			int offset = (candidate / nDistances)*nRings;
+			for (int i = 0; i < nRings; i++) {
+				radii[i] = scale*tanTwoTheta[offset + i];
+			}
+		}
+	}
+	
 	/**
 	 * Method to get a dataset containing ones around the peak positions and zeros elsewhere
 	 * @param pixelRadius
@@ -126,37 +447,93 @@ public class BruteStandardMatcher {
 	 */
 	public static Dataset cleanUpData(Dataset radius, Dataset data) {
 		
-		return rollingBallBaselineCorrection(data,10);
+		return cleanUpData(radius, data, DEFAULT_BASELINE_WIDTH);
+	}
+	
+	/**
+	 * Cleans the data for matching by subtracting a rolling ball baseline
+	 * 
+	 * @param radius
+	 * @param data
+	 * @param baselineWidth half width of the rolling ball window in bins
+	 * @return d
+	 */
+	public static Dataset cleanUpData(Dataset radius, Dataset data, int baselineWidth) {
+		
+		if (baselineWidth < 1) throw new IllegalArgumentException("Baseline width must be at least 1");
+		
+		return rollingBallBaselineCorrection(data,baselineWidth);
 	}
 	
+	/**
+	 * Rolling ball baseline (min, then max, then mean over the window [i-width, i+width) clipped to [0, n-1))
+	 * <p>
+	 * Monotonic deques for the min and max passes and a running sum for the mean keep each pass O(n)
+	 */
 	private static Dataset rollingBallBaselineCorrection(Dataset y, int width) {
 		
-		Dataset t1 = DatasetFactory.zeros(y);
-		Dataset t2 = DatasetFactory.zeros(y);
+		int n = y.getSize();
+		double[] values = new double[n];
 		
-		for (int i = 0 ; i < y.getSize()-1; i++) {
-			int start = (i-width) < 0 ? 0 : (i - width);
-			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
-			double val = y.getSlice(new int[]{start}, new int[]{end}, null).min().doubleValue();
-			t1.set(val, i);
+		IndexIterator it = y.getIterator();
+		int count = 0;
+		while (it.hasNext()) {
+			values[count++] = y.getElementDoubleAbs(it.index);
 		}
 		
-		for (int i = 0 ; i < y.getSize()-1; i++) {
-			int start = (i-width) < 0 ? 0 : (i - width);
-			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
-			double val = t1.getSlice(new int[]{start}, new int[]{end}, null).max().doubleValue();
-			t2.set(val, i);
+		double[] t1 = new double[n];
+		double[] t2 = new double[n];
+		int[] deque = new int[n];
+		
+		rollingExtreme(values, t1, width, deque, true);
+		rollingExtreme(t1, t2, width, deque, false);
+		rollingMean(t2, t1, width);
+		
+		DoubleDataset out = DatasetFactory.zeros(y.getShape());
+		double[] data = out.getData();
+		for (int i = 0; i < n; i++) {
+			data[i] = values[i] - t1[i];
 		}
 		
-		//t1 = DatasetFactory.zeros(y);
+		return out;
+	}
+	
+	private static void rollingExtreme(double[] in, double[] out, int width, int[] deque, boolean min) {
+		int n = in.length;
+		int head = 0;
+		int tail = 0;
+		int next = 0;
 		
-		for (int i = 0 ; i < y.getSize()-1; i++) {
+		for (int i = 0 ; i < n-1; i++) {
 			int start = (i-width) < 0 ? 0 : (i - width);
-			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
-			double val = (double)t2.getSlice(new int[]{start}, new int[]{end}, null).mean();
-			t1.set(val, i);
+			int end = (i+width) > (n-1) ? (n-1) : (i+width);
+			
+			while (next < end) {
+				double v = in[next];
+				while (tail > head && (min ? in[deque[tail-1]] >= v : in[deque[tail-1]] <= v)) tail--;
+				deque[tail++] = next++;
+			}
+			
+			while (deque[head] < start) head++;
+			
+			out[i] = in[deque[head]];
 		}
+	}
+	
+	private static void rollingMean(double[] in, double[] out, int width) {
+		int n = in.length;
+		int first = 0;
+		int next = 0;
+		double sum = 0;
 		
-		return Maths.subtract(y, t1);
+		for (int i = 0 ; i < n-1; i++) {
+			int start = (i-width) < 0 ? 0 : (i - width);
+			int end = (i+width) > (n-1) ? (n-1) : (i+width);
+			
+			while (next < end) sum += in[next++];
+			while (first < start) sum -= in[first++];
+			
+			out[i] = sum/(end - start);
+		}
 	}
 }
@@ -3,6 +3,9 @@ package uk.ac.diamond.scisoft.diffraction.powder;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.eclipse.dawnsci.analysis.api.roi.IPolylineROI;
+import org.eclipse.dawnsci.analysis.api.roi.IROI;
+import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalFitROI;
 import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
 import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.DatasetFactory;
@@ -11,6 +14,8 @@ import org.eclipse.january.dataset.Maths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.diamond.scisoft.analysis.diffraction.ResolutionEllipseROI;
+
 /**
  * Direct conversion of I12 Matlab calibrateD_forDAWN.m
  * <p>
@@ -86,17 +91,29 @@ public class CalibrateEllipses {
 	public static CalibrationOutput run(List<List<EllipticalROI>> allEllipses, List<double[]> allDSpacings,
 			Dataset deltaDistance, double pixelSize, double fixedValue, SimpleCalibrationParameterModel params) {
 		
+		CentreFitter.Loss loss = params.getCentreFitLoss();
+		boolean weighted = params.isWeightCentreFit();
+		
 		if (params.isFloatDistance() && !params.isFloatEnergy()) {
-			return runKnownWavelength(allEllipses, allDSpacings, pixelSize, fixedValue);
+			return run(allEllipses, allDSpacings, DatasetFactory.zeros(1), pixelSize, fixedValue, true, loss, weighted);
 		} else if (!params.isFloatDistance() && params.isFloatEnergy()) {
-			return runKnownDistance(allEllipses, allDSpacings, pixelSize, fixedValue);
+			return run(allEllipses, allDSpacings, DatasetFactory.zeros(1), pixelSize, fixedValue, false, loss, weighted);
 		} else {
-			return run(allEllipses, allDSpacings, deltaDistance,pixelSize, -1, false);
+			return run(allEllipses, allDSpacings, deltaDistance,pixelSize, -1, false, loss, weighted);
 		}
 	}
 	
 	
 	public static CalibrationOutput run(List<List<EllipticalROI>> allEllipses, List<double[]> allDSpacings, Dataset deltaDistance,double pixel, double knownValue, boolean isWavelength){
+		return run(allEllipses, allDSpacings, deltaDistance, pixel, knownValue, isWavelength, CentreFitter.Loss.LEAST_SQUARES, false);
+	}
+	
+	/**
+	 * @param centreLoss loss used to fit the lines the ellipse centres lie along
+	 * @param weightByRMS if true the ellipse centres are weighted by 1/rms^2 of their ellipse fits (when known)
+	 */
+	private static CalibrationOutput run(List<List<EllipticalROI>> allEllipses, List<double[]> allDSpacings, Dataset deltaDistance,double pixel, double knownValue, boolean isWavelength,
+			CentreFitter.Loss centreLoss, boolean weightByRMS){
 		
 		if (allEllipses.isEmpty() || allEllipses.get(0).size() < 2) throw new IllegalArgumentException("Need more than 1 ellipse");
 		if (allDSpacings.isEmpty() || allEllipses.get(0).size() != allDSpacings.get(0).length) throw new IllegalArgumentException("Number of ellipses must equal number of d-spacings");
@@ -127,15 +144,16 @@ public class CalibrateEllipses {
 			
 			//Repetition here - could be made more robust?
 			double[] beamC;
+			double[] weights = weightByRMS ? params.weights : null;
 			if(Math.abs(approxAngle) > 85) {
-				double[] mc = CentreFitter.fit(params.yCentres, params.xCentres);
+				double[] mc = CentreFitter.fit(params.yCentres, params.xCentres, weights, centreLoss);
 				beamC = ImageFitter.fit(params.majorAxes, params.yCentres, params.xCentres, mc, pixel);
 				beamcentres[1][i] = beamC[1];
 				beamcentres[0][i] = mc[0]*beamC[1]+mc[1];
-				mc = CentreFitter.fit(params.xCentres, params.yCentres);
+				mc = CentreFitter.fit(params.xCentres, params.yCentres, weights, centreLoss);
 				mcs.add(mc);
 			} else {
-				double[] mc = CentreFitter.fit(params.xCentres, params.yCentres);
+				double[] mc = CentreFitter.fit(params.xCentres, params.yCentres, weights, centreLoss);
 				mcs.add(mc);
 				beamC = ImageFitter.fit(params.majorAxes, params.xCentres, params.yCentres, mc, pixel);
 				beamcentres[0][i] = beamC[1];
@@ -169,7 +187,7 @@ public class CalibrateEllipses {
 			
 			Dataset hyp  = Maths.hypot(xcen.isubtract(xcen.getDouble(xcen.getSize()-1)),ycen.isubtract(ycen.getDouble(ycen.getSize()-1)));
 			
-			double[] mc = CentreFitter.fit(deltaDistance, hyp);
+			double[] mc = CentreFitter.fit(deltaDistance, hyp, null, centreLoss);
 			
 			distFactor = 1/Math.cos(Math.atan(Math.abs(mc[0])));
 			
@@ -232,6 +250,7 @@ public class CalibrateEllipses {
 		Dataset xc = DatasetFactory.zeros(rois.size());
 		Dataset yc = DatasetFactory.zeros(rois.size());
 		Dataset angle = DatasetFactory.zeros(rois.size());
+		double[] weights = new double[rois.size()];
 		
 		for (int i = 0; i < rois.size();i++) {
 			EllipticalROI el = rois.get(i);
@@ -239,6 +258,9 @@ public class CalibrateEllipses {
 			xc.set(el.getPointX(), i);
 			yc.set(el.getPointY(), i);
 			angle.set(el.getAngleDegrees(), i);
+			
+			double rms = getFitRMS(el);
+			weights[i] = rms > 0 ? 1/(rms*rms) : Double.NaN;
 		}
 		
 		els.majorAxes = major;
@@ -246,9 +268,53 @@ public class CalibrateEllipses {
 		els.yCentres = yc;
 		els.anglesDegrees = angle;
 		
+		//only weight if every ellipse has a fit rms
+		for (double w : weights) {
+			if (Double.isNaN(w) || Double.isInfinite(w)) {
+				weights = null;
+				break;
+			}
+		}
+		els.weights = weights;
+		
 		return els;
 	}
 	
+	/**
+	 * RMS distance of the fitted points from the ellipse, NaN if the ellipse has no points
+	 */
+	private static double getFitRMS(EllipticalROI el) {
+		if (el instanceof EllipticalFitROI) return ((EllipticalFitROI) el).getRMS();
+		
+		if (!(el instanceof ResolutionEllipseROI)) return Double.NaN;
+		IPolylineROI points = ((ResolutionEllipseROI) el).getPoints();
+		if (points == null || points.getNumberOfPoints() == 0) return Double.NaN;
+		
+		double a = el.getSemiAxis(0);
+		double b = el.getSemiAxis(1);
+		double cos = Math.cos(el.getAngle());
+		double sin = Math.sin(el.getAngle());
+		
+		//radial distance from the ellipse along the line from its centre
+		double sum = 0;
+		int n = points.getNumberOfPoints();
+		for (int i = 0; i < n; i++) {
+			IROI p = points.getPoint(i);
+			double dx = p.getPointX() - el.getPointX();
+			double dy = p.getPointY() - el.getPointY();
+			double u = dx*cos + dy*sin;
+			double v = -dx*sin + dy*cos;
+			double r = Math.hypot(u, v);
+			if (r == 0) continue;
+			double ct = u/r;
+			double st = v/r;
+			double re = a*b/Math.sqrt(b*b*ct*ct + a*a*st*st);
+			sum += (r - re)*(r - re);
+		}
+		
+		return Math.sqrt(sum/n);
+	}
+	
 	private static Dataset getFittedTilts(double d0_lambda, Dataset normDist, Dataset dSint, double pixel) {
 		
 		Dataset var = Maths.subtract(d0_lambda, normDist);
@@ -285,6 +351,7 @@ public class CalibrateEllipses {
 		public Dataset xCentres;
 		public Dataset yCentres;
 		public Dataset anglesDegrees;
+		public double[] weights;
 	}
 
 }
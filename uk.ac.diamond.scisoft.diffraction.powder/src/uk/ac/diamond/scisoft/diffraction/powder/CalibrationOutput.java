@@ -17,6 +17,7 @@ public class CalibrationOutput {
 	private double residual;
 	private IPowderCalibrationInfo calibrationInfo[];
 	private CalibrationErrorOutput errors;
+	private double[][] covariance;
 	
 	public CalibrationOutput(double wavelength, Dataset beamCentreX, Dataset beamCentreY,
 			Dataset tilt, Dataset tiltAngle, Dataset distance, double residual, CalibrationErrorOutput errors) {
@@ -77,6 +78,18 @@ public class CalibrationOutput {
 		this.calibrationInfo = calibrationInfo;
 	}
 
+	/**
+	 * Covariance matrix of the floating parameters of the calibration model, in the model parameter order,
+	 * null if not available
+	 */
+	public double[][] getCovariance() {
+		return covariance;
+	}
+
+	public void setCovariance(double[][] covariance) {
+		this.covariance = covariance;
+	}
+
 	public String getCalibrationOutputDescription() {
 		if (beamCentreX.getSize() > 1) return "Multi-Image Calibration,\nWavelength (Angstrom): " + wavelength + "\nResidual: " + residual;
 		
@@ -0,0 +1,348 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.eclipse.dawnsci.analysis.api.roi.IPolylineROI;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.IndexIterator;
+
+import uk.ac.diamond.scisoft.analysis.crystallography.HKL;
+import uk.ac.diamond.scisoft.analysis.diffraction.ResolutionEllipseROI;
+
+/**
+ * Cache of the per image ring search of the automatic calibration
+ * <p>
+ * The approximate centre, radial profile, d-spacing to radius map and fitted ring ellipses only depend on the
+ * image values, the calibrant and the ring finding options, so they are keyed on those. Changing any of them
+ * (a new image, calibrant or ring selection) misses the cache, while re-running with different refinement flags
+ * (fix wavelength, distance, tilt etc) goes straight to the ellipse or point calibration.
+ * <p>
+ * The cache is opt in: callers that re-run the same images (such as an interactive session) hold an instance and
+ * pass it to the calibration, otherwise nothing is cached or fingerprinted. Entries are evicted least recently used
+ * first. Everything handed out is a copy, so callers can modify it freely. Thread safe.
+ */
+public class CalibrationSearchCache {
+
+	public static final int DEFAULT_CAPACITY = 8;
+
+	private final Map<SearchKey, Entry> entries;
+	private int hits;
+	private int misses;
+
+	/**
+	 * @param capacity maximum number of images held
+	 */
+	public CalibrationSearchCache(final int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+		entries = new LinkedHashMap<SearchKey, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SearchKey, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public CalibrationSearchCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param key
+	 * @return cached entry or null
+	 */
+	public synchronized Entry get(SearchKey key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return entry;
+	}
+
+	public synchronized void put(SearchKey key, Entry entry) {
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Remove all entries for this image, whatever options they were found with
+	 *
+	 * @param image
+	 */
+	public synchronized void invalidate(IDataset image) {
+		long fingerprint = fingerprint(image);
+		int[] shape = image.getShape();
+		entries.keySet().removeIf(k -> k.fingerprint == fingerprint && Arrays.equals(k.shape, shape));
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return number of lookups that found an entry
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups that found no entry
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Key from everything the ring search reads, the refinement options are deliberately left out
+	 *
+	 * @param image raw (unclipped) image
+	 * @param pxSize
+	 * @param spacings calibrant
+	 * @param centreMaskRadius
+	 * @param params
+	 * @return key
+	 */
+	public static SearchKey createKey(IDataset image, double pxSize, List<HKL> spacings, int centreMaskRadius, SimpleCalibrationParameterModel params) {
+
+		double[] dSpace = new double[spacings.size()];
+		for (int i = 0; i < dSpace.length; i++) dSpace[i] = spacings.get(i).getDNano();
+
+		int[] rings;
+		if (params.isUseRingSet()) {
+			List<Integer> ringList = new ArrayList<Integer>(new TreeSet<Integer>(params.getRingSet()));
+			rings = new int[ringList.size()];
+			for (int i = 0; i < rings.length; i++) rings[i] = ringList.get(i);
+		} else {
+			rings = new int[] {-params.getNumberOfRings()};
+		}
+
+		return new SearchKey(fingerprint(image), image.getShape(), pxSize, dSpace, centreMaskRadius, rings,
+				params.getBaselineWidth(), params.getLowerOutlierPercentile(), params.getUpperOutlierPercentile());
+	}
+
+	/**
+	 * 64 bit hash of the image values
+	 *
+	 * @param image
+	 * @return fingerprint
+	 */
+	public static long fingerprint(IDataset image) {
+		Dataset d = DatasetUtils.convertToDataset(image);
+		IndexIterator it = d.getIterator();
+		long h = 0xcbf29ce484222325L;
+		while (it.hasNext()) {
+			h ^= Double.doubleToLongBits(d.getElementDoubleAbs(it.index));
+			h *= 0x100000001b3L;
+			h ^= h >>> 29;
+		}
+		return h;
+	}
+
+	/**
+	 * Identifies an image and the options used to search it for rings
+	 */
+	public static final class SearchKey {
+
+		private final long fingerprint;
+		private final int[] shape;
+		private final double pxSize;
+		private final double[] dSpace;
+		private final int centreMaskRadius;
+		private final int[] rings;
+		private final int baselineWidth;
+		private final double lowerPercentile;
+		private final double upperPercentile;
+
+		private SearchKey(long fingerprint, int[] shape, double pxSize, double[] dSpace, int centreMaskRadius, int[] rings,
+				int baselineWidth, double lowerPercentile, double upperPercentile) {
+			this.fingerprint = fingerprint;
+			this.shape = shape.clone();
+			this.pxSize = pxSize;
+			this.dSpace = dSpace;
+			this.centreMaskRadius = centreMaskRadius;
+			this.rings = rings;
+			this.baselineWidth = baselineWidth;
+			this.lowerPercentile = lowerPercentile;
+			this.upperPercentile = upperPercentile;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (int) (fingerprint ^ (fingerprint >>> 32));
+			result = prime * result + Arrays.hashCode(shape);
+			long temp;
+			temp = Double.doubleToLongBits(pxSize);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			result = prime * result + Arrays.hashCode(dSpace);
+			result = prime * result + centreMaskRadius;
+			result = prime * result + Arrays.hashCode(rings);
+			result = prime * result + baselineWidth;
+			temp = Double.doubleToLongBits(lowerPercentile);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			temp = Double.doubleToLongBits(upperPercentile);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			SearchKey other = (SearchKey) obj;
+			if (fingerprint != other.fingerprint)
+				return false;
+			if (!Arrays.equals(shape, other.shape))
+				return false;
+			if (Double.doubleToLongBits(pxSize) != Double.doubleToLongBits(other.pxSize))
+				return false;
+			if (!Arrays.equals(dSpace, other.dSpace))
+				return false;
+			if (centreMaskRadius != other.centreMaskRadius)
+				return false;
+			if (!Arrays.equals(rings, other.rings))
+				return false;
+			if (baselineWidth != other.baselineWidth)
+				return false;
+			if (Double.doubleToLongBits(lowerPercentile) != Double.doubleToLongBits(other.lowerPercentile))
+				return false;
+			if (Double.doubleToLongBits(upperPercentile) != Double.doubleToLongBits(other.upperPercentile))
+				return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Result of the ring search of one image, and the ellipses fitted from it
+	 * <p>
+	 * Arrays and profiles passed to the constructor are not copied and must not be modified afterwards, everything
+	 * returned is a copy.
+	 */
+	public static final class Entry {
+
+		private final double[] centre;
+		private final Dataset profileX;
+		private final Dataset profileY;
+		private final Map<Double, Double> dSpaceRadiusMap;
+		private final double[] dSpace;
+		private final double[] radii;
+		private final double[] innerSearch;
+		private final double[] outerSearch;
+
+		private int[] fitOptions;
+		private MultiplePeakFittingEllipseFinder.POIMethod fitMethod;
+		private List<ResolutionEllipseROI> fitted;
+
+		/**
+		 * @param centre approximate beam centre
+		 * @param profileX radial profile axis (pixels)
+		 * @param profileY radial profile
+		 * @param dSpaceRadiusMap matched d-spacing to radius
+		 * @param dSpace d-spacings of the rings to fit
+		 * @param radii approximate radius of each ring
+		 * @param innerSearch inner search width of each ring
+		 * @param outerSearch outer search width of each ring
+		 */
+		public Entry(double[] centre, Dataset profileX, Dataset profileY, Map<Double, Double> dSpaceRadiusMap, double[] dSpace,
+				double[] radii, double[] innerSearch, double[] outerSearch) {
+			this.centre = centre;
+			this.profileX = profileX;
+			this.profileY = profileY;
+			this.dSpaceRadiusMap = Collections.unmodifiableMap(dSpaceRadiusMap);
+			this.dSpace = dSpace;
+			this.radii = radii;
+			this.innerSearch = innerSearch;
+			this.outerSearch = outerSearch;
+		}
+
+		public double[] getCentre() {
+			return centre.clone();
+		}
+
+		public Dataset getProfileX() {
+			return profileX == null ? null : profileX.clone();
+		}
+
+		public Dataset getProfileY() {
+			return profileY == null ? null : profileY.clone();
+		}
+
+		public Map<Double, Double> getdSpaceRadiusMap() {
+			return dSpaceRadiusMap;
+		}
+
+		public double[] getdSpace() {
+			return dSpace.clone();
+		}
+
+		public double[] getRadii() {
+			return radii.clone();
+		}
+
+		public double[] getInnerSearch() {
+			return innerSearch.clone();
+		}
+
+		public double[] getOuterSearch() {
+			return outerSearch.clone();
+		}
+
+		/**
+		 * Ellipses fitted with these options
+		 *
+		 * @param minSpacing
+		 * @param nPoints
+		 * @param nThreads
+		 * @param method
+		 * @return copies of the fitted ellipses, or null if not fitted with these options
+		 */
+		public synchronized List<ResolutionEllipseROI> getFitted(int minSpacing, int nPoints, int nThreads, MultiplePeakFittingEllipseFinder.POIMethod method) {
+			if (fitted == null || fitMethod != method || !Arrays.equals(fitOptions, getFitOptions(minSpacing, nPoints, nThreads))) return null;
+			return copy(fitted);
+		}
+
+		/**
+		 * Keep copies of the ellipses fitted with these options
+		 */
+		public synchronized void setFitted(int minSpacing, int nPoints, int nThreads, MultiplePeakFittingEllipseFinder.POIMethod method, List<ResolutionEllipseROI> fitted) {
+			this.fitOptions = getFitOptions(minSpacing, nPoints, nThreads);
+			this.fitMethod = method;
+			this.fitted = copy(fitted);
+		}
+
+		private static int[] getFitOptions(int minSpacing, int nPoints, int nThreads) {
+			//rings are seeded the same way for any number of threads above one
+			return new int[] {minSpacing, nPoints, nThreads > 1 ? 2 : 1};
+		}
+
+		private static List<ResolutionEllipseROI> copy(List<ResolutionEllipseROI> rois) {
+			List<ResolutionEllipseROI> copies = new ArrayList<ResolutionEllipseROI>(rois.size());
+			for (ResolutionEllipseROI r : rois) {
+				ResolutionEllipseROI c = new ResolutionEllipseROI(r, r.getResolution());
+				if (r.getPoints() != null) c.setPoints((IPolylineROI) r.getPoints().copy());
+				copies.add(c);
+			}
+			return copies;
+		}
+	}
+}
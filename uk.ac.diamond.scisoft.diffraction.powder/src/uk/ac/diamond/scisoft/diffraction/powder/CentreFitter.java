@@ -1,35 +1,38 @@
 package uk.ac.diamond.scisoft.diffraction.powder;
 
-import org.apache.commons.math3.analysis.MultivariateFunction;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
-import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.MultivariateOptimizer;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
-import org.eclipse.january.dataset.Dataset;
-import org.eclipse.january.dataset.Maths;
+import java.util.Arrays;
 
-import uk.ac.diamond.scisoft.analysis.fitting.Fitter;
-import uk.ac.diamond.scisoft.analysis.fitting.functions.Polynomial;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
 
 /**
  * Direct conversion of I12 Matlab fit_centres.m
  * <p>
  * Used to find the equation of the line the ellipse beam centres lie along.
- * 
+ *
  */
 public class CentreFitter {
-	
-	private static final double REL_TOL = 1e-10;
-	private static final double ABS_TOL = 1e-10;
-	private static final int MAX_EVAL = 100000;
-	
+
 	/**
-	 * Uses a NelderMeadSimplex to fit a straight line to x,y. Initial parameters are
-	 * calculated using the first and last values in the array.
+	 * Loss used for the line fit, the robust losses down-weight points (rings) far from the line
+	 * by iteratively reweighted least squares
+	 */
+	public enum Loss {
+		LEAST_SQUARES,
+		HUBER,
+		TUKEY
+	}
+
+	private static final double HUBER_K = 1.345;
+	private static final double TUKEY_C = 4.685;
+	//scales the median absolute deviation to a standard deviation
+	private static final double MAD_SCALE = 1.4826;
+	private static final int MAX_ITERATIONS = 50;
+	private static final double TOLERANCE = 1e-12;
+
+	/**
+	 * Least squares fit of a straight line to x,y
 	 * <p>
 	 * Returns a double array containing m at 0 and c at 1.
 	 * <p>
@@ -38,45 +41,155 @@ public class CentreFitter {
 	 * @return mc
 	 */
 	public static double[] fit(final Dataset x, final Dataset y) {
-		
-		//TODO check same length
-		
-		int last = y.getSize()-1;
-		
-		double m_approx = (y.max().doubleValue() - y.min().doubleValue()) / (x.max().doubleValue() - x.min().doubleValue());
-	    double c_approx = y.getDouble(last) - x.getDouble(last) * m_approx;
-		
-//		double m_approx = (y.getDouble(last) - y.getDouble(0)) / (x.getDouble(last) - x.getDouble(0));
-//	    double c_approx = y.getDouble(last) - x.getDouble(last) * m_approx;
-	    Polynomial poly = null;;
-		try {
-			poly = Fitter.polyFit(new Dataset[]{x}, y, 1e-15, 1);
-			
-			return poly.getParameterValues();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-	    MultivariateOptimizer opt = new SimplexOptimizer(REL_TOL,ABS_TOL);
-	    
-	    MultivariateFunction fun = new MultivariateFunction() {
-			
-			@Override
-			public double value(double[] arg0) {
-				
-				Dataset out = Maths.multiply(x, arg0[0]);
-				out.iadd(arg0[1]);
-				return out.residual(y);
+		return fit(x, y, null, Loss.LEAST_SQUARES);
+	}
+
+	/**
+	 * Weighted fit of a straight line to x,y
+	 * <p>
+	 * Returns a double array containing m at 0 and c at 1.
+	 * <p>
+	 * @param x
+	 * @param y
+	 * @param weights per point weights, may be null
+	 * @param loss
+	 * @return mc
+	 */
+	public static double[] fit(final Dataset x, final Dataset y, double[] weights, Loss loss) {
+		return fitLine(toArray(x), toArray(y), weights, loss);
+	}
 
+	/**
+	 * Weighted fit of a straight line to x,y
+	 * <p>
+	 * Returns a double array containing m at 0 and c at 1. If all x are the same m is 0 and c the mean of y.
+	 * <p>
+	 * @param x
+	 * @param y
+	 * @param weights per point weights, may be null
+	 * @param loss
+	 * @return mc
+	 */
+	public static double[] fitLine(double[] x, double[] y, double[] weights, Loss loss) {
+
+		if (x.length != y.length) throw new IllegalArgumentException("x and y must be the same length");
+		if (weights != null && weights.length != x.length) throw new IllegalArgumentException("Weights must be the same length as x");
+		if (x.length < 2) throw new IllegalArgumentException("Need at least two points to fit a line");
+
+		double[] w = weights == null ? filled(x.length, 1) : weights;
+		double[] mc = leastSquares(x, y, w);
+
+		//all centres at the same x (e.g. an untilted detector), use a flat line through them
+		if (mc == null) return new double[] {0, mean(y)};
+
+		if (loss == null || loss == Loss.LEAST_SQUARES || x.length < 3) return mc;
+
+		//Tukey weights are not convex, so start from the Huber solution
+		mc = reweight(x, y, w, Loss.HUBER, mc);
+		if (loss == Loss.TUKEY) mc = reweight(x, y, w, Loss.TUKEY, mc);
+
+		return mc;
+	}
+
+	private static double[] reweight(double[] x, double[] y, double[] weights, Loss loss, double[] mc) {
+
+		double[] residuals = new double[x.length];
+		double[] w = new double[x.length];
+
+		for (int it = 0; it < MAX_ITERATIONS; it++) {
+
+			for (int i = 0; i < x.length; i++) {
+				residuals[i] = Math.abs(y[i] - (mc[0]*x[i] + mc[1]));
 			}
-		};
-	    
-		PointValuePair result = opt.optimize(new InitialGuess(new double[]{m_approx,c_approx}), GoalType.MINIMIZE,
-				new ObjectiveFunction(fun), new MaxEval(MAX_EVAL),
-				new NelderMeadSimplex(2));	
-		
-		return result.getPointRef();
+
+			double scale = MAD_SCALE*median(residuals);
+			if (scale == 0) scale = Double.MIN_NORMAL;
+
+			for (int i = 0; i < x.length; i++) {
+				w[i] = weights[i]*getRobustWeight(residuals[i]/scale, loss);
+			}
+
+			double[] next = leastSquares(x, y, w);
+			if (next == null) return mc;
+
+			boolean converged = Math.abs(next[0] - mc[0]) <= TOLERANCE*(1 + Math.abs(mc[0]))
+					&& Math.abs(next[1] - mc[1]) <= TOLERANCE*(1 + Math.abs(mc[1]));
+			mc = next;
+			if (converged) break;
+		}
+
+		return mc;
+	}
+
+	private static double getRobustWeight(double u, Loss loss) {
+		switch (loss) {
+		case HUBER:
+			return u <= HUBER_K ? 1 : HUBER_K/u;
+		case TUKEY:
+			if (u >= TUKEY_C) return 0;
+			double t = u/TUKEY_C;
+			t = 1 - t*t;
+			return t*t;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Closed form weighted least squares line, about the weighted means for accuracy
+	 *
+	 * @return mc, or null if the x values (with non-zero weight) are all the same
+	 */
+	private static double[] leastSquares(double[] x, double[] y, double[] w) {
+
+		double sw = 0;
+		double sx = 0;
+		double sy = 0;
+		for (int i = 0; i < x.length; i++) {
+			sw += w[i];
+			sx += w[i]*x[i];
+			sy += w[i]*y[i];
+		}
+
+		if (!(sw > 0)) return null;
+
+		double xm = sx/sw;
+		double ym = sy/sw;
+		double sxx = 0;
+		double sxy = 0;
+		for (int i = 0; i < x.length; i++) {
+			double dx = x[i] - xm;
+			sxx += w[i]*dx*dx;
+			sxy += w[i]*dx*(y[i] - ym);
+		}
+
+		if (!(sxx > 0)) return null;
+
+		double m = sxy/sxx;
+		return new double[] {m, ym - m*xm};
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values) sum += v;
+		return sum/values.length;
+	}
+
+	private static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int n = sorted.length;
+		return n % 2 == 1 ? sorted[n/2] : (sorted[n/2 - 1] + sorted[n/2])/2;
+	}
+
+	private static double[] filled(int n, double value) {
+		double[] out = new double[n];
+		Arrays.fill(out, value);
+		return out;
+	}
+
+	private static double[] toArray(Dataset d) {
+		return DatasetUtils.copy(DoubleDataset.class, d).getData();
 	}
 
 }
@@ -1,5 +1,7 @@
 package uk.ac.diamond.scisoft.diffraction.powder;
 
+import java.util.stream.IntStream;
+
 import org.eclipse.dawnsci.analysis.api.downsample.DownsampleMode;
 import org.eclipse.dawnsci.analysis.dataset.function.Downsample;
 import org.eclipse.dawnsci.analysis.dataset.impl.Image;
@@ -21,19 +23,24 @@ public class CentreGuess {
 	
 	private static Logger logger = LoggerFactory.getLogger(CentreGuess.class);
 	
+	private static final int MIN_DOWNSAMPLE = 5;
+	//larger images are downsampled more so the self-convolution stays around this size
+	private static final int TARGET_SIZE = 512;
+	//downsampled images with more pixels than this use the power of two FFT self-convolution
+	private static final int FFT_THRESHOLD = 128*128;
+	private static final int COLUMN_BLOCK = 64;
+	
 	public static double[] guessCentre(Dataset image) {
 		
-		int downSample = 5;
+		int downSample = getDownsampleFactor(image.getShape());
 		int samFW = 18;
 		int samW = (samFW)/2;
 		
 		Downsample ds = new Downsample(DownsampleMode.MEAN, new int[]{downSample, downSample});
 		
-		Dataset small = ds.value(image).get(0);
+		DoubleDataset small = DatasetUtils.cast(DoubleDataset.class, ds.value(image).get(0));
 		
-		small = DatasetUtils.cast(DoubleDataset.class, small);
-		
-		Dataset conv = Signal.convolve(small, small, new int[]{0,1});
+		Dataset conv = small.getSize() > FFT_THRESHOLD ? selfConvolve(small) : Signal.convolve(small, small, new int[]{0,1});
 		
 		conv = Image.medianFilter(conv, new int[]{3,3});
 		
@@ -74,10 +81,118 @@ public class CentreGuess {
 		
 		double[] coOrds = new double[2];
 		
-		coOrds[0] = ((convCenX +1)/2) * downSample - (downSample-1)/2;		
-		coOrds[1] = ((convCenY +1)/2) * downSample - (downSample-1)/2;	
+		//the self-convolution peaks at twice the centre, and downsampled pixel i is the mean of
+		//pixels i*downSample to (i+1)*downSample - 1
+		coOrds[0] = (convCenX/2) * downSample + (downSample-1)/2.0;
+		coOrds[1] = (convCenY/2) * downSample + (downSample-1)/2.0;
 		
 		return coOrds;
 	}
+	
+	private static int getDownsampleFactor(int[] shape) {
+		int max = Math.max(shape[0], shape[1]);
+		return Math.max(MIN_DOWNSAMPLE, (max + TARGET_SIZE - 1)/TARGET_SIZE);
+	}
+	
+	/**
+	 * Full 2D convolution of an image with itself, via zero padded power of two FFTs
+	 * <p>
+	 * The image is real, so pairs of rows are transformed together and only half of the spectrum is kept
+	 * 
+	 * @param image 2D dataset
+	 * @return convolution, shape [2*h-1, 2*w-1]
+	 */
+	public static DoubleDataset selfConvolve(DoubleDataset image) {
+		
+		int[] shape = image.getShape();
+		int h = shape[0];
+		int w = shape[1];
+		int oh = 2*h - 1;
+		int ow = 2*w - 1;
+		
+		final int fw = FFTPlan.nextPowerOfTwo(ow);
+		final int fh = FFTPlan.nextPowerOfTwo(oh);
+		final int halfWidth = fw/2 + 1;
+		final FFTPlan rowPlan = new FFTPlan(fw);
+		final FFTPlan colPlan = fh == fw ? rowPlan : new FFTPlan(fh);
+		
+		final double[] re = new double[fh*fw];
+		final double[] im = new double[fh*fw];
+		
+		//even rows in the real part, odd rows in the imaginary part of the even row
+		for (int i = 0; i < h; i++) {
+			double[] target = i % 2 == 0 ? re : im;
+			int offset = (i - i % 2)*fw;
+			for (int j = 0; j < w; j++) {
+				target[offset + j] = image.getDouble(i, j);
+			}
+		}
+		
+		IntStream.range(0, (h + 1)/2).parallel().forEach(p -> {
+			int a = 2*p*fw;
+			int b = a + fw;
+			boolean pair = b < re.length;
+			rowPlan.transform(re, im, a, 1, false);
+			for (int k = 0; k < halfWidth; k++) {
+				int nk = a + (fw - k) % fw;
+				double zr = re[a + k];
+				double zi = im[a + k];
+				double znr = re[nk];
+				double zni = im[nk];
+				re[a + k] = (zr + znr)/2;
+				im[a + k] = (zi - zni)/2;
+				if (pair) {
+					re[b + k] = (zi + zni)/2;
+					im[b + k] = (znr - zr)/2;
+				}
+			}
+		});
+		
+		transformColumns(colPlan, re, im, fw, halfWidth, false);
+		
+		for (int i = 0; i < fh; i++) {
+			for (int k = i*fw; k < i*fw + halfWidth; k++) {
+				double a = re[k];
+				double b = im[k];
+				re[k] = a*a - b*b;
+				im[k] = 2*a*b;
+			}
+		}
+		
+		transformColumns(colPlan, re, im, fw, halfWidth, true);
+		
+		//rows now have Hermitian spectra, rebuild pairs as one complex row so one inverse gives two real rows
+		IntStream.range(0, (oh + 1)/2).parallel().forEach(p -> {
+			int a = 2*p*fw;
+			int b = a + fw;
+			boolean pair = 2*p + 1 < oh;
+			for (int k = 0; k < halfWidth; k++) {
+				double ar = re[a + k];
+				double ai = im[a + k];
+				double br = pair ? re[b + k] : 0;
+				double bi = pair ? im[b + k] : 0;
+				re[a + k] = ar - bi;
+				im[a + k] = ai + br;
+				if (k > 0 && k < fw/2) {
+					re[a + fw - k] = ar + bi;
+					im[a + fw - k] = br - ai;
+				}
+			}
+			rowPlan.transform(re, im, a, 1, true);
+		});
+		
+		DoubleDataset out = DatasetFactory.zeros(oh, ow);
+		double[] data = out.getData();
+		for (int i = 0; i < oh; i++) {
+			System.arraycopy(i % 2 == 0 ? re : im, (i - i % 2)*fw, data, i*ow, ow);
+		}
+		
+		return out;
+	}
+	
+	private static void transformColumns(final FFTPlan plan, final double[] re, final double[] im, final int width, final int nColumns, final boolean inverse) {
+		int nBlocks = (nColumns + COLUMN_BLOCK - 1)/COLUMN_BLOCK;
+		IntStream.range(0, nBlocks).parallel().forEach(b -> plan.transformColumns(re, im, width, b*COLUMN_BLOCK, Math.min(nColumns, (b+1)*COLUMN_BLOCK), inverse));
+	}
 
 }
@@ -0,0 +1,184 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+/**
+ * Precomputed radix-2 fast Fourier transform of a fixed (power of two) length
+ * <p>
+ * Works in place on separate real and imaginary arrays, with an offset and stride so rows and columns
+ * of a flattened 2D array can be transformed without copying. A plan holds no mutable state, so it can be
+ * shared between threads.
+ */
+public final class FFTPlan {
+
+	private final int n;
+	private final int[] reversed;
+	private final double[] cos;
+	private final double[] sin;
+
+	/**
+	 * @param n length of the transform, must be a power of two
+	 */
+	public FFTPlan(int n) {
+		if (n < 1 || Integer.bitCount(n) != 1) throw new IllegalArgumentException("FFT length must be a power of two");
+
+		this.n = n;
+
+		int bits = Integer.numberOfTrailingZeros(n);
+		reversed = new int[n];
+		for (int i = 0; i < n; i++) {
+			reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+		}
+
+		cos = new double[n/2];
+		sin = new double[n/2];
+		for (int i = 0; i < n/2; i++) {
+			double a = -2*Math.PI*i/n;
+			cos[i] = Math.cos(a);
+			sin[i] = Math.sin(a);
+		}
+	}
+
+	public int getLength() {
+		return n;
+	}
+
+	/**
+	 * Smallest power of two greater or equal to n
+	 */
+	public static int nextPowerOfTwo(int n) {
+		if (n <= 1) return 1;
+		return Integer.highestOneBit(n - 1) << 1;
+	}
+
+	public void forward(double[] re, double[] im) {
+		transform(re, im, 0, 1, false);
+	}
+
+	/**
+	 * Inverse transform, including the 1/n scaling
+	 */
+	public void inverse(double[] re, double[] im) {
+		transform(re, im, 0, 1, true);
+	}
+
+	/**
+	 * In place transform of the n elements re[offset + i*stride], im[offset + i*stride]
+	 *
+	 * @param re
+	 * @param im
+	 * @param offset
+	 * @param stride
+	 * @param inverse if true the inverse transform is calculated, scaled by 1/n
+	 */
+	public void transform(double[] re, double[] im, int offset, int stride, boolean inverse) {
+
+		for (int i = 0; i < n; i++) {
+			int j = reversed[i];
+			if (j > i) {
+				int a = offset + i*stride;
+				int b = offset + j*stride;
+				double t = re[a];
+				re[a] = re[b];
+				re[b] = t;
+				t = im[a];
+				im[a] = im[b];
+				im[b] = t;
+			}
+		}
+
+		double sign = inverse ? -1 : 1;
+
+		for (int size = 2; size <= n; size <<= 1) {
+			int half = size >> 1;
+			int step = n/size;
+			for (int start = 0; start < n; start += size) {
+				for (int k = 0; k < half; k++) {
+					double wr = cos[k*step];
+					double wi = sign*sin[k*step];
+					int a = offset + (start + k)*stride;
+					int b = a + half*stride;
+					double tr = re[b]*wr - im[b]*wi;
+					double ti = re[b]*wi + im[b]*wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+
+		if (inverse) {
+			double scale = 1.0/n;
+			for (int i = 0; i < n; i++) {
+				int a = offset + i*stride;
+				re[a] *= scale;
+				im[a] *= scale;
+			}
+		}
+	}
+
+	/**
+	 * In place transform down the columns [from, to) of a row-major array with n rows of the given width
+	 * <p>
+	 * Butterflies are applied to whole row segments, which is much faster than transforming each column with a stride
+	 *
+	 * @param re
+	 * @param im
+	 * @param width row length of the arrays
+	 * @param from first column
+	 * @param to end column (exclusive)
+	 * @param inverse if true the inverse transform is calculated, scaled by 1/n
+	 */
+	public void transformColumns(double[] re, double[] im, int width, int from, int to, boolean inverse) {
+
+		int len = to - from;
+		double[] tmp = new double[len];
+
+		for (int i = 0; i < n; i++) {
+			int j = reversed[i];
+			if (j > i) {
+				int a = i*width + from;
+				int b = j*width + from;
+				System.arraycopy(re, a, tmp, 0, len);
+				System.arraycopy(re, b, re, a, len);
+				System.arraycopy(tmp, 0, re, b, len);
+				System.arraycopy(im, a, tmp, 0, len);
+				System.arraycopy(im, b, im, a, len);
+				System.arraycopy(tmp, 0, im, b, len);
+			}
+		}
+
+		double sign = inverse ? -1 : 1;
+
+		for (int size = 2; size <= n; size <<= 1) {
+			int half = size >> 1;
+			int step = n/size;
+			for (int start = 0; start < n; start += size) {
+				for (int k = 0; k < half; k++) {
+					double wr = cos[k*step];
+					double wi = sign*sin[k*step];
+					int a = (start + k)*width + from;
+					int b = a + half*width;
+					for (int c = 0; c < len; c++, a++, b++) {
+						double tr = re[b]*wr - im[b]*wi;
+						double ti = re[b]*wi + im[b]*wr;
+						re[b] = re[a] - tr;
+						im[b] = im[a] - ti;
+						re[a] += tr;
+						im[a] += ti;
+					}
+				}
+			}
+		}
+
+		if (inverse) {
+			double scale = 1.0/n;
+			for (int i = 0; i < n; i++) {
+				int a = i*width + from;
+				for (int c = 0; c < len; c++, a++) {
+					re[a] *= scale;
+					im[a] *= scale;
+				}
+			}
+		}
+	}
+}
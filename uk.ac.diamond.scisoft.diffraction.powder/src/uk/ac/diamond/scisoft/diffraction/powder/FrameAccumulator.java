@@ -0,0 +1,153 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.IndexIterator;
+
+/**
+ * Combines a stack of calibrant frames into a single image with better ring statistics
+ * <p>
+ * Frames are streamed from the source one at a time and summed into a double array in chunks of a fixed
+ * number of frames. With median of chunks, each chunk's mean is kept (as floats) and the output is the
+ * per pixel median over the chunks, which rejects hot pixels and zingers appearing in a minority of chunks.
+ * <p>
+ * At most {@link #MAX_CHUNKS} chunk means are held, longer stacks use proportionally larger chunks. A median
+ * needs at least {@link #MIN_CHUNKS} chunks to reject anything, so shorter stacks are split into smaller chunks
+ * than the chunk size (one frame each if there are fewer frames than that). Frames are spread evenly, chunk
+ * sizes differ by at most one frame.
+ */
+public class FrameAccumulator {
+
+	/**
+	 * Most chunk means held for the median, each is a float image
+	 */
+	public static final int MAX_CHUNKS = 9;
+
+	/**
+	 * Fewest chunks for the median, when there are enough frames
+	 */
+	public static final int MIN_CHUNKS = 3;
+
+	public enum Mode {
+		NONE,
+		SUM,
+		MEAN
+	}
+
+	private final Mode mode;
+	private final int chunkSize;
+	private final boolean medianOfChunks;
+
+	/**
+	 * @param mode sum or mean of the frames
+	 * @param chunkSize number of frames summed together before combining, fewer if needed for {@link #MIN_CHUNKS}
+	 * @param medianOfChunks combine chunks by median rather than sum
+	 */
+	public FrameAccumulator(Mode mode, int chunkSize, boolean medianOfChunks) {
+		if (mode == null || mode == Mode.NONE) throw new IllegalArgumentException("Accumulation mode must be sum or mean");
+		if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be at least 1");
+		this.mode = mode;
+		this.chunkSize = chunkSize;
+		this.medianOfChunks = medianOfChunks;
+	}
+
+	/**
+	 * Single pass over the frames of the source
+	 * <p>
+	 * The diffraction metadata of the first frame, if any, is set on the result.
+	 *
+	 * @param source
+	 * @return summed or averaged image
+	 */
+	public DoubleDataset accumulate(ICalibrationImageSource source) {
+
+		int nFrames = source.size();
+		if (nFrames == 0) throw new IllegalArgumentException("No frames to accumulate");
+
+		int[] shape = source.getShape();
+		int size = 1;
+		for (int s : shape) size *= s;
+
+		int nChunks = Math.max(Math.min(MIN_CHUNKS, nFrames), Math.min(MAX_CHUNKS, nFrames/chunkSize));
+		//chunk c ends before frame (c + 1)*nFrames/nChunks
+		int chunkEnd = nFrames/nChunks;
+
+		double[] total = new double[size];
+		double[] chunk = medianOfChunks ? new double[size] : total;
+		List<float[]> chunkMeans = medianOfChunks ? new ArrayList<float[]>(nChunks) : null;
+		IDiffractionMetadata md = null;
+
+		int inChunk = 0;
+		for (int f = 0; f < nFrames; f++) {
+			IDataset frame = source.getImage(f);
+			if (frame.getSize() != size) throw new IllegalArgumentException("Frame " + f + " has shape " + Arrays.toString(frame.getShape()) + ", expected " + Arrays.toString(shape));
+			if (f == 0) md = frame.getFirstMetadata(IDiffractionMetadata.class);
+
+			add(chunk, frame);
+			inChunk++;
+
+			if (!medianOfChunks) continue;
+
+			if (f == chunkEnd - 1) {
+				float[] mean = new float[size];
+				for (int i = 0; i < size; i++) {
+					mean[i] = (float)(chunk[i]/inChunk);
+				}
+				chunkMeans.add(mean);
+				Arrays.fill(chunk, 0);
+				inChunk = 0;
+				chunkEnd = (int)((chunkMeans.size() + 1L)*nFrames/nChunks);
+			}
+		}
+
+		if (medianOfChunks) {
+			medianInto(chunkMeans, total);
+			//median is of per frame means
+			if (mode == Mode.SUM) scale(total, nFrames);
+		} else if (mode == Mode.MEAN) {
+			scale(total, 1.0/nFrames);
+		}
+
+		DoubleDataset out = DatasetFactory.createFromObject(DoubleDataset.class, total, shape);
+		if (md != null) out.setMetadata(md);
+		return out;
+	}
+
+	private static void add(double[] sum, IDataset frame) {
+		Dataset d = DatasetUtils.convertToDataset(frame);
+		IndexIterator it = d.getIterator();
+		int i = 0;
+		while (it.hasNext()) {
+			sum[i++] += d.getElementDoubleAbs(it.index);
+		}
+	}
+
+	private static void medianInto(List<float[]> chunks, double[] out) {
+		int n = chunks.size();
+		float[] values = new float[n];
+		for (int i = 0; i < out.length; i++) {
+			for (int c = 0; c < n; c++) values[c] = chunks.get(c)[i];
+			out[i] = median(values);
+		}
+	}
+
+	private static double median(float[] values) {
+		int n = values.length;
+		if (n == 1) return values[0];
+		if (n == 2) return (values[0] + (double)values[1])/2;
+		Arrays.sort(values);
+		return n % 2 == 1 ? values[n/2] : (values[n/2 - 1] + (double)values[n/2])/2;
+	}
+
+	private static void scale(double[] values, double factor) {
+		for (int i = 0; i < values.length; i++) values[i] *= factor;
+	}
+}
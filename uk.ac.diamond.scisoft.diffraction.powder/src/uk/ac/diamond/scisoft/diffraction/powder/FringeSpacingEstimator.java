@@ -0,0 +1,177 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.IndexIterator;
+
+/**
+ * Fringe spacing of a grating profile from its autocorrelation, without fitting peaks
+ * <p>
+ * The profile is high pass filtered by subtracting its running mean over the maximum spacing, and the normalised
+ * autocorrelation is calculated directly. The first significant autocorrelation peak at least half as high as the
+ * highest one in the search range gives a first spacing. The peaks at its multiples are then found and parabolically
+ * interpolated, and the spacing is the least squares slope of their lags against order, with an uncertainty
+ * from their scatter about the line. Neither the fringe contrast nor a smooth background affects the result.
+ */
+public final class FringeSpacingEstimator {
+
+	// autocorrelation peaks lower than this fraction of the highest are not taken as the first fringe
+	private static final double PEAK_FRACTION = 0.5;
+	// a peak at twice the lag of the first that is higher than this multiple of it is taken as the fringe spacing
+	private static final double HARMONIC_RATIO = 1.5;
+	// highest order of autocorrelation peak used
+	private static final int MAX_ORDER = 20;
+	// orders of autocorrelation peak needed to measure the spacing and its scatter
+	private static final int MIN_ORDERS = 3;
+	// height of the first autocorrelation peak needed, in units of the standard deviation of the autocorrelation
+	// of white noise
+	private static final double SIGNIFICANCE = 5;
+
+	private FringeSpacingEstimator() {
+	}
+
+	/**
+	 * @param profile finite samples, such as the gap filled log of a box profile across the fringes
+	 * @param n number of samples
+	 * @param minSpacing smallest spacing searched, in samples (at least 2)
+	 * @param maxSpacing largest spacing searched, in samples
+	 * @return spacing and its standard uncertainty in samples, both NaN if no fringes are found
+	 */
+	public static double[] estimate(double[] profile, int n, double minSpacing, double maxSpacing) {
+		if (!(minSpacing >= 2)) throw new IllegalArgumentException("Smallest spacing must be at least 2 samples");
+
+		double[] failed = new double[] {Double.NaN, Double.NaN};
+
+		int maxLag = n/2;
+		int lo = (int) Math.ceil(minSpacing);
+		int hi = Math.min((int) Math.floor(maxSpacing), maxLag - 1);
+		if (hi <= lo) return failed;
+
+		double[] filtered = highPass(profile, n, (int) Math.round(maxSpacing));
+		double[] ac = autocorrelation(filtered, n, maxLag);
+		if (ac == null) return failed;
+
+		// first peak that stands out in the search range
+		double highest = 0;
+		for (int t = lo; t <= hi; t++)
+			if (isMaximum(ac, t) && ac[t] > highest) highest = ac[t];
+		if (!(highest > SIGNIFICANCE/Math.sqrt(n))) return failed;
+
+		int first = -1;
+		for (int t = lo; t <= hi && first < 0; t++)
+			if (isMaximum(ac, t) && ac[t] >= PEAK_FRACTION*highest) first = t;
+
+		// a peak at half the spacing, from a harmonic of the fringe profile, is weaker than the one at the spacing
+		int twice;
+		while ((twice = findMaximumNear(ac, 2*first, Math.max(1, first/4.0))) > 0 && twice <= hi && ac[twice] > HARMONIC_RATIO*ac[first])
+			first = twice;
+
+		// peaks at the multiples of the spacing, fitted by a straight line so a common offset of the
+		// interpolated peaks does not bias the spacing
+		double[] lags = new double[MAX_ORDER + 1];
+		double spacing = ProfilePeakFinder.parabolicPeak(ac, maxLag + 1, first);
+		int orders = 0;
+		for (int m = 1; m <= MAX_ORDER; m++) {
+			int t = m == 1 ? first : findMaximumNear(ac, m*spacing, Math.max(1, spacing/4));
+			if (t < 0 || !(ac[t] > 0)) break;
+			lags[m] = ProfilePeakFinder.parabolicPeak(ac, maxLag + 1, t);
+			orders = m;
+			spacing = lags[m]/m;
+		}
+		if (orders < MIN_ORDERS) return failed;
+
+		double mm = (orders + 1)/2.0;
+		double mt = 0;
+		for (int m = 1; m <= orders; m++)
+			mt += lags[m];
+		mt /= orders;
+		double sxx = 0;
+		double sxy = 0;
+		for (int m = 1; m <= orders; m++) {
+			sxx += (m - mm)*(m - mm);
+			sxy += (m - mm)*(lags[m] - mt);
+		}
+		spacing = sxy/sxx;
+		if (!(spacing >= minSpacing && spacing <= maxSpacing)) return failed;
+
+		double ss = 0;
+		for (int m = 1; m <= orders; m++) {
+			double r = lags[m] - mt - (m - mm)*spacing;
+			ss += r*r;
+		}
+		double uncertainty = Math.sqrt(ss/(orders - 2)/sxx);
+
+		return new double[] {spacing, uncertainty};
+	}
+
+	/**
+	 * @param profile 1D, finite
+	 * @param minSpacing smallest spacing searched, in samples (at least 2)
+	 * @param maxSpacing largest spacing searched, in samples
+	 * @return spacing and its standard uncertainty in samples, both NaN if no fringes are found
+	 */
+	public static double[] estimate(Dataset profile, double minSpacing, double maxSpacing) {
+		int n = profile.getSize();
+		double[] values = new double[n];
+		IndexIterator it = profile.getIterator();
+		int i = 0;
+		while (it.hasNext())
+			values[i++] = profile.getElementDoubleAbs(it.index);
+		return estimate(values, n, minSpacing, maxSpacing);
+	}
+
+	/**
+	 * Profile less its running mean over an odd window of about the given width, narrower near the ends
+	 */
+	private static double[] highPass(double[] profile, int n, int width) {
+		int half = Math.max(1, width/2);
+		double[] cumulative = new double[n + 1];
+		for (int i = 0; i < n; i++)
+			cumulative[i + 1] = cumulative[i] + profile[i];
+
+		double[] out = new double[n];
+		for (int i = 0; i < n; i++) {
+			int a = Math.max(0, i - half);
+			int b = Math.min(n, i + half + 1);
+			out[i] = profile[i] - (cumulative[b] - cumulative[a])/(b - a);
+		}
+		return out;
+	}
+
+	/**
+	 * Unbiased autocorrelation, normalised to one at zero lag
+	 *
+	 * @return lags 0 to maxLag, or null for a constant profile
+	 */
+	private static double[] autocorrelation(double[] values, int n, int maxLag) {
+		double zero = 0;
+		for (int i = 0; i < n; i++)
+			zero += values[i]*values[i];
+		zero /= n;
+		if (!(zero > 0)) return null;
+
+		double[] ac = new double[maxLag + 1];
+		for (int t = 0; t <= maxLag; t++) {
+			double sum = 0;
+			for (int i = 0; i < n - t; i++)
+				sum += values[i]*values[i + t];
+			ac[t] = sum/(n - t)/zero;
+		}
+		return ac;
+	}
+
+	private static boolean isMaximum(double[] ac, int t) {
+		return t > 0 && t < ac.length - 1 && ac[t] > ac[t - 1] && ac[t] >= ac[t + 1];
+	}
+
+	/**
+	 * @return highest local maximum within the given distance of the lag, or -1 if there is none
+	 */
+	private static int findMaximumNear(double[] ac, double lag, double distance) {
+		int a = Math.max(1, (int) Math.ceil(lag - distance));
+		int b = Math.min(ac.length - 2, (int) Math.floor(lag + distance));
+		int best = -1;
+		for (int t = a; t <= b; t++)
+			if (isMaximum(ac, t) && (best < 0 || ac[t] > ac[best])) best = t;
+		return best;
+	}
+}
@@ -15,28 +15,22 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.eclipse.dawnsci.analysis.api.fitting.functions.IPeak;
 import org.eclipse.dawnsci.analysis.api.processing.OperationException;
-import org.eclipse.dawnsci.analysis.dataset.impl.FFT;
 import org.eclipse.dawnsci.analysis.dataset.roi.RectangularROI;
-import org.eclipse.january.DatasetException;
 import org.eclipse.january.MetadataException;
-import org.eclipse.january.dataset.BooleanDataset;
-import org.eclipse.january.dataset.Comparisons;
 import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.DatasetFactory;
-import org.eclipse.january.dataset.DatasetUtils;
 import org.eclipse.january.dataset.DoubleDataset;
-import org.eclipse.january.dataset.ILazyDataset;
 import org.eclipse.january.dataset.IndexIterator;
 import org.eclipse.january.dataset.LinearAlgebra;
 import org.eclipse.january.dataset.Maths;
 import org.eclipse.january.metadata.AxesMetadata;
 import org.eclipse.january.metadata.MetadataFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import uk.ac.diamond.scisoft.analysis.fitting.Fitter;
 import uk.ac.diamond.scisoft.analysis.fitting.Generic1DFitter;
@@ -51,7 +45,22 @@ public class GratingCalibration {
 	private double pixelPitch; // in mm
 	private double patternAngle; // in °
 	private double fringeSpacing; // in pixels
+	private double fringeSpacingUncertainty; // in pixels
 	private double detectorDistance; // in m
+	private boolean validateWithPeakFit;
+
+	private static final Logger logger = LoggerFactory.getLogger(GratingCalibration.class);
+
+	// step of the angular sweep of box profiles, in °
+	private static final double ANGLE_STEP = 1.0;
+	// half width of the angular range about the minimum used to refine the pattern angle, in °
+	private static final double ANGLE_FIT_HALF_RANGE = 10.0;
+	// half width of the integration boxes, in pixels
+	static final int BOX_HALF_WIDTH = 50;
+	// smallest fringe spacing searched for, in pixels
+	static final double MIN_FRINGE_SPACING = 3;
+	// peaks wider than this are not diffraction fringes, in pixels
+	private static final double MAX_FRINGE_FWHM = 10;
 	
 	/**
 	 * Set of keys for the results of the fit.
@@ -60,6 +69,7 @@ public class GratingCalibration {
 	 */
 	private enum FitKeys {
 		FRINGE_SPACING,
+		FRINGE_SPACING_UNCERTAINTY,
 		BEAM_CENTRE_X,
 		BEAM_CENTRE_Y,
 		PATTERN_ANGLE;
@@ -93,30 +103,73 @@ public class GratingCalibration {
 		return patternAngle;
 	}
 
+	/**
+	 * @return mean fringe spacing in pixels. Earlier versions divided the span of the N fitted fringes by N rather
+	 * than N - 1, so this spacing, and the detector distance, are N/(N - 1) larger than they reported
+	 */
 	public double getFringeSpacing() {
 		return fringeSpacing;
 	}
 
+	/**
+	 * @return standard uncertainty of the fringe spacing in pixels, NaN if it was not estimated from the fringes
+	 */
+	public double getFringeSpacingUncertainty() {
+		return fringeSpacingUncertainty;
+	}
+
+	/**
+	 * @return standard uncertainty of the detector distance in m, from that of the fringe spacing
+	 */
+	public double getDetectorDistanceUncertainty() {
+		return distanceFromFringeSpacing(fringeSpacingUncertainty, pixelPitch, gratingspacing, energy);
+	}
+
+	/**
+	 * @param validateWithPeakFit if true, the fringe spacing is also found by fitting peaks to the fringes,
+	 * and a disagreement is logged
+	 */
+	public void setValidateWithPeakFit(boolean validateWithPeakFit) {
+		this.validateWithPeakFit = validateWithPeakFit;
+	}
+
 	public double getDetectorDistance(Dataset input, Dataset mask) {
 		
 		Map<FitKeys, Double> fitResults;
 		try {
-			fitResults = fitGrating(input, mask, beamCentre);
+			fitResults = fitGrating(input, mask, beamCentre, validateWithPeakFit);
 		} catch (Exception e) {
 			// try again without the beam centre
-			fitResults = fitGrating(input, mask, null);
+			fitResults = fitGrating(input, mask, null, validateWithPeakFit);
 		}
 		fringeSpacing = fitResults.get(FitKeys.FRINGE_SPACING);
+		fringeSpacingUncertainty = fitResults.get(FitKeys.FRINGE_SPACING_UNCERTAINTY);
 		patternAngle = fitResults.get(FitKeys.PATTERN_ANGLE);
 		beamCentre = new double[] {fitResults.get(FitKeys.BEAM_CENTRE_X), fitResults.get(FitKeys.BEAM_CENTRE_Y)};
 		
-		final double hc = 1.2398419738620932; // keV nm 
-		
-		detectorDistance = fringeSpacing * pixelPitch * gratingspacing * energy/hc;
+		detectorDistance = distanceFromFringeSpacing(fringeSpacing, pixelPitch, gratingspacing, energy);
 		
 		return detectorDistance;
 	}
 
+	/**
+	 * @param fringeSpacing in pixels
+	 * @param pixelPitch in mm
+	 * @param gratingSpacing in nm
+	 * @param energy in keV
+	 * @return the detector distance in m
+	 */
+	static double distanceFromFringeSpacing(double fringeSpacing, double pixelPitch, double gratingSpacing, double energy) {
+		final double hc = 1.2398419738620932; // keV nm 
+		
+		return fringeSpacing * pixelPitch * gratingSpacing * energy/hc;
+	}
+
+	// Half length of the integration boxes, a quarter of the maximum dimension of the image
+	static int getBoxHalfLength(int[] shape) {
+		return Collections.max(Arrays.asList(ArrayUtils.toObject(shape)))/4;
+	}
+
 	/**
 	 * Fits the beam centre and fringe spacing given an I22 grating calibration dataset.
 	 * @param input
@@ -136,6 +189,20 @@ public class GratingCalibration {
 	 * @return a map of the double result values, encapsulated in a map. The Map is keyed by the GratingFitKeys enum.
 	 */
 	public static Map<FitKeys, Double> fitGrating(Dataset input, Dataset mask, double[] beamCentre) {
+		return fitGrating(input, mask, beamCentre, false);
+	}
+
+	/**
+	 * Fits the beam centre and fringe spacing given an I22 grating calibration dataset.
+	 * @param input
+	 * 				the dataset containing the grating integration
+	 * @param beamCentre
+	 * 					the manually assigned beam centre, if appropriate
+	 * @param validateWithPeakFit
+	 * 					also fit peaks to the fringes, and log any disagreement
+	 * @return a map of the double result values, encapsulated in a map. The Map is keyed by the GratingFitKeys enum.
+	 */
+	public static Map<FitKeys, Double> fitGrating(Dataset input, Dataset mask, double[] beamCentre, boolean validateWithPeakFit) {
 		Map<FitKeys, Double> results = null;
 		
 		boolean calculateBeamCentre = (beamCentre == null);
@@ -145,78 +212,58 @@ public class GratingCalibration {
 		// only proceed if beamCentre has received a valid automatic estimate; it is not null.
 		if (beamCentre != null) {
 		
-			int boxHalfWidth = 50;
-			int boxHalfLength = Collections.max(Arrays.asList(ArrayUtils.toObject(input.getShape())))/4; // maximum dimension of the image
+			int boxHalfWidth = BOX_HALF_WIDTH;
+			int boxHalfLength = getBoxHalfLength(input.getShape());
 
 			// Make the parameters of the integration box
-			Dataset boxCentre = DatasetFactory.createFromObject(new double[] {beamCentre[0], beamCentre[1]});
-			Dataset boxShape = DatasetFactory.createFromObject(new double[] {boxHalfLength*2, boxHalfWidth*2});
-			double[] bounds = new double[] {input.getShape()[0], input.getShape()[1]};
-
-			// box profiles taken across the short edge, running along the long edge
-			List<Dataset> longIntegrals = new ArrayList<Dataset>();
+			double[] boxCentre = new double[] {beamCentre[0], beamCentre[1]};
+			double[] boxShape = new double[] {boxHalfLength*2, boxHalfWidth*2};
 
-			int idTheta =20;
-			for (int iTheta = 0; iTheta < 180; iTheta += idTheta)
-				longIntegrals.add(boxIntegrationAtDegreeAngle(input, mask, iTheta, boxShape, boxCentre, bounds));
+			// box profiles taken across the short edge, running along the long edge, at every angle in one projection
+			int nAngles = (int) Math.round(180/ANGLE_STEP);
+			double[] angles = new double[nAngles];
+			for (int i = 0; i < nAngles; i++)
+				angles[i] = i*ANGLE_STEP;
+			BoxProjector projector = new BoxProjector(boxCentre, boxShape[0], boxShape[1], imageBounds(input), angles);
+			double[][] longIntegrals = projector.project(input, mask);
 
-			// Make longIntegrals into a Dataset, so that I can see it
 			int maxLong = 0;
-			for (Dataset longProfile : longIntegrals)
-				if (longProfile.getSize() > maxLong) maxLong  = longProfile.getSize();
-
-			// allIntegrals makes sure the box profiles all have the same size. It is a roundabout way of padding the data.
-			Dataset allIntegrals = DatasetFactory.zeros(DoubleDataset.class, longIntegrals.size(), maxLong);
-			for (int i = 0; i < longIntegrals.size(); i++) {
-				int offset = (maxLong - longIntegrals.get(i).getSize())/2; 
-				for (int j = 0; j < longIntegrals.get(i).getSize(); j++) {
-					allIntegrals.set(longIntegrals.get(i).getDouble(j), i, j+offset);
-				}
+			for (double[] longProfile : longIntegrals)
+				if (longProfile.length > maxLong) maxLong  = longProfile.length;
+
+			// makes sure the box profiles all have the same size, padding the shortened boxes either side
+			double[] padded = new double[nAngles*maxLong];
+			for (int i = 0; i < nAngles; i++) {
+				int offset = (maxLong - longIntegrals[i].length)/2;
+				System.arraycopy(longIntegrals[i], 0, padded, i*maxLong + offset, longIntegrals[i].length);
 			}
-			double[] angleSpacing = getFourierAngleSpacing(allIntegrals, idTheta, boxHalfLength);
+			double[] angleSpacing = getFourierAngleSpacing(padded, nAngles, maxLong, ANGLE_STEP, boxHalfLength);
 			double optimumAngle = angleSpacing[0];
 			double firstFringeSpacing = angleSpacing[1];
-			Dataset alignedIntegral = boxIntegrationAtDegreeAngle(input, mask, optimumAngle, boxShape, boxCentre, bounds);		
+			Dataset alignedIntegral = boxIntegrationAtDegreeAngle(input, mask, optimumAngle, boxShape, boxCentre);
 			Dataset alignedLog = Maths.log10(alignedIntegral);
 
-			alignedLog = interpolateMissingData(alignedLog, null);
-
-			// Fit 10 pseudo-Voigt peaks, and eliminate any with a FWHM greater
-			// than 10 pixels, since these will not be diffraction fringes
-			List<IPeak> allPeaks = Generic1DFitter.fitPeaks(DatasetFactory.createRange(alignedLog.getSize()), alignedLog, PseudoVoigt.class, 10);
-
-			// List, then remove all peaks with FWHM > 10 pixels
-			List<IPeak> fatPeaks = new ArrayList<IPeak>();
-			for (IPeak peak : allPeaks)
-				if (peak.getFWHM() > 10)
-					fatPeaks.add(peak);
-			allPeaks.removeAll(fatPeaks);
+			alignedLog = ProfileGapFiller.fill(alignedLog, ProfileGapFiller.Method.LINEAR);
 
-			// Check there are at least 2 peaks, otherwise set the spacing to that
-			// determined from getFourierAngleSpacing()
+			// Fringe spacing from the autocorrelation of the profile, otherwise that determined from getFourierAngleSpacing()
+			double[] spacing = FringeSpacingEstimator.estimate(alignedLog, MIN_FRINGE_SPACING, alignedLog.getSize()/6.0);
 			double fringeSpacing = firstFringeSpacing;
-			int minPeaks = 2;
-			if (allPeaks.size() >= minPeaks) {
-				// Get all the peak centres
-				double[] peakLocations = new double[allPeaks.size()];
-				for (int i = 0; i < allPeaks.size(); i++)
-					peakLocations[i] = allPeaks.get(i).getPosition();
-
-				Dataset peakLocationData = DatasetFactory.createFromObject(peakLocations);
-
-				double span = ((double) peakLocationData.max() - (double) peakLocationData.min());
-				double fourierDerivedMultiple = span/fringeSpacing;
-				double roundedMultiple = Math.floor(fourierDerivedMultiple+0.5);
-				double numberOfIdentifiedPeaks = peakLocations.length;
-				fringeSpacing = span/numberOfIdentifiedPeaks;
+			double fringeSpacingUncertainty = Double.NaN;
+			if (!Double.isNaN(spacing[0])) {
+				fringeSpacing = spacing[0];
+				fringeSpacingUncertainty = spacing[1];
 			}
+
+			if (validateWithPeakFit)
+				validateFringeSpacing(alignedLog, fringeSpacing, fringeSpacingUncertainty);
 			
 			if (calculateBeamCentre)
 				beamCentre = refineBeamCentre(input, mask, beamCentre, boxShape, optimumAngle);
 			
 			// Fill the map of the results
-			results = new HashMap<FitKeys, Double>(4);
+			results = new HashMap<FitKeys, Double>(5);
 			results.put(FitKeys.FRINGE_SPACING, fringeSpacing);
+			results.put(FitKeys.FRINGE_SPACING_UNCERTAINTY, fringeSpacingUncertainty);
 			results.put(FitKeys.BEAM_CENTRE_X, beamCentre[0]);
 			results.put(FitKeys.BEAM_CENTRE_Y, beamCentre[1]);
 			results.put(FitKeys.PATTERN_ANGLE, optimumAngle);
@@ -225,6 +272,40 @@ public class GratingCalibration {
 		return results;
 	}
 	
+	// Compare the fringe spacing with that from a fit of 10 pseudo-Voigt peaks
+	static void validateFringeSpacing(Dataset alignedLog, double fringeSpacing, double uncertainty) {
+		double fitSpacing = fitFringeSpacing(alignedLog);
+		if (Double.isNaN(fitSpacing)) {
+			logger.warn("Too few fringes fitted to validate the fringe spacing of {}", fringeSpacing);
+		} else if (!(Math.abs(fitSpacing - fringeSpacing) <= 3*uncertainty + 0.01*fringeSpacing)) {
+			logger.warn("Fringe spacing from the peak fit {} differs from the estimate {} ± {}", fitSpacing, fringeSpacing, uncertainty);
+		} else {
+			logger.debug("Fringe spacing from the peak fit {} agrees with the estimate {} ± {}", fitSpacing, fringeSpacing, uncertainty);
+		}
+	}
+
+	/**
+	 * Mean fringe spacing from a fit of 10 pseudo-Voigt peaks to the profile, leaving out any with a FWHM greater
+	 * than 10 pixels, since these will not be diffraction fringes
+	 * @param profile
+	 * @return the spacing, or NaN if fewer than 2 peaks are left
+	 */
+	static double fitFringeSpacing(Dataset profile) {
+		List<IPeak> allPeaks = Generic1DFitter.fitPeaks(DatasetFactory.createRange(profile.getSize()), profile, PseudoVoigt.class, 10);
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int count = 0;
+		for (IPeak peak : allPeaks) {
+			if (peak.getFWHM() > MAX_FRINGE_FWHM)
+				continue;
+			min = Math.min(min, peak.getPosition());
+			max = Math.max(max, peak.getPosition());
+			count++;
+		}
+		return count >= 2 ? (max - min)/(count - 1) : Double.NaN;
+	}
+
 	// Estimate the beam centre by fitting peaks in each dimension to the entire dataset
 	private static double[] estimateBeamCentre(Dataset input, Dataset mask) {
 		RectangularROI integralBox = new RectangularROI(input.getShape()[0], input.getShape()[1], 0.0);
@@ -242,9 +323,9 @@ public class GratingCalibration {
 	}
 	
 	// Corrects the position of the beam to account for the beam stop blocking the maximum intensity
-	private static double[] refineBeamCentre(Dataset input, Dataset mask, double[] beamCentre, Dataset boxShape, double angle) {
+	private static double[] refineBeamCentre(Dataset input, Dataset mask, double[] beamCentre, double[] boxShape, double angle) {
 		
-		double[] bounds = new double[] {input.getShape()[0], input.getShape()[1]};
+		double[] bounds = imageBounds(input);
 		// Move the centre by the full box width at 90° to the grating pattern. This is the ±y direction
 		Dataset rotationMatrix = rotationMatrix(Math.toRadians(angle));
 		// Basis vectors of the box
@@ -263,17 +344,16 @@ public class GratingCalibration {
 		// direction vector in which to shift the box
 		Dataset offAxisShiftVector = Maths.multiply(shiftSign, yDash);
 		// displacement vector by which to shift the box
-		Dataset offAxisShift = Maths.multiply(boxShape.getDouble(1), offAxisShiftVector);
+		Dataset offAxisShift = Maths.multiply(boxShape[1], offAxisShiftVector);
 		// the old (incorrect) beam centre shifted by the box shift
 		Dataset shiftedBeamCentre = Maths.add(DatasetFactory.createFromObject(beamCentre), offAxisShift);
 		
-		// Get the fitted box parameters of the shifted box for our own use
-		double theta = Math.toRadians(angle);
-		Dataset thisBoxShape = boxShape.copy(DoubleDataset.class);
-		Dataset newBoxCentre = fitInBounds(shiftedBeamCentre, theta, bounds, thisBoxShape);
-		Dataset newBoxOrigin = originFromCentre(newBoxCentre, thisBoxShape, theta);
+		// The shifted box, fitted into the image
+		BoxProjector projector = new BoxProjector(new double[] {shiftedBeamCentre.getDouble(0), shiftedBeamCentre.getDouble(1)},
+				boxShape[0], boxShape[1], bounds, new double[] {angle});
+		Dataset newBoxOrigin = DatasetFactory.createFromObject(projector.getOrigin(0));
 
-		Dataset alignedIntegral = boxIntegrationAtDegreeAngle(input, mask, angle, boxShape, shiftedBeamCentre, bounds);		
+		Dataset alignedIntegral = DatasetFactory.createFromObject(projector.project(input, mask)[0]);
 		// Fit a single peak to the data
 		List<IPeak> thePeaks = Generic1DFitter.fitPeaks(DatasetFactory.createRange(alignedIntegral.getSize()), alignedIntegral, PseudoVoigt.class, 1);
 		// This is the distance from the new origin along the shifted box edge at which the peak occurs
@@ -293,41 +373,31 @@ public class GratingCalibration {
 	}
 	
 	// Perform a box integration at the specified angle
-	private static Dataset boxIntegrationAtDegreeAngle(Dataset input, Dataset mask, double angle, Dataset boxShape, Dataset boxCentre, double[] bounds) {
-		double theta = Math.toRadians(angle);
-		Dataset thisBoxShape = boxShape.copy(DoubleDataset.class);
-		// Get the centre and possibly altered shape of the box at this angle.
-		Dataset newBoxCentre = fitInBounds(boxCentre, theta, bounds, thisBoxShape);
-		Dataset newBoxOrigin = originFromCentre(newBoxCentre, thisBoxShape, theta);
-		// Create the ROI covering this box 
-		RectangularROI integralBox = new RectangularROI(newBoxOrigin.getDouble(0), newBoxOrigin.getDouble(1), thisBoxShape.getDouble(0), thisBoxShape.getDouble(1), theta);
-		//	System.out.println("ROI:" + newBoxOrigin.getDouble(0) + ", " + newBoxOrigin.getDouble(1) + ", " + thisBoxShape.getDouble(0) + ", " + thisBoxShape.getDouble(1) + ", " + (double) iTheta);
-		// box profiles from this ROI
-		Dataset[] boxes = ROIProfile.box(input, mask, integralBox);
-		// Get only the ROI in the first dimension
-		return boxes[0];
+	private static Dataset boxIntegrationAtDegreeAngle(Dataset input, Dataset mask, double angle, double[] boxShape, double[] boxCentre) {
+		BoxProjector projector = new BoxProjector(boxCentre, boxShape[0], boxShape[1], imageBounds(input), new double[] {angle});
+		return DatasetFactory.createFromObject(projector.project(input, mask)[0]);
+	}
+
+	// Width and height of the image, the limits of the box coordinates (x, y)
+	private static double[] imageBounds(Dataset input) {
+		return new double[] {input.getShape()[1], input.getShape()[0]};
 	}
 	
 	// Using Fourier transforms, get the angle of the grating pattern. An
 	// estimate of the spacing is also returned, but is not terribly accurate
-	private static double[] getFourierAngleSpacing(Dataset allIntegrals, double idTheta, double boxHalfLength) {
-		Dataset allFourier = allIntegrals.copy(DoubleDataset.class);
-		int nangles = allIntegrals.getShape()[0];
-		int nData = allIntegrals.getShape()[1];
-		for (int i = 0; i < nangles; i++) {
-			Dataset fft = Maths.abs(FFT.fft(allIntegrals.getSlice(new int[]{i,  0}, new int[] {i+1, nData}, new int[]{1,1})));
-			fft.squeeze();
-			for (int j = 0;  j < nData; j++){
-				allFourier.set(fft.getDouble(j), i, j);
-			}
-		}
+	private static double[] getFourierAngleSpacing(double[] allIntegrals, int nangles, int nData, double idTheta, double boxHalfLength) {
+		// magnitudes of the transforms of all the box profiles at once
+		RealFFT fft = RealFFT.getPlan(nData);
+		int nSpectrum = fft.getSpectrumLength();
+		double[] allFourier = new double[nangles*nSpectrum];
+		fft.magnitudes(allIntegrals, nangles, allFourier);
 		
 		Dataset firstACPeak = DatasetFactory.zeros(DoubleDataset.class, nangles);
 		
 		// Take the first derivative of the first half of the FT'd data
+		Dataset x = DatasetFactory.createRange(nSpectrum);
 		for (int i = 0; i < nangles; i++) {
-			Dataset x = DatasetFactory.createRange(nData/2+1);
-			Dataset y =  allFourier.getSlice(new int[]{i, 0},  new int[]{i+1, nData/2+1}, new int[]{1, 1}).squeeze();
+			Dataset y = DatasetFactory.createFromObject(Arrays.copyOfRange(allFourier, i*nSpectrum, (i+1)*nSpectrum));
 			Dataset ftDerivative = Maths.derivative(x, y, 2);
 			// find the maxima and minima of the power spectrum.
 			List<Double> zeroes = findDatasetZeros(ftDerivative);
@@ -347,9 +417,11 @@ public class GratingCalibration {
 		}
 		
 		mindex = shiftedData.minPos()[0];
-//		Dataset parabolaX = DatasetFactory.createRange(mindex-1, mindex+2, 1);
-		Dataset parabolaX = DatasetFactory.createRange(mindex-1., mindex+2., 1.0);
-		Dataset parabolaY = shiftedData.getSlice(new int[]{mindex-1}, new int[]{mindex+2}, new int[]{1});
+		// Fit over a fixed angular range, so that fine angle steps do not just fit the noise
+		int halfRange = (int) Math.round(ANGLE_FIT_HALF_RANGE/idTheta);
+		halfRange = Math.max(1, Math.min(halfRange, Math.min(mindex, nangles - 1 - mindex)));
+		Dataset parabolaX = DatasetFactory.createRange(mindex-halfRange, mindex+halfRange+1.0, 1.0);
+		Dataset parabolaY = shiftedData.getSlice(new int[]{mindex-halfRange}, new int[]{mindex+halfRange+1}, new int[]{1});
 		
 		AxesMetadata parabolaAxes;
 		try {
@@ -381,66 +453,11 @@ public class GratingCalibration {
 		return new double[] {alignmentAngle, pixelSpacing};
 	}
 	
-	// Fit a box of shape (length, breadth) centred at xo, at angle theta to
-	// the coordinates within the limits 0<=x,y<=xyLimits. Return the centre of
-	// the shifted box
-	private static Dataset fitInBounds(Dataset xo, double theta, double[] xyLimits, Dataset shape) {
-		
-		double[] tRange = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
-		double[] signs = new double[] {-1, +1};
-		// Rotation matrix
-		Dataset rotation = rotationMatrix(theta);
-		
-		// The vector of the shift
-		Dataset u = DatasetFactory.createFromObject(new double[]{1, 0});
-		u = LinearAlgebra.dotProduct(rotation, u);
-		// Iterate over corners, by the signs of the translation
-		for (double cornerX : signs) {
-			for (double cornerY : signs) {
-				Dataset cornerSigns = DatasetFactory.createFromObject(new double[] {cornerX, cornerY});
-				Dataset offset = Maths.multiply(0.5, Maths.multiply(shape, cornerSigns));
-				offset = LinearAlgebra.dotProduct(rotation, offset);
-				Dataset xc = Maths.add(xo, offset);
-				// Now solve the offsets required to keep that corner in the bounds from 0 to [x|y]Limit
-				for (int dimension = 0; dimension < 2; dimension++) {
-					double[] localTRange = new double[2];
-					localTRange[0] = (xc.getDouble(dimension) != 0.0) ? (0 - xc.getDouble(dimension))/u.getDouble(dimension) : 0.0;
-					localTRange[1] = (xc.getDouble(dimension) != xyLimits[dimension]) ? (xyLimits[dimension]- xc.getDouble(dimension))/u.getDouble(dimension) : 0.0;
-					// Sort the array. The range of the t shift parameter is
-					// then the lower and upper values that keep this corner
-					// within the bounds of this dimension. 
-					Arrays.sort(localTRange);
-					// Update the global t range
-					tRange[0] = Math.max(tRange[0], localTRange[0]);
-					tRange[1] = Math.min(tRange[1], localTRange[1]);
-				}
-			}
-		}
-		// Calculate the value it needs to move to get within bounds.
-		double tShifted = 0.0;
-
-		double deltaLength = Math.min(tRange[1] - tRange[0], 0.0); // non-positive value
-		if (deltaLength < 0.0) {
-			tShifted = (tRange[0] + tRange[1])/2;
-			// alter the shape of the box in this case
-			shape.set(shape.getDouble(0) + deltaLength, 0);
-		} else {
-			tShifted = Math.max(tShifted, tRange[0]);
-			tShifted = Math.min(tShifted, tRange[1]);
-		}		
-		Dataset xoShifted = Maths.add(xo, Maths.multiply(tShifted, u));
-		return xoShifted;
-	}
-	
 	private static Dataset rotationMatrix(double theta) {
 		double cTheta = Math.cos(theta), sTheta = Math.sin(theta);
 		return DatasetFactory.createFromObject(new double[] {cTheta,  -sTheta, sTheta, cTheta}, 2, 2);
 	}
 
-	private static Dataset originFromCentre(Dataset centre, Dataset shape, double theta) {
-		return Maths.subtract(centre, LinearAlgebra.dotProduct(rotationMatrix(theta), Maths.multiply(0.5, shape)));
-	}
-
 	/**
 	 * Returns the floating point indices of the zeros of a Dataset
 	 * @param y
@@ -476,64 +493,4 @@ public class GratingCalibration {
 		return zeros;
 	}
 
-	private static Dataset interpolateMissingData(Dataset inputData, Double mdi) {
-		BooleanDataset isMissing = Comparisons.logicalNot(Comparisons.isFinite(inputData));
-		// Also add missing data values, if defined
-		if (mdi != null) {
-			isMissing = Comparisons.logicalOr(isMissing, Comparisons.equalTo(inputData, mdi));
-		}
-		// RLE the missing data blocks. Stored in a map of first element to length of block
-		Map<Integer, Integer> missingDataBlocks = new TreeMap<Integer, Integer>();
-		IndexIterator iter = isMissing.getIterator();
-		while (iter.hasNext()) {
-			if (isMissing.getAbs(iter.index)) {
-				int missingBlockStart = iter.index;
-				int missingBlockLength = 1;
-				while(iter.hasNext()) {
-					if (isMissing.getAbs(iter.index))
-						missingBlockLength++;
-					else
-						break;
-				}
-				missingDataBlocks.put(missingBlockStart, missingBlockLength);
-			}
-		}
-		// Get the abscissae of the data, or build one
-		AxesMetadata aM = inputData.getFirstMetadata(AxesMetadata.class);
-		ILazyDataset[] abscissae = (aM != null) ? inputData.getFirstMetadata(AxesMetadata.class).getAxis(0) : null;
-		Dataset abscissa = null;
-		if (abscissae != null && abscissae[0] != null) {
-			try {
-				abscissa = DatasetUtils.sliceAndConvertLazyDataset(abscissae[0]);
-			} catch (DatasetException e) {
-				// do nothing
-			}
-		}
-		if (abscissa == null) {
-			abscissa = DatasetFactory.createRange(inputData.getSize());
-		}
-
-		// To interpolate the missing data, we can assume an ordered grid,
-		// since missing data can be just left out of a collection of points
-		for (Entry<Integer, Integer> entry : missingDataBlocks.entrySet()) {
-			int nextFiniteIndex = entry.getKey()+entry.getValue();
-			int lastFiniteIndex = entry.getKey()-1;
-			// Deal with end points
-			if (entry.getKey() == 0) {
-				inputData.setSlice(inputData.getObjectAbs(nextFiniteIndex), new int[]{0}, new int[]{nextFiniteIndex}, new int[]{1});
-			} else if (entry.getKey() + entry.getValue() == inputData.getSize()) {
-				inputData.setSlice(inputData.getObjectAbs(lastFiniteIndex), new int[]{lastFiniteIndex+1}, new int[]{inputData.getSize()}, new int[]{1});
-			} else {
-				// Construct the parameters of the interpolation y(x) = a·x + b
-				double a = (inputData.getElementDoubleAbs(nextFiniteIndex) - inputData.getElementDoubleAbs(lastFiniteIndex))/(abscissa.getElementLongAbs(nextFiniteIndex) - abscissa.getElementDoubleAbs(lastFiniteIndex));
-				double b = inputData.getElementDoubleAbs(lastFiniteIndex) - a * abscissa.getElementDoubleAbs(lastFiniteIndex);
-				
-				for (int index = entry.getKey(); index < entry.getKey() + entry.getValue(); index++) {
-					inputData.setObjectAbs(index, a*abscissa.getElementDoubleAbs(index)+b);
-				}
-			}
-		}
-		return inputData;
-	}
-
 }
@@ -0,0 +1,289 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.Arrays;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.IndexIterator;
+
+/**
+ * Clamps hot (and cold) pixels to percentile values, to stop them interfering with centre finding
+ * <p>
+ * The percentiles are found by narrowing histograms rather than sorting the image, and the clamped
+ * values are written into a double buffer which is reused for images of the same shape. The range of
+ * the image is found while copying it, then both percentiles are narrowed on the same passes.
+ * Not thread safe, use one clipper per thread.
+ */
+public class HotPixelClipper {
+
+	private static final int N_BINS = 1 << 12;
+	private static final int MAX_SORTED = 1 << 12;
+
+	private final double lowerPercentile;
+	private final double upperPercentile;
+
+	private final int[][] histograms = new int[2][N_BINS];
+
+	private DoubleDataset buffer;
+
+	/**
+	 * @param lowerPercentile values below this percentile are raised to it
+	 * @param upperPercentile values above this percentile are lowered to it
+	 */
+	public HotPixelClipper(double lowerPercentile, double upperPercentile) {
+		if (lowerPercentile < 0 || upperPercentile > 100 || lowerPercentile >= upperPercentile) {
+			throw new IllegalArgumentException("Percentiles must satisfy 0 <= lower < upper <= 100");
+		}
+		this.lowerPercentile = lowerPercentile;
+		this.upperPercentile = upperPercentile;
+	}
+
+	/**
+	 * Copy the image into the buffer, clamping values outside the percentiles
+	 * <p>
+	 * The returned dataset is overwritten by the next call with an image of the same shape
+	 *
+	 * @param image
+	 * @return clamped image
+	 */
+	public DoubleDataset clip(IDataset image) {
+
+		int[] shape = image.getShape();
+		if (buffer == null || !Arrays.equals(buffer.getShape(), shape)) {
+			buffer = DatasetFactory.zeros(shape);
+		}
+
+		double[] data = buffer.getData();
+		Dataset d = DatasetUtils.convertToDataset(image);
+		IndexIterator it = d.getIterator();
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int count = 0;
+		int i = 0;
+		while (it.hasNext()) {
+			double v = d.getElementDoubleAbs(it.index);
+			data[i++] = v;
+			if (Double.isNaN(v) || Double.isInfinite(v)) continue;
+			if (v < min) min = v;
+			if (v > max) max = v;
+			count++;
+		}
+
+		double[] limits = getPercentileValues(data, min, max, count);
+		if (limits == null) return buffer;
+
+		double lower = limits[0];
+		double upper = limits[1];
+
+		for (i = 0; i < data.length; i++) {
+			double val = data[i];
+			if (val < lower) data[i] = lower;
+			else if (val > upper) data[i] = upper;
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Find the lower and upper percentile values of the data, ignoring NaNs and infinities
+	 *
+	 * @param data
+	 * @return lower and upper values, or null if there are no valid values
+	 */
+	public double[] getPercentileValues(double[] data) {
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int count = 0;
+
+		for (double v : data) {
+			if (Double.isNaN(v) || Double.isInfinite(v)) continue;
+			if (v < min) min = v;
+			if (v > max) max = v;
+			count++;
+		}
+
+		return getPercentileValues(data, min, max, count);
+	}
+
+	private double[] getPercentileValues(double[] data, double min, double max, int count) {
+
+		if (count == 0) return null;
+		if (min == max) return new double[] {min, max};
+
+		long lowerRank = (long)Math.floor(lowerPercentile/100*(count - 1));
+		long upperRank = (long)Math.ceil(upperPercentile/100*(count - 1));
+
+		return selectRanks(data, lowerRank, upperRank, min, max, count);
+	}
+
+	/**
+	 * Values of the given ranks (in sorted order) of the finite data in [min, max], found together by repeatedly
+	 * narrowing a histogram for each rank to the bin containing it, every pass over the data filling both. While
+	 * both ranks are in the same range (the first pass, and usually more when there are hot pixels) only one
+	 * histogram is filled.
+	 */
+	private double[] selectRanks(double[] data, long lowerRank, long upperRank, double min, double max, int count) {
+
+		Selection lower = new Selection(histograms[0], lowerRank, min, max, count);
+		Selection upper = new Selection(histograms[1], upperRank, min, max, count);
+
+		while (!lower.found || !upper.found) {
+			boolean shared = lower.hasSameRange(upper);
+			lower.start();
+			upper.start();
+			for (double v : data) {
+				//also skips NaNs and infinities
+				if (!(v >= min && v <= max)) continue;
+				if (!lower.found) lower.add(v);
+				if (!shared && !upper.found) upper.add(v);
+			}
+			if (shared) upper.copyCounts(lower);
+			lower.finish();
+			upper.finish();
+		}
+
+		return new double[] {lower.result, upper.result};
+	}
+
+	/**
+	 * Search for the value of a rank, in a range [lo, hi) which narrows to one histogram bin each pass.
+	 * Once few enough values are left in the range they are gathered on the next pass and sorted.
+	 */
+	private static class Selection {
+
+		private final int[] histogram;
+		private final long rank;
+
+		private double lo;
+		private double hi;
+		private double width;
+		private double scale;
+		private int inRange;
+		private boolean gather;
+		private double[] gathered;
+
+		private int below;
+		private int inside;
+		private double insideMin;
+		private double insideMax;
+
+		private boolean found;
+		private double result;
+
+		Selection(int[] histogram, long rank, double min, double max, int count) {
+			this.histogram = histogram;
+			this.rank = rank;
+			lo = min;
+			hi = Math.nextUp(max);
+			inRange = count;
+		}
+
+		void start() {
+			if (found) return;
+			below = 0;
+			inside = 0;
+			insideMin = Double.POSITIVE_INFINITY;
+			insideMax = Double.NEGATIVE_INFINITY;
+			gather |= inRange <= MAX_SORTED;
+			if (gather) {
+				gathered = new double[inRange];
+			} else {
+				width = (hi - lo)/N_BINS;
+				scale = 1/width;
+				Arrays.fill(histogram, 0);
+			}
+		}
+
+		boolean hasSameRange(Selection other) {
+			return !found && !other.found && lo == other.lo && hi == other.hi && gather == other.gather;
+		}
+
+		void copyCounts(Selection other) {
+			below = other.below;
+			inside = other.inside;
+			insideMin = other.insideMin;
+			insideMax = other.insideMax;
+			if (gather) {
+				System.arraycopy(other.gathered, 0, gathered, 0, inside);
+			} else {
+				System.arraycopy(other.histogram, 0, histogram, 0, N_BINS);
+			}
+		}
+
+		void add(double v) {
+			if (v < lo) {
+				below++;
+			} else if (v < hi) {
+				if (gather) {
+					gathered[inside] = v;
+				} else {
+					histogram[bin(v)]++;
+				}
+				inside++;
+				if (v < insideMin) insideMin = v;
+				if (v > insideMax) insideMax = v;
+			}
+		}
+
+		void finish() {
+			if (found) return;
+
+			long r = rank - below;
+			r = r < 0 ? 0 : (r >= inside ? inside - 1 : r);
+
+			//only one distinct value left
+			if (insideMin == insideMax) {
+				result = insideMin;
+				found = true;
+				return;
+			}
+
+			if (gather) {
+				Arrays.sort(gathered);
+				result = gathered[(int)r];
+				gathered = null;
+				found = true;
+				return;
+			}
+
+			long cumulative = 0;
+			int bin = N_BINS - 1;
+			for (int i = 0; i < N_BINS; i++) {
+				if (cumulative + histogram[i] > r) {
+					bin = i;
+					break;
+				}
+				cumulative += histogram[i];
+			}
+
+			double nlo = edge(bin);
+			double nhi = edge(bin + 1);
+			//range too narrow to split, gather it all
+			if (nlo <= lo && nhi >= hi) gather = true;
+			lo = nlo;
+			hi = nhi;
+			inRange = histogram[bin];
+		}
+
+		/**
+		 * Bin of a value in [lo, hi), consistent with {@link #edge} so a bin's values are exactly those in
+		 * the range between its edges
+		 */
+		private int bin(double v) {
+			int b = (int)((v - lo)*scale);
+			if (b >= N_BINS) b = N_BINS - 1;
+			//edges collapse onto each other when the range is only a few ulps wide
+			while (b > 0 && v < edge(b)) b--;
+			while (b < N_BINS - 1 && v >= edge(b + 1)) b++;
+			return b;
+		}
+
+		private double edge(int b) {
+			return b >= N_BINS ? hi : lo + b*width;
+		}
+	}
+}
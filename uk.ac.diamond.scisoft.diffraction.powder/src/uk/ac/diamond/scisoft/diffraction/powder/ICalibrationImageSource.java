@@ -0,0 +1,81 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import org.eclipse.january.dataset.IDataset;
+
+/**
+ * Images for a calibration, fetched one at a time when they are needed
+ * <p>
+ * The calibration only holds an image while its rings are found, so implementations which load on demand
+ * (see {@link LazyCalibrationImageSource}) keep memory bounded by a few frames. Must be safe to call
+ * from several threads.
+ */
+public interface ICalibrationImageSource {
+
+	/**
+	 * @return number of images
+	 */
+	public int size();
+
+	/**
+	 * @return shape of each image
+	 */
+	public int[] getShape();
+
+	/**
+	 * @param i
+	 * @return image i, which the caller may hold on to or release
+	 */
+	public IDataset getImage(int i);
+
+	/**
+	 * @param images already loaded images
+	 * @return source of the images
+	 */
+	public static ICalibrationImageSource fromImages(final IDataset... images) {
+		if (images.length == 0) throw new IllegalArgumentException("No images");
+
+		return new ICalibrationImageSource() {
+
+			@Override
+			public int size() {
+				return images.length;
+			}
+
+			@Override
+			public int[] getShape() {
+				return images[0].getShape();
+			}
+
+			@Override
+			public IDataset getImage(int i) {
+				return images[i];
+			}
+		};
+	}
+
+	/**
+	 * @param first image 0 of the source, already read
+	 * @param images
+	 * @return source giving the first image without reading it again, other images are fetched from images
+	 */
+	public static ICalibrationImageSource withFirstImage(final IDataset first, final ICalibrationImageSource images) {
+
+		return new ICalibrationImageSource() {
+
+			@Override
+			public int size() {
+				return images.size();
+			}
+
+			@Override
+			public int[] getShape() {
+				return images.getShape();
+			}
+
+			@Override
+			public IDataset getImage(int i) {
+				return i == 0 ? first : images.getImage(i);
+			}
+		};
+	}
+}
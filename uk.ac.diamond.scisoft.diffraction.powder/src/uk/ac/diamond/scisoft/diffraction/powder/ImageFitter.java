@@ -12,7 +12,8 @@ import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
 import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.DatasetFactory;
-import org.eclipse.january.dataset.Maths;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
 
 /**
  * Direct conversion of I12 Matlab fit_image8.m
@@ -27,8 +28,8 @@ public class ImageFitter {
 	private static final int MAX_EVAL = 100000;
 	
 	/**
-	 * Uses a NelderMeadSimplex with bounds on the beam centre position. Best initial parameters are
-	 * calculated fitting a range of x-centre values.
+	 * Uses a NelderMeadSimplex with bounds on the beam centre position. The initial parameters are
+	 * found by scanning a range of x-centre values, fitting only the major axis scale at each.
 	 * <p>
 	 * Returns a double array containing the x and y positions, the x used to calculate y using the equation fitted earlier
 	 * <p>
@@ -60,53 +61,38 @@ public class ImageFitter {
 		
 		Dataset xApproxGuess = DatasetFactory.createRange(xApprox, xApprox-(xDir*xRange), -xDir*xRange/100);
 		
+		final CentreModel model = new CentreModel(major, x, y, line);
+		
 		MultivariateOptimizer opt = new SimplexOptimizer(REL_TOL,ABS_TOL);
 		MultivariateFunction fun = new MultivariateFunction() {
 
 			@Override
 			public double value(double[] arg0) {
-				
-				Dataset sqrtxval =  calculateLine(x, y, line, arg0);
-				double res =  major.residual(sqrtxval);
-				return res;
+				return model.residual(arg0[0], arg0[1]);
 			}
 		};
 		
-		Dataset errors = DatasetFactory.zeros(xApproxGuess);
-		errors.fill(Double.MAX_VALUE);
+		//coarse scan of the centre, with the best scale for each
+		double bestCentre = xApprox;
+		double bestScale = Math.pow(major.getDouble(last),2);
+		double bestResidual = Double.MAX_VALUE;
+		
+		for (int i = 0; i < xApproxGuess.getSize(); i++) {
+			double centre = xApproxGuess.getDouble(i);
+			double scale = model.fitScale(centre);
+			double res = model.residual(scale, centre);
+			if (res < bestResidual) {
+				bestResidual = res;
+				bestCentre = centre;
+				bestScale = scale;
+			}
+		}
+		
 		PointValuePair result;
 		double offset = 1e12;
 		double[] scale = new double[]{offset*0.25,offset*0.25};
-		for (int i = 0; i < xApproxGuess.count(); i++) {
-			
-			double[] initParam = new double[]{Math.pow(major.getDouble(last),2),xApproxGuess.getDouble(i)};
-			double[] lowerb = new double[]{Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY};
-			double[] upperb = new double[]{Double.POSITIVE_INFINITY,Double.POSITIVE_INFINITY};
-			
-			try {
-				
-				if (xDir == 1) {
-					upperb[1] = x.getDouble(0);
-				} else {
-					lowerb[1] = x.getDouble(0);
-				}
-				
-				MultivariateFunctionPenaltyAdapter of = new MultivariateFunctionPenaltyAdapter(fun, lowerb, upperb, offset, scale);
-				
-				result = opt.optimize(new InitialGuess(initParam), GoalType.MINIMIZE,
-						new ObjectiveFunction(of), new MaxEval(MAX_EVAL),
-						new NelderMeadSimplex(2));	
-				
-				double[] estimates = result.getPointRef();
-				Dataset lineData = calculateLine(x, y, line, estimates);
-				errors.set(major.residual(lineData), i);
-				
-			} catch (Exception e) {
-				//only one fit needs to work, so fine to ignore
-			}
-		}
 		
-		double[] initParam = new double[]{Math.pow(major.getDouble(last),2),xApproxGuess.getDouble(errors.minPos())};
+		double[] initParam = new double[]{bestScale,bestCentre};
 
 		double[] lowerb = new double[]{Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY};
 		double[] upperb = new double[]{Double.POSITIVE_INFINITY,Double.POSITIVE_INFINITY};
@@ -127,7 +113,7 @@ public class ImageFitter {
 		//if the variation in the beam centre is small but the different between the
 		//fit and the starting beam centre is big, flip the bounds and fit again
 		if (x.peakToPeak(true).doubleValue() < 1 
-				&& Math.abs(result.getPointRef()[1] - xApproxGuess.getDouble(errors.minPos())) > 50) {
+				&& Math.abs(result.getPointRef()[1] - bestCentre) > 50) {
 			
 			if (xDir == 1) {
 				lowerb[1] = x.getDouble(0);
@@ -148,23 +134,79 @@ public class ImageFitter {
 		return result.getPointRef();
 	}
 	
-	private static Dataset calculateLine(Dataset x, Dataset y, double[] line, double[] arg0) {
-		Dataset xval = Maths.subtract(x, arg0[1]);
-		xval.ipower(2);
-		double lval = line[0]* arg0[1]+line[1];
-		
-		Dataset yval = Maths.subtract(y, lval);
-		yval.ipower(2);
-		
-		xval.iadd(yval);
+	/**
+	 * Major axis model sqrt(r^2 + a*r), where r is the distance of the ellipse centre from the beam centre
+	 * (xc, line[0]*xc + line[1]), on primitive arrays
+	 */
+	private static class CentreModel {
+		
+		private static final int SCALE_ITERATIONS = 5;
+		
+		private final double[] major;
+		private final double[] x;
+		private final double[] y;
+		private final double[] line;
+		private final double[] r;
+		
+		public CentreModel(Dataset major, Dataset x, Dataset y, double[] line) {
+			this.major = DatasetUtils.copy(DoubleDataset.class, major).getData();
+			this.x = DatasetUtils.copy(DoubleDataset.class, x).getData();
+			this.y = DatasetUtils.copy(DoubleDataset.class, y).getData();
+			this.line = line;
+			this.r = new double[this.major.length];
+		}
 		
-		Dataset sqrtxval = Maths.power(xval, 0.5);
+		private void updateDistances(double centre) {
+			double yc = line[0]*centre + line[1];
+			for (int i = 0; i < r.length; i++) {
+				double dx = x[i] - centre;
+				double dy = y[i] - yc;
+				r[i] = Math.sqrt(dx*dx + dy*dy);
+			}
+		}
 		
-		sqrtxval.imultiply(arg0[0]);
-		sqrtxval.iadd(xval);
-		sqrtxval.ipower(0.5);
+		public double residual(double a, double centre) {
+			updateDistances(centre);
+			double res = 0;
+			for (int i = 0; i < r.length; i++) {
+				double d = major[i] - Math.sqrt(r[i]*r[i] + a*r[i]);
+				res += d*d;
+			}
+			return res;
+		}
 		
-		return sqrtxval;
+		/**
+		 * Best scale a for a fixed centre, from the linear fit of major^2 refined with a few Gauss-Newton steps
+		 */
+		public double fitScale(double centre) {
+			updateDistances(centre);
+			
+			double num = 0;
+			double den = 0;
+			for (int i = 0; i < r.length; i++) {
+				num += r[i]*(major[i]*major[i] - r[i]*r[i]);
+				den += r[i]*r[i];
+			}
+			
+			if (den == 0) return 0;
+			double a = num/den;
+			
+			for (int it = 0; it < SCALE_ITERATIONS; it++) {
+				num = 0;
+				den = 0;
+				for (int i = 0; i < r.length; i++) {
+					double g = Math.sqrt(r[i]*r[i] + a*r[i]);
+					if (!(g > 0)) continue;
+					double dg = r[i]/(2*g);
+					num += (major[i] - g)*dg;
+					den += dg*dg;
+				}
+				if (den == 0) break;
+				a += num/den;
+			}
+			
+			return a;
+		}
 	}
 	
 }
@@ -1,6 +1,14 @@
 package uk.ac.diamond.scisoft.diffraction.powder;
 
 import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
+import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.optim.InitialGuess;
 import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.PointValuePair;
@@ -9,9 +17,13 @@ import org.apache.commons.math3.optim.nonlinear.scalar.MultivariateOptimizer;
 import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+import org.apache.commons.math3.util.Pair;
 import org.eclipse.january.dataset.Dataset;
-import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
 import org.eclipse.january.dataset.Maths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Direct conversion of I12 Matlab fit_DO_lambda.m
@@ -23,10 +35,14 @@ public class LambdaFitter {
 	private static final double REL_TOL = 1e-14;
 	private static final double ABS_TOL = 1e-14;
 	private static final int MAX_EVAL = 100000;
+	private static final int LM_MAX_EVAL = 1000;
+	
+	private static final Logger logger = LoggerFactory.getLogger(LambdaFitter.class);
 	
 	/**
-	 * Uses a NelderMeadSimplex to fit calculated major axis values against measured, to determine distance
-	 * and wavelength.
+	 * Fits calculated major axis values against measured, to determine distance and wavelength.
+	 * <p>
+	 * Uses Levenberg-Marquardt with analytic derivatives, falling back to a NelderMeadSimplex if that fails.
 	 * <p>
 	 * Returns a double array containing distance at 0 and wavelength in angstroms at [1]
 	 * <p>
@@ -40,26 +56,12 @@ public class LambdaFitter {
 	 */
 	public static double[] fit(final Dataset major, final Dataset distance, final Dataset dspace,  final Dataset sint, final double dApprox, final double lApprox) {
 
-		MultivariateOptimizer opt = new SimplexOptimizer(REL_TOL,ABS_TOL);
-		MultivariateFunction fun = new MultivariateFunction() {
-
-			@Override
-			public double value(double[] arg0) {
-
-				return calculateResidual(major, distance, dspace, sint, arg0[0], arg0[1]);
-			}
-		};
-
-		PointValuePair result = opt.optimize(new InitialGuess(new double[]{dApprox,lApprox}), GoalType.MINIMIZE,
-				new ObjectiveFunction(fun), new MaxEval(MAX_EVAL),
-				new NelderMeadSimplex(2));	
-
-		return result.getPointRef();
+		final MajorAxisModel model = new MajorAxisModel(major, distance, dspace, sint, Double.NaN, Double.NaN);
+		return model.fit(new double[]{dApprox,lApprox});
 	}
 	
 	/**
-	 * Uses a NelderMeadSimplex to fit calculated major axis values against measured, to determine distance
-	 * when wavelength is known.
+	 * Fits calculated major axis values against measured, to determine distance when wavelength is known.
 	 * <p>
 	 * Returns a double array containing distance
 	 * <p>
@@ -72,31 +74,15 @@ public class LambdaFitter {
 	 */
 	public static double[] fitKnownWavelength(final Dataset major, final Dataset dspace,  final Dataset sint, final double dApprox, final double wavelength) {
 	
-		final Dataset distance = DatasetFactory.zeros(major);
-		
-		MultivariateOptimizer opt = new SimplexOptimizer(REL_TOL,ABS_TOL);
-		MultivariateFunction fun = new MultivariateFunction() {
-
-			@Override
-			public double value(double[] arg0) {
-
-				return calculateResidual(major, distance, dspace, sint, arg0[0], wavelength);
-			}
-		};
-
-		PointValuePair result = opt.optimize(new InitialGuess(new double[]{dApprox}), GoalType.MINIMIZE,
-				new ObjectiveFunction(fun), new MaxEval(MAX_EVAL),
-				new NelderMeadSimplex(1));	
-
-		return result.getPointRef();
+		final MajorAxisModel model = new MajorAxisModel(major, null, dspace, sint, Double.NaN, wavelength);
+		return model.fit(new double[]{dApprox});
 		
 	}
 	
 	/**
-	 * Uses a NelderMeadSimplex to fit calculated major axis values against measured, to determine wavelength
-	 * when distance is known.
+	 * Fits calculated major axis values against measured, to determine wavelength when distance is known.
 	 * <p>
-	 * Returns a double array containing distance
+	 * Returns a double array containing wavelength
 	 * <p>
 	 * @param major
 	 * @param dspace
@@ -107,30 +93,9 @@ public class LambdaFitter {
 	 */
 	public static double[] fitKnownDistance(final Dataset major, final Dataset dspace,  final Dataset sint, final double dApprox, final double distance) {
 	
-		final Dataset distances = DatasetFactory.zeros(major);
-		
-		MultivariateOptimizer opt = new SimplexOptimizer(REL_TOL,ABS_TOL);
-		MultivariateFunction fun = new MultivariateFunction() {
-
-			@Override
-			public double value(double[] arg0) {
-
-				return calculateResidual(major, distances, dspace, sint, distance , arg0[0]);
-			}
-		};
-
-		PointValuePair result = opt.optimize(new InitialGuess(new double[]{dApprox}), GoalType.MINIMIZE,
-				new ObjectiveFunction(fun), new MaxEval(MAX_EVAL),
-				new NelderMeadSimplex(1));	
-
-		return result.getPointRef();
-		
-	}
-	
-	private static double calculateResidual(final Dataset major, final Dataset distance, final Dataset dspace,  final Dataset sint, final double dApprox, final double lApprox) {
+		final MajorAxisModel model = new MajorAxisModel(major, null, dspace, sint, distance, Double.NaN);
+		return model.fit(new double[]{dApprox});
 		
-		Dataset calcMajor= calculateMajorAxesfinal(distance, dspace, sint, dApprox, lApprox);
-		return major.residual(calcMajor);
 	}
 	
 	public static Dataset calculateMajorAxesfinal(final Dataset distance, final Dataset dspace,  final Dataset sint, final double d0, final double wavelength) {
@@ -157,4 +122,177 @@ public class LambdaFitter {
 		
 		return numer;
 	}
+	
+	/**
+	 * Primitive array version of {@link #calculateMajorAxesfinal(Dataset, Dataset, Dataset, double, double)}
+	 * with derivatives, for fitting the floating parameters (distance and/or wavelength).
+	 * <p>
+	 * The ring terms tan(2 * asin(lambda/(2 * d))) only depend on the wavelength, so are cached for the last wavelength.
+	 */
+	private static class MajorAxisModel {
+		
+		private final double[] major;
+		private final double[] delta;
+		private final double[] dspace;
+		private final double[] sint;
+		private final double fixedDistance;
+		private final double fixedWavelength;
+		
+		private final double[] tan;
+		private final double[] dTan;
+		private double cachedWavelength = Double.NaN;
+		
+		/**
+		 * @param fixedDistance distance, or NaN if fitted
+		 * @param fixedWavelength wavelength, or NaN if fitted
+		 */
+		public MajorAxisModel(Dataset major, Dataset distance, Dataset dspace, Dataset sint, double fixedDistance, double fixedWavelength) {
+			this.major = toArray(major);
+			this.delta = distance == null ? new double[this.major.length] : toArray(distance);
+			this.dspace = toArray(dspace);
+			this.sint = toArray(sint);
+			this.fixedDistance = fixedDistance;
+			this.fixedWavelength = fixedWavelength;
+			tan = new double[this.major.length];
+			dTan = new double[this.major.length];
+		}
+		
+		private static double[] toArray(Dataset d) {
+			return DatasetUtils.copy(DoubleDataset.class, d).getData();
+		}
+		
+		private double getDistance(double[] params) {
+			return Double.isNaN(fixedDistance) ? params[0] : fixedDistance;
+		}
+		
+		private double getWavelength(double[] params) {
+			if (!Double.isNaN(fixedWavelength)) return fixedWavelength;
+			return Double.isNaN(fixedDistance) ? params[1] : params[0];
+		}
+		
+		private void updateWavelength(double wavelength) {
+			if (wavelength == cachedWavelength) return;
+			
+			for (int i = 0; i < tan.length; i++) {
+				double s = wavelength/(2*dspace[i]);
+				double t = Math.tan(2*Math.asin(s));
+				tan[i] = t;
+				//d/dlambda of tan(2 * asin(lambda/(2 * d)))
+				dTan[i] = (1 + t*t)/(dspace[i]*Math.sqrt(1 - s*s));
+			}
+			cachedWavelength = wavelength;
+		}
+		
+		public double residual(double[] params) {
+			double d0 = getDistance(params);
+			updateWavelength(getWavelength(params));
+			
+			double residual = 0;
+			for (int i = 0; i < major.length; i++) {
+				double diff = major[i] - value(i, d0);
+				residual += diff*diff;
+			}
+			return residual;
+		}
+		
+		private double value(int i, double d0) {
+			double ddif = d0 - delta[i];
+			double var = ddif/sint[i];
+			var *= var;
+			double t = tan[i];
+			return t*Math.sqrt(1 - var)*ddif/(1 - (1 + t*t)*var);
+		}
+		
+		/**
+		 * Values and derivatives with respect to the floating parameters
+		 */
+		public void evaluate(double[] params, double[] values, double[][] jacobian) {
+			double d0 = getDistance(params);
+			updateWavelength(getWavelength(params));
+			boolean floatDistance = Double.isNaN(fixedDistance);
+			boolean floatWavelength = Double.isNaN(fixedWavelength);
+			
+			for (int i = 0; i < major.length; i++) {
+				double ddif = d0 - delta[i];
+				double s2 = sint[i]*sint[i];
+				double var = ddif*ddif/s2;
+				double t = tan[i];
+				double root = Math.sqrt(1 - var);
+				double denom = 1 - (1 + t*t)*var;
+				double m = t*root*ddif/denom;
+				values[i] = m;
+				
+				int j = 0;
+				if (floatDistance) {
+					double dVar = 2*ddif/s2;
+					double dRoot = -dVar/(2*root);
+					double dDenom = -(1 + t*t)*dVar;
+					jacobian[i][j++] = t*(root/denom + ddif*dRoot/denom - ddif*root*dDenom/(denom*denom));
+				}
+				if (floatWavelength) {
+					double dmdt = root*ddif/denom + 2*t*t*root*ddif*var/(denom*denom);
+					jacobian[i][j++] = dmdt*dTan[i];
+				}
+			}
+		}
+		
+		public double[] fit(double[] initial) {
+			
+			double[] result = null;
+			
+			try {
+				result = leastSquares(initial);
+			} catch (RuntimeException e) {
+				logger.debug("Least squares fit failed, using simplex: {}", e.getMessage());
+			}
+			
+			if (result != null && Double.isFinite(residual(result))) return result;
+			
+			return simplex(initial);
+		}
+		
+		private double[] leastSquares(double[] initial) {
+			
+			final int n = major.length;
+			final int np = initial.length;
+			
+			MultivariateJacobianFunction function = new MultivariateJacobianFunction() {
+				
+				@Override
+				public Pair<RealVector, RealMatrix> value(RealVector point) {
+					double[] values = new double[n];
+					double[][] jacobian = new double[n][np];
+					evaluate(point.toArray(), values, jacobian);
+					return new Pair<RealVector, RealMatrix>(new ArrayRealVector(values, false), new Array2DRowRealMatrix(jacobian, false));
+				}
+			};
+			
+			LeastSquaresProblem problem = new LeastSquaresBuilder()
+					.start(initial)
+					.target(major)
+					.model(function)
+					.maxEvaluations(LM_MAX_EVAL)
+					.maxIterations(LM_MAX_EVAL)
+					.build();
+			
+			return new LevenbergMarquardtOptimizer().optimize(problem).getPoint().toArray();
+		}
+		
+		private double[] simplex(double[] initial) {
+			MultivariateOptimizer opt = new SimplexOptimizer(REL_TOL,ABS_TOL);
+			MultivariateFunction fun = new MultivariateFunction() {
+
+				@Override
+				public double value(double[] arg0) {
+					return residual(arg0);
+				}
+			};
+
+			PointValuePair result = opt.optimize(new InitialGuess(initial), GoalType.MINIMIZE,
+					new ObjectiveFunction(fun), new MaxEval(MAX_EVAL),
+					new NelderMeadSimplex(initial.length));
+
+			return result.getPointRef();
+		}
+	}
 }
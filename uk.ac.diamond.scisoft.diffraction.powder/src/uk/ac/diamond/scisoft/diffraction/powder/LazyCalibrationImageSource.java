@@ -0,0 +1,69 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.Arrays;
+
+import org.eclipse.january.DatasetException;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+
+/**
+ * Images from the last two dimensions of a lazy dataset, each image is only read when it is requested
+ * <p>
+ * Images are ordered by the leading dimensions of the dataset, last dimension fastest.
+ * <p>
+ * Reads are serialised, as the file readers behind lazy datasets are not in general safe to use from several
+ * threads. Only the ring search of each image runs concurrently.
+ */
+public class LazyCalibrationImageSource implements ICalibrationImageSource {
+
+	private final ILazyDataset lazy;
+	private final int[] shape;
+	private final int size;
+
+	/**
+	 * @param lazy dataset of rank 2 or more
+	 */
+	public LazyCalibrationImageSource(ILazyDataset lazy) {
+		this.lazy = lazy;
+		this.shape = lazy.getShape();
+		if (shape.length < 2) throw new IllegalArgumentException("Dataset " + lazy.getName() + " has illegal shape " + Arrays.toString(shape));
+
+		int n = 1;
+		for (int i = 0; i < shape.length - 2; i++) n *= shape[i];
+		this.size = n;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int[] getShape() {
+		return new int[] {shape[shape.length - 2], shape[shape.length - 1]};
+	}
+
+	@Override
+	public IDataset getImage(int i) {
+		if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Image " + i + " out of range for " + size + " images");
+
+		int rank = shape.length;
+		int[] start = new int[rank];
+		int[] stop = shape.clone();
+
+		int index = i;
+		for (int d = rank - 3; d >= 0; d--) {
+			start[d] = index % shape[d];
+			stop[d] = start[d] + 1;
+			index /= shape[d];
+		}
+
+		try {
+			synchronized (lazy) {
+				return lazy.getSlice(start, stop, null).squeeze();
+			}
+		} catch (DatasetException e) {
+			throw new IllegalStateException("Could not read image " + i + " of " + lazy.getName(), e);
+		}
+	}
+}
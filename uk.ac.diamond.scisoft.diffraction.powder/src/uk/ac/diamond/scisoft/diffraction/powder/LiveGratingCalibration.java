@@ -0,0 +1,334 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.function.Consumer;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detector distance from a stream of grating calibration frames, for following detector moves during SAXS alignment
+ * <p>
+ * The first frame is calibrated with the full search of {@link GratingCalibration}. Later frames are warm started from
+ * the previous pattern angle, beam centre and fringe period: box profiles at the previous angle and either side of it
+ * are taken in one projection, and the fringe period is tracked from the spectral peak near the previous one. The
+ * fringe spacing is then refined by {@link FringeSpacingEstimator} on the profile at the tracked angle, as in the full
+ * search, so the two methods agree. The spectral period is only parabolically interpolated between frequency bins, of
+ * period<sup>2</sup>/n for a profile of n pixels, so it is used for the drift metric, and scaled from the last full
+ * search when the estimator finds no spacing near it.
+ * <p>
+ * The beam centre is held at that of the last full search while tracking. A move of the beam along the fringes does not
+ * change their period, while one across them takes the fringes out of the box, and the loss of contrast triggers a full
+ * search.
+ * <p>
+ * The drift metric is the larger of the relative change in fringe period and the fractional loss of fringe contrast
+ * since the last full search. A full search is run again when it exceeds the threshold, or when the fringes are lost.
+ */
+public class LiveGratingCalibration {
+
+	private static final Logger logger = LoggerFactory.getLogger(LiveGratingCalibration.class);
+
+	public static final double DRIFT_THRESHOLD = 0.1;
+
+	// angle either side of the current pattern angle that is tracked, in °
+	private static final double ANGLE_DELTA = 1.0;
+	// fraction of the previous fringe frequency searched either side of it
+	private static final double FREQUENCY_WINDOW = 0.25;
+
+	private double[] beamCentre; // in pixels, null to estimate it
+	private double gratingspacing; // in nm
+	private double energy; // in keV
+	private double pixelPitch; // in mm
+	private double driftThreshold = DRIFT_THRESHOLD;
+
+	// state carried from frame to frame
+	private boolean tracking;
+	private int frameIndex;
+	private double patternAngle;
+	private double[] currentBeamCentre;
+	private double period;
+	private double referenceSpacing;
+	private double referencePeriod;
+	private double referenceContrast;
+
+	/**
+	 * Calibration result for one frame
+	 */
+	public static class Estimate {
+		private final int frame;
+		private final double distance;
+		private final double fringeSpacing;
+		private final double patternAngle;
+		private final double[] beamCentre;
+		private final double drift;
+		private final boolean fullSearch;
+
+		Estimate(int frame, double distance, double fringeSpacing, double patternAngle, double[] beamCentre, double drift, boolean fullSearch) {
+			this.frame = frame;
+			this.distance = distance;
+			this.fringeSpacing = fringeSpacing;
+			this.patternAngle = patternAngle;
+			this.beamCentre = beamCentre;
+			this.drift = drift;
+			this.fullSearch = fullSearch;
+		}
+
+		/**
+		 * @return index of the frame since the last reset
+		 */
+		public int getFrame() {
+			return frame;
+		}
+
+		/**
+		 * @return detector distance in m
+		 */
+		public double getDistance() {
+			return distance;
+		}
+
+		/**
+		 * @return fringe spacing in pixels
+		 */
+		public double getFringeSpacing() {
+			return fringeSpacing;
+		}
+
+		/**
+		 * @return pattern angle in °
+		 */
+		public double getPatternAngle() {
+			return patternAngle;
+		}
+
+		/**
+		 * @return beam centre in pixels, that of the last full search while tracking
+		 */
+		public double[] getBeamCentre() {
+			return beamCentre.clone();
+		}
+
+		/**
+		 * @return drift metric since the last full search, zero for a full search
+		 */
+		public double getDrift() {
+			return drift;
+		}
+
+		/**
+		 * @return true if this frame was calibrated with the full search
+		 */
+		public boolean isFullSearch() {
+			return fullSearch;
+		}
+	}
+
+	public LiveGratingCalibration() {
+	}
+
+	/**
+	 * @param beamCentre used by each full search, or null to estimate it from the frame
+	 */
+	public void setBeamCentre(double[] beamCentre) {
+		this.beamCentre = beamCentre;
+	}
+
+	public void setGratingspacing(double gratingspacing) {
+		this.gratingspacing = gratingspacing;
+	}
+
+	public void setEnergy(double energy) {
+		this.energy = energy;
+	}
+
+	public void setPixelPitch(double pixelPitch) {
+		this.pixelPitch = pixelPitch;
+	}
+
+	public double getDriftThreshold() {
+		return driftThreshold;
+	}
+
+	/**
+	 * @param driftThreshold drift metric above which a frame is calibrated with the full search
+	 */
+	public void setDriftThreshold(double driftThreshold) {
+		if (!(driftThreshold > 0)) throw new IllegalArgumentException("Drift threshold must be positive");
+		this.driftThreshold = driftThreshold;
+	}
+
+	/**
+	 * Forget the previous frames, so the next frame is calibrated with the full search
+	 */
+	public void reset() {
+		tracking = false;
+		frameIndex = 0;
+	}
+
+	/**
+	 * Calibrate the next frame of the stream
+	 *
+	 * @param input frame
+	 * @param mask can be null
+	 * @return the estimate for this frame
+	 */
+	public Estimate process(Dataset input, Dataset mask) {
+		int frame = frameIndex++;
+
+		if (tracking) {
+			double[] tracked = track(input, mask, patternAngle, currentBeamCentre, period);
+			if (tracked != null) {
+				double drift = Math.max(Math.abs(tracked[1]/referencePeriod - 1), 1 - tracked[2]/referenceContrast);
+				if (drift <= driftThreshold) {
+					patternAngle = tracked[0];
+					period = tracked[1];
+					double fringeSpacing = Double.isNaN(tracked[3]) ? referenceSpacing*period/referencePeriod : tracked[3];
+					double distance = GratingCalibration.distanceFromFringeSpacing(fringeSpacing, pixelPitch, gratingspacing, energy);
+					return new Estimate(frame, distance, fringeSpacing, patternAngle, currentBeamCentre.clone(), drift, false);
+				}
+				logger.debug("Drift {} on frame {}, running full search", drift, frame);
+			} else {
+				logger.debug("Fringes lost on frame {}, running full search", frame);
+			}
+		}
+
+		tracking = false;
+		GratingCalibration gc = new GratingCalibration();
+		gc.setBeamCentre(beamCentre == null ? null : beamCentre.clone());
+		gc.setGratingspacing(gratingspacing);
+		gc.setEnergy(energy);
+		gc.setPixelPitch(pixelPitch);
+		double distance = gc.getDetectorDistance(input, mask);
+
+		patternAngle = gc.getPatternAngle();
+		currentBeamCentre = gc.getBeamCentre();
+		referenceSpacing = gc.getFringeSpacing();
+
+		double[] reference = track(input, mask, patternAngle, currentBeamCentre, referenceSpacing);
+		if (reference != null) {
+			period = referencePeriod = reference[1];
+			referenceContrast = reference[2];
+			tracking = true;
+		} else {
+			logger.warn("Could not find the fringe period to track on frame {}", frame);
+		}
+
+		return new Estimate(frame, distance, referenceSpacing, patternAngle, currentBeamCentre.clone(), 0, true);
+	}
+
+	/**
+	 * Calibrate each frame of a source in turn, passing on each estimate as soon as it is made
+	 * <p>
+	 * Frames that cannot be calibrated are logged and skipped, and the next frame is calibrated with the full search.
+	 *
+	 * @param source frames
+	 * @param mask can be null
+	 * @param consumer of the estimates
+	 */
+	public void process(ICalibrationImageSource source, Dataset mask, Consumer<Estimate> consumer) {
+		for (int i = 0; i < source.size(); i++) {
+			Estimate estimate;
+			try {
+				estimate = process(DatasetUtils.convertToDataset(source.getImage(i)), mask);
+			} catch (Exception e) {
+				logger.warn("Could not calibrate frame {}", i, e);
+				tracking = false;
+				continue;
+			}
+			consumer.accept(estimate);
+		}
+	}
+
+	/**
+	 * Fringe period and contrast at the given angle and either side of it
+	 *
+	 * @return refined angle, period, contrast and the fringe spacing at the angle of highest contrast (NaN if the
+	 * estimator finds none near the period), or null if the fringes are not found near the given period
+	 */
+	private static double[] track(Dataset input, Dataset mask, double angle, double[] centre, double period) {
+		int[] shape = input.getShape();
+		double[] angles = {angle - ANGLE_DELTA, angle, angle + ANGLE_DELTA};
+		BoxProjector projector = new BoxProjector(centre, 2*GratingCalibration.getBoxHalfLength(shape),
+				2*GratingCalibration.BOX_HALF_WIDTH, new double[] {shape[1], shape[0]}, angles);
+		double[][] profiles = projector.project(input, mask);
+
+		double[][] logs = new double[angles.length][];
+		double[] periods = new double[angles.length];
+		double[] contrasts = new double[angles.length];
+		double[] peak = new double[2];
+		int best = 0;
+		for (int i = 0; i < angles.length; i++) {
+			logs[i] = logProfile(profiles[i]);
+			if (logs[i] == null || !findSpectralPeak(logs[i], period, peak)) return null;
+			periods[i] = peak[0];
+			contrasts[i] = peak[1];
+			if (contrasts[i] > contrasts[best]) best = i;
+		}
+
+		// the same estimate of the spacing as the full search, kept if it is the fringes near the tracked period
+		int n = logs[best].length;
+		double spacing = FringeSpacingEstimator.estimate(logs[best], n, GratingCalibration.MIN_FRINGE_SPACING, n/6.0)[0];
+		if (!(Math.abs(spacing/periods[best] - 1) <= FREQUENCY_WINDOW))
+			spacing = Double.NaN;
+
+		// follow the angle of highest contrast
+		double offset = best == 1 ? ProfilePeakFinder.parabolicPeak(contrasts, contrasts.length, 1) : best;
+		return new double[] {angle + (offset - 1)*ANGLE_DELTA, periods[best], contrasts[best], spacing};
+	}
+
+	/**
+	 * @return gap filled log of the profile, or null if there is nothing left to fill from
+	 */
+	private static double[] logProfile(double[] profile) {
+		int n = profile.length;
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++)
+			values[i] = Math.log10(profile[i]);
+		ProfileGapFiller.fill(values, n, ProfileGapFiller.Method.LINEAR);
+		for (int i = 0; i < n; i++)
+			if (!Double.isFinite(values[i])) return null;
+		return values;
+	}
+
+	/**
+	 * Period of the strongest spectral peak of the log profile within the frequency window about the given period
+	 *
+	 * @param log gap filled log profile, finite
+	 * @param out filled with the period in samples and the peak magnitude
+	 * @return false if the peak is at the edge of the window, so not found
+	 */
+	private static boolean findSpectralPeak(double[] log, double period, double[] out) {
+		int n = log.length;
+		if (n < 8 || !(period > 0)) return false;
+
+		double mean = 0;
+		for (int i = 0; i < n; i++)
+			mean += log[i];
+		mean /= n;
+
+		// Hann window, so the slope of the profile does not leak into the fringe frequency
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++)
+			values[i] = (log[i] - mean)*0.5*(1 - Math.cos(2*Math.PI*i/(n - 1)));
+
+		RealFFT fft = RealFFT.getPlan(n);
+		int nSpectrum = fft.getSpectrumLength();
+		double[] spectrum = new double[nSpectrum];
+		fft.magnitudes(values, 1, spectrum);
+
+		double frequency = n/period;
+		int lo = Math.max(2, (int) Math.floor(frequency*(1 - FREQUENCY_WINDOW)));
+		int hi = Math.min(nSpectrum - 2, (int) Math.ceil(frequency*(1 + FREQUENCY_WINDOW)));
+		if (hi - lo < 2) return false;
+
+		int max = lo;
+		for (int k = lo + 1; k <= hi; k++)
+			if (spectrum[k] > spectrum[max]) max = k;
+		if (max == lo || max == hi) return false;
+
+		out[0] = n/ProfilePeakFinder.parabolicPeak(spectrum, nSpectrum, max);
+		out[1] = spectrum[max];
+		return true;
+	}
+}
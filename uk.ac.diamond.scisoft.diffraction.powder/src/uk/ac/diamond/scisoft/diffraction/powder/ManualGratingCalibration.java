@@ -9,28 +9,17 @@
 
 package uk.ac.diamond.scisoft.diffraction.powder;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.eclipse.dawnsci.analysis.api.fitting.functions.IPeak;
 import org.eclipse.dawnsci.analysis.dataset.roi.RectangularROI;
 import org.eclipse.dawnsci.analysis.dataset.roi.SectorROI;
-import org.eclipse.january.DatasetException;
-import org.eclipse.january.dataset.BooleanDataset;
-import org.eclipse.january.dataset.Comparisons;
 import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.DatasetFactory;
-import org.eclipse.january.dataset.DatasetUtils;
-import org.eclipse.january.dataset.ILazyDataset;
-import org.eclipse.january.dataset.IndexIterator;
 import org.eclipse.january.dataset.Maths;
-import org.eclipse.january.metadata.AxesMetadata;
 
 import uk.ac.diamond.scisoft.analysis.fitting.Generic1DFitter;
 import uk.ac.diamond.scisoft.analysis.fitting.functions.PseudoVoigt;
@@ -44,7 +33,9 @@ public class ManualGratingCalibration {
 	private double pixelPitch; // in mm
 	private double patternAngle; // in °
 	private double fringeSpacing; // in pixels
+	private double fringeSpacingUncertainty; // in pixels
 	private double detectorDistance; // in m
+	private boolean validateWithPeakFit;
 	private SectorROI regionOfInterest;
 
 	/**
@@ -54,6 +45,7 @@ public class ManualGratingCalibration {
 	 */
 	private enum FitKeys {
 		FRINGE_SPACING,
+		FRINGE_SPACING_UNCERTAINTY,
 		BEAM_CENTRE_X,
 		BEAM_CENTRE_Y,
 		PATTERN_ANGLE;
@@ -87,33 +79,60 @@ public class ManualGratingCalibration {
 		return patternAngle;
 	}
 
+	/**
+	 * @return mean fringe spacing in pixels, NaN if no fringes were found
+	 */
 	public double getFringeSpacing() {
 		return fringeSpacing;
 	}
 	
+	/**
+	 * @return standard uncertainty of the fringe spacing in pixels, NaN if no fringes were found
+	 */
+	public double getFringeSpacingUncertainty() {
+		return fringeSpacingUncertainty;
+	}
+
+	/**
+	 * @return standard uncertainty of the detector distance in m, from that of the fringe spacing
+	 */
+	public double getDetectorDistanceUncertainty() {
+		return GratingCalibration.distanceFromFringeSpacing(fringeSpacingUncertainty, pixelPitch, gratingspacing, energy);
+	}
+
+	/**
+	 * @param validateWithPeakFit if true, the fringe spacing is also found by fitting peaks to the fringes,
+	 * and a disagreement is logged
+	 */
+	public void setValidateWithPeakFit(boolean validateWithPeakFit) {
+		this.validateWithPeakFit = validateWithPeakFit;
+	}
+	
 	public SectorROI getSectorROI() {
 		return this.regionOfInterest;
 	}
 
+	/**
+	 * @return the detector distance, NaN if no fringes were found in the sector
+	 */
 	public double getDetectorDistance(Dataset input, Dataset mask, SectorROI regionOfInterest, boolean beamCentreRefinement) {
 		// First and foremost, update the internal region of interest
 		this.regionOfInterest = regionOfInterest;
 		
 		Map<FitKeys, Double> fitResults;
 		try {
-			fitResults = fitGrating(input, mask, beamCentre, regionOfInterest, beamCentreRefinement);
+			fitResults = fitGrating(input, mask, beamCentre, regionOfInterest, beamCentreRefinement, validateWithPeakFit);
 		} catch (Exception e) {
 			// try again calculating the beam centre this time...
 			beamCentre = estimateBeamCentre(input, mask);
-			fitResults = fitGrating(input, mask, beamCentre, regionOfInterest, beamCentreRefinement);
+			fitResults = fitGrating(input, mask, beamCentre, regionOfInterest, beamCentreRefinement, validateWithPeakFit);
 		}
 		fringeSpacing = fitResults.get(FitKeys.FRINGE_SPACING);
+		fringeSpacingUncertainty = fitResults.get(FitKeys.FRINGE_SPACING_UNCERTAINTY);
 		patternAngle = fitResults.get(FitKeys.PATTERN_ANGLE);
 		beamCentre = new double[] {fitResults.get(FitKeys.BEAM_CENTRE_X), fitResults.get(FitKeys.BEAM_CENTRE_Y)};
 		
-		final double hc = 1.2398419738620932; // keV nm 
-		
-		detectorDistance = fringeSpacing * pixelPitch * gratingspacing * energy/hc;
+		detectorDistance = GratingCalibration.distanceFromFringeSpacing(fringeSpacing, pixelPitch, gratingspacing, energy);
 		
 		return detectorDistance;
 	}
@@ -128,6 +147,20 @@ public class ManualGratingCalibration {
 	 * @return a map of the double result values, encapsulated in a map. The Map is keyed by the GratingFitKeys enum.
 	 */
 	public static Map<FitKeys, Double> fitGrating(Dataset input, Dataset mask, double[] beamCentre, SectorROI regionOfInterest, boolean beamCentreRefinement) {
+		return fitGrating(input, mask, beamCentre, regionOfInterest, beamCentreRefinement, false);
+	}
+
+	/**
+	 * Fits the beam centre and fringe spacing given an I22 grating calibration dataset.
+	 * @param input
+	 * 				the dataset containing the grating integration
+	 * @param beamCentre
+	 * 					the manually assigned beam centre, if appropriate
+	 * @param validateWithPeakFit
+	 * 					also fit peaks to the fringes, and log any disagreement
+	 * @return a map of the double result values, encapsulated in a map. The Map is keyed by the GratingFitKeys enum.
+	 */
+	public static Map<FitKeys, Double> fitGrating(Dataset input, Dataset mask, double[] beamCentre, SectorROI regionOfInterest, boolean beamCentreRefinement, boolean validateWithPeakFit) {
 		// First let's refine the beam centre from the bounding box that the operator supplied
 		double[] sectorLength = regionOfInterest.getRadii();
 		double[] sectorAngles = regionOfInterest.getAngles();
@@ -152,74 +185,23 @@ public class ManualGratingCalibration {
 		// Get the log
 		Dataset alignedLog = Maths.log10(alignedIntegral);
 		// Interpolate the missing data
-		alignedLog = interpolateMissingData(alignedLog, null);
+		alignedLog = ProfileGapFiller.fill(alignedLog, ProfileGapFiller.Method.LINEAR);
 
-		// Fit 10 pseudo-Voigt peaks, and eliminate any with a FWHM greater
-		// than 10 pixels, since these will not be diffraction fringes
-		List<IPeak> allPeaks = Generic1DFitter.fitPeaks(DatasetFactory.createRange(alignedLog.getSize()), alignedLog, PseudoVoigt.class, 10);
-		
-		// List, then remove all peaks with FWHM > 10 pixels
-		List<IPeak> fatPeaks = new ArrayList<IPeak>();
-		
-		for (IPeak peak : allPeaks)
-			if (peak.getFWHM() > 10)
-				fatPeaks.add(peak);
-		allPeaks.removeAll(fatPeaks);
-		
-		// Create an array for these values
-		double[] peakPositions = new double[allPeaks.size()];
-		
-		// Find all their locations
-		for (int loopIter = 0; loopIter < allPeaks.size(); loopIter ++) {
-			peakPositions[loopIter] = allPeaks.get(loopIter).getPosition();
-		}
-		
-		// Sort the entries for subtraction
-		Arrays.sort(peakPositions);		
-		double[] peakSpaces = new double[peakPositions.length - 1];
-		
-		// Work out the spaces between the peaks
-		for (int loopIter = 1; loopIter < peakPositions.length; loopIter ++) {
-			peakSpaces[loopIter - 1] = peakPositions[loopIter] - peakPositions[loopIter - 1];
-		}
+		// Fringe spacing from the autocorrelation of the profile, NaN if there are no fringes
+		double[] spacing = FringeSpacingEstimator.estimate(alignedLog, GratingCalibration.MIN_FRINGE_SPACING, alignedLog.getSize()/6.0);
+		double peakSpaceMean = spacing[0];
+		double peakSpaceUncertainty = spacing[1];
 
-		// Set up some statistics bits
-		SummaryStatistics stats;
-		double peakSpaceMean = 0.00;
-		double peakSpaceStandardDeviation = 2.00;
-		
-		// Now go through the peak spacings until the std. dev. is less than one pixel
-		while (peakSpaceStandardDeviation >= 1.00) {
-			if (peakSpaces.length > 2) {
-				// Calculate the peak position statistics
-				stats = addToStats(peakSpaces);
-				
-				// Retrieve useful values
-				peakSpaceMean = stats.getMean();
-				peakSpaceStandardDeviation = stats.getStandardDeviation();
-				
-				// Delete values over one standard deviation of the mean
-				peakSpaces = evaluateArray(peakSpaces, peakSpaceMean, peakSpaceStandardDeviation);
-			}
-			// Unless there's only two peaks
-			else if (peakPositions.length == 2) {
-				peakSpaceMean = (peakSpaces[1] - peakSpaces[0]) / 2;
-				peakSpaceStandardDeviation = 0.00;
-			}
-			// Or, if there's nothing, give a zero result back
-			else {
-				peakSpaceMean = 0.00;
-				peakSpaceStandardDeviation = 0.00;
-			}
-			
-		}
+		if (validateWithPeakFit && !Double.isNaN(peakSpaceMean))
+			GratingCalibration.validateFringeSpacing(alignedLog, peakSpaceMean, peakSpaceUncertainty);
 		
 		// Set up a map to return the results
 		Map<FitKeys, Double> results = null;
 
 		// Fill the map of the results
-		results = new HashMap<FitKeys, Double>(4);
+		results = new HashMap<FitKeys, Double>(5);
 		results.put(FitKeys.FRINGE_SPACING, peakSpaceMean);
+		results.put(FitKeys.FRINGE_SPACING_UNCERTAINTY, peakSpaceUncertainty);
 		results.put(FitKeys.BEAM_CENTRE_X, beamCentre[0]);
 		results.put(FitKeys.BEAM_CENTRE_Y, beamCentre[1]);
 		results.put(FitKeys.PATTERN_ANGLE, Math.toDegrees(sectorAngle));
@@ -228,36 +210,6 @@ public class ManualGratingCalibration {
 	}
 	
 	
-	private static SummaryStatistics addToStats(double[] inputArray) {
-		// Create a new statistics object
-		SummaryStatistics stats = new SummaryStatistics();
-		
-		// Add the contents of the array to it, element by element
-		for (int loopIter = 0; loopIter < inputArray.length; loopIter ++) {
-			stats.addValue(inputArray[loopIter]);
-		}
-		
-		// Return the array
-		return stats;
-	}
-	
-
-	private static double[] evaluateArray(double[] peakSpaces, double peakMean, double peakStandardDeviation) {
-		// First a sanity check, if the standard deviation is less than one, then we'll just return the array
-		if (peakStandardDeviation <= 1.00) {
-			return peakSpaces;
-		}
-
-		// Use nice Java 8 syntax to filter through the array and remove spaces that are larger than the
-		// mean plus the standard deviation
-		peakSpaces = Arrays.stream(peakSpaces).filter(spaceStream -> spaceStream < (peakMean + peakStandardDeviation)).toArray();
-		peakSpaces = Arrays.stream(peakSpaces).filter(spaceStream -> spaceStream > (peakMean - peakStandardDeviation)).toArray();
-
-		// Return the array
-		return peakSpaces;
-	}
-	
-	
 	// Estimate the beam centre by fitting peaks in each dimension to the entire dataset
 	// Not currently using but keeping for now
 	private static double[] estimateBeamCentre(Dataset input, Dataset mask) {
@@ -295,8 +247,8 @@ public class ManualGratingCalibration {
 		// Log this dataset and fill in any blanks
 		Dataset yBoxLog = Maths.log10(yBoxIntegral);
 		Dataset xBoxLog = Maths.log10(xBoxIntegral);
-		yBoxLog = interpolateMissingData(yBoxLog, null);
-		xBoxLog = interpolateMissingData(xBoxLog, null);
+		yBoxLog = ProfileGapFiller.fill(yBoxLog, ProfileGapFiller.Method.LINEAR);
+		xBoxLog = ProfileGapFiller.fill(xBoxLog, ProfileGapFiller.Method.LINEAR);
 		// Do a peak fit on this dataset
 		List<IPeak> yPeaks = Generic1DFitter.fitPeaks(DatasetFactory.createRange(yBoxLog.getSize()), yBoxLog, PseudoVoigt.class, 1);
 		List<IPeak> xPeaks = Generic1DFitter.fitPeaks(DatasetFactory.createRange(xBoxLog.getSize()), xBoxLog, PseudoVoigt.class, 1);
@@ -312,66 +264,5 @@ public class ManualGratingCalibration {
 
 		return new double[] {xPosition, yPosition};
 	}
-	
-	
-	private static Dataset interpolateMissingData(Dataset inputData, Double mdi) {
-		BooleanDataset isMissing = Comparisons.logicalNot(Comparisons.isFinite(inputData));
-		// Also add missing data values, if defined
-		if (mdi != null) {
-			isMissing = Comparisons.logicalOr(isMissing, Comparisons.equalTo(inputData, mdi));
-		}
-		// RLE the missing data blocks. Stored in a map of first element to length of block
-		Map<Integer, Integer> missingDataBlocks = new TreeMap<Integer, Integer>();
-		IndexIterator iter = isMissing.getIterator();
-		while (iter.hasNext()) {
-			if (isMissing.getAbs(iter.index)) {
-				int missingBlockStart = iter.index;
-				int missingBlockLength = 1;
-				while(iter.hasNext()) {
-					if (isMissing.getAbs(iter.index))
-						missingBlockLength++;
-					else
-						break;
-				}
-				missingDataBlocks.put(missingBlockStart, missingBlockLength);
-			}
-		}
-		// Get the abscissae of the data, or build one
-		AxesMetadata aM = inputData.getFirstMetadata(AxesMetadata.class);
-		ILazyDataset[] abscissae = (aM != null) ? inputData.getFirstMetadata(AxesMetadata.class).getAxis(0) : null;
-		Dataset abscissa = null;
-		if (abscissae != null && abscissae[0] != null) {
-			try {
-				abscissa = DatasetUtils.sliceAndConvertLazyDataset(abscissae[0]);
-			} catch (DatasetException e) {
-				// do nothing
-			}
-		}
-		if (abscissa == null) {
-			abscissa = DatasetFactory.createRange(inputData.getSize());
-		}
-
-		// To interpolate the missing data, we can assume an ordered grid,
-		// since missing data can be just left out of a collection of points
-		for (Entry<Integer, Integer> entry : missingDataBlocks.entrySet()) {
-			int nextFiniteIndex = entry.getKey()+entry.getValue();
-			int lastFiniteIndex = entry.getKey()-1;
-			// Deal with end points
-			if (entry.getKey() == 0) {
-				inputData.setSlice(inputData.getObjectAbs(nextFiniteIndex), new int[]{0}, new int[]{nextFiniteIndex}, new int[]{1});
-			} else if (entry.getKey() + entry.getValue() == inputData.getSize()) {
-				inputData.setSlice(inputData.getObjectAbs(lastFiniteIndex), new int[]{lastFiniteIndex+1}, new int[]{inputData.getSize()}, new int[]{1});
-			} else {
-				// Construct the parameters of the interpolation y(x) = a·x + b
-				double a = (inputData.getElementDoubleAbs(nextFiniteIndex) - inputData.getElementDoubleAbs(lastFiniteIndex))/(abscissa.getElementLongAbs(nextFiniteIndex) - abscissa.getElementDoubleAbs(lastFiniteIndex));
-				double b = inputData.getElementDoubleAbs(lastFiniteIndex) - a * abscissa.getElementDoubleAbs(lastFiniteIndex);
-				
-				for (int index = entry.getKey(); index < entry.getKey() + entry.getValue(); index++) {
-					inputData.setObjectAbs(index, a*abscissa.getElementDoubleAbs(index)+b);
-				}
-			}
-		}
-		return inputData;
-	}
 
 }
@@ -92,6 +92,12 @@ public class MovingBeamCalibrationParameterModel extends SimpleCalibrationParame
 		return (!isOffsetCalibration) ? geomCalibrationOptions.getMetadata(params,md): offsetCalibrationOptions.getMetadata(params, md);  
 	}
 	
+	@Override
+	public boolean updateMetadata(double[] params, IDiffractionMetadata md) {
+		//both refinements build their detector differently to the simple model
+		return false;
+	}
+	
 	@Override
 	public double[] getInitialParams(IDiffractionMetadata md) {
 		//curently the offsetCalibrationOptions refinement runs slightly differently to the geomCalibrationOptionsGroup
@@ -157,7 +163,7 @@ public class MovingBeamCalibrationParameterModel extends SimpleCalibrationParame
 		@Override
 		public int hashCode() {
 			final int prime = 31;
-			int result = getOuterType().hashCode();
+			int result = 1;
 			result = prime * result + (floatDistance ? 1231 : 1237);
 			result = prime * result + (floatEnergy ? 1231 : 1237);
 			result = prime * result + (floatBeamCentre ? 1231 : 1237);
@@ -172,6 +178,10 @@ public class MovingBeamCalibrationParameterModel extends SimpleCalibrationParame
 			if (getClass() != obj.getClass())
 				return false;
 			GeometryCalibrationOptions other = (GeometryCalibrationOptions) obj;
+			if (floatDistance != other.floatDistance)
+				return false;
+			if (floatEnergy != other.floatEnergy)
+				return false;
 			if (floatBeamCentre != other.floatBeamCentre)
 				return false;
 			if (floatTilt != other.floatTilt)
@@ -312,10 +322,6 @@ public class MovingBeamCalibrationParameterModel extends SimpleCalibrationParame
 			
 			return new DiffractionMetadata(null, d, ndce);
 		}
-
-		private MovingBeamCalibrationParameterModel getOuterType() {
-			return MovingBeamCalibrationParameterModel.this;
-		}
 		
 	}
 	
@@ -323,7 +329,7 @@ public class MovingBeamCalibrationParameterModel extends SimpleCalibrationParame
 		@Override
 		public int hashCode() {
 			final int prime = 31;
-			int result = getOuterType().hashCode();
+			int result = 1;
 			result = prime * result + (floatX ? 1231 : 1237);
 			result = prime * result + (floatY ? 1231 : 1237);
 			result = prime * result + (floatZ ? 1231 : 1237);
@@ -401,10 +407,6 @@ public class MovingBeamCalibrationParameterModel extends SimpleCalibrationParame
 			return MovingBeamCalibrationParameterModel.getOffsetMetadata(md, offsets);
 		}
 
-		private MovingBeamCalibrationParameterModel getOuterType() {
-			return MovingBeamCalibrationParameterModel.this;
-		}
-
 	}
 
 	@Override
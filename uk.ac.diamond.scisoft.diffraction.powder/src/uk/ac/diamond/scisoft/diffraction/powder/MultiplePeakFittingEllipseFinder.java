@@ -5,6 +5,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.stream.IntStream;
 
 import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
 import org.eclipse.dawnsci.analysis.dataset.roi.LinearROI;
@@ -35,8 +36,46 @@ public class MultiplePeakFittingEllipseFinder {
 
 	private static final int MAX_POSITION_SHIFT = 20;
 	private static final double ANGULAR_STEP = Math.PI/32;
+	private static final int MAX_PEAKS = 10;
+	//samples either side of a maximum searched for its background
+	private static final int PEAK_WINDOW = MAX_POSITION_SHIFT;
+	//peak height above background, in units of the profile noise
+	private static final double PEAK_SIGNIFICANCE = 5;
+	//lower for the short segments around a ring, where the peak itself inflates the noise estimate
+	private static final double POI_SIGNIFICANCE = 3;
+	
+	/**
+	 * How points of interest are found in the radial segments around a ring
+	 */
+	public enum POIMethod {
+		/**
+		 * Fit a Gaussian to each segment
+		 */
+		FIT,
+		/**
+		 * Background subtracted centroid of the peak in each segment, only fitting segments without a clear peak
+		 */
+		CENTROID
+	}
+	
+	private static final ThreadLocal<ProfileScratch> SCRATCH = ThreadLocal.withInitial(ProfileScratch::new);
 	
 	public static List<EllipticalROI> findEllipses(Dataset image, double[] approxCentre) {
+		return findEllipses(image, approxCentre, false);
+	}
+	
+	/**
+	 * Find ellipses from the peaks in radial profiles through the approximate centre
+	 * <p>
+	 * The profiles are sampled and searched for peaks in parallel. Peaks are found as local maxima positioned
+	 * by their intensity centroid, optionally refined by fitting Gaussians to the whole profile.
+	 * 
+	 * @param image
+	 * @param approxCentre
+	 * @param refineWithFit fit up to 10 Gaussians to each profile (slow), the centroid peaks are used if the fit fails
+	 * @return ellipses
+	 */
+	public static List<EllipticalROI> findEllipses(final Dataset image, final double[] approxCentre, final boolean refineWithFit) {
 		//TODO check image 2D
 		final int[] shape = image.getShape();
 		final int h = shape[0];
@@ -50,47 +89,29 @@ public class MultiplePeakFittingEllipseFinder {
 		dist =  Math.hypot(approxCentre[0],h - approxCentre[1]);
 		maxDist = maxDist < dist ? dist : maxDist;
 		
+		//one sample per pixel from the centre
+		final int nSamples = (int)Math.ceil(maxDist) + 1;
+		final int nAngles = (int)Math.ceil(FULL_CIRCLE/ANGULAR_STEP);
 		
-		//First quadrant
+		@SuppressWarnings("unchecked")
+		final TreeSet<double[]>[] results = new TreeSet[nAngles];
 		
-		double currentAngle = -Math.PI;
+		IntStream.range(0, nAngles).parallel().forEach(a -> {
+			double angle = -Math.PI + a*ANGULAR_STEP;
+			try {
+				results[a] = findProfilePeaks(image, approxCentre, angle, nSamples, refineWithFit);
+			} catch (Exception e) {
+				logger.debug("Could not find peaks at angle {}: {}", angle, e.getMessage());
+			}
+		});
 		
 		List<TreeSet<double[]>> foundParams = new ArrayList<TreeSet<double[]>>();
 		List<Double> angles = new ArrayList<Double>();
 		
-		while (currentAngle < Math.PI) {
-			Dataset profile;
-			List<CompositeFunction> peaks;
-			
-			profile = getProfile(image, approxCentre, currentAngle, 0, maxDist);
-			Dataset x = DatasetFactory.createRange(IntegerDataset.class, profile.getSize());
-			
-			try {
-				peaks = Generic1DFitter.fitPeakFunctions(x, profile, Gaussian.class, new GeneticAlg(0.0001),
-						10,3);
-			} catch (Exception e) {
-				e.printStackTrace();
-				continue;
-			}
-			
-			TreeSet<double[]> vals = new TreeSet<double[]>(new Comparator<double[]>() {
-
-				@Override
-				public int compare(double[] o1, double[] o2) {
-					return Double.compare(o1[0], o2[0]);
-				}
-			});
-			
-			if (peaks == null) continue;
-			
-			for (CompositeFunction func : peaks) {
-				vals.add(new double[] {func.getParameter(0).getValue(), func.val(func.getParameter(0).getValue()),func.getParameter(1).getValue()});
-			}
-			
-			foundParams.add(vals);
-			angles.add(currentAngle);
-			
-			currentAngle += ANGULAR_STEP;
+		for (int a = 0; a < nAngles; a++) {
+			if (results[a] == null) continue;
+			foundParams.add(results[a]);
+			angles.add(-Math.PI + a*ANGULAR_STEP);
 		}
 		
 		cleanFoundPeaks(foundParams);
@@ -101,12 +122,92 @@ public class MultiplePeakFittingEllipseFinder {
 		
 	}
 	
+	/**
+	 * Peaks of one radial profile, each as {position, height, width}
+	 */
+	private static TreeSet<double[]> findProfilePeaks(Dataset image, double[] centre, double angle, int nSamples, boolean refineWithFit) {
+		
+		ProfileScratch scratch = SCRATCH.get();
+		scratch.ensure(nSamples);
+		double[] profile = scratch.profile;
+		
+		double length = nSamples - 1;
+		ProfilePeakFinder.sample(image, centre[0], centre[1], centre[0] + length*Math.cos(angle), centre[1] + length*Math.sin(angle), nSamples, profile);
+		
+		//the profile ends where it leaves the image
+		int n = nSamples;
+		while (n > 0 && Double.isNaN(profile[n-1])) n--;
+		
+		TreeSet<double[]> vals = new TreeSet<double[]>(new Comparator<double[]>() {
+
+			@Override
+			public int compare(double[] o1, double[] o2) {
+				return Double.compare(o1[0], o2[0]);
+			}
+		});
+		
+		if (n < 3) return vals;
+		
+		if (refineWithFit) {
+			List<CompositeFunction> peaks = fitProfile(profile, n);
+			if (peaks != null && !peaks.isEmpty()) {
+				for (CompositeFunction func : peaks) {
+					vals.add(new double[] {func.getParameter(0).getValue(), func.val(func.getParameter(0).getValue()),func.getParameter(1).getValue()});
+				}
+				return vals;
+			}
+		}
+		
+		double[] out = scratch.peaks;
+		int nPeaks = ProfilePeakFinder.findPeaks(profile, n, PEAK_WINDOW, PEAK_SIGNIFICANCE, MAX_PEAKS, scratch.work, out);
+		for (int i = 0; i < nPeaks; i++) {
+			int o = i*ProfilePeakFinder.PEAK_SIZE;
+			vals.add(new double[] {out[o], out[o+1], out[o+2]});
+		}
+		
+		return vals;
+	}
+	
+	private static List<CompositeFunction> fitProfile(double[] profile, int n) {
+		DoubleDataset y = DatasetFactory.zeros(DoubleDataset.class, n);
+		for (int i = 0; i < n; i++) {
+			double v = profile[i];
+			y.setAbs(i, Double.isNaN(v) ? 0 : v);
+		}
+		Dataset x = DatasetFactory.createRange(IntegerDataset.class, n);
+		
+		try {
+			return Generic1DFitter.fitPeakFunctions(x, y, Gaussian.class, new GeneticAlg(0.0001), MAX_PEAKS, 3);
+		} catch (Exception e) {
+			logger.debug("Profile fit failed: {}", e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Per thread profile arrays, grown as needed
+	 */
+	private static class ProfileScratch {
+		double[] profile = new double[0];
+		double[][] work = new double[2][0];
+		final double[] peaks = new double[MAX_PEAKS*ProfilePeakFinder.PEAK_SIZE];
+		
+		void ensure(int n) {
+			if (profile.length >= n) return;
+			profile = new double[n];
+			work = new double[2][n];
+		}
+	}
+	
 	private static void cleanFoundPeaks(List<TreeSet<double[]>> foundParams) {
 		
 		
 		
 		for (TreeSet<double[]> peaks : foundParams) {
 			
+			//no widths to take the median of
+			if (peaks.isEmpty()) continue;
+			
 			Dataset widths = DatasetFactory.zeros(peaks.size());
 			int i = 0;
 			
@@ -185,17 +286,6 @@ public class MultiplePeakFittingEllipseFinder {
 		return ellipses;
 	}
 	
-	private static Dataset getProfile(Dataset image, double[] centre, double angle, double inner, double outer) {
-		
-		LinearROI roi = new LinearROI();
-		roi.setPoint(centre);
-		roi.setAngle(angle);
-		roi.setLength(outer-inner);
-		roi.translateAlongLength(inner);
-		
-		return ROIProfile.line(image, roi, 1)[0];
-	}
-	
 	/**
 	 * Find a set of points of interests near given ellipse from an image.
 	 * <p>
@@ -212,6 +302,72 @@ public class MultiplePeakFittingEllipseFinder {
 	 */
 	public static PolylineROI fitPOIsNearEllipse(Dataset image, BooleanDataset mask, EllipticalROI ellipse,
 			double arcLength, double radialDelta, int maxPoints) {
+		return fitPOIsNearEllipse(image, mask, ellipse, arcLength, radialDelta, maxPoints, POIMethod.FIT);
+	}
+	
+	/**
+	 * Find a set of points of interests near given ellipse from an image.
+	 * 
+	 * @param image
+	 * @param mask (can be null)
+	 * @param ellipse
+	 * @param arcLength step size along arc in pixels
+	 * @param radialDelta +/- value to define area to search
+	 * @param maxPoints maximum number of points to return
+	 * @param method how the peak is found in each radial segment
+	 * @return polyline ROI
+	 */
+	public static PolylineROI fitPOIsNearEllipse(Dataset image, BooleanDataset mask, EllipticalROI ellipse,
+			double arcLength, double radialDelta, int maxPoints, POIMethod method) {
+		checkImage(image, mask, ellipse);
+		
+		final double aj = ellipse.getSemiAxis(0);
+		final double an = ellipse.getSemiAxis(1);
+		if (an < arcLength) {
+			logger.error("Ellipse/circle is too small");
+			throw new IllegalArgumentException("Ellipse/circle is too small");
+		}
+
+		final double pdelta = (arcLength*8) / aj; // change in angle
+		double rdelta = radialDelta; // semi-width of annulus of interest
+		if (rdelta < 1) {
+			logger.warn("Radial delta was set too low: setting to 1");
+			rdelta = 1;
+		}
+
+		final int imax = (int) Math.ceil(FULL_CIRCLE / pdelta);
+
+		return findPOIs(image, mask, ellipse, rdelta, rdelta, pdelta, imax, method);
+	}
+	
+	/**
+	 * Find a point of interest in each of nPoints radial segments, evenly spaced in angle,
+	 * running from innerDelta inside to outerDelta outside the ellipse
+	 * 
+	 * @param image
+	 * @param mask (can be null)
+	 * @param ellipse
+	 * @param innerDelta
+	 * @param outerDelta
+	 * @param nPoints
+	 * @param method how the peak is found in each radial segment
+	 * @return polyline ROI
+	 */
+	public static PolylineROI findPOIsNearEllipse(Dataset image, BooleanDataset mask, EllipticalROI ellipse,
+			double innerDelta, double outerDelta, int nPoints, POIMethod method) {
+		checkImage(image, mask, ellipse);
+		
+		if (ellipse.getSemiAxis(1) <= innerDelta) {
+			logger.error("Ellipse/circle is too small");
+			throw new IllegalArgumentException("Ellipse/circle is too small");
+		}
+		if (innerDelta + outerDelta < 2) throw new IllegalArgumentException("Search width must be at least 2 pixels");
+		if (nPoints < 1) throw new IllegalArgumentException("Number of points must be at least 1");
+		
+		return findPOIs(image, mask, ellipse, innerDelta, outerDelta, FULL_CIRCLE/nPoints, nPoints, method);
+	}
+	
+	private static void checkImage(Dataset image, BooleanDataset mask, EllipticalROI ellipse) {
 		if (image.getRank() != 2) {
 			logger.error("Dataset must have two dimensions");
 			throw new IllegalArgumentException("Dataset must have two dimensions");
@@ -227,51 +383,121 @@ public class MultiplePeakFittingEllipseFinder {
 		if (ellipse.containsPoint(-1,-1) && ellipse.containsPoint(-1,h+1) && ellipse.containsPoint(w+1,h+1) && ellipse.containsPoint(w+1,-1)) {
 			throw new IllegalArgumentException("Ellipse does not intersect image!");
 		}
+	}
+	
+	private static PolylineROI findPOIs(Dataset image, BooleanDataset mask, EllipticalROI ellipse,
+			double innerDelta, double outerDelta, double pdelta, int imax, POIMethod method) {
 		
 		final double aj = ellipse.getSemiAxis(0);
 		final double an = ellipse.getSemiAxis(1);
-		if (an < arcLength) {
-			logger.error("Ellipse/circle is too small");
-			throw new IllegalArgumentException("Ellipse/circle is too small");
-		}
-
 		final double xc = ellipse.getPointX();
 		final double yc = ellipse.getPointY();
 		final double ang = ellipse.getAngle();
 		final double ca = Math.cos(ang);
 		final double sa = Math.sin(ang);
 
-		final double pdelta = (arcLength*8) / aj; // change in angle
-		double rdelta = radialDelta; // semi-width of annulus of interest
-		if (rdelta < 1) {
-			logger.warn("Radial delta was set too low: setting to 1");
-			rdelta = 1;
+		final double rsj = aj - innerDelta;
+		final double rej = aj + outerDelta;
+		final double rsn = an - innerDelta;
+		final double ren = an + outerDelta;
+		
+		//both semi-axes change by the same amount, so the segments have this length along (cos(p+ang), sin(p+ang))
+		final double length = innerDelta + outerDelta;
+		final int nSamples = (int) Math.ceil(length) + 1;
+		final double spacing = length/(nSamples - 1);
+		
+		ProfileScratch scratch = null;
+		if (method == POIMethod.CENTROID) {
+			scratch = SCRATCH.get();
+			scratch.ensure(nSamples);
 		}
-		final double rsj = aj - rdelta;
-		final double rej = aj + rdelta;
-		final double rsn = an - rdelta;
-		final double ren = an + rdelta;
-
-		final int imax = (int) Math.ceil(FULL_CIRCLE / pdelta);
 
 		logger.debug("Major semi-axis = [{}, {}]; {}", new Object[] { rsj, rej, imax });
 		PolylineROI polyline = new PolylineROI();
-		LinearROI roi = new LinearROI();
-		CompositeFunction cf = null;
+		SegmentFitter fitter = new SegmentFitter();
+		int nFitted = 0;
 		for (int i = 0; i < imax; i++) {
 			double p = i * pdelta;
 			double cp = Math.cos(p);
 			double sp = Math.sin(p);
-			Dataset sub;
 			final double[] beg = new double[] { (yc + rsj * sa * cp + rsn * ca * sp),
 					 (xc + rsj * ca * cp - rsn * sa * sp) };
 			final double[] end = new double[] { (yc + rej * sa * cp + ren * ca * sp),
 					 (xc + rej * ca * cp - ren * sa * sp) };
 			
+			double r = Double.NaN;
+			if (scratch != null) {
+				r = segmentCentroid(image, mask, beg, end, nSamples, scratch)*spacing;
+			}
+			
+			if (Double.isNaN(r)) {
+				r = fitter.fit(image, mask, beg, end);
+				nFitted++;
+			}
+			
+			if (Double.isNaN(r)) continue;
+			
+			double x = r*Math.cos(p+ang)+beg[1];
+			double y = r*Math.sin(p+ang)+beg[0];
+			polyline.insertPoint(new PointROI(x,y));
+		}
+		
+		if (scratch != null) logger.debug("Fitted {} of {} segments with poor centroids", nFitted, imax);
+		
+		return polyline;
+	}
+	
+	/**
+	 * Centroid of the most prominent peak in the segment, in samples
+	 * 
+	 * @return position or NaN if there is no clear peak well inside the segment
+	 */
+	private static double segmentCentroid(Dataset image, BooleanDataset mask, double[] beg, double[] end, int n, ProfileScratch scratch) {
+		double[] profile = scratch.profile;
+		int inside = ProfilePeakFinder.sample(image, beg[1], beg[0], end[1], end[0], n, profile);
+		
+		if (mask != null) {
+			for (int j = 0; j < n; j++) {
+				if (Double.isNaN(profile[j])) continue;
+				double t = (double) j/(n - 1);
+				int py = (int) Math.round(beg[0] + t*(end[0] - beg[0]));
+				int px = (int) Math.round(beg[1] + t*(end[1] - beg[1]));
+				if (!mask.getBoolean(py, px)) {
+					profile[j] = Double.NaN;
+					inside--;
+				}
+			}
+		}
+		
+		if (inside < n/2 + 1) return Double.NaN;
+		
+		double[] out = scratch.peaks;
+		int found = ProfilePeakFinder.findPeaks(profile, n, n, POI_SIGNIFICANCE, 1, scratch.work, out);
+		if (found == 0) return Double.NaN;
+		
+		double pos = out[0];
+		double width = out[2];
+		//truncated by the segment ends or too broad to be a ring
+		if (pos < 1 || pos > n - 2 || !(width < n/2.0)) return Double.NaN;
+		
+		return pos;
+	}
+	
+	/**
+	 * Gaussian fit of a radial segment, reusing the previous segment's fit as a starting point
+	 */
+	private static class SegmentFitter {
+		private final LinearROI roi = new LinearROI();
+		private CompositeFunction cf = null;
+		
+		/**
+		 * @return peak position along the segment in pixels, or NaN
+		 */
+		double fit(Dataset image, BooleanDataset mask, double[] beg, double[] end) {
 			roi.setPoint(beg[1], beg[0]);
 			roi.setEndPoint(end[1], end[0]);
 
-			sub = ROIProfile.line(image,mask,roi,1,false)[0];
+			Dataset sub = ROIProfile.line(image,mask,roi,1,false)[0];
 			Dataset xAx = DatasetFactory.createRange(IntegerDataset.class, sub.getSize());
 
 			List<CompositeFunction> peaks= null;
@@ -301,17 +527,12 @@ public class MultiplePeakFittingEllipseFinder {
 				logger.debug(e.getMessage());
 			}
 			
-			if (peaks == null || peaks.isEmpty()) continue;
+			if (peaks == null || peaks.isEmpty()) return Double.NaN;
 			
-			if (peaks.get(0).getFunction(0).getParameter(1).getValue() > 10 || peaks.get(0).getFunction(0).getParameter(1).getValue() < 0.1 || peaks.get(0).getFunction(0).getParameter(2).getValue() < 0) continue;
+			if (peaks.get(0).getFunction(0).getParameter(1).getValue() > 10 || peaks.get(0).getFunction(0).getParameter(1).getValue() < 0.1 || peaks.get(0).getFunction(0).getParameter(2).getValue() < 0) return Double.NaN;
 			
-			double r = peaks.get(0).getParameter(0).getValue();
-			double x = r*Math.cos(p+ang)+beg[1];
-			double y = r*Math.sin(p+ang)+beg[0];
-			polyline.insertPoint(new PointROI(x,y));
+			return peaks.get(0).getParameter(0).getValue();
 		}
-		
-		return polyline;
 	}
 	
 	
@@ -0,0 +1,328 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Vector3d;
+
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+
+/**
+ * Evaluates |q| at a fixed set of pixel positions for the detector geometry given by the floating parameters
+ * of a calibration model, along with the derivatives of |q| with respect to those parameters.
+ * <p>
+ * The pixel to lab mapping is affine, p = p0 + x*a + y*b, so each evaluation only sets the geometry once
+ * and then works on primitive arrays, with |q| = (2&pi;/&lambda;)|p/|p| - s| for the beam direction s.
+ * The metadata is kept between evaluations and updated in place when the model allows it.
+ * <p>
+ * Derivatives are exact. The beam meets the detector at pixel c, the beam centre distance D along the beam, so
+ * p = D*s + (x - cx)*a + (y - cy)*b. Changing the wavelength only scales 2&pi;/&lambda;, the distance moves every
+ * pixel along s and the beam centre moves them by -a or -b. The normal angles turn a and b about c, and as the
+ * orientation is fixed rotations either side of a single rotation R(t) = I + sin(t)K + (1 - cos(t))K^2 for each
+ * angle, R(t + 90&deg;) - R(t - 90&deg;) = 2R(t)K = 2dR/dt exactly, so the derivatives of a and b are found from
+ * a detector with the angle turned by &plusmn;90&deg;.
+ * <p>
+ * Not thread safe.
+ */
+public class PixelQEvaluator {
+
+	private static final double DEGREE = Math.PI/180;
+	private static final double QUARTER_TURN = 90;
+
+	private enum Parameter {
+		WAVELENGTH, DISTANCE, BEAM_X, BEAM_Y, YAW, ROLL
+	}
+
+	private final SimpleCalibrationParameterModel model;
+	private final IDiffractionMetadata md;
+	private final double[] x;
+	private final double[] y;
+
+	private final double[] beam = new double[3];
+	private final Parameter[] parameters;
+
+	private IDiffractionMetadata current;
+	//detector at the origin for turning the pixel axes
+	private DetectorProperties turned;
+
+	//geometry scratch, [p0, a, b] and their derivatives for each parameter
+	private final double[][] geometry = new double[3][3];
+	private final double[][][] dGeometry;
+	private final double[] dk;
+	private final double[][] plus = new double[2][3];
+	private final double[][] minus = new double[2][3];
+	private final Vector3d scratch = new Vector3d();
+
+	/**
+	 * @param model calibration model, defines the floating parameters
+	 * @param md starting metadata for the parameters that are not floated
+	 * @param x pixel x positions
+	 * @param y pixel y positions
+	 */
+	public PixelQEvaluator(SimpleCalibrationParameterModel model, IDiffractionMetadata md, double[] x, double[] y) {
+		if (x.length != y.length) throw new IllegalArgumentException("x and y must be the same length");
+		this.model = model;
+		this.md = md;
+		this.x = x;
+		this.y = y;
+
+		parameters = getParameters(model);
+		int n = parameters.length;
+		if (n != model.getNumberOfFloatingParameters()) throw new IllegalArgumentException("Model parameters not recognised");
+		dGeometry = new double[n][3][3];
+		dk = new double[n];
+
+		Vector3d b = new Vector3d(md.getDetector2DProperties().getBeamVector());
+		b.normalize();
+		beam[0] = b.x;
+		beam[1] = b.y;
+		beam[2] = b.z;
+	}
+
+	public int getNumberOfPoints() {
+		return x.length;
+	}
+
+	public int getNumberOfParameters() {
+		return dk.length;
+	}
+
+	/**
+	 * @param params floating parameters
+	 * @param out |q| for each point
+	 */
+	public void values(double[] params, double[] out) {
+		double k = setGeometry(params, geometry);
+		double[] p0 = geometry[0];
+		double[] a = geometry[1];
+		double[] b = geometry[2];
+
+		for (int i = 0; i < x.length; i++) {
+			double px = p0[0] + x[i]*a[0] + y[i]*b[0];
+			double py = p0[1] + x[i]*a[1] + y[i]*b[1];
+			double pz = p0[2] + x[i]*a[2] + y[i]*b[2];
+			double us = (px*beam[0] + py*beam[1] + pz*beam[2])/Math.sqrt(px*px + py*py + pz*pz);
+			out[i] = k*Math.sqrt(Math.max(0, 2 - 2*us));
+		}
+	}
+
+	/**
+	 * @param params floating parameters
+	 * @param index point index
+	 * @return |q| for one point
+	 */
+	public double value(double[] params, int index) {
+		double k = setGeometry(params, geometry);
+		return k*unitDistance(index);
+	}
+
+	/**
+	 * Derivative of |q| with respect to one parameter for all points
+	 *
+	 * @param params floating parameters
+	 * @param parameter index of the parameter
+	 * @param out derivative for each point
+	 */
+	public void derivative(double[] params, int parameter, double[] out) {
+		double k = setGeometry(params, geometry);
+		setDerivative(params, k, parameter);
+		for (int i = 0; i < x.length; i++) {
+			out[i] = derivative(k, i, parameter);
+		}
+	}
+
+	/**
+	 * Derivatives of |q| with respect to all parameters
+	 *
+	 * @param params floating parameters
+	 * @param jacobian [point][parameter]
+	 */
+	public void jacobian(double[] params, double[][] jacobian) {
+		double k = setGeometry(params, geometry);
+		for (int j = 0; j < dk.length; j++) {
+			setDerivative(params, k, j);
+		}
+		for (int i = 0; i < x.length; i++) {
+			for (int j = 0; j < dk.length; j++) {
+				jacobian[i][j] = derivative(k, i, j);
+			}
+		}
+	}
+
+	private double unitDistance(int i) {
+		double[] p0 = geometry[0];
+		double[] a = geometry[1];
+		double[] b = geometry[2];
+		double px = p0[0] + x[i]*a[0] + y[i]*b[0];
+		double py = p0[1] + x[i]*a[1] + y[i]*b[1];
+		double pz = p0[2] + x[i]*a[2] + y[i]*b[2];
+		double us = (px*beam[0] + py*beam[1] + pz*beam[2])/Math.sqrt(px*px + py*py + pz*pz);
+		return Math.sqrt(Math.max(0, 2 - 2*us));
+	}
+
+	/**
+	 * d|q| = dk*w + k*((u.s)(u.dp) - s.dp)/(|p|*w) with u = p/|p| and w = |u - s|
+	 */
+	private double derivative(double k, int i, int j) {
+		double[] p0 = geometry[0];
+		double[] a = geometry[1];
+		double[] b = geometry[2];
+		double xi = x[i];
+		double yi = y[i];
+
+		double px = p0[0] + xi*a[0] + yi*b[0];
+		double py = p0[1] + xi*a[1] + yi*b[1];
+		double pz = p0[2] + xi*a[2] + yi*b[2];
+		double r = Math.sqrt(px*px + py*py + pz*pz);
+		double ux = px/r;
+		double uy = py/r;
+		double uz = pz/r;
+		double us = ux*beam[0] + uy*beam[1] + uz*beam[2];
+		double w = Math.sqrt(Math.max(0, 2 - 2*us));
+
+		double[][] d = dGeometry[j];
+		double dx = d[0][0] + xi*d[1][0] + yi*d[2][0];
+		double dy = d[0][1] + xi*d[1][1] + yi*d[2][1];
+		double dz = d[0][2] + xi*d[1][2] + yi*d[2][2];
+
+		double result = dk[j]*w;
+		if (w > 0) {
+			double udp = ux*dx + uy*dy + uz*dz;
+			double sdp = beam[0]*dx + beam[1]*dy + beam[2]*dz;
+			result += k*(us*udp - sdp)/(r*w);
+		}
+		return result;
+	}
+
+	/**
+	 * Derivatives of [p0, a, b] and 2&pi;/&lambda; with respect to one parameter, for the current geometry
+	 */
+	private void setDerivative(double[] params, double k, int j) {
+		double[][] d = dGeometry[j];
+		for (double[] v : d) {
+			Arrays.fill(v, 0);
+		}
+		dk[j] = 0;
+
+		double[] a = geometry[1];
+		double[] b = geometry[2];
+
+		switch (parameters[j]) {
+		case WAVELENGTH:
+			// k = 2pi/lambda
+			dk[j] = -k*k/(2*Math.PI);
+			break;
+		case DISTANCE:
+			System.arraycopy(beam, 0, d[0], 0, 3);
+			break;
+		case BEAM_X:
+			for (int c = 0; c < 3; c++) d[0][c] = -a[c];
+			break;
+		case BEAM_Y:
+			for (int c = 0; c < 3; c++) d[0][c] = -b[c];
+			break;
+		case YAW:
+			setRotation(params, j, 0, d);
+			break;
+		case ROLL:
+			setRotation(params, j - 1, 2, d);
+			break;
+		}
+	}
+
+	/**
+	 * Derivatives of [p0, a, b] with respect to one of the normal angles, keeping the beam centre pixel where it is,
+	 * see the class description
+	 *
+	 * @param yaw index of the yaw parameter, the roll follows it and the pitch is zero
+	 * @param angle index of the normal angle
+	 */
+	private void setRotation(double[] params, int yaw, int angle, double[][] d) {
+		DetectorProperties dp = current.getDetector2DProperties();
+		double[] angles = new double[] {params[yaw], 0, params[yaw + 1]};
+		double original = angles[angle];
+		angles[angle] = original + QUARTER_TURN;
+		setAxes(dp, angles, plus);
+		angles[angle] = original - QUARTER_TURN;
+		setAxes(dp, angles, minus);
+
+		double[] bc = dp.getBeamCentreCoords();
+		for (int c = 0; c < 3; c++) {
+			d[1][c] = DEGREE*(plus[0][c] - minus[0][c])/2;
+			d[2][c] = DEGREE*(plus[1][c] - minus[1][c])/2;
+			// p0 = c - cx*a - cy*b
+			d[0][c] = -bc[0]*d[1][c] - bc[1]*d[2][c];
+		}
+	}
+
+	/**
+	 * Pixel axes [a, b] of the detector with the given normal angles
+	 */
+	private void setAxes(DetectorProperties dp, double[] angles, double[][] axes) {
+		if (turned == null) turned = dp.clone();
+		turned.setNormalAnglesInDegrees(angles[0], angles[1], angles[2]);
+		//the turned detector need not meet the beam
+		turned.setOrigin(new Vector3d());
+
+		turned.pixelPosition(1, 0, scratch);
+		axes[0][0] = scratch.x;
+		axes[0][1] = scratch.y;
+		axes[0][2] = scratch.z;
+
+		turned.pixelPosition(0, 1, scratch);
+		axes[1][0] = scratch.x;
+		axes[1][1] = scratch.y;
+		axes[1][2] = scratch.z;
+	}
+
+	private static Parameter[] getParameters(SimpleCalibrationParameterModel model) {
+		List<Parameter> list = new ArrayList<>();
+		if (model.isFloatEnergy()) list.add(Parameter.WAVELENGTH);
+		if (model.isFloatDistance()) list.add(Parameter.DISTANCE);
+		if (model.isFloatBeamCentre()) {
+			list.add(Parameter.BEAM_X);
+			list.add(Parameter.BEAM_Y);
+		}
+		if (model.isFloatTilt()) {
+			list.add(Parameter.YAW);
+			list.add(Parameter.ROLL);
+		}
+		return list.toArray(new Parameter[list.size()]);
+	}
+
+	/**
+	 * Fill [p0, a, b] for the parameters
+	 *
+	 * @return 2&pi;/&lambda;
+	 */
+	private double setGeometry(double[] params, double[][] g) {
+		IDiffractionMetadata argMd = getMetadata(params);
+		DetectorProperties dp = argMd.getDetector2DProperties();
+
+		dp.pixelPosition(0, 0, scratch);
+		g[0][0] = scratch.x;
+		g[0][1] = scratch.y;
+		g[0][2] = scratch.z;
+
+		dp.pixelPosition(1, 0, scratch);
+		g[1][0] = scratch.x - g[0][0];
+		g[1][1] = scratch.y - g[0][1];
+		g[1][2] = scratch.z - g[0][2];
+
+		dp.pixelPosition(0, 1, scratch);
+		g[2][0] = scratch.x - g[0][0];
+		g[2][1] = scratch.y - g[0][1];
+		g[2][2] = scratch.z - g[0][2];
+
+		return 2*Math.PI/argMd.getDiffractionCrystalEnvironment().getWavelength();
+	}
+
+	private IDiffractionMetadata getMetadata(double[] params) {
+		if (current == null || !model.updateMetadata(params, current)) {
+			current = model.getMetadata(params, md);
+		}
+		return current;
+	}
+}
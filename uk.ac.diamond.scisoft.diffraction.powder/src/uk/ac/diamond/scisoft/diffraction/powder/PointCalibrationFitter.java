@@ -0,0 +1,176 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer.Optimum;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
+import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+import org.apache.commons.math3.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Levenberg-Marquardt least squares fit of calculated |q| to the known |q| of a set of pixels
+ * <p>
+ * Values and the exact Jacobian come from a {@link PixelQEvaluator}, so no iteration differences the residual
+ * at every point. After the fit the parameter covariance is estimated from the Jacobian at the solution,
+ * scaled by the residual variance.
+ */
+public class PointCalibrationFitter {
+
+	private static final Logger logger = LoggerFactory.getLogger(PointCalibrationFitter.class);
+
+	private static final int MAX_EVALUATIONS = 2000;
+	private static final int MAX_ITERATIONS = 500;
+	private static final double SINGULARITY_THRESHOLD = 1e-14;
+
+	private final PixelQEvaluator evaluator;
+	private final double[] target;
+
+	private double[] best;
+	private double bestCost;
+	private double[][] covariance;
+	private int iterations;
+
+	/**
+	 * @param evaluator calculates |q| for the pixels
+	 * @param q known |q| for each pixel
+	 */
+	public PointCalibrationFitter(PixelQEvaluator evaluator, double[] q) {
+		if (q.length != evaluator.getNumberOfPoints()) throw new IllegalArgumentException("Number of q values must equal number of points");
+		this.evaluator = evaluator;
+		this.target = q;
+	}
+
+	/**
+	 * Fit the parameters, if the fit fails the best parameters evaluated are returned
+	 *
+	 * @param initial starting parameters
+	 * @return fitted parameters
+	 */
+	public double[] fit(double[] initial) {
+
+		if (initial.length != evaluator.getNumberOfParameters()) throw new IllegalArgumentException("Wrong number of parameters");
+
+		best = initial.clone();
+		bestCost = Double.POSITIVE_INFINITY;
+		covariance = null;
+		iterations = 0;
+
+		if (initial.length == 0) {
+			bestCost = sumOfSquares(best);
+			return best.clone();
+		}
+
+		final int n = target.length;
+		final int np = initial.length;
+
+		MultivariateJacobianFunction model = new MultivariateJacobianFunction() {
+
+			@Override
+			public Pair<RealVector, RealMatrix> value(RealVector point) {
+				double[] p = point.toArray();
+				double[] values = new double[n];
+				double[][] jacobian = new double[n][np];
+				evaluator.values(p, values);
+				evaluator.jacobian(p, jacobian);
+				updateBest(p, values);
+				return new Pair<RealVector, RealMatrix>(new ArrayRealVector(values, false), new Array2DRowRealMatrix(jacobian, false));
+			}
+		};
+
+		LeastSquaresProblem problem = new LeastSquaresBuilder()
+				.start(initial)
+				.target(target)
+				.model(model)
+				.maxEvaluations(MAX_EVALUATIONS)
+				.maxIterations(MAX_ITERATIONS)
+				.build();
+
+		try {
+			Optimum optimum = new LevenbergMarquardtOptimizer().optimize(problem);
+			iterations = optimum.getIterations();
+			best = optimum.getPoint().toArray();
+			bestCost = optimum.getCost()*optimum.getCost();
+			setCovariance(optimum);
+		} catch (MathIllegalStateException e) {
+			logger.error("Point calibration did not converge: " + e.getMessage(), e);
+		}
+
+		return best.clone();
+	}
+
+	private void setCovariance(Optimum optimum) {
+		int n = target.length;
+		int np = best.length;
+		if (n <= np) return;
+
+		double scale = bestCost/(n - np);
+
+		try {
+			covariance = optimum.getCovariances(SINGULARITY_THRESHOLD).scalarMultiply(scale).getData();
+		} catch (SingularMatrixException e) {
+			logger.warn("Could not estimate parameter covariance, Jacobian is singular");
+		}
+	}
+
+	private void updateBest(double[] params, double[] values) {
+		double cost = 0;
+		for (int i = 0; i < values.length; i++) {
+			double d = target[i] - values[i];
+			cost += d*d;
+		}
+		if (cost < bestCost) {
+			bestCost = cost;
+			best = params;
+		}
+	}
+
+	private double sumOfSquares(double[] params) {
+		double[] values = new double[target.length];
+		evaluator.values(params, values);
+		double cost = 0;
+		for (int i = 0; i < values.length; i++) {
+			double d = target[i] - values[i];
+			cost += d*d;
+		}
+		return cost;
+	}
+
+	/**
+	 * @return sum of squared q residuals at the fitted parameters
+	 */
+	public double getSumOfSquares() {
+		return bestCost;
+	}
+
+	/**
+	 * @return parameter covariance matrix of the last fit, null if it could not be estimated
+	 */
+	public double[][] getCovariance() {
+		return covariance;
+	}
+
+	/**
+	 * @return standard errors of the parameters of the last fit (square root of the covariance diagonal),
+	 * null if they could not be estimated
+	 */
+	public double[] getErrors() {
+		if (covariance == null) return null;
+		double[] errors = new double[covariance.length];
+		for (int i = 0; i < errors.length; i++) {
+			errors[i] = Math.sqrt(Math.max(0, covariance[i][i]));
+		}
+		return errors;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+}
@@ -5,6 +5,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Vector3d;
@@ -28,10 +34,8 @@ import org.eclipse.january.dataset.DatasetFactory;
 import org.eclipse.january.dataset.DatasetUtils;
 import org.eclipse.january.dataset.DoubleDataset;
 import org.eclipse.january.dataset.IDataset;
-import org.eclipse.january.dataset.IndexIterator;
 import org.eclipse.january.dataset.IntegerDataset;
 import org.eclipse.january.dataset.Maths;
-import org.eclipse.january.dataset.Stats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +57,8 @@ public class PowderCalibration {
 	private static final int CENTRE_MASK_RADIUS = 50;
 	private static final int NUMBER_OF_POINTS = 256;
 	private static final int MINIMUM_SPACING = 10;
+	//rings fitted in turn to fix the ellipse shape before the rest are fitted concurrently
+	private static final int LOCKED_RINGS = 3;
 	
 	private static final String description = "Automatic powder diffraction image calibration using ellipse parameters";
 	private static final String descriptionManualEllipse = "Manual powder diffraction image calibration using ellipse parameters";
@@ -134,58 +140,66 @@ public class PowderCalibration {
 	
 	public static CalibrationOutput calibrateMultipleImages(IDataset[] images, Dataset deltaDistance, double pxSize,
 			List<HKL> spacings, double fixed, int[] options, SimpleCalibrationParameterModel params, IMonitor mon, ICalibrationUIProgressUpdate uiUpdate, PowderCalibrationInfoImpl[] info) {
+		
+		return calibrateMultipleImages(ICalibrationImageSource.fromImages(images), deltaDistance, pxSize, spacings, fixed, options, params, mon, uiUpdate, info);
+	}
+	
+	/**
+	 * Calibrate from images fetched from the source as they are needed, each image is released once its rings
+	 * have been found so at most params.getMaxConcurrentImages() are held at once
+	 */
+	public static CalibrationOutput calibrateMultipleImages(ICalibrationImageSource images, Dataset deltaDistance, double pxSize,
+			List<HKL> spacings, double fixed, int[] options, SimpleCalibrationParameterModel params, IMonitor mon, ICalibrationUIProgressUpdate uiUpdate, PowderCalibrationInfoImpl[] info) {
+		
+		return calibrateMultipleImages(images, deltaDistance, pxSize, spacings, fixed, options, params, mon, uiUpdate, info, null);
+	}
+	
+	/**
+	 * Calibrate from images fetched from the source as they are needed, reusing the ring search of any image
+	 * already in the search cache
+	 * 
+	 * @param searchCache holds the ring search of each image, so re-running an image with different refinement
+	 * options skips it, can be null to search every image
+	 */
+	public static CalibrationOutput calibrateMultipleImages(ICalibrationImageSource images, Dataset deltaDistance, double pxSize,
+			List<HKL> spacings, double fixed, int[] options, SimpleCalibrationParameterModel params, IMonitor mon, ICalibrationUIProgressUpdate uiUpdate,
+			PowderCalibrationInfoImpl[] info, CalibrationSearchCache searchCache) {
 
+		int nImages = images.size();
+		
 		if (info == null) {
 			
-			info = new PowderCalibrationInfoImpl[images.length];
+			info = new PowderCalibrationInfoImpl[nImages];
 			
-			for (int i = 0; i < images.length; i++) info[i] = new PowderCalibrationInfoImpl();
+			for (int i = 0; i < nImages; i++) info[i] = new PowderCalibrationInfoImpl();
 		}
 		
 		//options [0]centreMaskRadius, [1]minSpacing, [2]nPoints
 		List<List<EllipticalROI>> allEllipses = new ArrayList<List<EllipticalROI>>();
 		List<double[]> allDSpacings = new ArrayList<double[]>();
 		
-		for (IDataset image: images) {
-
-			if (images.length > 1 && uiUpdate != null) uiUpdate.updatePlotData(image);
-
-			Dataset imds = DatasetUtils.convertToDataset(image).clone();
-			
-			//Clear any hot pixels that might interfere with centre finding etc
-			
-			double[] outlierValues = Stats.outlierValues(imds, 0.1, 99.9, -1);
-			
-			IndexIterator iterator = imds.getIterator();
-			
-			while (iterator.hasNext()) {
-				double val = imds.getElementDoubleAbs(iterator.index);
-				if (val < outlierValues[0]) imds.setObjectAbs(iterator.index, outlierValues[0]);
-				if (val > outlierValues[1]) imds.setObjectAbs(iterator.index, outlierValues[1]);
+		if (params.getMaxConcurrentImages() > 1 && nImages > 1) {
+			List<List<ResolutionEllipseROI>> found = findRingsConcurrently(images, spacings, pxSize, options, params, searchCache, mon);
+			if (found == null) return null;
+			for (List<ResolutionEllipseROI> foundEllipses : found) {
+				addFoundEllipses(foundEllipses, allEllipses, allDSpacings);
 			}
-			
-			final EllipseFindingStructure efs = getResolutionEllipses(imds, spacings, pxSize, params,options[0], mon);
-
-			if (mon != null && mon.isCancelled()) return null;
-
-			if (efs == null) throw new IllegalArgumentException("No rings found!");
+		} else {
+			HotPixelClipper clipper = createClipper(params);
+			for (int i = 0; i < nImages; i++) {
+				
+				IDataset image = images.getImage(i);
 
-			List<ResolutionEllipseROI> foundEllipses = getFittedResolutionROIs(uiUpdate, efs, DatasetUtils.convertToDataset(image),options[0],options[1],options[2],mon);
+				if (nImages > 1 && uiUpdate != null) uiUpdate.updatePlotData(image);
 
-			if (mon != null && mon.isCancelled()) return null;
+				List<ResolutionEllipseROI> foundEllipses = findRings(image, clipper, spacings, pxSize, options, params, searchCache, mon, uiUpdate);
 
-			if (foundEllipses == null || foundEllipses.size() < 2) throw new IllegalArgumentException("No rings found!");
+				if (foundEllipses == null) return null;
 
-			double[] dSpaceArray = new double[foundEllipses.size()];
+				addFoundEllipses(foundEllipses, allEllipses, allDSpacings);
 
-			for (int j = 0; j < foundEllipses.size();j++) {
-				dSpaceArray[j] = foundEllipses.get(j).getResolution();
+				if (uiUpdate!= null) uiUpdate.removeRings();
 			}
-
-			allDSpacings.add(dSpaceArray);
-			allEllipses.add(new ArrayList<EllipticalROI>(foundEllipses));
-
-			if (uiUpdate!= null) uiUpdate.removeRings();
 		}
 
 		if (mon != null) mon.subTask("Calibrating");
@@ -201,7 +215,7 @@ public class PowderCalibration {
 		
 		if (allEllipses.size() == 1 && params.isPointCalibration()) {
 			
-			IDiffractionMetadata meta = createMetadataFromOutput(output, 0, images[0].getShape(),pxSize);
+			IDiffractionMetadata meta = createMetadataFromOutput(output, 0, images.getShape(),pxSize);
 			
 			SimpleCalibrationParameterModel paramModel = params;
 			
@@ -223,7 +237,7 @@ public class PowderCalibration {
 		for (int i = 0; i< spacings.size(); i++) fullDSpace[i] = spacings.get(i).getDNano()*10;
 		Dataset infoSpace = DatasetFactory.createFromObject(fullDSpace);
 
-		for (int i = 0; i < images.length; i++) {
+		for (int i = 0; i < nImages; i++) {
 			int[] infoIndex = new int[allDSpacings.get(i).length];
 			
 			for (int j = 0; j < infoIndex.length; j++) {
@@ -240,6 +254,127 @@ public class PowderCalibration {
 		return output;
 	}
 	
+	/**
+	 * Per image stage of the calibration, from hot pixel clipping to ellipse fitting
+	 * <p>
+	 * With a cache, the search and fitted ellipses are cached by image content, so re-running the same image with
+	 * different refinement options skips this stage.
+	 * 
+	 * @param cache can be null
+	 * @return fitted ellipses or null if cancelled
+	 */
+	private static List<ResolutionEllipseROI> findRings(IDataset image, HotPixelClipper clipper, List<HKL> spacings, double pxSize, int[] options,
+			SimpleCalibrationParameterModel params, CalibrationSearchCache cache, IMonitor mon, ICalibrationUIProgressUpdate uiUpdate) {
+		
+		CalibrationSearchCache.SearchKey key = cache == null ? null : CalibrationSearchCache.createKey(image, pxSize, spacings, options[0], params);
+		CalibrationSearchCache.Entry search = cache == null ? null : cache.get(key);
+		
+		if (search != null) {
+			List<ResolutionEllipseROI> cached = search.getFitted(options[1], options[2], params.getRingFittingThreads(), params.getPoiMethod());
+			if (cached != null) {
+				logger.debug("Using cached rings");
+				if (uiUpdate != null) {
+					for (ResolutionEllipseROI r : cached) uiUpdate.drawFoundRing(r);
+				}
+				return cached;
+			}
+		} else {
+			//Clear any hot pixels that might interfere with centre finding etc
+			Dataset imds = clipper.clip(image);
+			
+			search = searchRings(imds, spacings, pxSize, params, options[0], mon);
+			
+			if (mon != null && mon.isCancelled()) return null;
+			
+			if (search == null) throw new IllegalArgumentException("No rings found!");
+			
+			if (cache != null) cache.put(key, search);
+		}
+		
+		final EllipseFindingStructure efs = createFindingStructure(search);
+
+		List<ResolutionEllipseROI> foundEllipses = getFittedResolutionROIs(uiUpdate, efs, DatasetUtils.convertToDataset(image),options[0],options[1],options[2],params.getRingFittingThreads(),params.getPoiMethod(),mon);
+
+		if (mon != null && mon.isCancelled()) return null;
+
+		if (foundEllipses == null || foundEllipses.size() < 2) throw new IllegalArgumentException("No rings found!");
+		
+		if (cache != null) search.setFitted(options[1], options[2], params.getRingFittingThreads(), params.getPoiMethod(), foundEllipses);
+		
+		return foundEllipses;
+	}
+	
+	/**
+	 * Run the per image stage for several images at once, at most params.getMaxConcurrentImages() at a time.
+	 * <p>
+	 * The monitor is only polled from the calling thread and no UI updates are made. Results are returned in image order,
+	 * if any image fails the exception from the first failing image is thrown.
+	 * 
+	 * @return fitted ellipses for each image or null if cancelled
+	 */
+	private static List<List<ResolutionEllipseROI>> findRingsConcurrently(final ICalibrationImageSource images, final List<HKL> spacings, final double pxSize,
+			final int[] options, final SimpleCalibrationParameterModel params, final CalibrationSearchCache cache, IMonitor mon) {
+		
+		int nImages = images.size();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(params.getMaxConcurrentImages(), nImages));
+		//one clipping buffer per worker
+		final ThreadLocal<HotPixelClipper> clippers = ThreadLocal.withInitial(() -> createClipper(params));
+		
+		try {
+			List<Future<List<ResolutionEllipseROI>>> futures = new ArrayList<>(nImages);
+			for (int i = 0; i < nImages; i++) {
+				final int index = i;
+				//each image is only fetched once a worker is free for it
+				futures.add(executor.submit(() -> findRings(images.getImage(index), clippers.get(), spacings, pxSize, options, params, cache, null, null)));
+			}
+			
+			if (mon != null) mon.subTask("Finding rings in " + nImages + " images...");
+			
+			List<List<ResolutionEllipseROI>> found = new ArrayList<>(nImages);
+			
+			for (Future<List<ResolutionEllipseROI>> f : futures) {
+				List<ResolutionEllipseROI> rings = null;
+				boolean done = false;
+				while (!done) {
+					if (mon != null && mon.isCancelled()) return null;
+					try {
+						rings = f.get(100, TimeUnit.MILLISECONDS);
+						done = true;
+					} catch (TimeoutException te) {
+						//check for cancellation and wait again
+					}
+				}
+				found.add(rings);
+			}
+			
+			return found;
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IllegalStateException("Ring finding failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static HotPixelClipper createClipper(SimpleCalibrationParameterModel params) {
+		return new HotPixelClipper(params.getLowerOutlierPercentile(), params.getUpperOutlierPercentile());
+	}
+	
+	private static void addFoundEllipses(List<ResolutionEllipseROI> foundEllipses, List<List<EllipticalROI>> allEllipses, List<double[]> allDSpacings) {
+		double[] dSpaceArray = new double[foundEllipses.size()];
+
+		for (int j = 0; j < foundEllipses.size();j++) {
+			dSpaceArray[j] = foundEllipses.get(j).getResolution();
+		}
+
+		allDSpacings.add(dSpaceArray);
+		allEllipses.add(new ArrayList<EllipticalROI>(foundEllipses));
+	}
+	
 	public static List<ResolutionEllipseROI> findMatchedEllipses(Dataset image, double pixel, List<HKL> spacings) {
 
 		double[] approxCentre = CentreGuess.guessCentre(image);
@@ -336,6 +471,16 @@ public class PowderCalibration {
 	
 	public static EllipticalROI ellipsePeakFit(Dataset image, BooleanDataset mask,
 			EllipticalROI roi, double innerDelta, double outerDelta, int nPoints, IMonitor mon) {
+		return ellipsePeakFit(image, mask, roi, innerDelta, outerDelta, nPoints, MultiplePeakFittingEllipseFinder.POIMethod.FIT, mon);
+	}
+	
+	/**
+	 * Fit an ellipse to points of interest found between the inner and outer ellipses around the roi
+	 * 
+	 * @param method FIT uses peak fitting on the conic, CENTROID the centroids of radial profiles
+	 */
+	public static EllipticalROI ellipsePeakFit(Dataset image, BooleanDataset mask,
+			EllipticalROI roi, double innerDelta, double outerDelta, int nPoints, MultiplePeakFittingEllipseFinder.POIMethod method, IMonitor mon) {
 		
 		PolylineROI points;
 		EllipticalFitROI efroi;
@@ -351,7 +496,11 @@ public class PowderCalibration {
 		inOut[1].setSemiAxis(1, roi.getSemiAxis(1)+outerDelta);
 		if (mon != null) mon.subTask("Find POIs near initial ellipse");
 		
-		points = PeakFittingEllipseFinder.findPointsOnConic(image, mask, roi, inOut,nPoints,null);
+		if (method == MultiplePeakFittingEllipseFinder.POIMethod.CENTROID) {
+			points = MultiplePeakFittingEllipseFinder.findPOIsNearEllipse(image, mask, roi, innerDelta, outerDelta, nPoints, method);
+		} else {
+			points = PeakFittingEllipseFinder.findPointsOnConic(image, mask, roi, inOut,nPoints,null);
+		}
 		
 		if (points == null || points.getNumberOfPoints() < 3) {
 			throw new IllegalArgumentException("Could not find enough points to trim");
@@ -378,6 +527,17 @@ public class PowderCalibration {
 	
 	protected static EllipseFindingStructure getResolutionEllipses(Dataset image,
 			List<HKL> spacings, double pxSize, SimpleCalibrationParameterModel params, int centreMaskRadius, IMonitor monitor) {
+		CalibrationSearchCache.Entry search = searchRings(image, spacings, pxSize, params, centreMaskRadius, monitor);
+		return search == null ? null : createFindingStructure(search);
+	}
+	
+	/**
+	 * Find the approximate centre, integrate and match the profile peaks to the calibrant
+	 * 
+	 * @return search result or null if cancelled
+	 */
+	private static CalibrationSearchCache.Entry searchRings(Dataset image,
+			List<HKL> spacings, double pxSize, SimpleCalibrationParameterModel params, int centreMaskRadius, IMonitor monitor) {
 		int[] shape = image.getShape();
 		if (monitor != null) monitor.subTask("Finding approximate centre...");
 		double[] approxCentre = CentreGuess.guessCentre(image);
@@ -434,21 +594,18 @@ public class PowderCalibration {
 		for (int i = 0; i< spacings.size(); i++) fullDSpace[i] = spacings.get(i).getDNano()*10;
 		
 		if (monitor != null) monitor.subTask("Matching to standard...");
-		final Map<Double,Double> dSpaceRadiusMap = BruteStandardMatcher.bruteForceMatchStandards(x, y, fullDSpace, pxSize);
+		final Map<Double,Double> dSpaceRadiusMap = BruteStandardMatcher.bruteForceMatchStandards(x, y, fullDSpace, pxSize, params.getBaselineWidth());
 		
 		if (monitor != null && monitor.isCancelled()) return null;
 		
-		final List<ResolutionEllipseROI> ellipses = new ArrayList<ResolutionEllipseROI>();
-		
+		double[] radii = new double[dSpace.length];
 		double[] inner = new double[dSpace.length];
 		double[] outer = new double[dSpace.length];
 		
 		for (int i = 0; i < dSpace.length; i++) {
 			//TODO out might be known if max less than spacings.size();
 			double dVal = dSpaceRadiusMap.get(dSpace[i]);
-			EllipticalROI el = new EllipticalROI(dVal, approxCentre[0],approxCentre[1]);
-			ellipses.add(new ResolutionEllipseROI(el, dSpace[i]));
-			inner.toString();
+			radii[i] = dVal;
 			if (i == 0) {
 				double out = (dSpaceRadiusMap.get(dSpace[i+1]) - dVal)/2;
 				inner[i] = out > 50 ? 50 : out;
@@ -466,62 +623,174 @@ public class PowderCalibration {
 			}
 		}
 		
+		return new CalibrationSearchCache.Entry(approxCentre, x, y, dSpaceRadiusMap, dSpace, radii, inner, outer);
+		
+	}
+	
+	/**
+	 * Fresh seed ellipses from the search, these are modified by the ellipse fitting
+	 */
+	private static EllipseFindingStructure createFindingStructure(CalibrationSearchCache.Entry search) {
+		double[] centre = search.getCentre();
+		double[] dSpace = search.getdSpace();
+		double[] radii = search.getRadii();
+		
+		final List<ResolutionEllipseROI> ellipses = new ArrayList<ResolutionEllipseROI>();
+		for (int i = 0; i < dSpace.length; i++) {
+			EllipticalROI el = new EllipticalROI(radii[i], centre[0], centre[1]);
+			ellipses.add(new ResolutionEllipseROI(el, dSpace[i]));
+		}
+		
 		EllipseFindingStructure efs = new EllipseFindingStructure();
 		efs.ellipses = ellipses;
-		efs.innerSearch = inner;
-		efs.outerSearch = outer;
+		efs.innerSearch = search.getInnerSearch();
+		efs.outerSearch = search.getOuterSearch();
 		
 		return efs;
-		
 	}
 	
 	protected static List<ResolutionEllipseROI> getFittedResolutionROIs(ICalibrationUIProgressUpdate ui, EllipseFindingStructure efs,
 			Dataset data, int centreMaskRadius,int minSpacing, int nPoints, IMonitor monitor) {
+		return getFittedResolutionROIs(ui, efs, data, centreMaskRadius, minSpacing, nPoints, 1, SimpleCalibrationParameterModel.POI_METHOD, monitor);
+	}
+	
+	/**
+	 * Fit the approximate ellipses to the image.
+	 * <p>
+	 * Each ring is seeded with the size correction, aspect and angle of the last ring found. If nThreads is greater than one,
+	 * only the first few rings are fitted in turn to lock the shape, the remaining rings are then fitted concurrently,
+	 * all seeded from the locked shape.
+	 */
+	protected static List<ResolutionEllipseROI> getFittedResolutionROIs(ICalibrationUIProgressUpdate ui, EllipseFindingStructure efs,
+			Dataset data, int centreMaskRadius,int minSpacing, int nPoints, int nThreads, MultiplePeakFittingEllipseFinder.POIMethod method, IMonitor monitor) {
 		if (monitor != null) monitor.subTask("Finding ellipses...");
 		final List<ResolutionEllipseROI> foundEllipses = new ArrayList<ResolutionEllipseROI>();
 		if (monitor != null && monitor.isCancelled()) return null;
-		IROI roi = null;
+		EllipticalROI roi = null;
 		
 		double corFact = 0;
 		double lastAspect = 1;
 		double lastAngle = 0;
-		int i = -1;
-		for (ResolutionEllipseROI e : efs.ellipses) {
-			i++;
-			if (efs.innerSearch[i] < minSpacing || efs.outerSearch[i] < minSpacing) {
-				if (monitor != null) monitor.subTask("Separation lower than minimum required! (Minimum can be changed in calibration settings)");
-				logger.warn("Actual spacing smaller than minimum, inner: " +efs.innerSearch[i] + ", outer: "+  efs.outerSearch[i] + ", min: " + minSpacing );
-				continue;
-			}
+		int nRings = efs.ellipses.size();
+		int i = 0;
+		for (; i < nRings; i++) {
+			if (nThreads > 1 && foundEllipses.size() >= LOCKED_RINGS) break;
+			
+			ResolutionEllipseROI e = efs.ellipses.get(i);
+			if (!isSearchWideEnough(efs, i, minSpacing, monitor)) continue;
 			
 			double startSemi = e.getSemiAxis(0);
-			e.setSemiAxis(0, startSemi+corFact);
-			e.setSemiAxis(1, (startSemi+corFact)/lastAspect);
-			e.setAngle(lastAngle);
+			seedEllipse(e, startSemi + corFact, lastAspect, lastAngle);
 		
-			try {
-				roi = PowderCalibration.ellipsePeakFit(data, null, e,efs.innerSearch[i],efs.outerSearch[i] ,nPoints, monitor);
-			} catch (Exception ex) {
-				logger.debug(ex.getMessage());
-				roi = null;
-			} 
+			roi = fitEllipse(data, e, efs.innerSearch[i], efs.outerSearch[i], nPoints, method, monitor);
+			
 			if (monitor != null && monitor.isCancelled()) return null;
 			if (roi != null) {
-				ResolutionEllipseROI r = new ResolutionEllipseROI((EllipticalROI)roi, e.getResolution());
-				r.setPoints(((EllipticalFitROI)roi).getPoints());
-				foundEllipses.add(r);
-				corFact = ((EllipticalROI)roi).getSemiAxis(0) - startSemi;
-				lastAspect = ((EllipticalROI) roi).getAspectRatio();
-				lastAngle = ((EllipticalROI) roi).getAngle();
+				foundEllipses.add(createResolutionROI(roi, e.getResolution()));
+				corFact = roi.getSemiAxis(0) - startSemi;
+				lastAspect = roi.getAspectRatio();
+				lastAngle = roi.getAngle();
 				if (ui != null) ui.drawFoundRing(roi);
 			}
 		}
 		
+		if (i < nRings) {
+			List<ResolutionEllipseROI> remaining = fitRingsConcurrently(ui, efs, i, data, minSpacing, nPoints,
+					nThreads, method, corFact, lastAspect, lastAngle, monitor);
+			if (remaining == null) return null;
+			foundEllipses.addAll(remaining);
+		}
+		
 		if (foundEllipses.size() < 2) return null;
 		
 		return foundEllipses;
 	}
 	
+	private static List<ResolutionEllipseROI> fitRingsConcurrently(ICalibrationUIProgressUpdate ui, final EllipseFindingStructure efs, int start,
+			final Dataset data, int minSpacing, final int nPoints, int nThreads, final MultiplePeakFittingEllipseFinder.POIMethod method,
+			double corFact, double aspect, double angle, IMonitor monitor) {
+		
+		List<Future<EllipticalROI>> futures = new ArrayList<>();
+		List<Double> resolutions = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(nThreads, efs.ellipses.size() - start));
+		
+		try {
+			for (int i = start; i < efs.ellipses.size(); i++) {
+				if (!isSearchWideEnough(efs, i, minSpacing, monitor)) continue;
+				
+				final ResolutionEllipseROI e = efs.ellipses.get(i);
+				final int index = i;
+				seedEllipse(e, e.getSemiAxis(0) + corFact, aspect, angle);
+				resolutions.add(e.getResolution());
+				//monitor is only touched from the calling thread
+				futures.add(executor.submit(() -> fitEllipse(data, e, efs.innerSearch[index], efs.outerSearch[index], nPoints, method, null)));
+			}
+			
+			List<ResolutionEllipseROI> found = new ArrayList<>();
+			
+			for (int i = 0; i < futures.size(); i++) {
+				EllipticalROI roi = null;
+				boolean done = false;
+				while (!done) {
+					if (monitor != null && monitor.isCancelled()) return null;
+					try {
+						roi = futures.get(i).get(100, TimeUnit.MILLISECONDS);
+						done = true;
+					} catch (TimeoutException te) {
+						//check for cancellation and wait again
+					}
+				}
+				
+				if (roi != null) {
+					found.add(createResolutionROI(roi, resolutions.get(i)));
+					if (ui != null) ui.drawFoundRing(roi);
+				}
+			}
+			
+			return found;
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			//fitEllipse handles fitting failures, so this is unexpected
+			throw new IllegalStateException("Ring fitting failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static boolean isSearchWideEnough(EllipseFindingStructure efs, int i, int minSpacing, IMonitor monitor) {
+		if (efs.innerSearch[i] < minSpacing || efs.outerSearch[i] < minSpacing) {
+			if (monitor != null) monitor.subTask("Separation lower than minimum required! (Minimum can be changed in calibration settings)");
+			logger.warn("Actual spacing smaller than minimum, inner: " +efs.innerSearch[i] + ", outer: "+  efs.outerSearch[i] + ", min: " + minSpacing );
+			return false;
+		}
+		return true;
+	}
+	
+	private static void seedEllipse(EllipticalROI e, double semiAxis, double aspect, double angle) {
+		e.setSemiAxis(0, semiAxis);
+		e.setSemiAxis(1, semiAxis/aspect);
+		e.setAngle(angle);
+	}
+	
+	private static EllipticalROI fitEllipse(Dataset data, EllipticalROI e, double inner, double outer, int nPoints,
+			MultiplePeakFittingEllipseFinder.POIMethod method, IMonitor monitor) {
+		try {
+			return PowderCalibration.ellipsePeakFit(data, null, e, inner, outer, nPoints, method, monitor);
+		} catch (Exception ex) {
+			logger.debug(ex.getMessage());
+			return null;
+		}
+	}
+	
+	private static ResolutionEllipseROI createResolutionROI(EllipticalROI roi, double resolution) {
+		ResolutionEllipseROI r = new ResolutionEllipseROI(roi, resolution);
+		r.setPoints(((EllipticalFitROI)roi).getPoints());
+		return r;
+	}
+	
 	protected static class EllipseFindingStructure {
 		List<ResolutionEllipseROI> ellipses;
 		double[] innerSearch;
@@ -8,9 +8,31 @@ public class PowderCalibrationConfig {
 	private String distancePath;
 	private String initialCalibration;
 	private String standard;
+	private FrameAccumulator.Mode frameAccumulation = FrameAccumulator.Mode.NONE;
+	private int accumulationChunkSize = 10;
+	private boolean medianOfChunks = false;
 	
 	private SimpleCalibrationParameterModel model;
 	
+	public PowderCalibrationConfig() {
+	}
+	
+	/**
+	 * Copy of the config, with its own copy of the model
+	 */
+	public PowderCalibrationConfig(PowderCalibrationConfig toCopy) {
+		this.inputPath = toCopy.inputPath;
+		this.outputPath = toCopy.outputPath;
+		this.datasetPath = toCopy.datasetPath;
+		this.distancePath = toCopy.distancePath;
+		this.initialCalibration = toCopy.initialCalibration;
+		this.standard = toCopy.standard;
+		this.frameAccumulation = toCopy.frameAccumulation;
+		this.accumulationChunkSize = toCopy.accumulationChunkSize;
+		this.medianOfChunks = toCopy.medianOfChunks;
+		this.model = toCopy.model == null ? null : new SimpleCalibrationParameterModel(toCopy.model);
+	}
+	
 	public String getInputPath() {
 		return inputPath;
 	}
@@ -66,4 +88,34 @@ public class PowderCalibrationConfig {
 	public void setDistancePath(String distancePath) {
 		this.distancePath = distancePath;
 	}
+
+	/**
+	 * Frames of the dataset are summed or averaged into one image before calibrating, unless NONE
+	 */
+	public FrameAccumulator.Mode getFrameAccumulation() {
+		return frameAccumulation;
+	}
+
+	public void setFrameAccumulation(FrameAccumulator.Mode frameAccumulation) {
+		this.frameAccumulation = frameAccumulation;
+	}
+
+	public int getAccumulationChunkSize() {
+		return accumulationChunkSize;
+	}
+
+	public void setAccumulationChunkSize(int accumulationChunkSize) {
+		this.accumulationChunkSize = accumulationChunkSize;
+	}
+
+	/**
+	 * Combine chunks of accumulated frames by median to reject hot pixels
+	 */
+	public boolean isMedianOfChunks() {
+		return medianOfChunks;
+	}
+
+	public void setMedianOfChunks(boolean medianOfChunks) {
+		this.medianOfChunks = medianOfChunks;
+	}
 }
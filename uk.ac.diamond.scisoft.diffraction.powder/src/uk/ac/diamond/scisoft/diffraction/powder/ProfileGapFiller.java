@@ -0,0 +1,185 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.stream.IntStream;
+
+import org.eclipse.january.DatasetException;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.DoubleDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.IndexIterator;
+import org.eclipse.january.metadata.AxesMetadata;
+
+/**
+ * Fills gaps of missing (non-finite) values in 1D profiles, such as the log of profiles with zero counts
+ * <p>
+ * Each profile is filled in place in a single pass. Gaps between finite values are interpolated, either linearly or
+ * with a monotone cubic (Fritsch-Carlson) which follows the slopes either side without overshooting. Gaps at the
+ * ends take the nearest finite value. A profile with no finite values is left as it is.
+ */
+public final class ProfileGapFiller {
+
+	public enum Method {
+		LINEAR,
+		MONOTONE_CUBIC
+	}
+
+	private ProfileGapFiller() {
+	}
+
+	/**
+	 * @param y values, filled in place
+	 * @param n number of values
+	 * @param method
+	 * @return number of values filled
+	 */
+	public static int fill(double[] y, int n, Method method) {
+		return fill(y, null, 0, n, method);
+	}
+
+	/**
+	 * @param y values, filled in place
+	 * @param x abscissae of the values, increasing, or null for their indices
+	 * @param offset of the profile in y (and x)
+	 * @param n number of values
+	 * @param method
+	 * @return number of values filled
+	 */
+	public static int fill(double[] y, double[] x, int offset, int n, Method method) {
+		int end = offset + n;
+		int filled = 0;
+
+		// last finite value before the current position, and the one just before that if it was not filled
+		int previous = -1;
+		int beforePrevious = -1;
+
+		int i = offset;
+		while (i < end) {
+			if (Double.isFinite(y[i])) {
+				beforePrevious = previous == i - 1 ? previous : -1;
+				previous = i;
+				i++;
+				continue;
+			}
+
+			int next = i + 1;
+			while (next < end && !Double.isFinite(y[next]))
+				next++;
+
+			if (previous < 0 && next == end) return filled;
+
+			if (previous < 0) {
+				for (int j = i; j < next; j++)
+					y[j] = y[next];
+			} else if (next == end) {
+				for (int j = i; j < next; j++)
+					y[j] = y[previous];
+			} else if (method == Method.MONOTONE_CUBIC) {
+				int after = next + 1 < end && Double.isFinite(y[next + 1]) ? next + 1 : -1;
+				cubic(y, x, beforePrevious, previous, next, after);
+			} else {
+				double x0 = abscissa(x, previous);
+				double slope = (y[next] - y[previous])/(abscissa(x, next) - x0);
+				for (int j = i; j < next; j++)
+					y[j] = y[previous] + slope*(abscissa(x, j) - x0);
+			}
+			filled += next - i;
+
+			i = next;
+		}
+		return filled;
+	}
+
+	/**
+	 * Fill each row of a row-major array, in parallel
+	 *
+	 * @param data rows of n values, filled in place
+	 * @param rows number of rows
+	 * @param n row length
+	 * @param method
+	 * @return number of values filled
+	 */
+	public static int fillRows(double[] data, int rows, int n, Method method) {
+		return IntStream.range(0, rows).parallel().map(r -> fill(data, null, r*n, n, method)).sum();
+	}
+
+	/**
+	 * Fill a 1D dataset, with the abscissae of its first axis if it has one
+	 *
+	 * @param profile
+	 * @param method
+	 * @return a filled copy of the profile
+	 */
+	public static Dataset fill(Dataset profile, Method method) {
+		int n = profile.getSize();
+		double[] y = new double[n];
+		IndexIterator it = profile.getIterator();
+		int i = 0;
+		while (it.hasNext())
+			y[i++] = profile.getElementDoubleAbs(it.index);
+
+		double[] x = null;
+		AxesMetadata axes = profile.getFirstMetadata(AxesMetadata.class);
+		ILazyDataset[] abscissae = axes != null ? axes.getAxis(0) : null;
+		if (abscissae != null && abscissae[0] != null && abscissae[0].getSize() == n) {
+			try {
+				Dataset abscissa = DatasetUtils.sliceAndConvertLazyDataset(abscissae[0]);
+				x = new double[n];
+				it = abscissa.getIterator();
+				i = 0;
+				while (it.hasNext())
+					x[i++] = abscissa.getElementDoubleAbs(it.index);
+			} catch (DatasetException e) {
+				// use the indices
+				x = null;
+			}
+		}
+
+		fill(y, x, 0, n, method);
+		return DatasetFactory.createFromObject(DoubleDataset.class, y, profile.getShape());
+	}
+
+	/**
+	 * Cubic Hermite interpolation across the gap between previous and next, with slopes limited as in Fritsch and
+	 * Carlson so the fill is monotonic where the values either side are
+	 */
+	private static void cubic(double[] y, double[] x, int beforePrevious, int previous, int next, int after) {
+		double x0 = abscissa(x, previous);
+		double x1 = abscissa(x, next);
+		double h = x1 - x0;
+		double secant = (y[next] - y[previous])/h;
+
+		double m0 = secant;
+		if (beforePrevious >= 0) {
+			double hb = x0 - abscissa(x, beforePrevious);
+			m0 = pchipSlope((y[previous] - y[beforePrevious])/hb, hb, secant, h);
+		}
+		double m1 = secant;
+		if (after >= 0) {
+			double ha = abscissa(x, after) - x1;
+			m1 = pchipSlope(secant, h, (y[after] - y[next])/ha, ha);
+		}
+
+		for (int j = previous + 1; j < next; j++) {
+			double t = (abscissa(x, j) - x0)/h;
+			double t2 = t*t;
+			double t3 = t2*t;
+			y[j] = (2*t3 - 3*t2 + 1)*y[previous] + (t3 - 2*t2 + t)*h*m0 + (-2*t3 + 3*t2)*y[next] + (t3 - t2)*h*m1;
+		}
+	}
+
+	/**
+	 * Slope at a point between intervals of widths h0 and h1 with the given secant slopes, zero at an extremum
+	 */
+	private static double pchipSlope(double d0, double h0, double d1, double h1) {
+		if (!(d0*d1 > 0)) return 0;
+		double w0 = 2*h1 + h0;
+		double w1 = h1 + 2*h0;
+		return (w0 + w1)/(w0/d0 + w1/d1);
+	}
+
+	private static double abscissa(double[] x, int i) {
+		return x == null ? i : x[i];
+	}
+}
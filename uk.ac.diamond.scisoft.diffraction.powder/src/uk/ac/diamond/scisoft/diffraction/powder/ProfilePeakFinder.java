@@ -0,0 +1,233 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.Arrays;
+
+import org.eclipse.january.dataset.Dataset;
+
+/**
+ * Peaks in line profiles sampled directly from an image, without fitting functions
+ * <p>
+ * Profiles are bilinearly sampled into arrays supplied by the caller, and peaks are found as local maxima
+ * standing out from the local background. A peak is positioned by the background subtracted intensity
+ * centroid above half height. Nothing is allocated, so the methods can be called for every profile of an image
+ * with per thread scratch arrays.
+ */
+public final class ProfilePeakFinder {
+
+	//half width of the smoothing window used to find maxima
+	private static final int SMOOTH = 2;
+	//converts the median absolute second difference of the samples to a noise estimate
+	private static final double MAD_SCALE = 1.4826/Math.sqrt(6);
+
+	/**
+	 * Number of values written to the output array for each peak: position, height above background
+	 * and full width at half maximum, all in samples
+	 */
+	public static final int PEAK_SIZE = 3;
+
+	private ProfilePeakFinder() {
+	}
+
+	/**
+	 * Bilinear samples at n evenly spaced points from (x0, y0) to (x1, y1) inclusive, pixel centres at integer
+	 * coordinates. Samples outside the image are NaN.
+	 *
+	 * @param image 2D, indexed [y, x]
+	 * @param out at least n long
+	 * @return number of samples inside the image
+	 */
+	public static int sample(Dataset image, double x0, double y0, double x1, double y1, int n, double[] out) {
+		int[] shape = image.getShape();
+		int h = shape[0];
+		int w = shape[1];
+
+		double dx = n > 1 ? (x1 - x0)/(n - 1) : 0;
+		double dy = n > 1 ? (y1 - y0)/(n - 1) : 0;
+
+		int inside = 0;
+		for (int i = 0; i < n; i++) {
+			double v = bilinear(image, h, w, x0 + i*dx, y0 + i*dy);
+			out[i] = v;
+			if (!Double.isNaN(v)) inside++;
+		}
+		return inside;
+	}
+
+	/**
+	 * @return interpolated value at (x, y), or NaN outside the image
+	 */
+	public static double bilinear(Dataset image, int h, int w, double x, double y) {
+		if (!(x >= 0 && y >= 0 && x <= w - 1 && y <= h - 1)) return Double.NaN;
+
+		int ix = Math.min((int)x, w - 2);
+		int iy = Math.min((int)y, h - 2);
+		if (ix < 0 || iy < 0) {
+			//single row or column image
+			return image.getDouble((int)Math.round(y), (int)Math.round(x));
+		}
+		double fx = x - ix;
+		double fy = y - iy;
+
+		double a = image.getDouble(iy, ix);
+		double b = image.getDouble(iy, ix + 1);
+		double c = image.getDouble(iy + 1, ix);
+		double d = image.getDouble(iy + 1, ix + 1);
+
+		return (a*(1 - fx) + b*fx)*(1 - fy) + (c*(1 - fx) + d*fx)*fy;
+	}
+
+	/**
+	 * Find up to maxPeaks peaks in the profile, the most prominent first
+	 *
+	 * @param profile samples, NaN values are ignored
+	 * @param n number of samples
+	 * @param window distance either side of a maximum searched for its background, in samples
+	 * @param significance minimum peak height above background in units of the profile noise
+	 * @param maxPeaks
+	 * @param scratch two arrays of at least n
+	 * @param out at least maxPeaks*PEAK_SIZE long, filled with position, height and width of each peak
+	 * @return number of peaks found
+	 */
+	public static int findPeaks(double[] profile, int n, int window, double significance, int maxPeaks, double[][] scratch, double[] out) {
+
+		double[] smooth = scratch[0];
+		smooth(profile, n, smooth);
+
+		double noise = estimateNoise(profile, n, scratch[1]);
+		if (!(noise > 0)) noise = Double.MIN_NORMAL;
+
+		int found = 0;
+
+		for (int i = 1; i < n - 1; i++) {
+			double s = smooth[i];
+			if (Double.isNaN(s) || !(s > smooth[i - 1]) || !(s >= smooth[i + 1])) continue;
+
+			double base = getBackground(smooth, n, i, window);
+			double height = s - base;
+			if (!(height > significance*noise)) continue;
+
+			//keep the most prominent, sorted by height
+			int k = found < maxPeaks ? found++ : maxPeaks;
+			if (k == maxPeaks && !(height > out[(maxPeaks - 1)*PEAK_SIZE + 1])) continue;
+			if (k == maxPeaks) k--;
+			while (k > 0 && out[(k - 1)*PEAK_SIZE + 1] < height) {
+				System.arraycopy(out, (k - 1)*PEAK_SIZE, out, k*PEAK_SIZE, PEAK_SIZE);
+				k--;
+			}
+
+			centroid(profile, smooth, n, i, base, height, out, k*PEAK_SIZE);
+		}
+
+		return found;
+	}
+
+	/**
+	 * Position of the peak at (or near) sample i by the background subtracted intensity centroid of the samples
+	 * above half height, with a linearly interpolated full width at half maximum
+	 *
+	 * @param profile raw samples
+	 * @param smooth smoothed samples, used to find the half height crossings
+	 * @param n
+	 * @param i index of the maximum
+	 * @param base background level
+	 * @param height peak height above background
+	 * @param out filled with position, height and width
+	 * @param offset into out
+	 */
+	public static void centroid(double[] profile, double[] smooth, int n, int i, double base, double height, double[] out, int offset) {
+		double half = base + height/2;
+
+		int lo = i;
+		while (lo > 0 && smooth[lo - 1] > half) lo--;
+		int hi = i;
+		while (hi < n - 1 && smooth[hi + 1] > half) hi++;
+
+		double sw = 0;
+		double swx = 0;
+		for (int j = lo; j <= hi; j++) {
+			double v = profile[j] - base;
+			if (!(v > 0)) continue;
+			sw += v;
+			swx += v*j;
+		}
+
+		//interpolate the half height crossings for the width
+		double left = lo;
+		if (lo > 0 && !Double.isNaN(smooth[lo - 1])) left = lo - (smooth[lo] - half)/(smooth[lo] - smooth[lo - 1]);
+		double right = hi;
+		if (hi < n - 1 && !Double.isNaN(smooth[hi + 1])) right = hi + (smooth[hi] - half)/(smooth[hi] - smooth[hi + 1]);
+
+		out[offset] = sw > 0 ? swx/sw : i;
+		out[offset + 1] = height;
+		out[offset + 2] = right - left;
+	}
+
+	/**
+	 * Vertex of the parabola through the sample i and its neighbours
+	 *
+	 * @return interpolated position of the maximum at i
+	 */
+	public static double parabolicPeak(double[] profile, int n, int i) {
+		if (i <= 0 || i >= n - 1) return i;
+		double a = profile[i - 1];
+		double b = profile[i];
+		double c = profile[i + 1];
+		double d = a - 2*b + c;
+		if (!(d < 0)) return i;
+		return i + 0.5*(a - c)/d;
+	}
+
+	/**
+	 * Background of a maximum, the higher of the minima either side within the window
+	 */
+	private static double getBackground(double[] smooth, int n, int i, int window) {
+		double left = Double.POSITIVE_INFINITY;
+		for (int j = Math.max(0, i - window); j < i; j++) {
+			if (smooth[j] < left) left = smooth[j];
+		}
+		double right = Double.POSITIVE_INFINITY;
+		for (int j = i + 1; j <= Math.min(n - 1, i + window); j++) {
+			if (smooth[j] < right) right = smooth[j];
+		}
+		if (left == Double.POSITIVE_INFINITY) return right;
+		if (right == Double.POSITIVE_INFINITY) return left;
+		return Math.max(left, right);
+	}
+
+	/**
+	 * Moving average, ignoring NaN samples (a window with only NaN gives NaN)
+	 */
+	private static void smooth(double[] profile, int n, double[] out) {
+		for (int i = 0; i < n; i++) {
+			if (Double.isNaN(profile[i])) {
+				out[i] = Double.NaN;
+				continue;
+			}
+			double sum = 0;
+			int count = 0;
+			for (int j = Math.max(0, i - SMOOTH); j <= Math.min(n - 1, i + SMOOTH); j++) {
+				double v = profile[j];
+				if (Double.isNaN(v)) continue;
+				sum += v;
+				count++;
+			}
+			out[i] = sum/count;
+		}
+	}
+
+	/**
+	 * Noise from the median absolute second difference of the samples, which cancels sloping backgrounds
+	 * and is only large near the centres of peaks, so short profiles dominated by a peak are still estimated well
+	 */
+	private static double estimateNoise(double[] values, int n, double[] scratch) {
+		int m = 0;
+		for (int i = 1; i < n - 1; i++) {
+			double d = values[i - 1] - 2*values[i] + values[i + 1];
+			if (!Double.isNaN(d)) scratch[m++] = Math.abs(d);
+		}
+		if (m == 0) return 0;
+		Arrays.sort(scratch, 0, m);
+		double median = m % 2 == 1 ? scratch[m/2] : (scratch[m/2 - 1] + scratch[m/2])/2;
+		return MAD_SCALE*median;
+	}
+}
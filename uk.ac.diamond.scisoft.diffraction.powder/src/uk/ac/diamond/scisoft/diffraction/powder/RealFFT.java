@@ -0,0 +1,202 @@
+package uk.ac.diamond.scisoft.diffraction.powder;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Fourier transform magnitudes of the rows of a real 2D array, for a fixed (any) row length
+ * <p>
+ * Rows are transformed two at a time, as the real and imaginary parts of one complex transform, and
+ * the pairs are processed in parallel. Power of two lengths use an {@link FFTPlan} directly; other lengths
+ * use Bluestein's chirp-z algorithm on a power of two plan, so the spectrum is that of the exact row length.
+ * Plans for the {@link #MAX_PLANS} most recently used lengths are cached. Plans hold no mutable state, each call
+ * allocates scratch arrays for its parallel tasks rather than keeping them per thread.
+ */
+public final class RealFFT {
+
+	/**
+	 * Most plans cached, the least recently used are dropped
+	 */
+	public static final int MAX_PLANS = 8;
+
+	//tasks per thread in a call, so uneven rows still spread over the threads
+	private static final int TASKS_PER_THREAD = 4;
+
+	private static final Map<Integer, RealFFT> PLANS = new LinkedHashMap<Integer, RealFFT>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, RealFFT> eldest) {
+			return size() > MAX_PLANS;
+		}
+	};
+
+	private final int n;
+	private final int m;
+	private final FFTPlan plan;
+
+	//chirp exp(-i*pi*k^2/n) and the transform of its padded conjugate, for Bluestein
+	private final double[] chirpRe;
+	private final double[] chirpIm;
+	private final double[] kernelRe;
+	private final double[] kernelIm;
+
+	/**
+	 * @param n row length
+	 */
+	public RealFFT(int n) {
+		if (n < 1) throw new IllegalArgumentException("FFT length must be positive");
+
+		this.n = n;
+
+		if (Integer.bitCount(n) == 1) {
+			m = n;
+			plan = new FFTPlan(n);
+			chirpRe = null;
+			chirpIm = null;
+			kernelRe = null;
+			kernelIm = null;
+		} else {
+			m = FFTPlan.nextPowerOfTwo(2*n - 1);
+			plan = new FFTPlan(m);
+
+			chirpRe = new double[n];
+			chirpIm = new double[n];
+			long twoN = 2L*n;
+			for (int k = 0; k < n; k++) {
+				//reduce k^2 first to keep the phase accurate for long rows
+				double a = Math.PI*(((long) k*k) % twoN)/n;
+				chirpRe[k] = Math.cos(a);
+				chirpIm[k] = -Math.sin(a);
+			}
+
+			kernelRe = new double[m];
+			kernelIm = new double[m];
+			kernelRe[0] = chirpRe[0];
+			kernelIm[0] = -chirpIm[0];
+			for (int k = 1; k < n; k++) {
+				kernelRe[k] = kernelRe[m - k] = chirpRe[k];
+				kernelIm[k] = kernelIm[m - k] = -chirpIm[k];
+			}
+			plan.forward(kernelRe, kernelIm);
+		}
+	}
+
+	/**
+	 * @return the shared plan for rows of length n
+	 */
+	public static RealFFT getPlan(int n) {
+		synchronized (PLANS) {
+			RealFFT plan = PLANS.get(n);
+			if (plan == null) {
+				plan = new RealFFT(n);
+				PLANS.put(n, plan);
+			}
+			return plan;
+		}
+	}
+
+	public int getLength() {
+		return n;
+	}
+
+	/**
+	 * @return number of magnitudes for each row, those of frequencies 0 to n/2 (the rest mirror them)
+	 */
+	public int getSpectrumLength() {
+		return n/2 + 1;
+	}
+
+	/**
+	 * Magnitudes of the discrete Fourier transform of each row
+	 *
+	 * @param data rows of n values, row-major
+	 * @param rows number of rows
+	 * @param out at least rows*getSpectrumLength() long, filled row by row with |X(k)| for k from 0 to n/2
+	 */
+	public void magnitudes(double[] data, int rows, double[] out) {
+		if (data.length < rows*n) throw new IllegalArgumentException("Data must hold " + rows + " rows of " + n);
+		int s = getSpectrumLength();
+		if (out.length < rows*s) throw new IllegalArgumentException("Output must hold " + rows + " rows of " + s);
+
+		int pairs = (rows + 1)/2;
+		int tasks = Math.min(pairs, TASKS_PER_THREAD*ForkJoinPool.getCommonPoolParallelism());
+
+		IntStream.range(0, tasks).parallel().forEach(t -> {
+			double[] re = new double[m];
+			double[] im = new double[m];
+			for (int p = t*pairs/tasks; p < (t + 1)*pairs/tasks; p++) {
+				magnitudes(data, rows, out, p, re, im);
+			}
+		});
+	}
+
+	/**
+	 * Magnitudes of rows 2p and 2p + 1 (if there is one) from one complex transform
+	 */
+	private void magnitudes(double[] data, int rows, double[] out, int p, double[] re, double[] im) {
+		int s = getSpectrumLength();
+		int a = 2*p;
+		int b = a + 1 < rows ? a + 1 : -1;
+
+		System.arraycopy(data, a*n, re, 0, n);
+		if (b < 0) {
+			Arrays.fill(im, 0, n, 0);
+		} else {
+			System.arraycopy(data, b*n, im, 0, n);
+		}
+		transform(re, im);
+
+		//separate the spectra of the two real rows, Xa = (Z(k) + Z*(n-k))/2 and Xb = (Z(k) - Z*(n-k))/2i
+		for (int k = 0; k < s; k++) {
+			int j = k == 0 ? 0 : n - k;
+			double zr = re[k];
+			double zi = im[k];
+			double cr = re[j];
+			double ci = -im[j];
+			out[a*s + k] = 0.5*Math.sqrt((zr + cr)*(zr + cr) + (zi + ci)*(zi + ci));
+			if (b >= 0) out[b*s + k] = 0.5*Math.sqrt((zr - cr)*(zr - cr) + (zi - ci)*(zi - ci));
+		}
+	}
+
+	/**
+	 * Forward transform of the first n elements, in place
+	 */
+	private void transform(double[] re, double[] im) {
+		if (chirpRe == null) {
+			plan.forward(re, im);
+			return;
+		}
+
+		//premultiply by the chirp and pad
+		for (int k = 0; k < n; k++) {
+			double r = re[k];
+			double i = im[k];
+			re[k] = r*chirpRe[k] - i*chirpIm[k];
+			im[k] = r*chirpIm[k] + i*chirpRe[k];
+		}
+		Arrays.fill(re, n, m, 0);
+		Arrays.fill(im, n, m, 0);
+
+		//convolve with the conjugate chirp
+		plan.forward(re, im);
+		for (int k = 0; k < m; k++) {
+			double r = re[k];
+			double i = im[k];
+			re[k] = r*kernelRe[k] - i*kernelIm[k];
+			im[k] = r*kernelIm[k] + i*kernelRe[k];
+		}
+		plan.inverse(re, im);
+
+		//and postmultiply by the chirp
+		for (int k = 0; k < n; k++) {
+			double r = re[k];
+			double i = im[k];
+			re[k] = r*chirpRe[k] - i*chirpIm[k];
+			im[k] = r*chirpIm[k] + i*chirpRe[k];
+		}
+	}
+}
@@ -16,6 +16,14 @@ public class SimpleCalibrationParameterModel {
 	public static final int NUMBER_OF_POINTS = 256;
 	public static final int MAX_SIZE = 50;
 	public static final boolean FIX_DETECTOR_ROLL = false;
+	public static final int BASELINE_WIDTH = 10;
+	public static final int RING_FITTING_THREADS = 1;
+	public static final int MAX_CONCURRENT_IMAGES = 1;
+	public static final double LOWER_OUTLIER_PERCENTILE = 0.1;
+	public static final double UPPER_OUTLIER_PERCENTILE = 99.9;
+	public static final CentreFitter.Loss CENTRE_FIT_LOSS = CentreFitter.Loss.LEAST_SQUARES;
+	public static final boolean WEIGHT_CENTRE_FIT = false;
+	public static final MultiplePeakFittingEllipseFinder.POIMethod POI_METHOD = MultiplePeakFittingEllipseFinder.POIMethod.FIT;
 
 	private EllipseOptions ellipseOptions = new EllipseOptions();
 	private PointOptions pointOptions = new PointOptions();
@@ -28,6 +36,14 @@ public class SimpleCalibrationParameterModel {
 	private int nIgnoreCentre = CENTRE_MASK_RADIUS;
 	private int maxSearchSize = MAX_SIZE;
 	private boolean fixDetectorRoll = FIX_DETECTOR_ROLL;
+	private int baselineWidth = BASELINE_WIDTH;
+	private int ringFittingThreads = RING_FITTING_THREADS;
+	private int maxConcurrentImages = MAX_CONCURRENT_IMAGES;
+	private double lowerOutlierPercentile = LOWER_OUTLIER_PERCENTILE;
+	private double upperOutlierPercentile = UPPER_OUTLIER_PERCENTILE;
+	private CentreFitter.Loss centreFitLoss = CENTRE_FIT_LOSS;
+	private boolean weightCentreFit = WEIGHT_CENTRE_FIT;
+	private MultiplePeakFittingEllipseFinder.POIMethod poiMethod = POI_METHOD;
 	
 
 	private int numberOfRings;
@@ -42,7 +58,20 @@ public class SimpleCalibrationParameterModel {
 		this.isPointCalibration = toCopy.isPointCalibration;
 		this.automaticCalibration = toCopy.automaticCalibration;
 		this.numberOfRings = toCopy.numberOfRings;
-		this.ringSet = ringSet == null ? null : new TreeSet<Integer>(ringSet);
+		this.ringSet = toCopy.ringSet == null ? null : new TreeSet<Integer>(toCopy.ringSet);
+		this.nPointsPerRing = toCopy.nPointsPerRing;
+		this.minimumSpacing = toCopy.minimumSpacing;
+		this.nIgnoreCentre = toCopy.nIgnoreCentre;
+		this.maxSearchSize = toCopy.maxSearchSize;
+		this.fixDetectorRoll = toCopy.fixDetectorRoll;
+		this.baselineWidth = toCopy.baselineWidth;
+		this.ringFittingThreads = toCopy.ringFittingThreads;
+		this.maxConcurrentImages = toCopy.maxConcurrentImages;
+		this.lowerOutlierPercentile = toCopy.lowerOutlierPercentile;
+		this.upperOutlierPercentile = toCopy.upperOutlierPercentile;
+		this.centreFitLoss = toCopy.centreFitLoss;
+		this.weightCentreFit = toCopy.weightCentreFit;
+		this.poiMethod = toCopy.poiMethod;
 	}
 
 	public boolean isAutomaticCalibration() {
@@ -127,6 +156,22 @@ public class SimpleCalibrationParameterModel {
 				: ellipseOptions.getMetadata(params, md);
 	}
 
+	/**
+	 * Set the floating parameters on metadata from {@link #getMetadata(double[], IDiffractionMetadata)} in place,
+	 * so a fit does not build new metadata for every evaluation
+	 *
+	 * @return false if the metadata was not updated and new metadata must be built instead
+	 */
+	public boolean updateMetadata(double[] params, IDiffractionMetadata md) {
+
+		if (!automaticCalibration && isPointCalibration) {
+			pointOptions.updateMetadata(params, md);
+		} else {
+			ellipseOptions.updateMetadata(params, md);
+		}
+		return true;
+	}
+
 	public double[] getInitialParams(IDiffractionMetadata md) {
 
 		return (!automaticCalibration && isPointCalibration) ? pointOptions.getInitialParams(md)
@@ -213,20 +258,124 @@ public class SimpleCalibrationParameterModel {
 		this.fixDetectorRoll = fixDetectorRoll;
 	}
 
+	/**
+	 * Half width (in bins) of the rolling ball baseline removed from the radial profile before matching to the standard
+	 */
+	public int getBaselineWidth() {
+		return baselineWidth;
+	}
+
+	public void setBaselineWidth(int baselineWidth) {
+		this.baselineWidth = baselineWidth;
+	}
+
+	/**
+	 * Number of threads used to fit the rings of an image, one (the default) fits the rings in turn.
+	 * Otherwise the first few rings are fitted in turn and the rest concurrently. This only changes how
+	 * the calibration is run, so it is not part of equals and hashCode.
+	 */
+	public int getRingFittingThreads() {
+		return ringFittingThreads;
+	}
+
+	public void setRingFittingThreads(int ringFittingThreads) {
+		this.ringFittingThreads = ringFittingThreads;
+	}
+
+	/**
+	 * Maximum number of images of a multiple image calibration processed at the same time (which bounds the
+	 * number of image copies held in memory), one (the default) processes the images in turn. This only changes
+	 * how the calibration is run, so it is not part of equals and hashCode.
+	 */
+	public int getMaxConcurrentImages() {
+		return maxConcurrentImages;
+	}
+
+	public void setMaxConcurrentImages(int maxConcurrentImages) {
+		this.maxConcurrentImages = maxConcurrentImages;
+	}
+
+	/**
+	 * Pixels below this percentile are clamped to it before finding the centre and rings
+	 */
+	public double getLowerOutlierPercentile() {
+		return lowerOutlierPercentile;
+	}
+
+	public void setLowerOutlierPercentile(double lowerOutlierPercentile) {
+		this.lowerOutlierPercentile = lowerOutlierPercentile;
+	}
+
+	/**
+	 * Pixels above this percentile (hot pixels) are clamped to it before finding the centre and rings
+	 */
+	public double getUpperOutlierPercentile() {
+		return upperOutlierPercentile;
+	}
+
+	public void setUpperOutlierPercentile(double upperOutlierPercentile) {
+		this.upperOutlierPercentile = upperOutlierPercentile;
+	}
+
+	/**
+	 * Loss used to fit the line the ellipse centres of an image lie along, the robust losses reduce
+	 * the effect of a badly fitted ring
+	 */
+	public CentreFitter.Loss getCentreFitLoss() {
+		return centreFitLoss;
+	}
+
+	public void setCentreFitLoss(CentreFitter.Loss centreFitLoss) {
+		this.centreFitLoss = centreFitLoss;
+	}
+
+	/**
+	 * If true the ellipse centres are weighted by the inverse square of the rms of their ellipse fits
+	 * when fitting the line they lie along
+	 */
+	public boolean isWeightCentreFit() {
+		return weightCentreFit;
+	}
+
+	public void setWeightCentreFit(boolean weightCentreFit) {
+		this.weightCentreFit = weightCentreFit;
+	}
+
+	/**
+	 * How the points of interest are found along the rings, fitting (the default) or centroids of the
+	 * radial profiles, which are only fitted where the centroid is poor
+	 */
+	public MultiplePeakFittingEllipseFinder.POIMethod getPoiMethod() {
+		return poiMethod;
+	}
+
+	public void setPoiMethod(MultiplePeakFittingEllipseFinder.POIMethod poiMethod) {
+		this.poiMethod = poiMethod;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((ellipseOptions == null) ? 0 : ellipseOptions.hashCode());
 		result = prime * result + (automaticCalibration ? 1231 : 1237);
+		result = prime * result + baselineWidth;
+		result = prime * result + ((centreFitLoss == null) ? 0 : centreFitLoss.hashCode());
 		result = prime * result + (isPointCalibration ? 1231 : 1237);
+		long temp;
+		temp = Double.doubleToLongBits(lowerOutlierPercentile);
+		result = prime * result + (int) (temp ^ (temp >>> 32));
 		result = prime * result + maxSearchSize;
 		result = prime * result + minimumSpacing;
 		result = prime * result + nIgnoreCentre;
 		result = prime * result + nPointsPerRing;
 		result = prime * result + numberOfRings;
+		result = prime * result + ((poiMethod == null) ? 0 : poiMethod.hashCode());
 		result = prime * result + ((pointOptions == null) ? 0 : pointOptions.hashCode());
+		temp = Double.doubleToLongBits(upperOutlierPercentile);
+		result = prime * result + (int) (temp ^ (temp >>> 32));
 		result = prime * result + ((ringSet == null) ? 0 : ringSet.hashCode());
+		result = prime * result + (weightCentreFit ? 1231 : 1237);
 		return result;
 	}
 
@@ -246,8 +395,14 @@ public class SimpleCalibrationParameterModel {
 			return false;
 		if (automaticCalibration != other.automaticCalibration)
 			return false;
+		if (baselineWidth != other.baselineWidth)
+			return false;
+		if (centreFitLoss != other.centreFitLoss)
+			return false;
 		if (isPointCalibration != other.isPointCalibration)
 			return false;
+		if (Double.doubleToLongBits(lowerOutlierPercentile) != Double.doubleToLongBits(other.lowerOutlierPercentile))
+			return false;
 		if (maxSearchSize != other.maxSearchSize)
 			return false;
 		if (minimumSpacing != other.minimumSpacing)
@@ -258,16 +413,22 @@ public class SimpleCalibrationParameterModel {
 			return false;
 		if (numberOfRings != other.numberOfRings)
 			return false;
+		if (poiMethod != other.poiMethod)
+			return false;
 		if (pointOptions == null) {
 			if (other.pointOptions != null)
 				return false;
 		} else if (!pointOptions.equals(other.pointOptions))
 			return false;
+		if (Double.doubleToLongBits(upperOutlierPercentile) != Double.doubleToLongBits(other.upperOutlierPercentile))
+			return false;
 		if (ringSet == null) {
 			if (other.ringSet != null)
 				return false;
 		} else if (!ringSet.equals(other.ringSet))
 			return false;
+		if (weightCentreFit != other.weightCentreFit)
+			return false;
 		return true;
 	}
 
@@ -277,7 +438,6 @@ public class SimpleCalibrationParameterModel {
 		public int hashCode() {
 			final int prime = 31;
 			int result = 1;
-			result = prime * result + getOuterType().hashCode();
 			result = prime * result + (floatDistance ? 1231 : 1237);
 			result = prime * result + (floatEnergy ? 1231 : 1237);
 			return result;
@@ -429,8 +589,25 @@ public class SimpleCalibrationParameterModel {
 			return new DiffractionMetadata(null, d, ndce);
 		}
 
-		private SimpleCalibrationParameterModel getOuterType() {
-			return SimpleCalibrationParameterModel.this;
+		public void updateMetadata(double[] params, IDiffractionMetadata md) {
+
+			DetectorProperties dp = md.getDetector2DProperties();
+
+			int count = 0;
+
+			if (floatEnergy)
+				md.getDiffractionCrystalEnvironment().setWavelength(params[count++]);
+
+			double distance = dp.getBeamCentreDistance();
+
+			if (floatDistance)
+				distance = params[count++];
+
+			double[] beamCentre = new double[] {params[count++], params[count++]};
+
+			dp.setNormalAnglesInDegrees(params[count++], 0, params[count++]);
+			dp.setBeamCentreCoords(beamCentre);
+			dp.setBeamCentreDistance(distance);
 		}
 	}
 
@@ -440,7 +617,6 @@ public class SimpleCalibrationParameterModel {
 		public int hashCode() {
 			final int prime = 31;
 			int result = super.hashCode();
-			result = prime * result + getOuterType().hashCode();
 			result = prime * result + (floatBeamCentre ? 1231 : 1237);
 			result = prime * result + (floatTilt ? 1231 : 1237);
 			result = prime * result + (isMasked ? 1231 : 1237);
@@ -476,7 +652,7 @@ public class SimpleCalibrationParameterModel {
 			this.floatEnergy = options.floatEnergy;
 			this.floatDistance = options.floatDistance;
 			this.floatBeamCentre = options.floatBeamCentre;
-			this.floatTilt = options.floatEnergy; // Is this a typo or deliberate?
+			this.floatTilt = options.floatTilt;
 			this.isMasked = options.isMasked;
 		}
 
@@ -618,8 +794,36 @@ public class SimpleCalibrationParameterModel {
 			return new DiffractionMetadata(null, d, ndce);
 		}
 
-		private SimpleCalibrationParameterModel getOuterType() {
-			return SimpleCalibrationParameterModel.this;
+		@Override
+		public void updateMetadata(double[] params, IDiffractionMetadata md) {
+
+			DetectorProperties dp = md.getDetector2DProperties();
+
+			int count = 0;
+
+			if (floatEnergy)
+				md.getDiffractionCrystalEnvironment().setWavelength(params[count++]);
+
+			double distance = dp.getBeamCentreDistance();
+			double[] beamCentre = dp.getBeamCentreCoords();
+			double[] normAngle = dp.getNormalAnglesInDegrees();
+
+			if (floatDistance)
+				distance = params[count++];
+
+			if (floatBeamCentre) {
+				beamCentre[0] = params[count++];
+				beamCentre[1] = params[count++];
+			}
+
+			if (floatTilt) {
+				normAngle[0] = params[count++];
+				normAngle[2] = params[count++];
+			}
+
+			dp.setNormalAnglesInDegrees(normAngle[0], 0, normAngle[2]);
+			dp.setBeamCentreCoords(beamCentre);
+			dp.setBeamCentreDistance(distance);
 		}
 	}
 }